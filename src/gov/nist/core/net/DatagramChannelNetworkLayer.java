@@ -0,0 +1,52 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+package gov.nist.core.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Network layer able to create datagram channels, used by the UDP message processor
+ * to read a port from several sockets (see gov.nist.javax.sip.UDP_RECEIVE_SOCKETS).
+ */
+public interface DatagramChannelNetworkLayer extends NetworkLayer {
+
+    /**
+     * Creates a datagram channel in blocking mode, bound to the specified local address.
+     * If reusePort is true SO_REUSEPORT is set before binding so that several channels
+     * can be bound to the same address and port, the kernel balancing the datagrams between them.
+     *
+     * @param port
+     * @param laddr
+     * @param reusePort
+     * @return the datagram channel
+     * @throws IOException if the channel cannot be bound or SO_REUSEPORT is not supported
+     */
+    public DatagramChannel createDatagramChannel(int port, InetAddress laddr, boolean reusePort)
+            throws IOException;
+
+}
@@ -26,6 +26,8 @@
 package gov.nist.core.net;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -33,6 +35,7 @@ import java.net.MulticastSocket;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.DatagramChannel;
 
 /* Added by Daniel J. Martinez Manzano <dani@dif.um.es> */
 import javax.net.ssl.SSLSocket;
@@ -48,7 +51,7 @@ import javax.net.ssl.SSLServerSocketFactory;
  * @since 1.1
  *
  */
-public class DefaultNetworkLayer implements NetworkLayer {
+public class DefaultNetworkLayer implements DatagramChannelNetworkLayer {
 
     private SSLSocketFactory sslSocketFactory;
 
@@ -94,6 +97,49 @@ public class DefaultNetworkLayer implements NetworkLayer {
         } else return new DatagramSocket(port, laddr);
     }
 
+    public DatagramChannel createDatagramChannel(int port, InetAddress laddr,
+            boolean reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            if (reusePort) {
+                setReusePort(channel);
+            }
+            channel.socket().bind(new InetSocketAddress(laddr, port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * SO_REUSEPORT is only exposed from Java 9 onwards (and socket options from
+     * Java 7), so it is looked up by reflection.
+     */
+    private static void setReusePort(DatagramChannel channel) throws IOException {
+        Object reusePort;
+        Method setOption;
+        try {
+            Class<?> socketOptionClass = Class.forName("java.net.SocketOption");
+            reusePort = Class.forName("java.net.StandardSocketOptions").getField(
+                    "SO_REUSEPORT").get(null);
+            setOption = DatagramChannel.class.getMethod("setOption", socketOptionClass,
+                    Object.class);
+        } catch (Exception e) {
+            throw new SocketException("SO_REUSEPORT is not supported by this JVM");
+        }
+        try {
+            setOption.invoke(channel, reusePort, Boolean.TRUE);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new SocketException("SO_REUSEPORT is not supported on this platform");
+        } catch (IllegalAccessException e) {
+            throw new SocketException("SO_REUSEPORT is not supported by this JVM");
+        }
+    }
+
     /* Added by Daniel J. Martinez Manzano <dani@dif.um.es> */
     public SSLServerSocket createSSLServerSocket(int port, int backlog,
             InetAddress bindAddress) throws IOException {
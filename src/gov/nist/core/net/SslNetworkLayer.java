@@ -34,6 +34,7 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.DatagramChannel;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.SecureRandom;
@@ -55,19 +56,20 @@ import javax.net.ssl.TrustManagerFactory;
  * @since 1.2
  *
  */
-public class SslNetworkLayer implements NetworkLayer {
+public class SslNetworkLayer implements DatagramChannelNetworkLayer {
 
     private SSLSocketFactory sslSocketFactory;
 
     private SSLServerSocketFactory sslServerSocketFactory;
 
+    private SSLContext sslContext;
+
     public SslNetworkLayer(
             String trustStoreFile,
             String keyStoreFile,
             char[] keyStorePassword,
             String keyStoreType) throws GeneralSecurityException, FileNotFoundException, IOException
     {
-        SSLContext sslContext;
         sslContext = SSLContext.getInstance("TLS");
         String algorithm = KeyManagerFactory.getDefaultAlgorithm();
         TrustManagerFactory tmFactory = TrustManagerFactory.getInstance(algorithm);
@@ -87,6 +89,14 @@ public class SslNetworkLayer implements NetworkLayer {
         sslSocketFactory = sslContext.getSocketFactory();
     }
 
+    /**
+     * @return the SSLContext initialized with the keystore and truststore of this network layer,
+     *         for use by transports that do not go through SSL sockets (e.g. SSLEngine based).
+     */
+    public SSLContext getSSLContext() {
+        return sslContext;
+    }
+
     public ServerSocket createServerSocket(int port, int backlog,
             InetAddress bindAddress) throws IOException {
         return new ServerSocket(port, backlog, bindAddress);
@@ -106,6 +116,11 @@ public class SslNetworkLayer implements NetworkLayer {
         return new DatagramSocket(port, laddr);
     }
 
+    public DatagramChannel createDatagramChannel(int port, InetAddress laddr,
+            boolean reusePort) throws IOException {
+        return DefaultNetworkLayer.SINGLETON.createDatagramChannel(port, laddr, reusePort);
+    }
+
     /* Added by Daniel J. Martinez Manzano <dani@dif.um.es> */
     public SSLServerSocket createSSLServerSocket(int port, int backlog,
             InetAddress bindAddress) throws IOException {
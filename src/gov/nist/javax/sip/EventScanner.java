@@ -26,10 +26,18 @@
 package gov.nist.javax.sip;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import gov.nist.javax.sip.stack.*;
 import gov.nist.javax.sip.message.*;
 import javax.sip.message.*;
 import javax.sip.*;
+import javax.sip.header.CallIdHeader;
 import gov.nist.core.ThreadAuditor;
 
 /* bug fixes SIPQuest communications and Shu-Lin Chen. */
@@ -56,6 +64,65 @@ class EventScanner implements Runnable {
 
     private SipStackImpl sipStack;
 
+    // Max number of events delivered in a row for a given call before letting
+    // the other calls use the thread.
+    private static final int MAX_EVENTS_PER_RUN = 32;
+
+    // When the listener is delivered by several threads, the events are queued
+    // per Call-ID so that each call sees its events in order.
+    private ExecutorService eventExecutor;
+
+    private ConcurrentHashMap<String, CallEventQueue> callEventQueues;
+
+    /**
+     * The events of a call. It is scheduled on the executor as long as it has
+     * events and removed from the map once drained. The lock is per call.
+     */
+    class CallEventQueue implements Runnable {
+        private final String callId;
+
+        private final LinkedList<EventWrapper> events = new LinkedList<EventWrapper>();
+
+        private boolean scheduled;
+
+        private boolean removed;
+
+        CallEventQueue(String callId) {
+            this.callId = callId;
+        }
+
+        public void run() {
+            for (int i = 0; i < MAX_EVENTS_PER_RUN; i++) {
+                EventWrapper eventWrapper;
+                synchronized (this) {
+                    eventWrapper = events.poll();
+                    if (eventWrapper == null) {
+                        scheduled = false;
+                        removed = true;
+                        callEventQueues.remove(callId, this);
+                        return;
+                    }
+                }
+                try {
+                    deliverEvent(eventWrapper);
+                } catch (Exception e) {
+                    if (sipStack.isLoggingEnabled()) {
+                        sipStack.getStackLogger().logError(
+                                "Unexpected exception caught while delivering event -- carrying on bravely", e);
+                    }
+                }
+            }
+            // still scheduled, give the other calls a chance to run
+            try {
+                eventExecutor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logDebug(
+                            "Stopped event scanner, dropping the events of " + callId);
+            }
+        }
+    }
+
     public void incrementRefcount() {
         synchronized (eventMutex) {
             this.refCount++;
@@ -64,13 +131,33 @@ class EventScanner implements Runnable {
 
     public EventScanner(SipStackImpl sipStackImpl) {
         this.pendingEvents = new LinkedList();
+        this.sipStack = sipStackImpl;
+
+        int threadPoolSize = sipStackImpl.getEventScannerThreadPoolSize();
+        if (threadPoolSize > 1) {
+            this.callEventQueues = new ConcurrentHashMap<String, CallEventQueue>();
+            this.eventExecutor = Executors.newFixedThreadPool(threadPoolSize,
+                    new ThreadFactory() {
+                        private final AtomicInteger threadCount = new AtomicInteger();
+
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable);
+                            // This needs to be set to false else the
+                            // main thread mysteriously exits.
+                            thread.setDaemon(false);
+                            thread.setName("EventScannerThread-"
+                                    + threadCount.getAndIncrement());
+                            return thread;
+                        }
+                    });
+            return;
+        }
+
         Thread myThread = new Thread(this);
         // This needs to be set to false else the
         // main thread mysteriously exits.
         myThread.setDaemon(false);
 
-        this.sipStack = sipStackImpl;
-
         myThread.setName("EventScannerThread");
 
         myThread.start();
@@ -80,6 +167,10 @@ class EventScanner implements Runnable {
     public void addEvent(EventWrapper eventWrapper) {
     	if (sipStack.isLoggingEnabled())
     		sipStack.getStackLogger().logDebug("addEvent " + eventWrapper);
+        if (eventExecutor != null) {
+            addCallEvent(eventWrapper);
+            return;
+        }
         synchronized (this.eventMutex) {
 
             pendingEvents.add(eventWrapper);
@@ -105,6 +196,8 @@ class EventScanner implements Runnable {
             if (this.refCount == 0) {
                 isStopped = true;
                 eventMutex.notify();
+                if (eventExecutor != null)
+                    eventExecutor.shutdown();
 
             }
         }
@@ -120,10 +213,88 @@ class EventScanner implements Runnable {
             this.isStopped = true;
             this.refCount = 0;
             this.eventMutex.notify();
+            if (eventExecutor != null)
+                eventExecutor.shutdown();
         }
 
     }
 
+    /**
+     * Queue the event behind the other events of its call and schedule the
+     * call on the executor if it is not already.
+     */
+    private void addCallEvent(EventWrapper eventWrapper) {
+        String callId = getCallId(eventWrapper);
+        while (true) {
+            CallEventQueue callEventQueue = callEventQueues.get(callId);
+            if (callEventQueue == null) {
+                callEventQueue = new CallEventQueue(callId);
+                CallEventQueue existing = callEventQueues.putIfAbsent(callId,
+                        callEventQueue);
+                if (existing != null)
+                    callEventQueue = existing;
+            }
+            synchronized (callEventQueue) {
+                if (callEventQueue.removed) {
+                    // drained and removed in the meantime, retry with a new one
+                    continue;
+                }
+                callEventQueue.events.add(eventWrapper);
+                if (callEventQueue.scheduled)
+                    return;
+                callEventQueue.scheduled = true;
+            }
+            try {
+                eventExecutor.execute(callEventQueue);
+            } catch (RejectedExecutionException ex) {
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logDebug(
+                            "Stopped event scanner, dropping " + eventWrapper);
+            }
+            return;
+        }
+    }
+
+    /**
+     * The Call-ID the event relates to, or an empty string for the events
+     * related to no call (IO exceptions).
+     */
+    private String getCallId(EventWrapper eventWrapper) {
+        EventObject sipEvent = eventWrapper.sipEvent;
+        String callId = null;
+        CallIdHeader callIdHeader = null;
+        if (sipEvent instanceof RequestEvent) {
+            callIdHeader = ((SIPRequest) ((RequestEvent) sipEvent).getRequest())
+                    .getCallId();
+        } else if (sipEvent instanceof ResponseEvent) {
+            callIdHeader = ((SIPResponse) ((ResponseEvent) sipEvent)
+                    .getResponse()).getCallId();
+        } else if (sipEvent instanceof DialogTimeoutEvent) {
+            callIdHeader = ((DialogTimeoutEvent) sipEvent).getDialog()
+                    .getCallId();
+        } else if (sipEvent instanceof DialogTerminatedEvent) {
+            callIdHeader = ((DialogTerminatedEvent) sipEvent).getDialog()
+                    .getCallId();
+        } else if (eventWrapper.transaction != null) {
+            callId = eventWrapper.transaction.getOriginalRequestCallId();
+        } else if (sipEvent instanceof TimeoutEvent) {
+            TimeoutEvent timeoutEvent = (TimeoutEvent) sipEvent;
+            Transaction transaction = timeoutEvent.isServerTransaction() ? timeoutEvent
+                    .getServerTransaction() : timeoutEvent.getClientTransaction();
+            if (transaction != null)
+                callId = ((SIPTransaction) transaction).getOriginalRequestCallId();
+        } else if (sipEvent instanceof TransactionTerminatedEvent) {
+            TransactionTerminatedEvent terminatedEvent = (TransactionTerminatedEvent) sipEvent;
+            Transaction transaction = terminatedEvent.isServerTransaction() ? terminatedEvent
+                    .getServerTransaction() : terminatedEvent.getClientTransaction();
+            if (transaction != null)
+                callId = ((SIPTransaction) transaction).getOriginalRequestCallId();
+        }
+        if (callIdHeader != null)
+            callId = callIdHeader.getCallId();
+        return callId == null ? "" : callId;
+    }
+
     public void deliverEvent(EventWrapper eventWrapper) {
         EventObject sipEvent = eventWrapper.sipEvent;
         if (sipStack.isLoggingEnabled())
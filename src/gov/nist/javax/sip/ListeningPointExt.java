@@ -8,6 +8,14 @@ import javax.sip.header.ViaHeader;
 
 public interface ListeningPointExt extends ListeningPoint {
 
+    /**
+     * Transport constant: in-JVM loop transport between stacks of the same
+     * JVM, see gov.nist.javax.sip.stack.LoopMessageProcessor.
+     *
+     * @since 2.0
+     */
+    public static final String LOOP = "LOOP";
+
     /**
      * Create a contact for this listening point.
      *
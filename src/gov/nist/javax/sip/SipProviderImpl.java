@@ -255,7 +255,7 @@ public class SipProviderImpl implements javax.sip.SipProvider, gov.nist.javax.si
      * @see javax.sip.SipProvider#getNewCallId()
      */
     public CallIdHeader getNewCallId() {
-        String callId = Utils.getInstance().generateCallIdentifier(this.getListeningPoint()
+        String callId = sipStack.getUtils().generateCallIdentifier(this.getListeningPoint()
                 .getIPAddress());
         CallID callid = new CallID();
         try {
@@ -380,7 +380,7 @@ public class SipProviderImpl implements javax.sip.SipProvider, gov.nist.javax.si
                     || !sipRequest.getTopmostVia().getBranch().startsWith(
                             SIPConstants.BRANCH_MAGIC_COOKIE)
                             || sipStack.checkBranchId() ) {
-                branchId = Utils.getInstance().generateBranchId();
+                branchId = sipStack.getUtils().generateBranchId();
 
                 sipRequest.getTopmostVia().setBranch(branchId);
             }
@@ -37,6 +37,8 @@ import gov.nist.javax.sip.clientauthutils.SecureAccountManager;
 import gov.nist.javax.sip.parser.MessageParserFactory;
 import gov.nist.javax.sip.parser.StringMsgParser;
 import gov.nist.javax.sip.parser.StringMsgParserFactory;
+import gov.nist.javax.sip.stack.CongestionControlPolicy;
+import gov.nist.javax.sip.stack.DefaultCongestionControlPolicy;
 import gov.nist.javax.sip.stack.DefaultMessageLogFactory;
 import gov.nist.javax.sip.stack.DefaultRouter;
 import gov.nist.javax.sip.stack.MessageProcessor;
@@ -245,6 +247,15 @@ import javax.sip.message.Request;
  * multithreaded machine write your listener to be re-entrant and set this
  * property to be true </b></li>
  * 
+ * <li><b>gov.nist.javax.sip.EVENT_SCANNER_THREAD_POOL_SIZE = integer </b> <br/>
+ * Default is 1. Number of threads delivering the events to a listener that is
+ * not re-entrant. With a single thread all the events are delivered in order,
+ * one at a time. With more threads, the events are queued per Call-ID : the
+ * events of a given call (and so of its dialogs and transactions) are still
+ * delivered one at a time and in order, while the events of different calls are
+ * delivered concurrently, so the listener has to be thread safe across calls.
+ * Ignored if gov.nist.javax.sip.REENTRANT_LISTENER is true.</li>
+ * 
  * <li><b>gov.nist.javax.sip.MAX_CONNECTIONS = integer </b> <br/>
  * Max number of simultaneous TCP connections handled by stack.</li>
  * 
@@ -260,6 +271,13 @@ import javax.sip.message.Request;
  * caller never blocks and waits for a client transaction to become available
  * (i.e. it does its own resource management in the application).</li>
  * 
+ * <li><b>gov.nist.javax.sip.TABLE_PARTITIONS = integer </b> <br/>
+ * Number of partitions of the dialog and transaction tables, rounded up to a
+ * power of two. Dialogs and transactions are spread among the partitions by
+ * the hash of their id, and each partition keeps its own counts, which
+ * SIPTransactionStack reports through getClientTransactionTablePartitionSizes()
+ * and the like. Default is the number of processors.</li>
+ * 
  * <li><b>gov.nist.javax.sip.PASS_INVITE_NON_2XX_ACK_TO_LISTENER = true|false
  * </b> <br/>
  * If true then the listener will see the ACK for non-2xx responses for server
@@ -290,6 +308,35 @@ import javax.sip.message.Request;
  * is wide open to starvation attacks) and the client can be as slow as it wants
  * to be.</li>
  * 
+ * <li><b>gov.nist.javax.sip.CONNECT_TIMEOUT = integer </b> <br/>
+ * Time in milliseconds a caller sending a message over TCP or TLS waits for a
+ * new connection to the destination. Connections are established by a thread
+ * of their own, and the messages sent to a destination while its connection
+ * is being established are queued and written once it is up, so a slow or
+ * unreachable peer holds up its callers for this long at most. Default is
+ * 10000.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.NON_BLOCKING_CONNECT = [true|false] </b> <br/>
+ * If true, a caller sending a message over TCP or TLS while its connection is
+ * being established does not wait for it. The message is written once the
+ * connection is up, or dropped after CONNECT_TIMEOUT, in which case the client
+ * transaction that sent it gets an IOExceptionEvent. Default is false.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.CONNECTIONS_PER_DESTINATION = integer </b> <br/>
+ * Number of TCP connections opened to a destination, over which the messages
+ * sent to it are spread by Call-ID, so that the messages of a call keep their
+ * order. The first connection is the one answers come back
+ * on, the others are read by channels of their own. TLS always uses a single
+ * connection. Default is 1.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.CONNECT_THREADS = integer </b> <br/>
+ * Number of threads establishing the outbound TCP and TLS connections. A
+ * thread stays blocked for as long as the operating system tries to reach an
+ * unreachable peer, well past CONNECT_TIMEOUT, so this bounds the threads
+ * such peers can hold. The connections to establish beyond it wait for a
+ * thread, and are given up if all their messages went past CONNECT_TIMEOUT
+ * meanwhile. Default is 16.</li>
+ * 
  * <li><b>gov.nist.javax.sip.NETWORK_LAYER = classpath </b> <br/>
  * This is an EXPERIMENTAL property (still under active devlopment). Defines a
  * network layer that allows a client to have control over socket allocations
@@ -374,10 +421,36 @@ import javax.sip.message.Request;
  * messages are dropped causing retransmissions, further increasing the load and
  * causing even more retransmissions. Good values to this property for servers
  * is a big number in the order of 8*8*1024 or higher.</li>
+ *
+ * <li><b>gov.nist.javax.sip.UDP_RECEIVE_SOCKETS = int </b> <br/>
+ * Default is <it>1</it>. Number of sockets bound to each UDP listening point
+ * with SO_REUSEPORT, the kernel spreading the incoming datagrams over them. Each
+ * socket is read by its own thread into its own queue (congestion control applies
+ * per socket) and the gov.nist.javax.sip.THREAD_POOL_SIZE threads are shared between
+ * the sockets. This requires a JVM (Java 9 or later) and an OS supporting SO_REUSEPORT
+ * and a network layer implementing gov.nist.core.net.DatagramChannelNetworkLayer,
+ * otherwise a single socket is used.</li>
  * 
  * <li><b>gov.nist.javax.sip.CONGESTION_CONTROL_ENABLED = boolean </b> Defailt
- * is true. If set to true stack will enforce queue length limitation for UDP.
- * The Max queue size is 5000 messages. The minimum queue size is 2500 messages.
+ * is true. If set to true stack will enforce queue length limitation for UDP,
+ * the gov.nist.javax.sip.CONGESTION_CONTROL_POLICY deciding which messages are
+ * dropped.
+ * </li>
+ * 
+ * <li><b>gov.nist.javax.sip.CONGESTION_CONTROL_POLICY = name of the class implementing gov.nist.javax.sip.stack.CongestionControlPolicy</b>
+ * Default is gov.nist.javax.sip.stack.DefaultCongestionControlPolicy. The policy is asked
+ * for each incoming UDP message before it is queued. The default one accepts everything below
+ * gov.nist.javax.sip.CONGESTION_CONTROL_LOW_WATERMARK (default 2500) queued messages, then drops
+ * new INVITEs with a probability growing up to gov.nist.javax.sip.CONGESTION_CONTROL_HIGH_WATERMARK
+ * (default 5000) queued messages, above which all the new out of dialog requests are dropped.
+ * Responses and in-dialog requests are only dropped when the queue is full.
+ * The stack is not created if the policy cannot be loaded or initialized.
+ * </li>
+ * 
+ * <li><b>gov.nist.javax.sip.UDP_QUEUE_CAPACITY = int </b> <br/>
+ * Default is <it>8192</it>. Max number of incoming messages waiting to be processed for
+ * each UDP socket, rounded up to the next power of two. Messages coming in when
+ * the queue is full are dropped.
  * </li>
  * 
  * <li><b>gov.nist.javax.sip.DELIVER_UNSOLICITED_NOTIFY = [true|false] </b> <br/>
@@ -394,6 +467,16 @@ import javax.sip.message.Request;
  * to see if that response suffix is present. If it is not present, then the
  * stack will silently drop the response.</li>
  * 
+ * <li><b>gov.nist.javax.sip.IDENTIFIER_GENERATOR = [digest|random|sequential] </b>
+ * Default is <it>digest</it>. How the stack generates Call-IDs, tags and branch
+ * identifiers. <it>digest</it> digests random numbers with MD5 behind a lock
+ * shared by all the threads of the JVM. <it>random</it> and <it>sequential</it>
+ * use the lock free gov.nist.javax.sip.ThreadLocalUtils, which draws random
+ * numbers from a generator per thread; with <it>sequential</it> the Call-IDs and
+ * branch identifiers also carry a counter guaranteeing they are never
+ * generated twice by the JVM, with <it>random</it> they are only unique with a
+ * very high probability.</li>
+ * 
  * <li><b>gov.nist.javax.sip.MAX_FORK_TIME_SECONDS = integer </b> Maximum time for which the original 
  * transaction for which a forked response is received is tracked. This property
  * is only relevant to Dialog Stateful applications ( User Agents or B2BUA).
@@ -408,12 +491,35 @@ import javax.sip.message.Request;
  * 
  * <li><b>gov.nist.javax.sip.MESSAGE_PROCESSOR_FACTORY =  name of the class implementing gov.nist.javax.sip.parser.MessageProcessorFactory</b>
  * This factory allows pluggable implementations of the MessageProcessor that will take care of incoming messages.
- * By example one could plug a NIO Processor through this factory.</li>
+ * By example one could plug a NIO Processor through this factory. The stack comes with
+ * gov.nist.javax.sip.stack.NioMessageProcessorFactory which multiplexes all the TCP and TLS
+ * connections over a small set of selector threads instead of using a thread per connection.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.NIO_SELECTOR_THREADS = integer</b> Only relevant with the
+ * gov.nist.javax.sip.stack.NioMessageProcessorFactory. The number of selector threads reading
+ * the TCP and TLS connections of each listening point. Defaults to the number of available
+ * processors. The parsed messages are processed by a thread pool sized by
+ * gov.nist.javax.sip.THREAD_POOL_SIZE, unbounded if that property is not set.</li>
  * 
  * <li><b>gov.nist.javax.sip.TIMER_CLASS_NAME =  name of the class implementing gov.nist.javax.sip.stack.timers.SipTimer</b> interface
  * This allows pluggable implementations of the Timer that will take care of scheduling the various SIP Timers.
- * By example one could plug a regular timer, a scheduled thread pool executor.</li>
- * 
+ * By example one could plug a regular timer, a scheduled thread pool executor or the
+ * gov.nist.javax.sip.stack.timers.HashedWheelSipTimer hashed timing wheel.</li>
+ *
+ * <li><b>gov.nist.javax.sip.TIMER_TICK_DURATION_MILLISECONDS = integer</b> Duration of a tick
+ * of the gov.nist.javax.sip.stack.timers.HashedWheelSipTimer, i.e. the precision of the timer.
+ * The default is 10 ms.</li>
+ *
+ * <li><b>gov.nist.javax.sip.TIMER_WHEEL_SIZE = integer</b> Number of buckets of the
+ * gov.nist.javax.sip.stack.timers.HashedWheelSipTimer, rounded up to the next power of two.
+ * Tasks scheduled further than the tick duration times the wheel size stay in their bucket
+ * for several rounds. The default is 512.</li>
+ *
+ * <li><b>gov.nist.javax.sip.TIMER_THREAD_POOL_SIZE = integer</b> Number of threads of the
+ * gov.nist.javax.sip.stack.timers.ScheduledExecutorSipTimer. The timers of a given call are
+ * always run by the same thread, so a slow timer task only delays the calls sharing its thread.
+ * The default is the number of available processors.</li>
+ *
  * <li><b>gov.nist.javax.sip.DELIVER_RETRANSMITTED_ACK_TO_LISTENER=boolean</b> A testing property
  * that allows application to see the ACK for retransmitted 200 OK requests. <b>Note that this is for test
  * purposes only</b></li>
@@ -439,6 +545,17 @@ import javax.sip.message.Request;
  * of outbund TLS connections.
  * </li>
  * 
+ * <li><b>gov.nist.javax.sip.TLS_HANDSHAKE_THREADS = integer </b> <br/>
+ * Number of threads running the handshakes of incoming TLS connections. The
+ * accept thread hands each new connection over to them, so a client slow to
+ * complete its handshake does not hold up the connections accepted after it.
+ * Default is 8.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.TLS_HANDSHAKE_TIMEOUT = integer </b> <br/>
+ * Time in milliseconds an incoming TLS connection has, from its accept, to
+ * complete its handshake before it is closed, with the blocking or the NIO
+ * message processors. 0 means no limit. Default is 10000.</li>
+ * 
  * <li><b>javax.net.ssl.keyStore = fileName </b> <br/>
  * Default is <it>NULL</it>. If left undefined the keyStore and trustStore will
  * be left to the java runtime defaults. If defined, any TLS sockets created
@@ -488,6 +605,8 @@ public class SipStackImpl extends SIPTransactionStack implements
 	// Use this flag with caution.
 	private boolean reEntrantListener;
 
+	private int eventScannerThreadPoolSize = 1;
+
 	SipListener sipListener;
 	TlsSecurityPolicy tlsSecurityPolicy;
 
@@ -921,6 +1040,20 @@ public class SipStackImpl extends SIPTransactionStack implements
 			this.unlimitedClientTransactionTableSize = true;
 		}
 
+		String tablePartitions = configurationProperties
+				.getProperty("gov.nist.javax.sip.TABLE_PARTITIONS");
+		if (tablePartitions != null) {
+			try {
+				this.tablePartitionCount = Math.max(1, Integer.parseInt(tablePartitions));
+				// the tables are still empty
+				super.createPartitionedTables();
+			} catch (NumberFormatException ex) {
+				if (isLoggingEnabled())
+					this.getStackLogger().logError(
+							"table partitions - bad value " + ex.getMessage());
+			}
+		}
+
 		super.cacheServerConnections = true;
 		String flag = configurationProperties
 				.getProperty("gov.nist.javax.sip.CACHE_SERVER_CONNECTIONS");
@@ -955,6 +1088,50 @@ public class SipStackImpl extends SIPTransactionStack implements
 			}
 		}
 
+		String connectTimeout = configurationProperties
+				.getProperty("gov.nist.javax.sip.CONNECT_TIMEOUT");
+		if (connectTimeout != null) {
+			try {
+				super.connectTimeout = Integer.parseInt(connectTimeout);
+			} catch (NumberFormatException nfe) {
+				if (isLoggingEnabled())
+					getStackLogger().logError(
+							"Bad connect timeout " + connectTimeout);
+			}
+		}
+
+		super.nonBlockingConnect = Boolean.valueOf(
+				configurationProperties.getProperty(
+						"gov.nist.javax.sip.NON_BLOCKING_CONNECT", "false"))
+				.booleanValue();
+
+		String connectionsPerDestination = configurationProperties
+				.getProperty("gov.nist.javax.sip.CONNECTIONS_PER_DESTINATION");
+		if (connectionsPerDestination != null) {
+			try {
+				super.connectionsPerDestination = Math.max(1, Integer
+						.parseInt(connectionsPerDestination));
+			} catch (NumberFormatException nfe) {
+				if (isLoggingEnabled())
+					getStackLogger().logError(
+							"Bad connections per destination "
+									+ connectionsPerDestination);
+			}
+		}
+
+		String connectThreads = configurationProperties
+				.getProperty("gov.nist.javax.sip.CONNECT_THREADS");
+		if (connectThreads != null) {
+			try {
+				super.connectThreads = Math.max(1, Integer
+						.parseInt(connectThreads));
+			} catch (NumberFormatException nfe) {
+				if (isLoggingEnabled())
+					getStackLogger().logError(
+							"Bad connect threads " + connectThreads);
+			}
+		}
+
 		// Get the address of the stun server.
 
 		String stunAddr = configurationProperties
@@ -987,6 +1164,23 @@ public class SipStackImpl extends SIPTransactionStack implements
 				.getProperty("gov.nist.javax.sip.REENTRANT_LISTENER");
 		this.reEntrantListener = (rel != null && "true".equalsIgnoreCase(rel));
 
+		String eventScannerThreads = configurationProperties
+				.getProperty("gov.nist.javax.sip.EVENT_SCANNER_THREAD_POOL_SIZE");
+		if (eventScannerThreads != null) {
+			try {
+				this.eventScannerThreadPoolSize = Integer.parseInt(eventScannerThreads);
+			} catch (NumberFormatException ex) {
+				if (isLoggingEnabled())
+					getStackLogger().logError(
+						"eventScannerThreadPoolSize - bad value " + ex.getMessage());
+			}
+			if (this.eventScannerThreadPoolSize > 1) {
+				// the event scanner has been created before the configuration was read
+				this.eventScanner.forceStop();
+				this.eventScanner = new EventScanner(this);
+			}
+		}
+
 		// Check if a thread audit interval is specified
 		String interval = configurationProperties
 				.getProperty("gov.nist.javax.sip.THREAD_AUDIT_INTERVAL_IN_MILLISECS");
@@ -1058,6 +1252,31 @@ public class SipStackImpl extends SIPTransactionStack implements
 			this.enabledProtocols = protocols;
 		}
 
+		String tlsHandshakeThreads = configurationProperties
+				.getProperty("gov.nist.javax.sip.TLS_HANDSHAKE_THREADS");
+		if (tlsHandshakeThreads != null) {
+			try {
+				super.tlsHandshakeThreads = Math.max(1, Integer
+						.parseInt(tlsHandshakeThreads));
+			} catch (NumberFormatException nfe) {
+				if (isLoggingEnabled())
+					getStackLogger().logError(
+							"Bad TLS handshake threads " + tlsHandshakeThreads);
+			}
+		}
+
+		String tlsHandshakeTimeout = configurationProperties
+				.getProperty("gov.nist.javax.sip.TLS_HANDSHAKE_TIMEOUT");
+		if (tlsHandshakeTimeout != null) {
+			try {
+				super.tlsHandshakeTimeout = Integer.parseInt(tlsHandshakeTimeout);
+			} catch (NumberFormatException nfe) {
+				if (isLoggingEnabled())
+					getStackLogger().logError(
+							"Bad TLS handshake timeout " + tlsHandshakeTimeout);
+			}
+		}
+
 		super.rfc2543Supported = configurationProperties.getProperty(
 				"gov.nist.javax.sip.RFC_2543_SUPPORT_ENABLED", "true")
 				.equalsIgnoreCase("true");
@@ -1100,12 +1319,51 @@ public class SipStackImpl extends SIPTransactionStack implements
 		bufferSizeInteger = new Integer(bufferSize).intValue();
 		super.setSendUdpBufferSize(bufferSizeInteger);
 
+		String udpReceiveSockets = configurationProperties.getProperty(
+				"gov.nist.javax.sip.UDP_RECEIVE_SOCKETS", "1");
+		try {
+			super.setUdpReceiveSockets(Integer.parseInt(udpReceiveSockets));
+		} catch (NumberFormatException ex) {
+			if (isLoggingEnabled())
+				getStackLogger().logError(
+					"udpReceiveSockets - bad value " + ex.getMessage());
+		}
+
 		boolean congetstionControlEnabled = Boolean
 				.parseBoolean(configurationProperties.getProperty(
 						"gov.nist.javax.sip.CONGESTION_CONTROL_ENABLED",
 						Boolean.TRUE.toString()));
 		super.stackDoesCongestionControl = congetstionControlEnabled;
 
+		String udpQueueCapacity = configurationProperties.getProperty(
+				"gov.nist.javax.sip.UDP_QUEUE_CAPACITY", "8192");
+		try {
+			super.udpQueueCapacity = Integer.parseInt(udpQueueCapacity);
+		} catch (NumberFormatException ex) {
+			if (isLoggingEnabled())
+				getStackLogger().logError(
+					"udpQueueCapacity - bad value " + ex.getMessage());
+		}
+
+		if (congetstionControlEnabled) {
+			String congestionControlPolicyName = configurationProperties.getProperty(
+					"gov.nist.javax.sip.CONGESTION_CONTROL_POLICY",
+					DefaultCongestionControlPolicy.class.getName());
+			try {
+				CongestionControlPolicy congestionControlPolicy = (CongestionControlPolicy) Class
+						.forName(congestionControlPolicyName).newInstance();
+				congestionControlPolicy.init(this, configurationProperties);
+				super.congestionControlPolicy = congestionControlPolicy;
+			} catch (Exception e) {
+				getStackLogger()
+					.logError(
+							"Bad configuration value for gov.nist.javax.sip.CONGESTION_CONTROL_POLICY", e);
+				throw new PeerUnavailableException(
+						"can't find or initialize CongestionControlPolicy implementation: "
+								+ congestionControlPolicyName, e);
+			}
+		}
+
 		super.isBackToBackUserAgent = Boolean
 				.parseBoolean(configurationProperties.getProperty(
 						"gov.nist.javax.sip.IS_BACK_TO_BACK_USER_AGENT",
@@ -1113,6 +1371,18 @@ public class SipStackImpl extends SIPTransactionStack implements
 		super.checkBranchId = Boolean.parseBoolean(configurationProperties
 				.getProperty("gov.nist.javax.sip.REJECT_STRAY_RESPONSES",
 						Boolean.FALSE.toString()));
+
+		String identifierGenerator = configurationProperties.getProperty(
+				"gov.nist.javax.sip.IDENTIFIER_GENERATOR", "digest");
+		if (identifierGenerator.equalsIgnoreCase("random")) {
+			super.utils = new ThreadLocalUtils(false);
+		} else if (identifierGenerator.equalsIgnoreCase("sequential")) {
+			super.utils = new ThreadLocalUtils(true);
+		} else if (!identifierGenerator.equalsIgnoreCase("digest")) {
+			throw new PeerUnavailableException(
+					"Bad configuration value for gov.nist.javax.sip.IDENTIFIER_GENERATOR : "
+							+ identifierGenerator);
+		}
 		
 		super.isDialogTerminatedEventDeliveredForNullDialog = (Boolean.parseBoolean(configurationProperties.getProperty("gov.nist.javax.sip.DELIVER_TERMINATED_EVENT_FOR_NULL_DIALOG",
 		        Boolean.FALSE.toString())));
@@ -1187,7 +1457,8 @@ public class SipStackImpl extends SIPTransactionStack implements
 		if (!transport.equalsIgnoreCase("UDP")
 				&& !transport.equalsIgnoreCase("TLS")
 				&& !transport.equalsIgnoreCase("TCP")
-				&& !transport.equalsIgnoreCase("SCTP"))
+				&& !transport.equalsIgnoreCase("SCTP")
+				&& !transport.equalsIgnoreCase(ListeningPointExt.LOOP))
 			throw new TransportNotSupportedException("bad transport "
 					+ transport);
 
@@ -1622,6 +1893,13 @@ public class SipStackImpl extends SIPTransactionStack implements
 		return reEntrantListener;
 	}
 
+	/**
+	 * @return the number of threads delivering the events to a non re-entrant listener
+	 */
+	public int getEventScannerThreadPoolSize() {
+		return eventScannerThreadPoolSize;
+	}
+
 
     
 
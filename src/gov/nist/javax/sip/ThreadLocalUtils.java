@@ -0,0 +1,139 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package gov.nist.javax.sip;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates Call-IDs, tags and branch identifiers without any lock. Unlike
+ * {@link Utils}, which shares one random generator and one MD5 digester
+ * behind a monitor, each thread draws from a SecureRandom of its own and
+ * the identifiers are the random bits written in hexadecimal, without
+ * digesting them.
+ * 
+ * In sequential mode the Call-IDs and branch identifiers also carry a counter
+ * shared by the whole JVM (incremented without locking), which guarantees
+ * that they are never generated twice by the JVM. Otherwise they carry 128
+ * random bits from generators seeded with 160 bits each, which makes a
+ * duplicate as unlikely as with {@link Utils}.
+ * Tags only need to be unique within a call and are always 32 random bits.
+ * 
+ * Branch identifiers carry the same signature as the ones of {@link Utils},
+ * so {@link Utils#responseBelongsToUs(gov.nist.javax.sip.message.SIPResponse)}
+ * still recognizes them.
+ */
+public class ThreadLocalUtils implements UtilsExt {
+
+    private static final AtomicLong counter = new AtomicLong();
+
+    private static final char[] toHex = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a',
+            'b', 'c', 'd', 'e', 'f' };
+
+    private final boolean sequential;
+
+    // seeds the generators of the threads
+    private static final SecureRandom seeder = new SecureRandom();
+
+    private final ThreadLocal<SecureRandom> random = new ThreadLocal<SecureRandom>() {
+        protected SecureRandom initialValue() {
+            // SHA1PRNG does not share any lock between its instances
+            SecureRandom rand;
+            try {
+                rand = SecureRandom.getInstance("SHA1PRNG");
+            } catch (NoSuchAlgorithmException ex) {
+                return new SecureRandom();
+            }
+            byte[] seed = new byte[20];
+            seeder.nextBytes(seed);
+            rand.setSeed(seed);
+            return rand;
+        }
+    };
+
+    /**
+     * Creates a generator in sequential mode.
+     */
+    public ThreadLocalUtils() {
+        this(true);
+    }
+
+    /**
+     * @param sequential true if the Call-IDs and branch identifiers must be
+     *        guaranteed unique within the JVM, false if random ones are enough.
+     */
+    public ThreadLocalUtils(boolean sequential) {
+        this.sequential = sequential;
+    }
+
+    public boolean isSequential() {
+        return sequential;
+    }
+
+    private void appendIdentifier(StringBuilder buffer) {
+        SecureRandom rand = random.get();
+        appendHex(buffer, rand.nextLong());
+        appendHex(buffer, sequential ? counter.incrementAndGet() : rand.nextLong());
+    }
+
+    private static void appendHex(StringBuilder buffer, long value) {
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            buffer.append(toHex[(int) (value >>> shift) & 0x0f]);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see gov.nist.javax.sip.UtilsExt#generateCallIdentifier(java.lang.String)
+     */
+    public String generateCallIdentifier(String address) {
+        StringBuilder callId = new StringBuilder(33 + address.length());
+        appendIdentifier(callId);
+        return callId.append('@').append(address).toString();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see gov.nist.javax.sip.UtilsExt#generateTag()
+     */
+    public String generateTag() {
+        return Integer.toHexString(random.get().nextInt());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see gov.nist.javax.sip.UtilsExt#generateBranchId()
+     */
+    public String generateBranchId() {
+        String signature = Utils.getSignature();
+        StringBuilder branch = new StringBuilder(SIPConstants.BRANCH_MAGIC_COOKIE.length() + 32
+                + signature.length());
+        branch.append(SIPConstants.BRANCH_MAGIC_COOKIE);
+        appendIdentifier(branch);
+        return branch.append(signature).toString();
+    }
+}
@@ -108,6 +108,41 @@ public class Utils implements UtilsExt {
         return '"' + str.replace( "\"", "\\\"" ) + '"';
     }
 
+    /**
+     * Join the given parts with colons, leaving out the null ones, and put the
+     * result in lower case. This is the form of the dialog and transaction
+     * identifiers the stack keys its tables with, built in a single pass.
+     *
+     * @param first first part, not null.
+     * @param second second part, or null.
+     * @param third third part, or null.
+     * @return the identifier.
+     */
+    public static String toLowerCaseIdentifier(String first, String second, String third) {
+        int length = first.length();
+        if (second != null)
+            length += second.length() + 1;
+        if (third != null)
+            length += third.length() + 1;
+        char[] identifier = new char[length];
+        int pos = toLowerCase(first, identifier, 0);
+        if (second != null) {
+            identifier[pos++] = ':';
+            pos = toLowerCase(second, identifier, pos);
+        }
+        if (third != null) {
+            identifier[pos++] = ':';
+            toLowerCase(third, identifier, pos);
+        }
+        return new String(identifier);
+    }
+
+    private static int toLowerCase(String part, char[] identifier, int pos) {
+        for (int i = 0; i < part.length(); i++)
+            identifier[pos++] = Character.toLowerCase(part.charAt(i));
+        return pos;
+    }
+
     /**
      * Squeeze out all white space from a string and return the reduced string.
      *
@@ -997,7 +997,8 @@ public class SipUri extends GenericURI implements javax.sip.address.SipURI , Sip
         if (transport.compareToIgnoreCase("UDP") == 0
             || transport.compareToIgnoreCase("TLS") == 0
             || transport.compareToIgnoreCase("TCP") == 0
-            || transport.compareToIgnoreCase("SCTP") == 0) {
+            || transport.compareToIgnoreCase("SCTP") == 0
+            || transport.compareToIgnoreCase("LOOP") == 0) {
             NameValue nv = new NameValue(TRANSPORT, transport.toLowerCase());
             uriParms.set(nv);
         } else
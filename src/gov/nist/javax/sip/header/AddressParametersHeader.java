@@ -50,6 +50,7 @@ public abstract class AddressParametersHeader extends ParametersHeader implement
      * @see gov.nist.javax.sip.header.AddressParameters#getAddress()
      */
     public Address getAddress() {
+        encodingExposed();
         return address;
     }
 
@@ -58,6 +59,7 @@ public abstract class AddressParametersHeader extends ParametersHeader implement
      */
     public void setAddress(Address address) {
         this.address = (AddressImpl) address;
+        encodingExposed();
     }
 
     /**
@@ -98,7 +100,9 @@ public abstract class AddressParametersHeader extends ParametersHeader implement
 
         if (other instanceof HeaderAddress && other instanceof Parameters) {
             final HeaderAddress o = (HeaderAddress) other;
-            return this.getAddress().equals( o.getAddress() ) && this.equalParameters( (Parameters) o );
+            Address otherAddress = other instanceof AddressParametersHeader
+                    ? ((AddressParametersHeader) other).address : o.getAddress();
+            return this.address.equals( otherAddress ) && this.equalParameters( (Parameters) o );
         }
         return false;
     }
@@ -100,7 +100,7 @@ public class CSeq extends SIPHeader implements javax.sip.header.CSeqHeader {
      * @return String with canonical encoded header.
      */
     public String encode() {
-        return headerName + COLON + SP + encodeBody() + NEWLINE;
+        return encode(new StringBuilder()).toString();
     }
 
     /**
@@ -140,6 +140,7 @@ public class CSeq extends SIPHeader implements javax.sip.header.CSeqHeader {
                         + "the sequence number parameter is too large : " + sequenceNumber);
 
         seqno = Long.valueOf(sequenceNumber);
+        encodingChanged();
     }
 
     /**
@@ -159,6 +160,11 @@ public class CSeq extends SIPHeader implements javax.sip.header.CSeqHeader {
                 "JAIN-SIP Exception, CSeq"
                     + ", setMethod(), the meth parameter is null");
         this.method = SIPRequest.getCannonicalName(meth);
+        encodingChanged();
+    }
+
+    protected boolean isEncodingCached() {
+        return true;
     }
 
     /*
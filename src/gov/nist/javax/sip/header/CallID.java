@@ -91,11 +91,12 @@ public class CallID
 
     /**
      * get the CallId field. This does the same thing as
-     * encodeBody
+     * encodeBody, but returns the same string as long as the header is not
+     * modified.
      * @return String the encoded body part of the
      */
     public String getCallId() {
-        return encodeBody();
+        return encodeCachedBody();
     }
 
     /**
@@ -103,6 +104,7 @@ public class CallID
      * @return CallIdentifier
      */
     public CallIdentifier getCallIdentifer() {
+        encodingExposed();
         return callIdentifier;
     }
 
@@ -119,6 +121,7 @@ public class CallID
         } catch (IllegalArgumentException ex) {
             throw new ParseException(cid, 0);
         }
+        encodingChanged();
     }
 
     /**
@@ -127,6 +130,7 @@ public class CallID
      */
     public void setCallIdentifier(CallIdentifier cid) {
         callIdentifier = cid;
+        encodingExposed();
     }
 
     /** Constructor given the call Identifier.
@@ -138,6 +142,10 @@ public class CallID
         this.callIdentifier = new CallIdentifier(callId);
     }
 
+    protected boolean isEncodingCached() {
+        return true;
+    }
+
     public Object clone() {
         CallID retval = (CallID) super.clone();
         if (this.callIdentifier != null)
@@ -66,6 +66,9 @@ public final class From
         super(NAME);
         address = to.address;
         parameters = to.parameters;
+        // both headers now share their address and parameters
+        to.encodingExposed();
+        encodingExposed();
     }
 
     /**
@@ -99,6 +102,7 @@ public final class From
      * @return hostport field
      */
     public HostPort getHostPort() {
+        encodingExposed();
         return address.getHostPort();
     }
 
@@ -131,6 +135,7 @@ public final class From
      */
     public void removeTag() {
         parameters.delete(ParameterNames.TAG);
+        encodingChanged();
     }
 
     /**
@@ -139,6 +144,7 @@ public final class From
      */
     public void setAddress(javax.sip.address.Address address) {
         this.address = (AddressImpl) address;
+        encodingExposed();
     }
 
     /**
@@ -161,4 +167,8 @@ public final class From
         return (other instanceof FromHeader) && super.equals(other);
     }
 
+    protected boolean isEncodingCached() {
+        return true;
+    }
+
 }
@@ -77,6 +77,7 @@ public class MaxForwards extends SIPHeader implements MaxForwardsHeader {
             throw new InvalidArgumentException(
                 "bad max forwards value " + maxForwards);
         this.maxForwards = maxForwards;
+        encodingChanged();
     }
 
     /**
@@ -105,6 +106,11 @@ public class MaxForwards extends SIPHeader implements MaxForwardsHeader {
         if (maxForwards > 0)
             maxForwards--;
         else throw new TooManyHopsException ("has already reached 0!");
+        encodingChanged();
+    }
+
+    protected boolean isEncodingCached() {
+        return true;
     }
 
     public boolean equals(Object other) {
@@ -92,7 +92,10 @@ public abstract class ParametersHeader
      * @return the object associated with the name.
      */
     public Object getParameterValue(String name) {
-        return this.parameters.getValue(name);
+        Object value = this.parameters.getValue(name);
+        if (!isImmutable(value))
+            encodingExposed();
+        return value;
     }
 
     /**
@@ -103,6 +106,8 @@ public abstract class ParametersHeader
      */
 
     public Iterator<String> getParameterNames() {
+        // the iterator can remove parameters
+        encodingExposed();
         return parameters.getNames();
     }
 
@@ -125,6 +130,7 @@ public abstract class ParametersHeader
 
     public void removeParameter(String name) {
         this.parameters.delete(name);
+        encodingChanged();
     }
 
     /**
@@ -146,6 +152,7 @@ public abstract class ParametersHeader
      *
      */
     public void setParameter(String name, String value) throws ParseException {
+        encodingChanged();
         NameValue nv = parameters.getNameValue(name);
         if (nv != null) {
             nv.setValueAsObject(value);
@@ -175,6 +182,7 @@ public abstract class ParametersHeader
      */
     public void setQuotedParameter(String name, String value)
         throws ParseException {
+        encodingChanged();
         NameValue nv = parameters.getNameValue(name);
         if (nv != null) {
             nv.setValueAsObject(value);
@@ -204,6 +212,7 @@ public abstract class ParametersHeader
     protected void setParameter(String name, int value) {
         Integer val = Integer.valueOf(value);
         this.parameters.set(name,val);
+        encodingChanged();
 
     }
 
@@ -225,6 +234,7 @@ public abstract class ParametersHeader
     protected void setParameter(String name, boolean value) {
         Boolean val = Boolean.valueOf(value);
         this.parameters.set(name,val);
+        encodingChanged();
     }
 
     /**
@@ -243,6 +253,7 @@ public abstract class ParametersHeader
      */
     protected void setParameter(String name, float value) {
         Float val = Float.valueOf(value);
+        encodingChanged();
         NameValue nv = parameters.getNameValue(name);
         if (nv != null) {
             nv.setValueAsObject(val);
@@ -272,6 +283,10 @@ public abstract class ParametersHeader
      */
     protected void setParameter(String name, Object value) {
         this.parameters.set(name,value);
+        if (isImmutable(value))
+            encodingChanged();
+        else
+            encodingExposed();
     }
 
     /**
@@ -290,6 +305,7 @@ public abstract class ParametersHeader
      */
     public void removeParameters() {
         this.parameters = new NameValueList();
+        encodingChanged();
     }
 
     /**
@@ -297,6 +313,7 @@ public abstract class ParametersHeader
      * @return parameter list
      */
     public NameValueList getParameters() {
+        encodingExposed();
         return parameters;
     }
 
@@ -306,6 +323,7 @@ public abstract class ParametersHeader
      */
     public void setParameter(NameValue nameValue) {
         this.parameters.set(nameValue);
+        encodingExposed();
     }
 
     /**
@@ -315,6 +333,7 @@ public abstract class ParametersHeader
      */
     public void setParameters(NameValueList parameters) {
         this.parameters = parameters;
+        encodingExposed();
     }
 
     /**
@@ -456,6 +475,7 @@ public abstract class ParametersHeader
      * @return the name value pair for the given parameter name.
      */
     public NameValue getNameValue(String parameterName) {
+        encodingExposed();
         return parameters.getNameValue(parameterName);
     }
 
@@ -464,6 +484,8 @@ public abstract class ParametersHeader
         ParametersHeader retval = (ParametersHeader) super.clone();
         if (this.parameters != null)
             retval.parameters = (NameValueList) this.parameters.clone();
+        if (this.duplicates != null)
+            retval.duplicates = (DuplicateNameValueList) this.duplicates.clone();
         return retval;
     }
 
@@ -484,6 +506,7 @@ public abstract class ParametersHeader
     	nv.setName(name);
     	nv.setValue(value);
     	duplicates.set(nv);
+    	encodingChanged();
     }
     
     /** Set the parameter given a name and value.
@@ -492,6 +515,7 @@ public abstract class ParametersHeader
     */
    public void setMultiParameter(NameValue nameValue) {
        this.duplicates.set(nameValue);
+       encodingExposed();
    }
     
     /**
@@ -506,6 +530,7 @@ public abstract class ParametersHeader
     
 
     public DuplicateNameValueList getMultiParameters() {
+        encodingExposed();
         return duplicates;
     }
     
@@ -517,7 +542,10 @@ public abstract class ParametersHeader
      * @return the object associated with the name.
      */
     public Object getMultiParameterValue(String name) {
-        return this.duplicates.getValue(name);
+        Object value = this.duplicates.getValue(name);
+        if (!isImmutable(value))
+            encodingExposed();
+        return value;
     }
 
     /**
@@ -528,6 +556,7 @@ public abstract class ParametersHeader
      */
 
     public Iterator<String> getMultiParameterNames() {
+        encodingExposed();
         return duplicates.getNames();
     }
 
@@ -550,6 +579,7 @@ public abstract class ParametersHeader
 
     public void removeMultiParameter(String name) {
         this.duplicates.delete(name);
+        encodingChanged();
     }
     
     /**
@@ -568,6 +598,15 @@ public abstract class ParametersHeader
      */
     public void removeMultiParameters() {
         this.duplicates = new DuplicateNameValueList();
+        encodingChanged();
+    }
+
+    /*
+     * Parameter values that can be handed out without exposing the encoding.
+     */
+    private static boolean isImmutable(Object value) {
+        return value == null || value instanceof String || value instanceof Number
+                || value instanceof Boolean;
     }
 
     //-------------------------------
@@ -576,7 +615,7 @@ public abstract class ParametersHeader
     protected final boolean equalParameters( Parameters other ) {
         if (this==other) return true;
 
-        for ( Iterator i = this.getParameterNames(); i.hasNext();) {
+        for ( Iterator i = this.parameters.getNames(); i.hasNext();) {
             String pname = (String) i.next();
 
             String p1 = this.getParameter( pname );
@@ -589,7 +628,9 @@ public abstract class ParametersHeader
         }
 
         // Also compare other's parameters; some duplicate testing here...
-        for ( Iterator i = other.getParameterNames(); i.hasNext();) {
+        Iterator otherNames = other instanceof ParametersHeader
+                ? ((ParametersHeader) other).parameters.getNames() : other.getParameterNames();
+        for ( Iterator i = otherNames; i.hasNext();) {
             String pname = (String) i.next();
 
             String p1 = other.getParameter( pname );
@@ -28,6 +28,8 @@
 *******************************************************************************/
 package gov.nist.javax.sip.header;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
  * Root class from which all SIPHeader objects are subclassed.
  *
@@ -47,6 +49,29 @@ public abstract class SIPHeader
     /** Value of the header.
     */
 
+    /*
+     * Encoded body of the header, kept between encodings by the header classes
+     * that cache it and cleared by them whenever they are modified.
+     */
+    private String encodedBody;
+
+    /*
+     * Set once the header has handed out or been given one of its mutable parts,
+     * which may then be modified behind its back.
+     */
+    private boolean encodingExposed;
+
+    /*
+     * Number of messages sharing this header besides the first one, or EXPOSED
+     * once the header may be referenced outside of the message holding it.
+     */
+    private volatile int sharers;
+
+    private static final int EXPOSED = -1;
+
+    private static final AtomicIntegerFieldUpdater<SIPHeader> sharersUpdater =
+        AtomicIntegerFieldUpdater.newUpdater(SIPHeader.class, "sharers");
+
     /** Constructor
      * @param hname String to set
      */
@@ -89,7 +114,7 @@ public abstract class SIPHeader
     * the headerName:
     */
     public String getHeaderValue() {
-      return encodeBody(new StringBuilder()).toString();
+      return encodeCachedBody();
     }
 
     /** Return false if this is not a header list
@@ -108,11 +133,148 @@ public abstract class SIPHeader
 
     public StringBuilder encode(StringBuilder buffer) {
         buffer.append(this.headerName).append(COLON).append(SP);
-        this.encodeBody(buffer);
+        this.encodeCachedBody(buffer);
         buffer.append(NEWLINE);
         return buffer;
     }
 
+    /**
+     * Encode the body of this header, reusing its previous encoding if the header
+     * was not modified since. Only the header classes for which
+     * {@link #isEncodingCached()} returns true keep their encoding.
+     */
+    protected final StringBuilder encodeCachedBody(StringBuilder buffer) {
+        String encoded = encodedBody;
+        if (encoded != null)
+            return buffer.append(encoded);
+        if (encodingExposed || !isEncodingCached())
+            return encodeBody(buffer);
+        int start = buffer.length();
+        encodeBody(buffer);
+        encodedBody = buffer.substring(start);
+        return buffer;
+    }
+
+    /**
+     * Return the encoded body of this header. The headers keeping their encoding
+     * return the same string as long as they are not modified.
+     */
+    protected final String encodeCachedBody() {
+        String encoded = encodedBody;
+        if (encoded != null)
+            return encoded;
+        encoded = encodeBody(new StringBuilder()).toString();
+        if (!encodingExposed && isEncodingCached())
+            encodedBody = encoded;
+        return encoded;
+    }
+
+    /**
+     * Return true if this header keeps its encoded body between encodings.
+     * Header classes returning true call {@link #encodingChanged()} from every
+     * method modifying them, and {@link #encodingExposed()} from every method
+     * handing out or taking a mutable part of them, since the caller may keep
+     * a reference to that part.
+     */
+    protected boolean isEncodingCached() {
+        return false;
+    }
+
+    /**
+     * Drop the encoding kept by this header, which has been modified.
+     */
+    protected void encodingChanged() {
+        encodedBody = null;
+    }
+
+    /**
+     * Stop keeping the encoding of this header, a mutable part of which has
+     * been handed out or given to it.
+     */
+    protected void encodingExposed() {
+        encodingExposed = true;
+        encodedBody = null;
+    }
+
+    /**
+     * Let this header keep its encoding again, the parts given to it being
+     * referenced by nothing else. The parsers call it on the headers they
+     * build, before handing them out.
+     */
+    public final void setEncodingOwned() {
+        encodingExposed = false;
+    }
+
+    /**
+     * Share this header with one more message, instead of giving that message
+     * a copy of it. Shared headers are never modified, a message makes its own
+     * copy of a shared header before handing it out or modifying it (see
+     * {@link #expose()}).
+     *
+     * @return false if this header cannot be shared because it may be
+     * referenced outside of the message holding it: a copy is then needed.
+     */
+    public final boolean share() {
+        for (;;) {
+            int count = sharers;
+            if (count == EXPOSED)
+                return false;
+            if (sharersUpdater.compareAndSet(this, count, count + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Mark this header as referenced outside of the message holding it, before
+     * the message hands it out or modifies it. It is not shared any more
+     * afterwards.
+     *
+     * @return true if this header is shared with other messages: the message
+     * must then replace it by a copy of its own, and call {@link #unshare()}
+     * once the copy is made.
+     */
+    public final boolean expose() {
+        for (;;) {
+            int count = sharers;
+            if (count == EXPOSED)
+                return false;
+            if (count > 0)
+                return true;
+            if (sharersUpdater.compareAndSet(this, 0, EXPOSED))
+                return false;
+        }
+    }
+
+    /**
+     * Return true if this header is shared between messages, which must then
+     * copy it before modifying it.
+     */
+    public final boolean isShared() {
+        return sharers > 0;
+    }
+
+    /**
+     * Release this shared header from a message which replaced it by a copy.
+     */
+    public final void unshare() {
+        for (;;) {
+            int count = sharers;
+            if (count <= 0 || sharersUpdater.compareAndSet(this, count, count - 1))
+                return;
+        }
+    }
+
+    /**
+     * Clone this header. The clone is held by no message yet, and owns the
+     * copies of the parts of this header.
+     */
+    public Object clone() {
+        SIPHeader retval = (SIPHeader) super.clone();
+        retval.sharers = 0;
+        retval.encodingExposed = false;
+        return retval;
+    }
+
     /** Encode the body of this header (the stuff that follows headerName).
     * A.K.A headerValue.
     */
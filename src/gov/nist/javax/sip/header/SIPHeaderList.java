@@ -501,7 +501,7 @@ public abstract class SIPHeaderList<HDR extends SIPHeader> extends SIPHeader imp
         while (true) {
             SIPHeader sipHeader = (SIPHeader) iterator.next();
             if ( sipHeader == this ) throw new RuntimeException ("Unexpected circularity in SipHeaderList");
-            sipHeader.encodeBody(buffer);
+            sipHeader.encodeCachedBody(buffer);
             // if (body.equals("")) System.out.println("BODY == ");
             if (iterator.hasNext()) {
                 if (!this.headerName.equals(PrivacyHeader.NAME))
@@ -113,11 +113,14 @@ public final class StatusLine extends SIPObject implements SipStatusLine {
      * @return String
      */
     public String encode() {
-        String encoding = SIPConstants.SIP_VERSION_STRING + SP + statusCode;
+        return encode(new StringBuilder()).toString();
+    }
+
+    public StringBuilder encode(StringBuilder buffer) {
+        buffer.append(SIPConstants.SIP_VERSION_STRING).append(SP).append(statusCode);
         if (reasonPhrase != null)
-            encoding += SP + reasonPhrase;
-        encoding += NEWLINE;
-        return encoding;
+            buffer.append(SP).append(reasonPhrase);
+        return buffer.append(NEWLINE);
     }
 
     /* (non-Javadoc)
@@ -69,6 +69,9 @@ public final class To extends AddressParametersHeader implements
         super(TO);
         setAddress(from.address);
         setParameters(from.parameters);
+        // both headers now share their address and parameters
+        from.encodingExposed();
+        encodingExposed();
     }
 
     /**
@@ -78,7 +81,7 @@ public final class To extends AddressParametersHeader implements
      * @return String
      */
     public String encode() {
-        return headerName + COLON + SP + encodeBody() + NEWLINE;
+        return encode(new StringBuilder()).toString();
     }
 
     /**
@@ -117,6 +120,7 @@ public final class To extends AddressParametersHeader implements
     public HostPort getHostPort() {
         if (address == null)
             return null;
+        encodingExposed();
         return address.getHostPort();
     }
 
@@ -161,6 +165,7 @@ public final class To extends AddressParametersHeader implements
     public void removeTag() {
             if (parameters != null)
                 parameters.delete(ParameterNames.TAG);
+            encodingChanged();
 
     }
 
@@ -188,4 +193,8 @@ public final class To extends AddressParametersHeader implements
     public boolean equals(Object other) {
         return (other instanceof ToHeader) && super.equals(other);
     }
+
+    protected boolean isEncodingCached() {
+        return true;
+    }
 }
@@ -134,7 +134,7 @@ public class Via
      * @return Protocol field
      */
     public Protocol getSentProtocol() {
-
+        encodingExposed();
         return sentProtocol;
     }
 
@@ -143,6 +143,7 @@ public class Via
      *@return SentBy field
      */
     public HostPort getSentBy() {
+        encodingExposed();
         return sentBy;
     }
 
@@ -162,6 +163,7 @@ public class Via
      * @return parameters field
      */
     public NameValueList getViaParms() {
+        encodingExposed();
         return parameters;
     }
 
@@ -180,7 +182,7 @@ public class Via
      * @return true if Port exists.
      */
     public boolean hasPort() {
-        return (getSentBy()).hasPort();
+        return sentBy.hasPort();
     }
 
     /** comment of the Via Header.
@@ -195,12 +197,14 @@ public class Via
      */
     public void removePort() {
         sentBy.removePort();
+        encodingChanged();
     }
 
     /** remove the comment field.
      */
     public void removeComment() {
         comment = null;
+        encodingChanged();
     }
 
     /** set the Protocol Version
@@ -210,6 +214,7 @@ public class Via
         if (sentProtocol == null)
             sentProtocol = new Protocol();
         sentProtocol.setProtocolVersion(protocolVersion);
+        encodingChanged();
     }
 
     /** set the Host of the Via Header
@@ -220,6 +225,7 @@ public class Via
             sentBy = new HostPort();
         }
         sentBy.setHost(host);
+        encodingExposed();
     }
 
     /**
@@ -228,6 +234,7 @@ public class Via
      */
     public void setSentProtocol(Protocol s) {
         sentProtocol = s;
+        encodingExposed();
     }
 
     /**
@@ -236,6 +243,7 @@ public class Via
      */
     public void setSentBy(HostPort s) {
         sentBy = s;
+        encodingExposed();
     }
 
     /**
@@ -245,6 +253,7 @@ public class Via
      */
     public void setComment(String c) {
         comment = c;
+        encodingChanged();
     }
 
     /** Encode the body of this header (the stuff that follows headerName).
@@ -281,6 +290,7 @@ public class Via
         try {
             Host h = new Host(host);
             sentBy.setHost(h);
+            encodingChanged();
         } catch (Exception e) {
             throw new NullPointerException(" host parameter is null");
         }
@@ -318,6 +328,7 @@ public class Via
         if (sentBy == null)
             sentBy = new HostPort();
         sentBy.setPort(port);
+        encodingChanged();
     }
 
     /**
@@ -385,7 +396,11 @@ public class Via
                     + "Via, setTransport(), the transport parameter is null.");
         if (sentProtocol == null)
             sentProtocol = new Protocol();
-        sentProtocol.setTransport(transport);
+        // the stack sets the transport of the topmost Via whenever it sends
+        if (!transport.equals(sentProtocol.getTransport())) {
+            sentProtocol.setTransport(transport);
+            encodingChanged();
+        }
     }
 
     /**
@@ -417,6 +432,7 @@ public class Via
             sentProtocol = new Protocol();
 
         sentProtocol.setProtocol(protocol);
+        encodingChanged();
     }
 
     /**
@@ -442,7 +458,8 @@ public class Via
             throw new InvalidArgumentException(
                 "JAIN-SIP Exception"
                     + ", Via, setTTL(), the ttl parameter is < 0");
-        setParameter(new NameValue(ParameterNames.TTL, Integer.valueOf(ttl)));
+        parameters.set(new NameValue(ParameterNames.TTL, Integer.valueOf(ttl)));
+        encodingChanged();
     }
 
     /**
@@ -473,7 +490,8 @@ public class Via
         Host host = new Host();
         host.setAddress(mAddr);
         NameValue nameValue = new NameValue(ParameterNames.MADDR, host);
-        setParameter(nameValue);
+        parameters.set(nameValue);
+        encodingChanged();
 
     }
 
@@ -531,6 +549,10 @@ public class Via
         setParameter(ParameterNames.BRANCH, branch);
     }
 
+    protected boolean isEncodingCached() {
+        return true;
+    }
+
     public Object clone() {
         Via retval = (Via) super.clone();
         if (this.sentProtocol != null)
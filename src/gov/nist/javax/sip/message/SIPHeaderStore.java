@@ -0,0 +1,422 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD)         *
+ *******************************************************************************/
+package gov.nist.javax.sip.message;
+
+import gov.nist.javax.sip.header.SIPHeader;
+import gov.nist.javax.sip.header.SIPHeaderNames;
+import gov.nist.javax.sip.header.SIPHeaderNamesCache;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The headers of a SIP message, in the order they were added and indexed by
+ * their lower case name. There is one entry per name, a header or a list of
+ * headers.
+ * <p>
+ * The headers are kept in an array, and the well known headers are also kept
+ * in a small array indexed by name, so that looking them up costs no more
+ * than an array access. The other headers, usually few, are also kept in an
+ * overflow array which is gone over to look them up.
+ * <p>
+ * The headers are changed under the lock of the store, since reading a
+ * message may replace a header it shares with its clones by a copy (see
+ * SIPMessage.exposeHeader). Reading takes no lock: the iterators never throw
+ * a ConcurrentModificationException and see the headers as they were when
+ * created, possibly with the headers added or replaced since.
+ * <p>
+ * The store is also a collection of its headers, and {@link #asMap()} views
+ * it as a table indexed by lower case name, for the code written against the
+ * collections that used to hold the headers of a message.
+ *
+ * @version 1.2
+ */
+public final class SIPHeaderStore extends AbstractCollection<SIPHeader> {
+
+    private static final String[] KNOWN_HEADERS = {
+        SIPHeaderNames.VIA, SIPHeaderNames.FROM, SIPHeaderNames.TO,
+        SIPHeaderNames.CALL_ID, SIPHeaderNames.CSEQ, SIPHeaderNames.MAX_FORWARDS,
+        SIPHeaderNames.CONTACT, SIPHeaderNames.ROUTE, SIPHeaderNames.RECORD_ROUTE,
+        SIPHeaderNames.CONTENT_LENGTH, SIPHeaderNames.CONTENT_TYPE,
+        SIPHeaderNames.CONTENT_DISPOSITION, SIPHeaderNames.CONTENT_ENCODING,
+        SIPHeaderNames.CONTENT_LANGUAGE, SIPHeaderNames.EXPIRES,
+        SIPHeaderNames.ALLOW, SIPHeaderNames.SUPPORTED, SIPHeaderNames.REQUIRE,
+        SIPHeaderNames.PROXY_REQUIRE, SIPHeaderNames.USER_AGENT,
+        SIPHeaderNames.SERVER, SIPHeaderNames.AUTHORIZATION,
+        SIPHeaderNames.PROXY_AUTHORIZATION, SIPHeaderNames.WWW_AUTHENTICATE,
+        SIPHeaderNames.PROXY_AUTHENTICATE, SIPHeaderNames.EVENT,
+        SIPHeaderNames.SUBSCRIPTION_STATE, SIPHeaderNames.ALLOW_EVENTS,
+        SIPHeaderNames.ACCEPT, SIPHeaderNames.RSEQ, SIPHeaderNames.RACK,
+        SIPHeaderNames.ERROR_INFO
+    };
+
+    private static final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+
+    static {
+        for (int i = 0; i < KNOWN_HEADERS.length; i++)
+            ordinals.put(SIPHeaderNamesCache.toLowerCase(KNOWN_HEADERS[i]), i);
+    }
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /*
+     * The headers in the order they were added, followed by nulls. The array is
+     * replaced rather than modified when a header is removed, and written again
+     * after every change so that the threads reading it see the change.
+     */
+    private volatile SIPHeader[] headers;
+
+    private int size;
+
+    /*
+     * The well known headers, indexed by ordinal.
+     */
+    private final SIPHeader[] known = new SIPHeader[KNOWN_HEADERS.length];
+
+    /*
+     * The other headers and their names, created with the first of them.
+     */
+    private String[] extensionNames;
+
+    private SIPHeader[] extensionHeaders;
+
+    private int extensionCount;
+
+    private Map<String, SIPHeader> map;
+
+    public SIPHeaderStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of headers to make room for.
+     */
+    public SIPHeaderStore(int capacity) {
+        headers = new SIPHeader[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Return the index of the given well known header name in the array of the
+     * well known headers, or -1.
+     */
+    private static int ordinal(String lowerCaseName) {
+        Integer ordinal = ordinals.get(lowerCaseName);
+        return ordinal == null ? -1 : ordinal.intValue();
+    }
+
+    /**
+     * Return the index of the given header name in the overflow array, or -1.
+     */
+    private int extensionIndex(String lowerCaseName) {
+        String[] names = extensionNames;
+        for (int i = 0; i < extensionCount; i++) {
+            if (names[i] == lowerCaseName || names[i].equals(lowerCaseName))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Return the index of the given header in the array of the headers, or -1.
+     */
+    private static int indexOf(SIPHeader[] headers, SIPHeader header) {
+        for (int i = 0; i < headers.length && headers[i] != null; i++) {
+            if (headers[i] == header)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Return the header (or list of headers) of the given name, or null.
+     *
+     * @param lowerCaseName name of the header, in lower case.
+     */
+    public SIPHeader get(String lowerCaseName) {
+        // reading the array first makes the changes of the other threads visible
+        if (this.headers == null)
+            return null;
+        int ordinal = ordinal(lowerCaseName);
+        if (ordinal >= 0)
+            return known[ordinal];
+        // the extension tables are reordered and grown in place
+        synchronized (this) {
+            int index = extensionIndex(lowerCaseName);
+            return index < 0 ? null : extensionHeaders[index];
+        }
+    }
+
+    /**
+     * Return true if there is a header of the given name.
+     *
+     * @param lowerCaseName name of the header, in lower case.
+     */
+    public boolean containsKey(String lowerCaseName) {
+        return get(lowerCaseName) != null;
+    }
+
+    /**
+     * Set the header (or list of headers) of the given name. It takes the
+     * place of the header of that name if there is one, or else is added after
+     * the other headers.
+     *
+     * @param lowerCaseName name of the header, in lower case.
+     * @param header the header, named lowerCaseName.
+     */
+    public synchronized void put(String lowerCaseName, SIPHeader header) {
+        SIPHeader[] headers = this.headers;
+        int index = indexOf(headers, get(lowerCaseName));
+        if (index < 0) {
+            index = size++;
+            if (index == headers.length) {
+                SIPHeader[] grown = new SIPHeader[headers.length * 2];
+                System.arraycopy(headers, 0, grown, 0, index);
+                headers = grown;
+            }
+        }
+        headers[index] = header;
+        int ordinal = ordinal(lowerCaseName);
+        if (ordinal >= 0) {
+            known[ordinal] = header;
+        } else {
+            int extension = extensionIndex(lowerCaseName);
+            if (extension < 0) {
+                if (extensionNames == null) {
+                    extensionNames = new String[4];
+                    extensionHeaders = new SIPHeader[4];
+                } else if (extensionCount == extensionNames.length) {
+                    String[] names = new String[extensionCount * 2];
+                    System.arraycopy(extensionNames, 0, names, 0, extensionCount);
+                    extensionNames = names;
+                    SIPHeader[] grown = new SIPHeader[extensionCount * 2];
+                    System.arraycopy(extensionHeaders, 0, grown, 0, extensionCount);
+                    extensionHeaders = grown;
+                }
+                extension = extensionCount++;
+                extensionNames[extension] = lowerCaseName;
+            }
+            extensionHeaders[extension] = header;
+        }
+        this.headers = headers;
+    }
+
+    /**
+     * Remove the header (or list of headers) of the given name.
+     *
+     * @param lowerCaseName name of the header, in lower case.
+     * @return the removed header, or null if there was none.
+     */
+    public synchronized SIPHeader remove(String lowerCaseName) {
+        SIPHeader[] headers = this.headers;
+        SIPHeader removed = get(lowerCaseName);
+        int index = indexOf(headers, removed);
+        if (index < 0)
+            return null;
+        SIPHeader[] remaining = new SIPHeader[headers.length];
+        System.arraycopy(headers, 0, remaining, 0, index);
+        System.arraycopy(headers, index + 1, remaining, index, size - index - 1);
+        size--;
+        int ordinal = ordinal(lowerCaseName);
+        if (ordinal >= 0) {
+            known[ordinal] = null;
+        } else {
+            // the last extension header takes the place of the removed one
+            int extension = extensionIndex(lowerCaseName);
+            int last = --extensionCount;
+            extensionNames[extension] = extensionNames[last];
+            extensionHeaders[extension] = extensionHeaders[last];
+            extensionNames[last] = null;
+            extensionHeaders[last] = null;
+        }
+        this.headers = remaining;
+        return removed;
+    }
+
+    /**
+     * Return the number of headers (and lists of headers).
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Return the headers (and lists of headers) in the order they were added.
+     */
+    public SIPHeader[] toArray() {
+        SIPHeader[] headers = this.headers;
+        int count = 0;
+        while (count < headers.length && headers[count] != null)
+            count++;
+        SIPHeader[] retval = new SIPHeader[count];
+        System.arraycopy(headers, 0, retval, 0, count);
+        return retval;
+    }
+
+    /**
+     * Add a header (or list of headers), in place of the header of its name if
+     * there is one.
+     */
+    public boolean add(SIPHeader header) {
+        put(SIPHeaderNamesCache.toLowerCase(header.getName()), header);
+        return true;
+    }
+
+    /**
+     * Remove a header (or list of headers) of this store.
+     */
+    public synchronized boolean remove(Object header) {
+        if (!(header instanceof SIPHeader))
+            return false;
+        String lowerCaseName = SIPHeaderNamesCache.toLowerCase(((SIPHeader) header).getName());
+        if (get(lowerCaseName) != header)
+            return false;
+        remove(lowerCaseName);
+        return true;
+    }
+
+    /**
+     * Return an iterator over the headers (and lists of headers) in the order
+     * they were added. Its remove method removes the header from the store.
+     */
+    public Iterator<SIPHeader> iterator() {
+        final SIPHeader[] headers = this.headers;
+        return new Iterator<SIPHeader>() {
+            private int next;
+
+            private SIPHeader last;
+
+            public boolean hasNext() {
+                return next < headers.length && headers[next] != null;
+            }
+
+            public SIPHeader next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return last = headers[next++];
+            }
+
+            public void remove() {
+                if (last == null)
+                    throw new IllegalStateException();
+                SIPHeaderStore.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    /**
+     * Return a view of the headers (and lists of headers) as a table indexed
+     * by their lower case name.
+     */
+    public Map<String, SIPHeader> asMap() {
+        Map<String, SIPHeader> map = this.map;
+        if (map == null)
+            this.map = map = new HeaderMap();
+        return map;
+    }
+
+    private final class HeaderMap extends AbstractMap<String, SIPHeader> {
+        private Set<Map.Entry<String, SIPHeader>> entrySet;
+
+        public SIPHeader get(Object key) {
+            return key instanceof String ? SIPHeaderStore.this.get((String) key) : null;
+        }
+
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        public SIPHeader put(String key, SIPHeader value) {
+            synchronized (SIPHeaderStore.this) {
+                SIPHeader old = SIPHeaderStore.this.get(key);
+                SIPHeaderStore.this.put(key, value);
+                return old;
+            }
+        }
+
+        public SIPHeader remove(Object key) {
+            return key instanceof String ? SIPHeaderStore.this.remove((String) key) : null;
+        }
+
+        public int size() {
+            return SIPHeaderStore.this.size();
+        }
+
+        public Set<Map.Entry<String, SIPHeader>> entrySet() {
+            Set<Map.Entry<String, SIPHeader>> entrySet = this.entrySet;
+            if (entrySet == null) {
+                this.entrySet = entrySet = new AbstractSet<Map.Entry<String, SIPHeader>>() {
+                    public Iterator<Map.Entry<String, SIPHeader>> iterator() {
+                        final Iterator<SIPHeader> headers = SIPHeaderStore.this.iterator();
+                        return new Iterator<Map.Entry<String, SIPHeader>>() {
+                            public boolean hasNext() {
+                                return headers.hasNext();
+                            }
+
+                            public Map.Entry<String, SIPHeader> next() {
+                                SIPHeader header = headers.next();
+                                return new AbstractMap.SimpleImmutableEntry<String, SIPHeader>(
+                                        SIPHeaderNamesCache.toLowerCase(header.getName()), header);
+                            }
+
+                            public void remove() {
+                                headers.remove();
+                            }
+                        };
+                    }
+
+                    public int size() {
+                        return SIPHeaderStore.this.size();
+                    }
+                };
+            }
+            return entrySet;
+        }
+    }
+
+    public String toString() {
+        StringBuilder retval = new StringBuilder("[");
+        for (Iterator<SIPHeader> it = iterator(); it.hasNext();) {
+            retval.append(it.next());
+            if (it.hasNext())
+                retval.append(", ");
+        }
+        return retval.append(']').toString();
+    }
+}
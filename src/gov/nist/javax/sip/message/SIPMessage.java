@@ -76,15 +76,18 @@ import gov.nist.javax.sip.parser.StringMsgParser;
 
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.text.ParseException;
-import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.sip.InvalidArgumentException;
 import javax.sip.SipException;
@@ -142,9 +145,33 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
     protected LinkedList<String> unrecognizedHeaders;
 
     /**
-     * List of parsed headers (in the order they were added)
+     * Parsed headers (in the order they were added), indexed by lower case name.
      */
-    protected ConcurrentLinkedQueue<SIPHeader> headers;
+    protected SIPHeaderStore headers;
+
+    // Table of headers indexed by name, a view of the header store.
+    protected Map<String, SIPHeader> headerTable;
+
+    private static final byte[] NULL_REQUEST_BYTES = "\r\n\r\n".getBytes();
+
+    private static final int ENCODING_BUILDER_CAPACITY = 1024;
+
+    /*
+     * Builders grown beyond this by a large message are not kept by the thread.
+     */
+    private static final int MAX_ENCODING_BUILDER_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> encodingChunk = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[ENCODING_BUILDER_CAPACITY];
+        }
+    };
+
+    private static final ThreadLocal<StringBuilder> encodingBuilder = new ThreadLocal<StringBuilder>() {
+        protected StringBuilder initialValue() {
+            return new StringBuilder(ENCODING_BUILDER_CAPACITY);
+        }
+    };
 
     /**
      * Direct accessors for frequently accessed headers
@@ -171,9 +198,6 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
 
     protected Object messageContentObject;
 
-    // Table of headers indexed by name.
-    protected Map<String, SIPHeader> headerTable;
-
     /**
      * The application data pointer. This is un-interpreted by the stack. This is provided as a
      * convenient way of keeping book-keeping data for applications.
@@ -182,6 +206,13 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
 
     protected String forkId;
 
+    /*
+     * The last dialog and transaction identifiers computed.
+     */
+    private MessageKey dialogKey;
+
+    private MessageKey transactionKey;
+
     /**
      * Return true if the header belongs only in a Request.
      * 
@@ -263,41 +294,51 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param isServerTransaction is a flag that indicates whether this is a server transaction.
      */
     public final String getDialogId(boolean isServer) {    	
-        To to = (To) this.getTo();
-        return this.getDialogId( isServer, to.getTag() );
+        return this.getDialogId( isServer, toHeader.getTag() );
     }
 
     /**
      * Get a dialog id given the remote tag.
      */
     public final String getDialogId(boolean isServer, String toTag) {
-        From from = (From) this.getFrom();
-        CallID cid = (CallID) this.getCallId();
-        StringBuffer retval = new StringBuffer(cid.getCallId());
-        if (!isServer) {
-            // retval.append(COLON).append(from.getUserAtHostPort());
-            if (from.getTag() != null) {
-                retval.append(COLON);
-                retval.append(from.getTag());
-            }
-            // retval.append(COLON).append(to.getUserAtHostPort());
-            if (toTag != null) {
-                retval.append(COLON);
-                retval.append(toTag);
-            }
-        } else {
-            // retval.append(COLON).append(to.getUserAtHostPort());
-            if (toTag != null) {
-                retval.append(COLON);
-                retval.append(toTag);
-            }
-            // retval.append(COLON).append(from.getUserAtHostPort());
-            if (from.getTag() != null) {
-                retval.append(COLON);
-                retval.append(from.getTag());
-            }
+        String callId = callIdHeader.getCallId();
+        String fromTag = this.fromHeader.getTag();
+        // Call-ID:local tag:remote tag
+        String firstTag = isServer ? toTag : fromTag;
+        String secondTag = isServer ? fromTag : toTag;
+        MessageKey key = this.dialogKey;
+        if (key == null || !key.isComputedFrom(callId, firstTag, secondTag)) {
+            key = new MessageKey(callId, firstTag, secondTag);
+            this.dialogKey = key;
+        }
+        return key.id;
+    }
+
+    /**
+     * An identifier computed from up to three parts of a message, kept by the message to be
+     * reused for every table lookup as long as it is computed from the same parts. The parts
+     * are compared by reference: the headers keep returning the same strings until they are
+     * modified.
+     */
+    private static final class MessageKey {
+        private final String first;
+
+        private final String second;
+
+        private final String third;
+
+        private final String id;
+
+        private MessageKey(String first, String second, String third) {
+            this.first = first;
+            this.second = second;
+            this.third = third;
+            this.id = Utils.toLowerCaseIdentifier(first, second, third);
+        }
+
+        private boolean isComputedFrom(String first, String second, String third) {
+            return this.first == first && this.second == second && this.third == third;
         }
-        return retval.toString().toLowerCase();
     }
     
     /**
@@ -371,9 +412,9 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         if (!template.getClass().equals(this.getClass()))
             throw new IllegalArgumentException("Bad class " + template.getClass());
         SIPMessage templateMessage = (SIPMessage) template;
-        Object[] templateHeaders = templateMessage.headers.toArray();
+        SIPHeader[] templateHeaders = templateMessage.headers.toArray();
         for (int i = 0; i < templateHeaders.length; i++) {
-            SIPHeader hdr = (SIPHeader) templateHeaders[i];
+            SIPHeader hdr = templateHeaders[i];
             String hdrName = hdr.getHeaderName();
             List<SIPHeader> myHdrs = this.getHeaderList(hdrName);
             if (myHdrs == null) {
@@ -453,12 +494,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         }
         // JvB: added to fix case where application provides the wrong transport
         // in the topmost Via header
-        ViaHeader topVia = (ViaHeader) this.getHeader(ViaHeader.NAME);
-        try {
-            topVia.setTransport(transport);
-        } catch (ParseException e) {
-            InternalErrorHandler.handleException(e);
-        }
+        setTopmostViaTransport(transport);
 
         StringBuilder encoding = new StringBuilder();
         synchronized (this.headers) {
@@ -501,19 +537,127 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         return retval;
     }
 
+    /**
+     * Encode the message into the given buffer, starting at its position. The headers are
+     * encoded into a builder private to the calling thread and written with the content straight
+     * into the buffer, without the intermediate strings and byte arrays of
+     * {@link #encodeAsBytes(String)}. The position of the buffer is advanced past the message.
+     * 
+     * @param transport the transport to set in the topmost Via header.
+     * @param buffer heap or direct buffer to encode the message into.
+     * @throws BufferOverflowException if the message does not fit in the remaining space of the
+     *         buffer. The content of the buffer past its position is then undefined.
+     */
+    public void encodeAsBytes(String transport, ByteBuffer buffer) {
+        if (this instanceof SIPRequest && ((SIPRequest) this).isNullRequest()) {
+            buffer.put(NULL_REQUEST_BYTES);
+            return;
+        }
+        setTopmostViaTransport(transport);
+
+        StringBuilder encoding = getEncodingBuilder();
+        encodeSIPHeaders(encoding);
+        putEncoded(encoding, getCharset(), buffer);
+
+        byte[] content = this.getRawContent();
+        if (content != null)
+            buffer.put(content);
+    }
+
+    /**
+     * Set the transport of the topmost Via header, which is left alone if it already has this
+     * transport.
+     */
+    private void setTopmostViaTransport(String transport) {
+        Via topVia = peekTopmostVia();
+        if (topVia != null && transport.equals(topVia.getTransport()))
+            return;
+        ViaHeader via = (ViaHeader) this.getHeader(ViaHeader.NAME);
+        try {
+            via.setTransport(transport);
+        } catch (ParseException e) {
+            InternalErrorHandler.handleException(e);
+        }
+    }
+
+    /**
+     * Return the builder private to the calling thread used to encode messages into byte
+     * buffers, emptied.
+     */
+    protected static StringBuilder getEncodingBuilder() {
+        StringBuilder encoding = encodingBuilder.get();
+        if (encoding.capacity() > MAX_ENCODING_BUILDER_CAPACITY) {
+            encoding = new StringBuilder(ENCODING_BUILDER_CAPACITY);
+            encodingBuilder.set(encoding);
+        } else {
+            encoding.setLength(0);
+        }
+        return encoding;
+    }
+
+    /**
+     * Write the characters of the builder into the buffer in the given charset. US-ASCII
+     * characters, which make up the bulk of a SIP message, are written directly.
+     * 
+     * @throws BufferOverflowException if the buffer is too small.
+     */
+    protected static void putEncoded(StringBuilder encoding, String charset, ByteBuffer buffer) {
+        int length = encoding.length();
+        int i = 0;
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset() + buffer.position();
+            int end = Math.min(length, buffer.remaining());
+            for (char c; i < end && (c = encoding.charAt(i)) < 0x80; i++) {
+                array[offset + i] = (byte) c;
+            }
+            buffer.position(buffer.position() + i);
+        } else {
+            // direct buffers are filled a chunk at a time
+            byte[] chunk = encodingChunk.get();
+            while (i < length) {
+                int end = Math.min(chunk.length, length - i);
+                int n = 0;
+                for (char c; n < end && (c = encoding.charAt(i + n)) < 0x80; n++) {
+                    chunk[n] = (byte) c;
+                }
+                buffer.put(chunk, 0, n);
+                i += n;
+                if (n < end)
+                    break;
+            }
+        }
+        if (i == length)
+            return;
+        if (encoding.charAt(i) < 0x80)
+            throw new BufferOverflowException();
+        try {
+            CharsetEncoder encoder = Charset.forName(charset).newEncoder().onMalformedInput(
+                    CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer chars = CharBuffer.wrap(encoding, i, length);
+            if (encoder.encode(chars, buffer, true).isOverflow()
+                    || encoder.flush(buffer).isOverflow())
+                throw new BufferOverflowException();
+        } catch (IllegalArgumentException ex) {
+            // unsupported or illegal charset name
+            InternalErrorHandler.handleException(ex);
+        }
+    }
+
     /**
      * clone this message (create a new deep physical copy). All headers in the message are
      * cloned. You can modify the cloned copy without affecting the original. The content is
      * handled as follows: If the content is a String, or a byte array, a new copy of the content
      * is allocated and copied over. If the content is an Object that supports the clone method,
      * then the clone method is invoked and the cloned content is the new content. Otherwise, the
-     * content of the new message is set equal to the old one.
+     * content of the new message is set equal to the old one. The headers that were not handed
+     * out are not copied but shared by both messages, each message copies them when it hands
+     * them out or modifies them.
      * 
      * @return A cloned copy of this object.
      */
     public Object clone() {
         SIPMessage retval = (SIPMessage) super.clone();
-        retval.headerTable = new ConcurrentHashMap<String, SIPHeader>();
         retval.fromHeader = null;
         retval.toHeader = null;
         retval.cSeqHeader = null;
@@ -521,10 +665,14 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         retval.contentLengthHeader = null;
         retval.maxForwardsHeader = null;
         if (this.headers != null) {
-            retval.headers = new ConcurrentLinkedQueue<SIPHeader>();
-            for (Iterator<SIPHeader> iter = headers.iterator(); iter.hasNext();) {
-                SIPHeader hdr = (SIPHeader) iter.next();
-                retval.attachHeader((SIPHeader) hdr.clone());
+            retval.headers = new SIPHeaderStore(headers.size());
+            retval.headerTable = retval.headers.asMap();
+            // not while another thread replaces a shared header by a copy
+            synchronized (headers) {
+                for (Iterator<SIPHeader> iter = headers.iterator(); iter.hasNext();) {
+                    SIPHeader hdr = (SIPHeader) iter.next();
+                    retval.attachSharedHeader(hdr);
+                }
             }
 
         }
@@ -582,11 +730,10 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * headers are derived from SIPHeader class.
      */
     public SIPMessage() {
-    	this.unrecognizedHeaders = new LinkedList<String>();
-        this.headers = new ConcurrentLinkedQueue<SIPHeader>();
-        headerTable = new ConcurrentHashMap<String, SIPHeader>();
+        this.headers = new SIPHeaderStore();
+        this.headerTable = headers.asMap();
         try {
-            this.attachHeader(new ContentLength(0), false);
+            this.attachHeader(new ContentLength(0), false, false, false);
         } catch (Exception ex) {
         }
     }
@@ -612,13 +759,46 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         }
     }
 
+    /**
+     * Attach a header of another message, shared by both messages if possible (see
+     * {@link SIPHeader#share()}) or else copied.
+     * 
+     * @param h SIPHeader (or list) of another message.
+     */
+    private void attachSharedHeader(SIPHeader h) {
+        if (h instanceof SIPHeaderList && ((SIPHeaderList< ? >) h).isEmpty())
+            return;
+        try {
+            attachHeader(h.share() ? h : (SIPHeader) h.clone(), false, false, false);
+        } catch (SIPDuplicateHeaderException ex) {
+        }
+    }
+
     /**
      * Attach a header (replacing the original header).
      * 
      * @param sipHeader SIPHeader that replaces a header of the same type.
      */
     public void setHeader(Header sipHeader) {
-        SIPHeader header = (SIPHeader) sipHeader;
+        setHeader((SIPHeader) sipHeader, true);
+    }
+
+    /**
+     * Set a header of another message in this message, replacing the header of the same name.
+     * The header is shared by both messages if possible (see {@link SIPHeader#share()}) or else
+     * copied.
+     * 
+     * @param header SIPHeader (or list) of another message.
+     */
+    protected void setSharedHeader(SIPHeader header) {
+        if (header == null)
+            throw new IllegalArgumentException("null header!");
+        if (header instanceof SIPHeaderList && ((SIPHeaderList< ? >) header).isEmpty())
+            return;
+        setHeader(header.share() ? header : (SIPHeader) header.clone(), false);
+    }
+
+    private void setHeader(SIPHeader header, boolean exposed) {
         if (header == null)
             throw new IllegalArgumentException("null header!");
         try {
@@ -629,7 +809,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
                     return;
             }
             this.removeHeader(header.getHeaderName());
-            attachHeader(header, true, false);
+            attachHeader(header, true, false, exposed);
         } catch (SIPDuplicateHeaderException ex) {
             InternalErrorHandler.handleException(ex);
         }
@@ -680,28 +860,67 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
 
     public void attachHeader(SIPHeader header, boolean replaceFlag, boolean top)
             throws SIPDuplicateHeaderException {
+        attachHeader(header, replaceFlag, top, true);
+    }
+
+    /**
+     * Attach a header the parser just created. Nothing else references it, so the message may
+     * share it with its clones until it hands it out.
+     * 
+     * @param header Header to attach.
+     * @exception SIPDuplicateHeaderException if the header is of a type that cannot tolerate
+     *            duplicates and one of this type already exists (e.g. CSeq header).
+     */
+    public void attachParsedHeader(SIPHeader header) throws SIPDuplicateHeaderException {
+        attachHeader(header, false, false, false);
+    }
+
+    /**
+     * Attach the header to the SIP Message structure at a specified position in its list of
+     * headers.
+     * 
+     * @param header Header to attach.
+     * @param replaceFlag If true then replace the existing header.
+     * @param top Location in the header list to insert the header.
+     * @param exposed false if the header is referenced by nothing but this message and the
+     *        messages it is shared with, true if the caller may keep a reference to it.
+     * @exception SIPDuplicateHeaderException if the header is of a type that cannot tolerate
+     *            duplicates and one of this type already exists (e.g. CSeq header).
+     */
+    protected void attachHeader(SIPHeader header, boolean replaceFlag, boolean top,
+            boolean exposed) throws SIPDuplicateHeaderException {
         if (header == null) {
             throw new NullPointerException("null header");
         }
 
+        // A header the caller holds is never shared with the clones of this message.
+        if (exposed && header.expose()) {
+            header = (SIPHeader) header.clone();
+            header.expose();
+        }
+
         SIPHeader h;
 
         if (ListMap.hasList(header) && !SIPHeaderList.class.isAssignableFrom(header.getClass())) {
             SIPHeaderList<SIPHeader> hdrList = ListMap.getList(header);
             hdrList.add(header);
             h = hdrList;
+            if (exposed)
+                h.expose();
         } else {
             h = header;
         }
 
         String headerNameLowerCase = SIPHeaderNamesCache.toLowerCase(h.getName());
         if (replaceFlag) {
-            headerTable.remove(headerNameLowerCase);
-        } else if (headerTable.containsKey(headerNameLowerCase) && !(h instanceof SIPHeaderList)) {
+            SIPHeader replaced = headers.remove(headerNameLowerCase);
+            if (replaced != null)
+                replaced.unshare();
+        } else if (headers.containsKey(headerNameLowerCase) && !(h instanceof SIPHeaderList)) {
             if (h instanceof ContentLength) {
                 try {
                     ContentLength cl = (ContentLength) h;
-                    contentLengthHeader.setContentLength(cl.getContentLength());
+                    ownContentLength().setContentLength(cl.getContentLength());
                 } catch (InvalidArgumentException e) {
                 }
             }
@@ -709,36 +928,24 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
             return;
         }
 
-        SIPHeader originalHeader = (SIPHeader) getHeader(header.getName());
-
-        // Delete the original header from our list structure.
-        if (originalHeader != null) {
-            Iterator<SIPHeader> li = headers.iterator();
-            while (li.hasNext()) {
-                SIPHeader next = (SIPHeader) li.next();
-                if (next.equals(originalHeader)) {
-                    li.remove();
-                }
-            }
-        }
-
-        if (!headerTable.containsKey(headerNameLowerCase)) {
-            headerTable.put(headerNameLowerCase, h);
-            headers.add(h);
+        SIPHeader existing = headers.get(headerNameLowerCase);
+        if (existing instanceof SIPHeaderList && h instanceof SIPHeaderList) {
+            SIPHeaderList< ? > hdrlist = (SIPHeaderList< ? >) (exposed ? exposeHeader(existing)
+                    : ownHeader(existing));
+            hdrlist.concatenate((SIPHeaderList) h, top);
         } else {
-            if (h instanceof SIPHeaderList) {
-                SIPHeaderList< ? > hdrlist = (SIPHeaderList< ? >) headerTable
-                        .get(headerNameLowerCase);
-                if (hdrlist != null)
-                    hdrlist.concatenate((SIPHeaderList) h, top);
-                else
-                    headerTable.put(headerNameLowerCase, h);
-            } else {
-                headerTable.put(headerNameLowerCase, h);
-            }
+            if (existing != null)
+                existing.unshare();
+            headers.put(headerNameLowerCase, h);
         }
 
-        // Direct accessor fields for frequently accessed headers.
+        setAccessor(h);
+    }
+
+    /**
+     * Set the direct accessor field of the given header if it is a frequently accessed one.
+     */
+    private void setAccessor(SIPHeader h) {
         if (h instanceof From) {
             this.fromHeader = (From) h;
         } else if (h instanceof ContentLength) {
@@ -752,7 +959,79 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         } else if (h instanceof MaxForwards) {
             this.maxForwardsHeader = (MaxForwards) h;
         }
+    }
 
+    /**
+     * Return the given header (or header list) of this message, ready to be handed out. A
+     * header shared with other messages is first replaced by a copy of its own. The header is
+     * not shared with the clones made afterwards, since the caller may keep it.
+     * <p>
+     * This is done under the lock of the headers, so that threads reading the same message
+     * make a single copy.
+     * 
+     * @param header header of this message, or null.
+     * @return the header to hand out.
+     */
+    protected final SIPHeader exposeHeader(SIPHeader header) {
+        if (header == null)
+            return null;
+        synchronized (headers) {
+            header = currentHeader(header);
+            if (!header.expose())
+                return header;
+            SIPHeader copy = copyHeader(header);
+            copy.expose();
+            return copy;
+        }
+    }
+
+    /**
+     * Return the given header (or header list) of this message, ready to be modified by the
+     * message itself. A header shared with other messages is first replaced by a copy of its
+     * own.
+     * 
+     * @param header header of this message, or null.
+     * @return the header to modify.
+     */
+    protected final SIPHeader ownHeader(SIPHeader header) {
+        if (header == null)
+            return null;
+        synchronized (headers) {
+            header = currentHeader(header);
+            if (!header.isShared())
+                return header;
+            return copyHeader(header);
+        }
+    }
+
+    /**
+     * Return the header of this message that has the name of the given one. Another thread may
+     * have replaced the given one by a copy since it was read. Called under the lock of the
+     * headers.
+     */
+    private SIPHeader currentHeader(SIPHeader header) {
+        SIPHeader current = headers.get(SIPHeaderNamesCache.toLowerCase(header.getName()));
+        return current == null ? header : current;
+    }
+
+    /**
+     * Replace a shared header of this message by a copy of its own. Called under the lock of
+     * the headers.
+     */
+    private SIPHeader copyHeader(SIPHeader header) {
+        SIPHeader copy = (SIPHeader) header.clone();
+        // the copy is made before letting the other messages modify the header
+        header.unshare();
+        headers.put(SIPHeaderNamesCache.toLowerCase(header.getName()), copy);
+        setAccessor(copy);
+        return copy;
+    }
+
+    /**
+     * Return the Content-Length header, ready to be modified by the message.
+     */
+    private ContentLength ownContentLength() {
+        return (ContentLength) ownHeader(contentLengthHeader);
     }
 
     /**
@@ -765,31 +1044,29 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
     public void removeHeader(String headerName, boolean top) {
 
         String headerNameLowerCase = SIPHeaderNamesCache.toLowerCase(headerName);
-        SIPHeader toRemove = (SIPHeader) headerTable.get(headerNameLowerCase);
+        SIPHeader toRemove = headers.get(headerNameLowerCase);
         // nothing to do then we are done.
         if (toRemove == null)
             return;
         if (toRemove instanceof SIPHeaderList) {
             SIPHeaderList< ? > hdrList = (SIPHeaderList< ? >) toRemove;
-            if (top)
-                hdrList.removeFirst();
-            else
-                hdrList.removeLast();
+            // A shared list left empty is dropped as it is instead of being copied first.
+            boolean emptied = hdrList.size() <= 1;
+            if (!emptied || !hdrList.isShared()) {
+                hdrList = (SIPHeaderList< ? >) ownHeader(hdrList);
+                if (top)
+                    hdrList.removeFirst();
+                else
+                    hdrList.removeLast();
+            }
             // Clean up empty list
-            if (hdrList.isEmpty()) {
-                Iterator<SIPHeader> li = this.headers.iterator();
-                while (li.hasNext()) {
-                    SIPHeader sipHeader = (SIPHeader) li.next();
-                    if (sipHeader.getName().equalsIgnoreCase(headerNameLowerCase))
-                        li.remove();
-                }
-
-                // JvB: also remove it from the nameTable! Else NPE in
-                // DefaultRouter
-                headerTable.remove(headerNameLowerCase);
+            if (emptied) {
+                toRemove.unshare();
+                headers.remove(headerNameLowerCase);
             }
         } else {
-            this.headerTable.remove(headerNameLowerCase);
+            this.headers.remove(headerNameLowerCase);
+            toRemove.unshare();
             if (toRemove instanceof From) {
                 this.fromHeader = null;
             } else if (toRemove instanceof To) {
@@ -803,12 +1080,6 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
             } else if (toRemove instanceof ContentLength) {
                 this.contentLengthHeader = null;
             }
-            Iterator<SIPHeader> li = this.headers.iterator();
-            while (li.hasNext()) {
-                SIPHeader sipHeader = (SIPHeader) li.next();
-                if (sipHeader.getName().equalsIgnoreCase(headerName))
-                    li.remove();
-            }
         }
 
     }
@@ -823,10 +1094,11 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         if (headerName == null)
             throw new NullPointerException("null arg");
         String headerNameLowerCase = SIPHeaderNamesCache.toLowerCase(headerName);
-        SIPHeader removed = (SIPHeader) headerTable.remove(headerNameLowerCase);
+        SIPHeader removed = headers.remove(headerNameLowerCase);
         // nothing to do then we are done.
         if (removed == null)
             return;
+        removed.unshare();
 
         // Remove the fast accessor fields.
         if (removed instanceof From) {
@@ -842,14 +1114,6 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         } else if (removed instanceof ContentLength) {
             this.contentLengthHeader = null;
         }
-
-        Iterator<SIPHeader> li = this.headers.iterator();
-        while (li.hasNext()) {
-            SIPHeader sipHeader = (SIPHeader) li.next();
-            if (sipHeader.getName().equalsIgnoreCase(headerNameLowerCase))
-                li.remove();
-
-        }
     }
 
     /**
@@ -869,30 +1133,40 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      *         response have the same computed transaction identifier).
      */
     public String getTransactionId() {
-        Via topVia = getTopmostVia();
+        return getTransactionId(this.cSeqHeader.getMethod());
+    }
+
+    /**
+     * Compute the transaction ID this message would have if its CSeq method was the given
+     * one.
+     */
+    protected String getTransactionId(String method) {
+        Via topVia = peekTopmostVia();
 //        if (!this.getViaHeaders().isEmpty()) {
 //            topVia = (Via) this.getViaHeaders().getFirst();
 //        }
         // Have specified a branch Identifier so we can use it to identify
         // the transaction. BranchId is not case sensitive.
         // Branch Id prefix is not case sensitive.
-        if (topVia != null
-                && topVia.getBranch() != null
-                && topVia.getBranch().toUpperCase().startsWith(
-                        SIPConstants.BRANCH_MAGIC_COOKIE_UPPER_CASE)) {
+        String branch = topVia == null ? null : topVia.getBranch();
+        if (branch != null
+                && branch.regionMatches(true, 0, SIPConstants.BRANCH_MAGIC_COOKIE, 0,
+                        SIPConstants.BRANCH_MAGIC_COOKIE.length())) {
             // Bis 09 compatible branch assignment algorithm.
             // implies that the branch id can be used as a transaction
             // identifier.
-            if (this.getCSeq().getMethod().equals(Request.CANCEL))
-                return (topVia.getBranch() + ":" + this.getCSeq().getMethod()).toLowerCase();
-            else
-                return topVia.getBranch().toLowerCase();
+            String cancel = method.equals(Request.CANCEL) ? Request.CANCEL : null;
+            MessageKey key = this.transactionKey;
+            if (key == null || !key.isComputedFrom(branch, cancel, null)) {
+                key = new MessageKey(branch, cancel, null);
+                this.transactionKey = key;
+            }
+            return key.id;
         } else {
             // Old style client so construct the transaction identifier
             // from various fields of the request.
             StringBuilder retval = new StringBuilder();
-            From from = (From) this.getFrom();
-            To to = (To) this.getTo();
+            From from = this.fromHeader;
             // String hpFrom = from.getUserAtHostPort();
             // retval.append(hpFrom).append(":");
             if (from.hasTag())
@@ -901,15 +1175,14 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
             // retval.append(hpTo).append(":");
             String cid = this.callIdHeader.getCallId();
             retval.append(cid).append("-");
-            retval.append(this.cSeqHeader.getSequenceNumber()).append("-").append(
-                    this.cSeqHeader.getMethod());
+            retval.append(this.cSeqHeader.getSequenceNumber()).append("-").append(method);
             if (topVia != null) {
                 retval.append("-").append(topVia.getSentBy().encode());
                 if (!topVia.getSentBy().hasPort()) {
                     retval.append("-").append(5060);
                 }
             }
-            if (this.getCSeq().getMethod().equals(Request.CANCEL)) {
+            if (method.equals(Request.CANCEL)) {
                 retval.append(Request.CANCEL);
             }
             return retval.toString().toLowerCase().replace(":", "-").replace("@", "-")
@@ -943,8 +1216,37 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @return an Iterator for the headers of this message.
      */
     public Iterator<SIPHeader> getHeaders() {
-        return headers.iterator();
-    }        
+        exposeHeaders();
+        final Iterator<SIPHeader> it = headers.iterator();
+        return new Iterator<SIPHeader>() {
+            private SIPHeader last;
+
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public SIPHeader next() {
+                return last = it.next();
+            }
+
+            public void remove() {
+                if (last == null)
+                    throw new IllegalStateException();
+                removeHeader(last.getName());
+                last = null;
+            }
+        };
+    }
+
+    /**
+     * Get all the headers of this message ready to be handed out, see
+     * {@link #exposeHeader(SIPHeader)}.
+     */
+    private void exposeHeaders() {
+        for (Iterator<SIPHeader> it = headers.iterator(); it.hasNext();) {
+            exposeHeader(it.next());
+        }
+    }
 
     /**
      * Get the first header of the given name.
@@ -958,7 +1260,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
     protected Header getHeaderLowerCase(String lowerCaseHeaderName) {
         if (lowerCaseHeaderName == null)
             throw new NullPointerException("bad name");
-        SIPHeader sipHeader = (SIPHeader) headerTable.get(lowerCaseHeaderName);
+        SIPHeader sipHeader = exposeHeader(headers.get(lowerCaseHeaderName));
         if (sipHeader instanceof SIPHeaderList)
             return (Header) ((SIPHeaderList) sipHeader).getFirst();
         else
@@ -993,7 +1295,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @return -- the from header.
      */
     public FromHeader getFrom() {
-        return (FromHeader) fromHeader;
+        return (FromHeader) exposeHeader(fromHeader);
     }
 
     /**
@@ -1081,13 +1383,26 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
             return (Via) (getViaHeaders().getFirst());
     }
 
+    /**
+     * Get the topmost via header to read it, without handing it out (see
+     * {@link #exposeHeader(SIPHeader)}).
+     */
+    private Via peekTopmostVia() {
+        SIPHeader viaList = headers.get(VIA_LOWERCASE);
+        if (viaList == null) {
+            // the subclasses parsing headers lazily may not have parsed it yet
+            return getTopmostVia();
+        }
+        return (Via) ((ViaList) viaList).getFirst();
+    }
+
     /**
      * Get the CSeq list of header (null if one does not exist).
      * 
      * @return CSeq header
      */
     public CSeqHeader getCSeq() {
-        return (CSeqHeader) cSeqHeader;
+        return (CSeqHeader) exposeHeader(cSeqHeader);
     }
 
     /**
@@ -1109,7 +1424,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
 
     public MaxForwardsHeader getMaxForwards() {
-        return maxForwardsHeader;
+        return (MaxForwardsHeader) exposeHeader(maxForwardsHeader);
     }
 
     /**
@@ -1139,7 +1454,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @return Call-ID header .
      */
     public CallIdHeader getCallId() {
-        return callIdHeader;
+        return (CallIdHeader) exposeHeader(callIdHeader);
     }
 
     /**
@@ -1160,7 +1475,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         if (callIdHeader == null) {
             this.setHeader(new CallID());
         }
-        callIdHeader.setCallId(callId);
+        ((CallID) ownHeader(callIdHeader)).setCallId(callId);
     }
 
     /**
@@ -1181,7 +1496,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @return To header
      */
     public ToHeader getTo() {
-        return (ToHeader) toHeader;
+        return (ToHeader) exposeHeader(toHeader);
     }
 
     public void setTo(ToHeader to) {
@@ -1199,7 +1514,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @return content-length header.
      */
     public ContentLengthHeader getContentLength() {
-        return this.contentLengthHeader;
+        return (ContentLengthHeader) exposeHeader(this.contentLengthHeader);
     }
 
     /**
@@ -1399,7 +1714,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         }
 
         try {
-            contentLengthHeader.setContentLength(length);
+            ownContentLength().setContentLength(length);
         } catch (InvalidArgumentException e) {
             // Cannot happen.
         }
@@ -1413,7 +1728,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         messageContentBytes = null;
         messageContentObject = null;
         try {
-            this.contentLengthHeader.setContentLength(0);
+            ownContentLength().setContentLength(0);
         } catch (InvalidArgumentException ex) {
         }
     }
@@ -1428,8 +1743,8 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
     public ListIterator<SIPHeader> getHeaders(String headerName) {
         if (headerName == null)
             throw new NullPointerException("null headerName");
-        SIPHeader sipHeader = (SIPHeader) headerTable.get(SIPHeaderNamesCache
-                .toLowerCase(headerName));
+        SIPHeader sipHeader = exposeHeader(headers.get(SIPHeaderNamesCache
+                .toLowerCase(headerName)));
         // empty iterator
         if (sipHeader == null)
             return new LinkedList<SIPHeader>().listIterator();
@@ -1449,15 +1764,15 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
     public String getHeaderAsFormattedString(String name) {
         String lowerCaseName = SIPHeaderNamesCache.toLowerCase(name);
-        if (this.headerTable.containsKey(lowerCaseName)) {
-            return this.headerTable.get(lowerCaseName).toString();
+        if (this.headers.containsKey(lowerCaseName)) {
+            return this.headers.get(lowerCaseName).toString();
         } else {
             return this.getHeader(name).toString();
         }
     }
 
     public SIPHeader getSIPHeaderListLowerCase(String lowerCaseHeaderName) {
-        return headerTable.get(lowerCaseHeaderName);
+        return exposeHeader(headers.get(lowerCaseHeaderName));
     }
 
     /**
@@ -1468,8 +1783,8 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
     @SuppressWarnings("unchecked")
     private List<SIPHeader> getHeaderList(String headerName) {
-        SIPHeader sipHeader = (SIPHeader) headerTable.get(SIPHeaderNamesCache
-                .toLowerCase(headerName));
+        SIPHeader sipHeader = exposeHeader(headers.get(SIPHeaderNamesCache
+                .toLowerCase(headerName)));
         if (sipHeader == null)
             return null;
         else if (sipHeader instanceof SIPHeaderList)
@@ -1488,7 +1803,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @return true if the header is present in the message
      */
     public boolean hasHeader(String headerName) {
-        return headerTable.containsKey(SIPHeaderNamesCache.toLowerCase(headerName));
+        return headers.containsKey(SIPHeaderNamesCache.toLowerCase(headerName));
     }
 
     /**
@@ -1526,7 +1841,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
     public void setFromTag(String tag) {
         try {
-            fromHeader.setTag(tag);
+            ((From) ownHeader(fromHeader)).setTag(tag);
         } catch (ParseException e) {
         }
     }
@@ -1538,7 +1853,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
     public void setToTag(String tag) {
         try {
-            toHeader.setTag(tag);
+            ((To) ownHeader(toHeader)).setTag(tag);
         } catch (ParseException e) {
         }
     }
@@ -1573,7 +1888,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
             try {
                 if (sipHeader instanceof ContentLength) {
                     ContentLength cl = (ContentLength) sipHeader;
-                    contentLengthHeader.setContentLength(cl.getContentLength());
+                    ownContentLength().setContentLength(cl.getContentLength());
                 }
             } catch (InvalidArgumentException e) {
             }
@@ -1642,15 +1957,14 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
             return false;
         }
         SIPMessage otherMessage = (SIPMessage) other;
-        Collection<SIPHeader> values = this.headerTable.values();
-        Iterator<SIPHeader> it = values.iterator();
-        if (headerTable.size() != otherMessage.headerTable.size()) {
+        Iterator<SIPHeader> it = this.headers.iterator();
+        if (headers.size() != otherMessage.headers.size()) {
             return false;
         }
 
         while (it.hasNext()) {
             SIPHeader mine = (SIPHeader) it.next();
-            SIPHeader his = (SIPHeader) (otherMessage.headerTable.get(SIPHeaderNamesCache
+            SIPHeader his = (SIPHeader) (otherMessage.headers.get(SIPHeaderNamesCache
                     .toLowerCase(mine.getName())));
             if (his == null) {
                 return false;
@@ -1746,7 +2060,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
     public void setContentLength(ContentLengthHeader contentLength) {
         try {
-            this.contentLengthHeader.setContentLength(contentLength.getContentLength());
+            ownContentLength().setContentLength(contentLength.getContentLength());
         } catch (InvalidArgumentException ex) {
         }
 
@@ -1877,17 +2191,17 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
     }
     
     public CallIdHeader getCallIdHeader() {
-        return this.callIdHeader;
+        return this.getCallId();
     }
 
    
     public FromHeader getFromHeader() {
-        return this.fromHeader;
+        return this.getFrom();
     }
 
    
     public ToHeader getToHeader() {
-        return this.toHeader;
+        return this.getTo();
     }
 
   
@@ -1896,14 +2210,18 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
     }
     
     public CSeqHeader getCSeqHeader() {
-        return this.cSeqHeader;
+        return this.getCSeq();
     }
  
     /**
      * Returns the charset to use for encoding/decoding the body of this message
      */
     protected final String getCharset() {
-    	ContentType ct = getContentTypeHeader();
+    	ContentType ct = (ContentType) headers.get(CONTENT_TYPE_LOWERCASE);
+    	if (ct == null) {
+    	    // the subclasses parsing headers lazily may not have parsed it yet
+    	    ct = getContentTypeHeader();
+    	}
     	if (ct!=null) {
     		String c = ct.getCharset();
     		return c!=null ? c : contentEncodingCharset;
@@ -1930,12 +2248,12 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         if ( this.forkId != null ) {
             return forkId;
         } else {
-            String callId =  this.getCallId().getCallId();
+            String callId =  this.callIdHeader.getCallId();
             String fromTag = this.getFromTag();
             if ( fromTag == null ) {
                 throw new IllegalStateException("From tag is not yet set. Cannot compute forkId");
             }
-            this.forkId =  (callId + ":" + fromTag).toLowerCase();
+            this.forkId = Utils.toLowerCaseIdentifier(callId, fromTag, null);
             return this.forkId;
         }
     }
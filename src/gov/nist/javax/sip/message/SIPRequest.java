@@ -42,6 +42,7 @@ import gov.nist.javax.sip.header.ViaList;
 import gov.nist.javax.sip.stack.SIPTransactionStack;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -251,10 +252,10 @@ public class SIPRequest extends SIPMessage implements javax.sip.message.Request,
 
         /* Check for required headers */
 
-        if (getCSeq() == null) {
+        if (cSeqHeader == null) {
             throw new ParseException(prefix + CSeqHeader.NAME, 0);
         }
-        if (getTo() == null) {
+        if (toHeader == null) {
             throw new ParseException(prefix + ToHeader.NAME, 0);
         }
 
@@ -262,13 +263,13 @@ public class SIPRequest extends SIPMessage implements javax.sip.message.Request,
                 || callIdHeader.getCallId().equals("")) {
             throw new ParseException(prefix + CallIdHeader.NAME, 0);
         }
-        if (getFrom() == null) {
+        if (fromHeader == null) {
             throw new ParseException(prefix + FromHeader.NAME, 0);
         }
         if (getViaHeaders() == null) {
             throw new ParseException(prefix + ViaHeader.NAME, 0);
         }
-        if (getMaxForwards() == null) {
+        if (maxForwardsHeader == null) {
             throw new ParseException(prefix + MaxForwardsHeader.NAME, 0);
         }
 
@@ -337,8 +338,8 @@ public class SIPRequest extends SIPMessage implements javax.sip.message.Request,
         }
 
         if (requestLine != null && method != null
-                && getCSeq().getMethod() != null
-                && method.compareTo(getCSeq().getMethod()) != 0) {
+                && cSeqHeader.getMethod() != null
+                && method.compareTo(cSeqHeader.getMethod()) != 0) {
             throw new ParseException("CSEQ method mismatch with  Request-Line ", 0);
 
         }
@@ -440,7 +441,7 @@ public class SIPRequest extends SIPMessage implements javax.sip.message.Request,
 
         if (this.cSeqHeader != null) {
             try {
-                this.cSeqHeader.setMethod(meth);
+                ((CSeq) ownHeader(this.cSeqHeader)).setMethod(meth);
             } catch (ParseException e) {
             }
         }
@@ -603,6 +604,22 @@ public class SIPRequest extends SIPMessage implements javax.sip.message.Request,
         return retval;
     }
 
+    /**
+     * Encode this request into the given buffer, starting at its position.
+     * 
+     * @see SIPMessage#encodeAsBytes(String, ByteBuffer)
+     */
+    public void encodeAsBytes(String transport, ByteBuffer buffer) {
+        if (this.isNullRequest()) {
+            super.encodeAsBytes(transport, buffer);
+            return;
+        } else if (this.requestLine == null) {
+            return;
+        }
+        putEncoded(requestLine.encode(getEncodingBuilder()), "UTF-8", buffer);
+        super.encodeAsBytes(transport, buffer);
+    }
+
     /**
      * Creates a default SIPResponse message for this request. Note You must add the necessary
      * tags to outgoing responses if need be. For efficiency, this method does not clone the
@@ -682,14 +699,10 @@ public class SIPRequest extends SIPMessage implements javax.sip.message.Request,
         // no need to iterate through all headers to create the response since we know which headers
         // we only want to keep and helps the lazy parsing to avoid going through all headers
         for(String headerName : headersToIncludeInResponse) {                	
-        	SIPHeader nextHeader = headerTable.get(headerName);
+        	SIPHeader nextHeader = headers.get(headerName);
         	if(nextHeader != null) {
         		if(!(nextHeader instanceof RecordRouteList) || (nextHeader instanceof RecordRouteList && mustCopyRR(statusCode))) {
-        			try {
-        				newResponse.attachHeader((SIPHeader) nextHeader.clone(), false);
-        			} catch (SIPDuplicateHeaderException e) {
-                      e.printStackTrace();
-                  }
+        			newResponse.setSharedHeader(nextHeader);
         		}
         	}
         }
@@ -752,18 +765,18 @@ public class SIPRequest extends SIPMessage implements javax.sip.message.Request,
         SIPRequest cancel = new SIPRequest();
         cancel.setRequestLine((RequestLine) this.requestLine.clone());
         cancel.setMethod(Request.CANCEL);
-        cancel.setHeader((Header) this.callIdHeader.clone());
-        cancel.setHeader((Header) this.toHeader.clone());
+        cancel.setSharedHeader(this.callIdHeader);
+        cancel.setSharedHeader(this.toHeader);
         cancel.setHeader((Header) cSeqHeader.clone());
         try {
             cancel.getCSeq().setMethod(Request.CANCEL);
         } catch (ParseException e) {
             e.printStackTrace(); // should not happen
         }
-        cancel.setHeader((Header) this.fromHeader.clone());
+        cancel.setSharedHeader(this.fromHeader);
 
         cancel.addFirst((Header) this.getTopmostVia().clone());
-        cancel.setHeader((Header) this.maxForwardsHeader.clone());
+        cancel.setSharedHeader(this.maxForwardsHeader);
 
         /*
          * If the request being cancelled contains a Route header field, the CANCEL request MUST
@@ -779,6 +792,18 @@ public class SIPRequest extends SIPMessage implements javax.sip.message.Request,
         return cancel;
     }
 
+    /**
+     * Get the transaction ID of the request that this CANCEL cancels. With an RFC 3261 branch
+     * this is the branch shared by the CANCEL and the cancelled request. For an RFC 2543 client
+     * the cancelled request is assumed to be an INVITE, since a CANCEL SHOULD NOT be sent for
+     * other requests (RFC 3261 9.1).
+     *
+     * @return the transaction ID of the cancelled request.
+     */
+    public String getCancelledTransactionId() {
+        return getTransactionId(Request.INVITE);
+    }
+
     /**
      * Creates a default ACK SIPRequest message for this original request. Note that the
      * defaultACK SIPRequest does not include the content of the original SIPRequest. If
@@ -874,11 +899,11 @@ public class SIPRequest extends SIPMessage implements javax.sip.message.Request,
         SIPRequest newRequest = new SIPRequest();
         newRequest.setRequestLine((RequestLine) this.requestLine.clone());
         newRequest.setMethod(Request.ACK);
-        newRequest.setHeader((Header) this.callIdHeader.clone());
-        newRequest.setHeader((Header) this.maxForwardsHeader.clone()); // ISSUE
+        newRequest.setSharedHeader(this.callIdHeader);
+        newRequest.setSharedHeader(this.maxForwardsHeader); // ISSUE
         // 130
         // fix
-        newRequest.setHeader((Header) this.fromHeader.clone());
+        newRequest.setSharedHeader(this.fromHeader);
         newRequest.setHeader((Header) responseToHeader.clone());
         newRequest.addFirst((Header) this.getTopmostVia().clone());
         newRequest.setHeader((Header) cSeqHeader.clone());
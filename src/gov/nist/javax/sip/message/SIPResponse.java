@@ -37,6 +37,7 @@ import gov.nist.javax.sip.header.To;
 import gov.nist.javax.sip.header.Via;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.util.LinkedList;
 
@@ -532,6 +533,16 @@ public class SIPResponse
         return retval;
     }
 
+    /**
+     * Encode this response into the given buffer, starting at its position.
+     *
+     * @see SIPMessage#encodeAsBytes(String, ByteBuffer)
+     */
+    public void encodeAsBytes(String transport, ByteBuffer buffer) {
+        putEncoded(statusLine.encode(getEncodingBuilder()), "UTF-8", buffer);
+        super.encodeAsBytes(transport, buffer);
+    }
+
     /**
      * Get the encoded first line.
      *
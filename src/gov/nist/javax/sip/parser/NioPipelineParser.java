@@ -0,0 +1,351 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package gov.nist.javax.sip.parser;
+
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.stack.SIPTransactionStack;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Incremental framer for stream based transports driven by non blocking IO. Unlike the
+ * PipelinedMsgParser it does not need a thread of its own : the selector thread pushes whatever
+ * bytes it has read through addBytes, and every time a complete message (headers plus
+ * Content-Length bytes of body) has been accumulated, it is handed over to the executor to be
+ * parsed and passed to the SIPMessageListener. Messages of a given stream are always parsed and
+ * delivered one at a time and in the order in which they arrived.
+ * 
+ * @see gov.nist.javax.sip.parser.PipelinedMsgParser
+ */
+public class NioPipelineParser {
+
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes();
+
+    private final SIPTransactionStack sipStack;
+
+    private final SIPMessageListener sipMessageListener;
+
+    private final MessageParser smp;
+
+    private final int maxMessageSize;
+
+    private final Executor executor;
+
+    // bytes read from the network and not yet framed
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+    private int count;
+
+    // framing state of the message currently being read
+    private int scanPosition;
+
+    private int lineStart;
+
+    private int headerLength = -1;
+
+    private int contentLength;
+
+    private int bytesToSkip;
+
+    private long messageStartTime;
+
+    // framed messages waiting to be parsed and processed
+    private final Queue<Frame> frames = new ConcurrentLinkedQueue<Frame>();
+
+    private final AtomicBoolean processing = new AtomicBoolean(false);
+
+    private volatile boolean closed;
+
+    private final Runnable processingTask = new Runnable() {
+        public void run() {
+            processFrames();
+        }
+    };
+
+    /**
+     * Constructor.
+     * 
+     * @param sipStack the stack, used to create the message parser and for logging.
+     * @param sipMessageListener the listener that is called back with every parsed message.
+     * @param maxMessageSize the maximum size of a message, 0 or less meaning unlimited.
+     * @param executor the executor the messages are parsed and processed on. If null, messages
+     *        are processed by the thread calling addBytes.
+     */
+    public NioPipelineParser(SIPTransactionStack sipStack, SIPMessageListener sipMessageListener,
+            int maxMessageSize, Executor executor) {
+        this.sipStack = sipStack;
+        this.sipMessageListener = sipMessageListener;
+        this.smp = sipStack.getMessageParserFactory().createMessageParser(sipStack);
+        this.maxMessageSize = maxMessageSize;
+        this.executor = executor;
+    }
+
+    /**
+     * Add bytes read from the stream. Must not be called concurrently for the same stream.
+     * 
+     * @param bytes the bytes read.
+     * @param offset offset of the first byte read.
+     * @param length number of bytes read.
+     * @throws IOException if the headers of a message exceed the maximum message size.
+     */
+    public void addBytes(byte[] bytes, int offset, int length) throws IOException {
+        if (closed)
+            return;
+        if (bytesToSkip > 0) {
+            // discarding the body of a message that was too large
+            int skipped = Math.min(bytesToSkip, length);
+            bytesToSkip -= skipped;
+            offset += skipped;
+            length -= skipped;
+        }
+        if (length <= 0)
+            return;
+        if (count + length > buffer.length) {
+            byte[] newBuffer = new byte[Math.max(buffer.length * 2, count + length)];
+            System.arraycopy(buffer, 0, newBuffer, 0, count);
+            buffer = newBuffer;
+        }
+        System.arraycopy(bytes, offset, buffer, count, length);
+        count += length;
+
+        int consumed = 0;
+        boolean framed = false;
+        while (true) {
+            if (headerLength == -1) {
+                // ignore blank lines (keep alives) between messages
+                while (scanPosition == consumed && consumed < count
+                        && (buffer[consumed] == '\r' || buffer[consumed] == '\n')) {
+                    consumed++;
+                    scanPosition = consumed;
+                    lineStart = consumed;
+                }
+                if (consumed == count)
+                    break;
+                if (messageStartTime == 0)
+                    messageStartTime = System.currentTimeMillis();
+                boolean headersComplete = scanHeaders(consumed);
+                if (maxMessageSize > 0
+                        && (headersComplete ? headerLength : count - consumed) > maxMessageSize)
+                    throw new IOException("Max size exceeded!");
+                if (!headersComplete)
+                    break;
+            }
+            if (maxMessageSize > 0 && headerLength + contentLength > maxMessageSize) {
+                // Content length too large - process the headers only and
+                // return error from there.
+                frames.offer(new Frame(copy(consumed, headerLength), false));
+                consumed += headerLength;
+                int available = Math.min(contentLength, count - consumed);
+                consumed += available;
+                bytesToSkip = contentLength - available;
+            } else {
+                int messageLength = headerLength + contentLength;
+                if (count - consumed < messageLength)
+                    break;
+                frames.offer(new Frame(copy(consumed, messageLength), true));
+                consumed += messageLength;
+            }
+            framed = true;
+            headerLength = -1;
+            contentLength = 0;
+            scanPosition = consumed;
+            lineStart = consumed;
+            messageStartTime = 0;
+        }
+
+        if (consumed > 0) {
+            count -= consumed;
+            System.arraycopy(buffer, consumed, buffer, 0, count);
+            scanPosition -= consumed;
+            lineStart -= consumed;
+        }
+        if (count == 0 && buffer.length > INITIAL_BUFFER_SIZE) {
+            // do not hold on to the memory of an unusually large message
+            buffer = new byte[INITIAL_BUFFER_SIZE];
+        }
+        if (framed)
+            scheduleProcessing();
+    }
+
+    /**
+     * Look for the empty line terminating the headers of the message starting at messageStart,
+     * picking up the Content-Length on the way.
+     * 
+     * @return true if the headers are complete.
+     */
+    private boolean scanHeaders(int messageStart) {
+        for (int i = scanPosition; i < count; i++) {
+            if (buffer[i] != '\n')
+                continue;
+            int lineEnd = i;
+            if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r')
+                lineEnd--;
+            if (lineEnd == lineStart) {
+                headerLength = i + 1 - messageStart;
+                scanPosition = i + 1;
+                lineStart = i + 1;
+                return true;
+            }
+            int length = parseContentLength(lineStart, lineEnd);
+            if (length >= 0)
+                contentLength = length;
+            lineStart = i + 1;
+        }
+        scanPosition = count;
+        return false;
+    }
+
+    /**
+     * @return the value of the header line if it is a Content-Length (or its compact form "l")
+     *         header, -1 otherwise.
+     */
+    private int parseContentLength(int start, int end) {
+        int colon = -1;
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == ':') {
+                colon = i;
+                break;
+            }
+        }
+        if (colon == -1)
+            return -1;
+        int nameEnd = colon;
+        while (nameEnd > start && (buffer[nameEnd - 1] == ' ' || buffer[nameEnd - 1] == '\t'))
+            nameEnd--;
+        int nameLength = nameEnd - start;
+        if (nameLength == 1) {
+            if (buffer[start] != 'l' && buffer[start] != 'L')
+                return -1;
+        } else if (nameLength == CONTENT_LENGTH.length) {
+            for (int i = 0; i < nameLength; i++) {
+                if (Character.toLowerCase((char) buffer[start + i]) != CONTENT_LENGTH[i])
+                    return -1;
+            }
+        } else {
+            return -1;
+        }
+        long value = 0;
+        for (int i = colon + 1; i < end; i++) {
+            byte b = buffer[i];
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                if (value > Integer.MAX_VALUE)
+                    return -1;
+            } else if (b != ' ' && b != '\t') {
+                break;
+            }
+        }
+        return (int) value;
+    }
+
+    private byte[] copy(int offset, int length) {
+        byte[] bytes = new byte[length];
+        System.arraycopy(buffer, offset, bytes, 0, length);
+        return bytes;
+    }
+
+    private void scheduleProcessing() {
+        if (executor == null) {
+            processFrames();
+        } else if (processing.compareAndSet(false, true)) {
+            executor.execute(processingTask);
+        }
+    }
+
+    private void processFrames() {
+        try {
+            Frame frame;
+            while (!closed && (frame = frames.poll()) != null) {
+                processFrame(frame);
+            }
+        } finally {
+            if (executor != null) {
+                processing.set(false);
+                // a frame may have been added after the last poll
+                if (!closed && !frames.isEmpty())
+                    scheduleProcessing();
+            }
+        }
+    }
+
+    private void processFrame(Frame frame) {
+        SIPMessage sipMessage = null;
+        try {
+            sipMessage = smp.parseSIPMessage(frame.bytes, frame.hasBody, false,
+                    sipMessageListener);
+        } catch (ParseException ex) {
+            // Just ignore the parse exception.
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logDebug("Detected a parse error " + ex.getMessage());
+            return;
+        }
+        if (sipMessage == null)
+            return;
+        if (!frame.hasBody)
+            sipMessage.removeContent();
+        try {
+            sipMessageListener.processMessage(sipMessage);
+        } catch (Exception ex) {
+            // fatal error in processing - the connection is being closed.
+            closed = true;
+            frames.clear();
+        }
+    }
+
+    /**
+     * @return the time at which the first byte of the incomplete message currently being read
+     *         was received or 0 if the parser is between messages.
+     */
+    public long getMessageStartTime() {
+        return messageStartTime;
+    }
+
+    /**
+     * Stop delivering messages. Messages already framed but not yet processed are discarded.
+     */
+    public void close() {
+        closed = true;
+        frames.clear();
+    }
+
+    private static class Frame {
+        final byte[] bytes;
+
+        final boolean hasBody;
+
+        Frame(byte[] bytes, boolean hasBody) {
+            this.bytes = bytes;
+            this.hasBody = hasBody;
+        }
+    }
+}
@@ -74,10 +74,15 @@ import java.text.ParseException;
  *
   *
  */
-public class StringMsgParser implements MessageParser {
+public class StringMsgParser implements MessageBufferParser {
 
     protected static boolean computeContentLengthFromMessage = false;
 
+    /*
+     * Length of the message being parsed, held by the beginning of its buffer.
+     */
+    private int rawMessageLength;
+
     /**
      * @since v0.9
      */
@@ -102,17 +107,35 @@ public class StringMsgParser implements MessageParser {
      * @see ParseExceptionListener
      */
     public SIPMessage parseSIPMessage(byte[] msgBuffer, boolean readBody, boolean strict, ParseExceptionListener parseExceptionListener) throws ParseException {
-        if (msgBuffer == null || msgBuffer.length == 0)
+        if (msgBuffer == null)
             return null;
+        return parseSIPMessage(msgBuffer, msgBuffer.length, readBody, strict, parseExceptionListener);
+    }
+
+    /**
+     * Parse the first length bytes of a buffer containing a single SIP Message.
+     * The buffer is not referenced by the parsed message so it can be reused
+     * as soon as this method returns.
+     *
+     * @param msgBuffer
+     *            a byte buffer containing the message to be parsed.
+     * @param length
+     *            the number of bytes of the buffer holding the message.
+     * @return the parsed SIP message.
+     * @exception ParseException
+     *                is thrown when an illegal message has been encountered.
+     */
+    public SIPMessage parseSIPMessage(byte[] msgBuffer, int length, boolean readBody, boolean strict, ParseExceptionListener parseExceptionListener) throws ParseException {
+        if (msgBuffer == null || length == 0)
+            return null;
+        rawMessageLength = length;
 
         int i = 0;
 
         // Squeeze out any leading control character.
-        try {
-            while (msgBuffer[i] < 0x20)
-                i++;
-        }
-        catch (ArrayIndexOutOfBoundsException e) {
+        while (i < length && msgBuffer[i] < 0x20)
+            i++;
+        if (i == length) {
             // Array contains only control char, return null.
             return null;
         }
@@ -127,11 +150,9 @@ public class StringMsgParser implements MessageParser {
             int lineStart = i;
 
             // Find the length of the line.
-            try {
-                while (msgBuffer[i] != '\r' && msgBuffer[i] != '\n')
-                    i++;
-            }
-            catch (ArrayIndexOutOfBoundsException e) {
+            while (i < length && msgBuffer[i] != '\r' && msgBuffer[i] != '\n')
+                i++;
+            if (i == length) {
                 // End of the message.
                 break;
             }
@@ -174,7 +195,7 @@ public class StringMsgParser implements MessageParser {
                 }
             }
 
-            if (msgBuffer[i] == '\r' && msgBuffer.length > i+1 && msgBuffer[i+1] == '\n')
+            if (msgBuffer[i] == '\r' && length > i+1 && msgBuffer[i+1] == '\n')
                 i++;
 
             i++;
@@ -188,13 +209,13 @@ public class StringMsgParser implements MessageParser {
         // Check for content legth header
         if (readBody && message.getContentLength() != null ) {
           if ( message.getContentLength().getContentLength() != 0) {
-        	  int bodyLength = msgBuffer.length - i;
+        	  int bodyLength = length - i;
 
               byte[] body = new byte[bodyLength];
               System.arraycopy(msgBuffer, i, body, 0, bodyLength);
               message.setMessageContent(body,!strict,computeContentLengthFromMessage,message.getContentLength().getContentLength());
            } else if (!computeContentLengthFromMessage && message.getContentLength().getContentLength() == 0 & strict) {
-        	   String last4Chars = new String(msgBuffer, msgBuffer.length - 4, 4);
+        	   String last4Chars = new String(msgBuffer, length - 4, 4);
          	   if(!"\r\n\r\n".equals(last4Chars)) {
                    throw new ParseException("Extraneous characters at the end of the message ",i);
                }
@@ -205,6 +226,14 @@ public class StringMsgParser implements MessageParser {
         return message;
     }
 
+    /**
+     * Return the message being parsed, held by the beginning of the given buffer,
+     * to report it to the ParseExceptionListener.
+     */
+    protected String getRawMessage(byte[] msgBuffer) throws UnsupportedEncodingException {
+        return new String(msgBuffer, 0, Math.min(rawMessageLength, msgBuffer.length), "UTF-8");
+    }
+
     protected static String trimEndOfLine(String line) {
         if (line == null)
             return line;
@@ -234,7 +263,7 @@ public class StringMsgParser implements MessageParser {
                 if (parseExceptionListener != null)
 					try {
 						parseExceptionListener.handleException(ex, message,
-						        RequestLine.class, firstLine, new String(msgBuffer, "UTF-8"));
+						        RequestLine.class, firstLine, getRawMessage(msgBuffer));
 					} catch (UnsupportedEncodingException e) {
 						e.printStackTrace();
 					}
@@ -251,7 +280,7 @@ public class StringMsgParser implements MessageParser {
                 if (parseExceptionListener != null) {
                     try {
 						parseExceptionListener.handleException(ex, message,
-						        StatusLine.class, firstLine, new String(msgBuffer, "UTF-8"));
+						        StatusLine.class, firstLine, getRawMessage(msgBuffer));
 					} catch (UnsupportedEncodingException e) {
 						e.printStackTrace();
 					}
@@ -278,7 +307,7 @@ public class StringMsgParser implements MessageParser {
 
         try {
             SIPHeader sipHeader = headerParser.parse();
-            message.attachHeader(sipHeader, false);
+            message.attachParsedHeader(sipHeader);
         } catch (ParseException ex) {
             if (parseExceptionListener != null) {
                 String headerName = Lexer.getHeaderName(header);
@@ -289,7 +318,7 @@ public class StringMsgParser implements MessageParser {
                 }
                 try {
 					parseExceptionListener.handleException(ex, message,
-					        headerClass, header, new String(rawMessage, "UTF-8"));
+					        headerClass, header, getRawMessage(rawMessage));
 				} catch (UnsupportedEncodingException e) {
 					e.printStackTrace();
 				}
@@ -44,7 +44,7 @@ import gov.nist.javax.sip.header.StatusLine;
 import gov.nist.javax.sip.message.SIPMessage;
 import gov.nist.javax.sip.message.SIPRequest;
 import gov.nist.javax.sip.message.SIPResponse;
-import gov.nist.javax.sip.parser.MessageParser;
+import gov.nist.javax.sip.parser.MessageBufferParser;
 import gov.nist.javax.sip.parser.ParseExceptionListener;
 
 import java.nio.ByteBuffer;
@@ -73,7 +73,7 @@ import java.util.Arrays;
  *
   *
  */
-public class CharsMsgParser implements MessageParser {
+public class CharsMsgParser implements MessageBufferParser {
 
 //    protected boolean readBody;
 //    protected ParseExceptionListener parseExceptionListener;
@@ -83,6 +83,12 @@ public class CharsMsgParser implements MessageParser {
     protected static boolean computeContentLengthFromMessage = false;
     protected static final Charset charset = Charset.forName("UTF-8");
     protected static final char[] SIP_VERSION_CHAR = SIPConstants.SIP_VERSION_STRING.toCharArray();
+
+    /*
+     * Length of the message being parsed, held by the beginning of its buffer.
+     */
+    private int rawMessageLength;
+
     /**
      * @since v0.9
      */
@@ -131,17 +137,35 @@ public class CharsMsgParser implements MessageParser {
      * @see ParseExceptionListener
      */
     public SIPMessage parseSIPMessage(byte[] msgBuffer, boolean readBody, boolean strict, ParseExceptionListener exhandler) throws ParseException {
-        if (msgBuffer == null || msgBuffer.length == 0)
+        if (msgBuffer == null)
+            return null;
+        return parseSIPMessage(msgBuffer, msgBuffer.length, readBody, strict, exhandler);
+    }
+
+    /**
+     * Parse the first length bytes of a buffer containing a single SIP Message.
+     * The buffer is not referenced by the parsed message so it can be reused
+     * as soon as this method returns.
+     *
+     * @param msgBuffer
+     *            a byte buffer containing the message to be parsed.
+     * @param length
+     *            the number of bytes of the buffer holding the message.
+     * @return the parsed SIP message.
+     * @exception ParseException
+     *                is thrown when an illegal message has been encountered.
+     */
+    public SIPMessage parseSIPMessage(byte[] msgBuffer, int length, boolean readBody, boolean strict, ParseExceptionListener exhandler) throws ParseException {
+        if (msgBuffer == null || length == 0)
             return null;
+        rawMessageLength = length;
 
         int i = 0;
 
         // Squeeze out any leading control character.
-        try {
-            while (msgBuffer[i] < 0x20)
-                i++;
-        }
-        catch (ArrayIndexOutOfBoundsException e) {
+        while (i < length && msgBuffer[i] < 0x20)
+            i++;
+        if (i == length) {
             // Array contains only control char, return null.
             return null;
         }
@@ -157,11 +181,9 @@ public class CharsMsgParser implements MessageParser {
             int lineStart = i;
 
             // Find the length of the line.
-            try {
-                while (msgBuffer[i] != '\r' && msgBuffer[i] != '\n')
-                    i++;
-            }
-            catch (ArrayIndexOutOfBoundsException e) {
+            while (i < length && msgBuffer[i] != '\r' && msgBuffer[i] != '\n')
+                i++;
+            if (i == length) {
                 // End of the message.
                 break;
             }
@@ -205,7 +227,7 @@ public class CharsMsgParser implements MessageParser {
                 }
             }
 
-            if (msgBuffer[i] == '\r' && msgBuffer.length > i+1 && msgBuffer[i+1] == '\n')
+            if (msgBuffer[i] == '\r' && length > i+1 && msgBuffer[i+1] == '\n')
                 i++;
 
             i++;
@@ -222,13 +244,13 @@ public class CharsMsgParser implements MessageParser {
      // Check for content legth header
         if (readBody && message.getContentLength() != null ) {
           if ( message.getContentLength().getContentLength() != 0) {
-        	  int bodyLength = msgBuffer.length - i;
+        	  int bodyLength = length - i;
 
               byte[] body = new byte[bodyLength];
               System.arraycopy(msgBuffer, i, body, 0, bodyLength);
               message.setMessageContent(body,!strict,computeContentLengthFromMessage,message.getContentLength().getContentLength());
            } else if (!computeContentLengthFromMessage && message.getContentLength().getContentLength() == 0 & strict) {
-        	   String last4Chars = new String(msgBuffer, msgBuffer.length - 4, 4);
+        	   String last4Chars = new String(msgBuffer, length - 4, 4);
          	   if(!"\r\n\r\n".equals(last4Chars)) {
                    throw new ParseException("Extraneous characters at the end of the message ",i);
                }
@@ -258,6 +280,14 @@ public class CharsMsgParser implements MessageParser {
         return retval;
     }
 
+    /**
+     * Return the message being parsed, held by the beginning of the given buffer,
+     * to report it to the ParseExceptionListener.
+     */
+    protected String getRawMessage(byte[] msgBuffer) {
+        return new String(msgBuffer, 0, Math.min(rawMessageLength, msgBuffer.length), charset);
+    }
+
     protected SIPMessage processFirstLine(char[] firstLine, ParseExceptionListener parseExceptionListener, byte[] msgBuffer) throws ParseException {
         SIPMessage message;
         
@@ -277,7 +307,7 @@ public class CharsMsgParser implements MessageParser {
             } catch (ParseException ex) {
                 if (parseExceptionListener != null)
                     parseExceptionListener.handleException(ex, message,
-                            RequestLine.class, String.valueOf(firstLine), String.valueOf(msgBuffer));
+                            RequestLine.class, String.valueOf(firstLine), getRawMessage(msgBuffer));
                 else
                     throw ex;
 
@@ -290,7 +320,7 @@ public class CharsMsgParser implements MessageParser {
             } catch (ParseException ex) {
                 if (parseExceptionListener != null) {
                     parseExceptionListener.handleException(ex, message,
-                            StatusLine.class, String.valueOf(firstLine), String.valueOf(msgBuffer));
+                            StatusLine.class, String.valueOf(firstLine), getRawMessage(msgBuffer));
                 } else
                     throw ex;
 
@@ -308,13 +338,13 @@ public class CharsMsgParser implements MessageParser {
             headerParser = ParserFactory.createParser(header);
         } catch (ParseException ex) {
             parseExceptionListener.handleException(ex, message, null,
-            		String.valueOf(header), String.valueOf(msgBuffer));
+            		String.valueOf(header), getRawMessage(msgBuffer));
             return;
         }
 
         try {
             SIPHeader sipHeader = headerParser.parse();
-            message.attachHeader(sipHeader, false);
+            message.attachParsedHeader(sipHeader);
         } catch (ParseException ex) {
             if (parseExceptionListener != null) {
                 String headerName = Lexer.getHeaderName(header);
@@ -324,7 +354,7 @@ public class CharsMsgParser implements MessageParser {
 
                 }
                 parseExceptionListener.handleException(ex, message,
-                        headerClass, String.valueOf(header), String.valueOf(msgBuffer));
+                        headerClass, String.valueOf(header), getRawMessage(msgBuffer));
 
             }
         }
@@ -58,6 +58,7 @@ public class FromParser extends AddressParametersParser {
         this.lexer.SPorHT();
         super.parse(from);
         this.lexer.match('\n');
+        from.setEncodingOwned();
         return from;
     }
 
@@ -58,6 +58,7 @@ public class ToParser extends AddressParametersParser {
         To to = new To();
         super.parse(to);
         this.lexer.match('\n');        
+        to.setEncodingOwned();
         return to;
     }
 
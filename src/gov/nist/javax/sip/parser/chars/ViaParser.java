@@ -213,6 +213,7 @@ public class ViaParser extends HeaderParser {
             while (true) {
                 Via v = new Via();
                 parseVia(v);
+                v.setEncodingOwned();
                 viaList.add(v);
                 this.lexer.SPorHT(); // eat whitespace.
                 if (this.lexer.lookAhead(0) == ',') {
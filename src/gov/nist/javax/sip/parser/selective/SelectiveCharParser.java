@@ -37,7 +37,6 @@ import gov.nist.javax.sip.parser.chars.RequestLineParser;
 import gov.nist.javax.sip.parser.chars.StatusLineParser;
 import gov.nist.javax.sip.stack.SIPTransactionStack;
 
-import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
 import java.util.HashSet;
 import java.util.Properties;
@@ -150,12 +149,8 @@ public class SelectiveCharParser extends CharsMsgParser {
                 ((SIPRequest) message).setRequestLine(requestLine);
             } catch (ParseException ex) {
                 if (parseExceptionListener != null)
-					try {
-						parseExceptionListener.handleException(ex, message,
-						        RequestLine.class, new String(retval), new String(msgBuffer, "UTF-8"));
-					} catch (UnsupportedEncodingException e) {
-						e.printStackTrace();
-					}
+					parseExceptionListener.handleException(ex, message,
+					        RequestLine.class, new String(retval), getRawMessage(msgBuffer));
 				else
                     throw ex;
 
@@ -169,12 +164,8 @@ public class SelectiveCharParser extends CharsMsgParser {
                 ((SIPResponse) message).setStatusLine(sl);
             } catch (ParseException ex) {
                 if (parseExceptionListener != null) {
-                    try {
-						parseExceptionListener.handleException(ex, message,
-						        StatusLine.class, new String(retval), new String(msgBuffer, "UTF-8"));
-					} catch (UnsupportedEncodingException e) {
-						e.printStackTrace();
-					}
+					parseExceptionListener.handleException(ex, message,
+					        StatusLine.class, new String(retval), getRawMessage(msgBuffer));
                 } else
                     throw ex;
 
@@ -148,7 +148,7 @@ public class SelectiveParser extends StringMsgParser {
                 if (parseExceptionListener != null)
 					try {
 						parseExceptionListener.handleException(ex, message,
-						        RequestLine.class, firstLine, new String(msgBuffer, "UTF-8"));
+						        RequestLine.class, firstLine, getRawMessage(msgBuffer));
 					} catch (UnsupportedEncodingException e) {
 						e.printStackTrace();
 					}
@@ -167,7 +167,7 @@ public class SelectiveParser extends StringMsgParser {
                 if (parseExceptionListener != null) {
                     try {
 						parseExceptionListener.handleException(ex, message,
-						        StatusLine.class, firstLine, new String(msgBuffer, "UTF-8"));
+						        StatusLine.class, firstLine, getRawMessage(msgBuffer));
 					} catch (UnsupportedEncodingException e) {
 						e.printStackTrace();
 					}
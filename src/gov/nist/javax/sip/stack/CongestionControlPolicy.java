@@ -0,0 +1,85 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package gov.nist.javax.sip.stack;
+
+import java.util.Properties;
+
+/**
+ * Decides which incoming UDP messages are dropped when the stack gets overloaded.
+ * The policy is asked before a datagram is queued for the message channels, i.e.
+ * before it is parsed, and gets the raw bytes along with the current length of the
+ * queue. The UDP message processors count the messages dropped for each decision,
+ * see {@link UDPMessageProcessor#getDroppedMessageCount(Decision)}.
+ * 
+ * The implementation is set through the gov.nist.javax.sip.CONGESTION_CONTROL_POLICY
+ * property and is shared by all the UDP message processors of the stack, so it has
+ * to be thread safe.
+ */
+public interface CongestionControlPolicy {
+
+    /**
+     * Outcome of the policy for a given message.
+     */
+    enum Decision {
+        /**
+         * The message is queued.
+         */
+        ACCEPT,
+        /**
+         * Dropped at random because the queue is between its watermarks.
+         */
+        DROP_RANDOM_EARLY,
+        /**
+         * Dropped because the queue is above its high watermark.
+         */
+        DROP_HIGH_WATERMARK,
+        /**
+         * Dropped because the queue had no room left, whatever the policy said.
+         */
+        DROP_QUEUE_FULL
+    }
+
+    /**
+     * Called once when the stack is created.
+     * 
+     * @param sipStack the stack
+     * @param configurationProperties the properties the stack was created with
+     */
+    void init(SIPTransactionStack sipStack, Properties configurationProperties);
+
+    /**
+     * Decide whether an incoming message should be queued or dropped. Called by the
+     * thread reading the socket so it should not do more than a quick look at the
+     * bytes.
+     * 
+     * @param message buffer holding the message, it must not be kept
+     * @param length length of the message in the buffer
+     * @param queueSize number of messages waiting to be processed
+     * @param queueCapacity number of messages the queue can hold
+     * @return the decision, never null
+     */
+    Decision accept(byte[] message, int length, int queueSize, int queueCapacity);
+}
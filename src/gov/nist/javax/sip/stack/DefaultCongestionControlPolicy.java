@@ -0,0 +1,204 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package gov.nist.javax.sip.stack;
+
+import java.util.Properties;
+
+/**
+ * Default congestion control policy. Every message is accepted while the queue is
+ * below its low watermark. Past it, new INVITEs are dropped with a probability
+ * growing linearly up to the high watermark, above which all the requests creating
+ * new transactions outside of a dialog are dropped. Responses, in-dialog requests,
+ * ACKs and CANCELs are always accepted (until the queue is full) since they
+ * complete work the stack has already taken on.
+ * 
+ * The watermarks are set with the gov.nist.javax.sip.CONGESTION_CONTROL_LOW_WATERMARK
+ * and gov.nist.javax.sip.CONGESTION_CONTROL_HIGH_WATERMARK properties.
+ */
+public class DefaultCongestionControlPolicy implements CongestionControlPolicy {
+
+    public static final int DEFAULT_LOW_WATERMARK = 2500;
+
+    public static final int DEFAULT_HIGH_WATERMARK = 5000;
+
+    /**
+     * Kind of message, as far as the policy is concerned.
+     */
+    protected enum MessageType {
+        NEW_INVITE, NEW_REQUEST, IN_DIALOG, RESPONSE
+    }
+
+    private static final byte[] SIP_VERSION = "SIP/".getBytes();
+
+    private static final byte[] INVITE = "INVITE ".getBytes();
+
+    private static final byte[] ACK = "ACK ".getBytes();
+
+    private static final byte[] CANCEL = "CANCEL ".getBytes();
+
+    private static final byte[] TAG = ";tag=".getBytes();
+
+    protected int lowWatermark = DEFAULT_LOW_WATERMARK;
+
+    protected int highWatermark = DEFAULT_HIGH_WATERMARK;
+
+    public void init(SIPTransactionStack sipStack, Properties configurationProperties) {
+        lowWatermark = Integer.parseInt(configurationProperties.getProperty(
+                "gov.nist.javax.sip.CONGESTION_CONTROL_LOW_WATERMARK", String
+                        .valueOf(DEFAULT_LOW_WATERMARK)));
+        highWatermark = Integer.parseInt(configurationProperties.getProperty(
+                "gov.nist.javax.sip.CONGESTION_CONTROL_HIGH_WATERMARK", String
+                        .valueOf(DEFAULT_HIGH_WATERMARK)));
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("Congestion control low watermark "
+                    + lowWatermark + " above high watermark " + highWatermark);
+        }
+    }
+
+    public Decision accept(byte[] message, int length, int queueSize, int queueCapacity) {
+        if (queueSize < lowWatermark) {
+            return Decision.ACCEPT;
+        }
+        MessageType type = getMessageType(message, length);
+        if (type == MessageType.RESPONSE || type == MessageType.IN_DIALOG) {
+            return Decision.ACCEPT;
+        }
+        if (queueSize >= highWatermark) {
+            return Decision.DROP_HIGH_WATERMARK;
+        }
+        if (type == MessageType.NEW_INVITE) {
+            // Drop with a probability that is linear in the range 0 to 1
+            float threshold = ((float) (queueSize - lowWatermark))
+                    / ((float) (highWatermark - lowWatermark));
+            if (Math.random() < threshold) {
+                return Decision.DROP_RANDOM_EARLY;
+            }
+        }
+        return Decision.ACCEPT;
+    }
+
+    /**
+     * Tells what kind of message the bytes hold by looking at the start line and the
+     * To header, without parsing the message. Anything that does not look like a
+     * request creating a transaction outside of a dialog (keep alives, garbage) is
+     * reported as in-dialog so that it goes through to the parser.
+     */
+    protected MessageType getMessageType(byte[] message, int length) {
+        int i = 0;
+        while (i < length && message[i] < 0x20) {
+            i++;
+        }
+        if (i == length) {
+            return MessageType.IN_DIALOG;
+        }
+        if (startsWith(message, length, i, SIP_VERSION)) {
+            return MessageType.RESPONSE;
+        }
+        if (startsWith(message, length, i, ACK) || startsWith(message, length, i, CANCEL)) {
+            return MessageType.IN_DIALOG;
+        }
+        boolean invite = startsWith(message, length, i, INVITE);
+        if (hasToTag(message, length, i)) {
+            return MessageType.IN_DIALOG;
+        }
+        return invite ? MessageType.NEW_INVITE : MessageType.NEW_REQUEST;
+    }
+
+    /**
+     * Look for a tag parameter on the To header (full or compact form).
+     */
+    private static boolean hasToTag(byte[] message, int length, int start) {
+        int i = start;
+        while (i < length) {
+            // start of a line
+            int lineEnd = i;
+            while (lineEnd < length && message[lineEnd] != '\r' && message[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == i) {
+                // empty line, end of the headers
+                return false;
+            }
+            if (isToHeader(message, i, lineEnd)) {
+                for (int j = i; j + TAG.length <= lineEnd; j++) {
+                    if (startsWithIgnoreCase(message, j, TAG)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            i = lineEnd;
+            if (i < length && message[i] == '\r') {
+                i++;
+            }
+            if (i < length && message[i] == '\n') {
+                i++;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isToHeader(byte[] message, int lineStart, int lineEnd) {
+        int i = lineStart;
+        if (i + 1 < lineEnd && (message[i] == 'T' || message[i] == 't')
+                && (message[i + 1] == 'O' || message[i + 1] == 'o')) {
+            i += 2;
+        } else if (i < lineEnd && (message[i] == 't' || message[i] == 'T')) {
+            i++;
+        } else {
+            return false;
+        }
+        while (i < lineEnd && (message[i] == ' ' || message[i] == '\t')) {
+            i++;
+        }
+        return i < lineEnd && message[i] == ':';
+    }
+
+    private static boolean startsWith(byte[] message, int length, int offset, byte[] prefix) {
+        if (offset + prefix.length > length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (message[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] message, int offset, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            byte b = message[offset + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
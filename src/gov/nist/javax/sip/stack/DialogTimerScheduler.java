@@ -0,0 +1,263 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.stack.timers.SipTimer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Runs the timers of the dialogs of a stack: the retransmission of the 2xx to
+ * an INVITE until its ACK comes, and the deletion of the dialogs whose ACK was
+ * not received or not sent in time. Rather than each dialog keeping tasks of
+ * its own in the stack timer, the timers are kept in a queue ordered by
+ * deadline, and while it is not empty a sweep thread of its own runs every
+ * resolution ms and hands the timers due over to the stack timer, which runs
+ * each on the thread picked from its thread hash, so that a slow dialog only
+ * holds up the timers sharing its thread.
+ *
+ * A timer is cancelled in place, up to the time it runs, and dropped from the
+ * queue when it comes due, or when the cancelled timers outnumber the pending
+ * ones.
+ */
+public class DialogTimerScheduler {
+
+    private static final class Entry implements Comparable<Entry> {
+        final SIPStackTimerTask task;
+
+        final long deadline;
+
+        final long sequence;
+
+        boolean cancelled;
+
+        // taken off the queue and handed over to the stack timer
+        boolean due;
+
+        Entry(SIPStackTimerTask task, long deadline, long sequence) {
+            this.task = task;
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Entry other) {
+            if (deadline != other.deadline)
+                return deadline < other.deadline ? -1 : 1;
+            return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+        }
+    }
+
+    private class SweepTask extends TimerTask {
+        public void run() {
+            try {
+                runDueTimers(this);
+            } catch (Exception ex) {
+                sipStack.getStackLogger().logError("Exception in dialog timer sweep", ex);
+            }
+        }
+    }
+
+    /**
+     * Runs a due timer on the thread of the stack timer its task belongs to,
+     * unless it was cancelled or scheduled again in the meantime.
+     */
+    private class DueTask extends SIPStackTimerTask {
+        private final Entry entry;
+
+        DueTask(Entry entry) {
+            this.entry = entry;
+        }
+
+        public void runTask() {
+            SIPStackTimerTask task = entry.task;
+            synchronized (DialogTimerScheduler.this) {
+                if (entry.cancelled)
+                    return;
+                entry.cancelled = true;
+                task.setSipTimerTask(null);
+            }
+            try {
+                task.runTask();
+            } catch (Exception ex) {
+                sipStack.getStackLogger().logError("Exception in dialog timer", ex);
+            }
+        }
+
+        public Object getThreadHash() {
+            return entry.task.getThreadHash();
+        }
+    }
+
+    private final SIPTransactionStack sipStack;
+
+    private final long resolution;
+
+    // All the fields below are guarded by this.
+    private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+
+    private int pendingCount;
+
+    private int peakPendingCount;
+
+    private long sequence;
+
+    private Timer sweepTimer;
+
+    private SweepTask sweepTask;
+
+    /**
+     * @param sipStack stack whose timer runs the due timers.
+     * @param resolution interval in ms between two sweeps of the queue.
+     */
+    public DialogTimerScheduler(SIPTransactionStack sipStack, long resolution) {
+        this.sipStack = sipStack;
+        this.resolution = resolution;
+    }
+
+    /**
+     * Run the given task once after the given delay, replacing the previous
+     * run it was scheduled for, if any.
+     *
+     * @param task dialog timer to run.
+     * @param delay delay in ms.
+     */
+    public void schedule(SIPStackTimerTask task, long delay) {
+        long deadline = System.currentTimeMillis() + delay;
+        synchronized (this) {
+            Object previous = task.getSipTimerTask();
+            if (previous instanceof Entry && !((Entry) previous).cancelled) {
+                ((Entry) previous).cancelled = true;
+                if (!((Entry) previous).due)
+                    pendingCount--;
+            }
+            Entry entry = new Entry(task, deadline, sequence++);
+            task.setSipTimerTask(entry);
+            queue.add(entry);
+            if (++pendingCount > peakPendingCount)
+                peakPendingCount = pendingCount;
+            if (sweepTask == null) {
+                SipTimer timer = sipStack.getTimer();
+                if (timer != null && timer.isStarted()) {
+                    if (sweepTimer == null)
+                        sweepTimer = new Timer("DialogTimerSweep", true);
+                    sweepTask = new SweepTask();
+                    sweepTimer.schedule(sweepTask, resolution, resolution);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancel the pending run of the given task.
+     *
+     * @return false if the task was not scheduled.
+     */
+    public boolean cancel(SIPStackTimerTask task) {
+        synchronized (this) {
+            Object entry = task.getSipTimerTask();
+            if (!(entry instanceof Entry) || ((Entry) entry).cancelled)
+                return false;
+            ((Entry) entry).cancelled = true;
+            task.setSipTimerTask(null);
+            if (!((Entry) entry).due)
+                pendingCount--;
+        }
+        task.cleanUpBeforeCancel();
+        return true;
+    }
+
+    private void runDueTimers(SweepTask sweep) {
+        long now = System.currentTimeMillis();
+        List<Entry> due = new ArrayList<Entry>();
+        synchronized (this) {
+            Entry entry;
+            while ((entry = queue.peek()) != null && entry.deadline <= now) {
+                queue.poll();
+                if (entry.cancelled)
+                    continue;
+                entry.due = true;
+                pendingCount--;
+                due.add(entry);
+            }
+            if (pendingCount == 0) {
+                queue.clear();
+            } else if (queue.size() > 2 * pendingCount + 64) {
+                for (Iterator<Entry> it = queue.iterator(); it.hasNext();) {
+                    if (it.next().cancelled)
+                        it.remove();
+                }
+            }
+            // stop sweeping until a timer is scheduled again
+            if (pendingCount == 0 && due.isEmpty() && sweepTask == sweep) {
+                sweepTask = null;
+                sweep.cancel();
+            }
+        }
+        SipTimer timer = sipStack.getTimer();
+        for (Entry entry : due) {
+            try {
+                timer.schedule(new DueTask(entry), 0);
+            } catch (IllegalStateException ex) {
+                // the stack is stopping
+            }
+        }
+    }
+
+    /**
+     * Drop all the pending timers, as the stack is stopped.
+     */
+    public synchronized void clear() {
+        for (Entry entry : queue)
+            entry.task.setSipTimerTask(null);
+        queue.clear();
+        pendingCount = 0;
+        sweepTask = null;
+        if (sweepTimer != null) {
+            sweepTimer.cancel();
+            sweepTimer = null;
+        }
+    }
+
+    /**
+     * Return the number of pending dialog timers.
+     */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Return the largest number of dialog timers that have been pending at
+     * once.
+     */
+    public synchronized int getPeakPendingCount() {
+        return peakPendingCount;
+    }
+}
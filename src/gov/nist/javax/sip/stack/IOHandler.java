@@ -38,14 +38,21 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.HandshakeCompletedListener;
 import javax.net.ssl.SSLSocket;
+import javax.sip.TransactionState;
 
 /*
  * TLS support Added by Daniel J.Martinez Manzano <dani@dif.um.es>
@@ -77,10 +84,14 @@ class IOHandler {
 	// sending tcp messages.
 	private final ConcurrentHashMap<String, Socket> socketTable = new ConcurrentHashMap<String, Socket>();
 	
-	private final ConcurrentHashMap<String, Semaphore> socketCreationMap  = new ConcurrentHashMap<String, Semaphore>();
+	// The connections being established, by the key of their socket.
+	private final ConcurrentHashMap<String, PendingConnection> pendingConnections = new ConcurrentHashMap<String, PendingConnection>();
 
-	
-	//private Semaphore ioSemaphore = new Semaphore(1);
+	// Runs the connects, so that a slow peer only holds up a thread of its
+	// own, out of at most connectThreads. Guarded by this.
+	private ThreadPoolExecutor connectExecutor;
+
+	private boolean closed;
 
 	protected static String makeKey(InetAddress addr, int port) {
 		return addr.getHostAddress() + ":" + port;
@@ -102,7 +113,6 @@ class IOHandler {
 
 	protected void removeSocket(String key) {
 		socketTable.remove(key);
-		socketCreationMap.remove(key);
 	}
 
 	/**
@@ -181,10 +191,24 @@ class IOHandler {
 			InetAddress receiverAddress, int contactPort, String transport,
 			byte[] bytes, boolean retry, MessageChannel messageChannel)
 			throws IOException {
+		return sendBytes(senderAddress, receiverAddress, contactPort,
+				transport, bytes, bytes.length, retry, messageChannel);
+	}
+
+	/**
+	 * Send the first length bytes of an array, to send a message encoded into
+	 * a larger buffer.
+	 * 
+	 * @see #sendBytes(InetAddress, InetAddress, int, String, byte[], boolean,
+	 *      MessageChannel)
+	 */
+	public Socket sendBytes(InetAddress senderAddress,
+			InetAddress receiverAddress, int contactPort, String transport,
+			byte[] bytes, int length, boolean retry,
+			MessageChannel messageChannel) throws IOException {
 		int retry_count = 0;
 		int max_retry = retry ? 2 : 1;
 		// Server uses TCP transport. TCP client sockets are cached
-		int length = bytes.length;
 		if (sipStack.isLoggingEnabled()) {
 			sipStack.getStackLogger().logDebug(
 					"sendBytes " + transport + " inAddr "
@@ -196,166 +220,70 @@ class IOHandler {
 				&& sipStack.isLogStackTraceOnMessageSend()) {
 			sipStack.getStackLogger().logStackTrace(StackLogger.TRACE_INFO);
 		}
-		if (transport.compareToIgnoreCase(TCP) == 0) {
+		// Added by Daniel J. Martinez Manzano <dani@dif.um.es>
+		// TLS is sent like TCP, over a connection opened with a handshake.
+		if (transport.compareToIgnoreCase(TCP) == 0
+				|| transport.compareToIgnoreCase(TLS) == 0) {
+			boolean tls = transport.compareToIgnoreCase(TLS) == 0;
 			String key = makeKey(receiverAddress, contactPort);
-			// This should be in a synchronized block ( reported by
-			// Jayashenkhar ( lucent ).
-
-			Socket clientSock = null;
-			enterIOCriticalSection(key);
-
-			try {
-				clientSock = getSocket(key);
-				while (retry_count < max_retry) {
-					if (clientSock == null) {
-						if (sipStack.isLoggingEnabled()) {
-							sipStack.getStackLogger().logDebug(
-									"inaddr = " + receiverAddress);
-							sipStack.getStackLogger().logDebug(
-									"port = " + contactPort);
-						}
-						// note that the IP Address for stack may not be
-						// assigned.
-						// sender address is the address of the listening point.
-						// in version 1.1 all listening points have the same IP
-						// address (i.e. that of the stack). In version 1.2
-						// the IP address is on a per listening point basis.
-						clientSock = sipStack.getNetworkLayer().createSocket(
-								receiverAddress, contactPort, senderAddress);
+			String connectionKey = connectionKey(key, tls, messageChannel,
+					bytes, length);
+			// The extra connections to a destination have readers of their
+			// own, so the channel must not take them over.
+			boolean pooled = connectionKey != key;
+
+			Socket clientSock = getSocket(connectionKey);
+			while (retry_count < max_retry) {
+				if (clientSock == null) {
+					if (sipStack.isLoggingEnabled()) {
+						sipStack.getStackLogger().logDebug(
+								"inaddr = " + receiverAddress);
+						sipStack.getStackLogger().logDebug(
+								"port = " + contactPort);
+					}
+					// note that the IP Address for stack may not be
+					// assigned.
+					// sender address is the address of the listening point.
+					// in version 1.1 all listening points have the same IP
+					// address (i.e. that of the stack). In version 1.2
+					// the IP address is on a per listening point basis.
+					clientSock = sendOnNewConnection(connectionKey, pooled,
+							tls, senderAddress, receiverAddress, contactPort,
+							bytes, length, messageChannel);
+					return pooled ? null : clientSock;
+				} else {
+					try {
 						OutputStream outputStream = clientSock
 								.getOutputStream();
 						writeChunks(outputStream, bytes, length);
-						putSocket(key, clientSock);
-						break;
-					} else {
+						return pooled ? null : clientSock;
+					} catch (IOException ex) {
+						if (sipStack.isLoggingEnabled())
+							sipStack.getStackLogger().logDebug(
+									"IOException occured retryCount "
+											+ retry_count);
+						// old connection is bad.
+						// remove from our table.
+						removeSocket(connectionKey);
 						try {
-							OutputStream outputStream = clientSock
-									.getOutputStream();
-							writeChunks(outputStream, bytes, length);
-							break;
-						} catch (IOException ex) {
-							if (sipStack.isLoggingEnabled())
-								sipStack.getStackLogger().logDebug(
-										"IOException occured retryCount "
-												+ retry_count);
-							// old connection is bad.
-							// remove from our table.
-							removeSocket(key);
-							try {
-								clientSock.close();
-							} catch (Exception e) {
-							}
-							clientSock = null;
-							retry_count++;
+							clientSock.close();
+						} catch (Exception e) {
 						}
+						clientSock = null;
+						retry_count++;
 					}
 				}
-			} finally {
-				leaveIOCriticalSection(key);
 			}
 
-			if (clientSock == null) {
-
-				if (sipStack.isLoggingEnabled()) {
-					sipStack.getStackLogger().logDebug(
-							this.socketTable.toString());
-					sipStack.getStackLogger().logError(
-							"Could not connect to " + receiverAddress + ":"
-									+ contactPort);
-				}
-
-				throw new IOException("Could not connect to " + receiverAddress
-						+ ":" + contactPort);
-			} else
-				return clientSock;
-
-			// Added by Daniel J. Martinez Manzano <dani@dif.um.es>
-			// Copied and modified from the former section for TCP
-		} else if (transport.compareToIgnoreCase(TLS) == 0) {
-			String key = makeKey(receiverAddress, contactPort);
-			Socket clientSock = null;
-			enterIOCriticalSection(key);
-
-			try {
-				clientSock = getSocket(key);
-
-				while (retry_count < max_retry) {
-					if (clientSock == null) {
-
-						clientSock = sipStack.getNetworkLayer()
-								.createSSLSocket(receiverAddress, contactPort,
-										senderAddress);
-						SSLSocket sslsock = (SSLSocket) clientSock;
-
-						if (sipStack.isLoggingEnabled()) {
-							sipStack.getStackLogger().logDebug(
-									"inaddr = " + receiverAddress);
-							sipStack.getStackLogger().logDebug(
-									"port = " + contactPort);
-						}
-						HandshakeCompletedListener listner = new HandshakeCompletedListenerImpl(
-								(TLSMessageChannel) messageChannel);
-						((TLSMessageChannel) messageChannel)
-								.setHandshakeCompletedListener(listner);
-						sslsock.addHandshakeCompletedListener(listner);
-						sslsock.setEnabledProtocols(sipStack
-								.getEnabledProtocols());
-						sslsock.startHandshake();
-						if (sipStack.isLoggingEnabled()) {
-							this.sipStack.getStackLogger().logDebug(
-									"Handshake passed");
-						}
-						// allow application to enforce policy by validating the
-						// certificate
-
-						try {
-							sipStack
-									.getTlsSecurityPolicy()
-									.enforceTlsPolicy(
-											messageChannel
-													.getEncapsulatedClientTransaction());
-						} catch (SecurityException ex) {
-							throw new IOException(ex.getMessage());
-						}
-
-						if (sipStack.isLoggingEnabled()) {
-							this.sipStack.getStackLogger().logDebug(
-									"TLS Security policy passed");
-						}
-						OutputStream outputStream = clientSock
-								.getOutputStream();
-						writeChunks(outputStream, bytes, length);
-						putSocket(key, clientSock);
-						break;
-					} else {
-						try {
-							OutputStream outputStream = clientSock
-									.getOutputStream();
-							writeChunks(outputStream, bytes, length);
-							break;
-						} catch (IOException ex) {
-							if (sipStack.isLoggingEnabled())
-								sipStack.getStackLogger().logException(ex);
-							// old connection is bad.
-							// remove from our table.
-							removeSocket(key);
-							try {
-								clientSock.close();
-							} catch (Exception e) {
-							}
-							clientSock = null;
-							retry_count++;
-						}
-					}
-				}
-			} finally {
-				leaveIOCriticalSection(key);
+			if (sipStack.isLoggingEnabled()) {
+				sipStack.getStackLogger().logDebug(this.socketTable.toString());
+				sipStack.getStackLogger().logError(
+						"Could not connect to " + receiverAddress + ":"
+								+ contactPort);
 			}
-			if (clientSock == null) {
-				throw new IOException("Could not connect to " + receiverAddress
-						+ ":" + contactPort);
-			} else
-				return clientSock;
+
+			throw new IOException("Could not connect to " + receiverAddress
+					+ ":" + contactPort);
 
 		} else {
 			// This is a UDP transport...
@@ -370,61 +298,453 @@ class IOHandler {
 		}
 
 	}
-	
-	/*
-	private void enterIOCriticalSection(String key)  throws IOException {
-		try {
-			if ( ! this.ioSemaphore.tryAcquire(10,TimeUnit.SECONDS) ) {
-				throw new IOException("Could not acquire semaphore");
+
+	/**
+	 * Return the key of the connection to send a message on. With several
+	 * connections per destination, plain TCP messages from a TCP channel are
+	 * spread over them by the hash of their Call-ID, so that the messages of
+	 * a call keep their order. The first one is cached under the key of the
+	 * destination like a single connection.
+	 */
+	private String connectionKey(String key, boolean tls,
+			MessageChannel messageChannel, byte[] bytes, int length) {
+		int connections = sipStack.connectionsPerDestination;
+		if (connections <= 1 || tls
+				|| !(messageChannel instanceof TCPMessageChannel))
+			return key;
+		int connection = (callIdHash(bytes, length) & Integer.MAX_VALUE)
+				% connections;
+		return connection == 0 ? key : key + "#" + connection;
+	}
+
+	/**
+	 * Return the hash of the Call-ID of an encoded message, read from its
+	 * Call-ID or compact i header, or 0 if it has none.
+	 */
+	private static int callIdHash(byte[] bytes, int length) {
+		int start = 0;
+		while (start < length) {
+			int end = start;
+			while (end < length && bytes[end] != '\n')
+				end++;
+			int lineEnd = end > start && bytes[end - 1] == '\r' ? end - 1 : end;
+			// the blank line ending the headers
+			if (lineEnd == start)
+				return 0;
+			int colon = start;
+			while (colon < lineEnd && bytes[colon] != ':')
+				colon++;
+			if (colon < lineEnd && colon - start <= 16) {
+				String name = new String(bytes, start, colon - start).trim();
+				if (name.equalsIgnoreCase("Call-ID") || name.equalsIgnoreCase("i")) {
+					int from = colon + 1;
+					while (from < lineEnd && bytes[from] == ' ')
+						from++;
+					int to = lineEnd;
+					while (to > from && bytes[to - 1] == ' ')
+						to--;
+					int hash = 0;
+					for (int i = from; i < to; i++)
+						hash = 31 * hash + bytes[i];
+					return hash;
+				}
 			}
-		} catch (InterruptedException e) {
-			throw new IOException("exception in acquiring sem");
+			start = end + 1;
 		}
+		return 0;
 	}
-	
-	
-	private void leaveIOCriticalSection(String key) {
-		this.ioSemaphore.release();
+
+	/**
+	 * Send a message on the connection of the given key once it is
+	 * established. The connection is established by a thread of its own and
+	 * the messages sent meanwhile are queued, so that callers sending to a
+	 * slow peer wait at most the connect timeout, or not at all if the stack
+	 * connects without blocking.
+	 * 
+	 * @return the new socket, or null if the message is still queued.
+	 */
+	private Socket sendOnNewConnection(String key, boolean pooled,
+			boolean tls, InetAddress senderAddress,
+			InetAddress receiverAddress, int contactPort, byte[] bytes,
+			int length, MessageChannel messageChannel) throws IOException {
+		// only the TCP and TLS channels can take over a connection later on
+		boolean waiting = !sipStack.nonBlockingConnect
+				|| !(messageChannel instanceof TCPMessageChannel || messageChannel instanceof TLSMessageChannel);
+		QueuedMessage message = new QueuedMessage(bytes, length,
+				messageChannel, waiting, System.currentTimeMillis()
+						+ sipStack.connectTimeout);
+		PendingConnection connection;
+		for (;;) {
+			Socket sock = getSocket(key);
+			if (sock != null) {
+				writeChunks(sock.getOutputStream(), bytes, length);
+				return sock;
+			}
+			connection = pendingConnections.get(key);
+			if (connection == null) {
+				connection = new PendingConnection(key, pooled, tls,
+						senderAddress, receiverAddress, contactPort, message);
+				if (pendingConnections.putIfAbsent(key, connection) != null)
+					continue;
+				// connected since the socket was looked up
+				if (getSocket(key) != null) {
+					pendingConnections.remove(key, connection);
+					continue;
+				}
+				connection.enqueue(message);
+				connect(connection);
+				break;
+			}
+			if (connection.enqueue(message))
+				break;
+		}
+		return connection.await(message);
 	}
-	*/
 
-	private void leaveIOCriticalSection(String key) {
-		synchronized (socketCreationMap) {
-			Semaphore creationSemaphore = socketCreationMap.get(key);
-			if (creationSemaphore != null) {
-				creationSemaphore.release();
+	private synchronized void connect(PendingConnection connection) {
+		try {
+			if (closed)
+				throw new RejectedExecutionException();
+			if (connectExecutor == null) {
+				connectExecutor = new ThreadPoolExecutor(
+						sipStack.connectThreads, sipStack.connectThreads, 60,
+						TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+						new ThreadFactory() {
+							public Thread newThread(Runnable runnable) {
+								Thread thread = new Thread(runnable);
+								thread.setDaemon(true);
+								thread.setName("IOHandlerConnectThread");
+								return thread;
+							}
+						});
+				connectExecutor.allowCoreThreadTimeOut(true);
 			}
+			connectExecutor.execute(connection);
+		} catch (RejectedExecutionException ex) {
+			connection.fail(new IOException("Stack stopped"), null);
 		}
 	}
-	
 
-	
-	private void enterIOCriticalSection(String key) throws IOException {
-		Semaphore creationSemaphore = null;
-			
-		synchronized (socketCreationMap) {
-			creationSemaphore = socketCreationMap.get(key);
-			if (creationSemaphore == null) {
-				creationSemaphore = new Semaphore(1, true);
-				socketCreationMap.put(key, creationSemaphore);
+	/**
+	 * Report the failure of messages sent without waiting for their
+	 * connection, to the client transactions that sent them.
+	 */
+	private void connectionFailed(List<QueuedMessage> messages,
+			InetAddress receiverAddress, int port, String reason) {
+		for (QueuedMessage message : messages) {
+			if (message.waiting)
+				continue;
+			if (sipStack.isLoggingEnabled())
+				sipStack.getStackLogger().logError(
+						"Could not connect to " + receiverAddress + ":" + port
+								+ " " + reason);
+			SIPClientTransaction transaction = message.transaction;
+			if (transaction != null
+					&& transaction.getState() != TransactionState.TERMINATED)
+				transaction.raiseIOExceptionEvent();
+		}
+	}
+
+	/**
+	 * A message sent on a connection being established.
+	 */
+	private static final class QueuedMessage {
+		final byte[] bytes;
+
+		final int length;
+
+		final MessageChannel messageChannel;
+
+		final SIPClientTransaction transaction;
+
+		final long deadline;
+
+		// The fields below are guarded by the pending connection.
+		boolean waiting;
+
+		boolean done;
+
+		Socket socket;
+
+		IOException failure;
+
+		QueuedMessage(byte[] bytes, int length,
+				MessageChannel messageChannel, boolean waiting, long deadline) {
+			// The caller may encode its next message into the same buffer
+			// before this one is written, so the message is copied.
+			this.bytes = new byte[length];
+			System.arraycopy(bytes, 0, this.bytes, 0, length);
+			this.length = length;
+			this.messageChannel = messageChannel;
+			this.transaction = messageChannel == null ? null : messageChannel
+					.getEncapsulatedClientTransaction();
+			this.waiting = waiting;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * A connection being established by a connect thread, with the messages
+	 * to write on it once connected. Scheduled on the stack timer, it drops
+	 * the messages queued without waiting once they are past their deadline.
+	 */
+	private final class PendingConnection extends SIPStackTimerTask implements
+			Runnable {
+		private final String key;
+
+		private final boolean pooled;
+
+		private final boolean tls;
+
+		private final InetAddress senderAddress;
+
+		private final InetAddress receiverAddress;
+
+		private final int port;
+
+		// The message that opened the connection, whose channel reads it.
+		private final QueuedMessage first;
+
+		// The fields below are guarded by this.
+		private final LinkedList<QueuedMessage> queue = new LinkedList<QueuedMessage>();
+
+		private boolean done;
+
+		private boolean expiryScheduled;
+
+		PendingConnection(String key, boolean pooled, boolean tls,
+				InetAddress senderAddress, InetAddress receiverAddress,
+				int port, QueuedMessage first) {
+			this.key = key;
+			this.pooled = pooled;
+			this.tls = tls;
+			this.senderAddress = senderAddress;
+			this.receiverAddress = receiverAddress;
+			this.port = port;
+			this.first = first;
+		}
+
+		/**
+		 * Queue a message.
+		 * 
+		 * @return false if the connection is no longer pending.
+		 */
+		boolean enqueue(QueuedMessage message) {
+			synchronized (this) {
+				if (done)
+					return false;
+				queue.add(message);
+				if (message.waiting || expiryScheduled)
+					return true;
+				expiryScheduled = true;
 			}
+			if (sipStack.getTimer() != null)
+				sipStack.getTimer().schedule(this, sipStack.connectTimeout);
+			return true;
 		}
-		try {
-			boolean retval = creationSemaphore.tryAcquire(10, TimeUnit.SECONDS);
-			if (!retval) {
-				throw new IOException("Could not acquire IO Semaphore'" + key
-						+ "' after 10 seconds -- giving up ");
+
+		/**
+		 * Wait for the message to be written if the caller waits for it.
+		 * 
+		 * @return the socket it was written on.
+		 */
+		synchronized Socket await(QueuedMessage message) throws IOException {
+			if (!message.waiting)
+				return null;
+			try {
+				long now;
+				while (!message.done
+						&& (now = System.currentTimeMillis()) < message.deadline)
+					wait(message.deadline - now);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
 			}
-		} catch (InterruptedException e) {
-			throw new IOException("exception in acquiring sem");
+			if (!message.done) {
+				// the connect thread goes on, the message is dropped
+				message.waiting = false;
+				queue.remove(message);
+				throw new IOException("Could not connect to "
+						+ receiverAddress + ":" + port + " within "
+						+ sipStack.connectTimeout + " ms");
+			}
+			if (message.failure != null)
+				throw new IOException(message.failure.getMessage());
+			return message.socket;
 		}
-	}
 
+		public void run() {
+			synchronized (this) {
+				if (queue.isEmpty()) {
+					// all the messages gave up on the connection while it
+					// waited for a connect thread
+					finish();
+					return;
+				}
+			}
+			Socket sock = null;
+			List<QueuedMessage> batch = new ArrayList<QueuedMessage>();
+			try {
+				sock = tls ? connectTls() : sipStack.getNetworkLayer()
+						.createSocket(receiverAddress, port, senderAddress);
+				// read before any answer can come in
+				read(sock);
+				for (;;) {
+					synchronized (this) {
+						if (queue.isEmpty()) {
+							putSocket(key, sock);
+							finish();
+							break;
+						}
+						batch.addAll(queue);
+						queue.clear();
+					}
+					OutputStream outputStream = sock.getOutputStream();
+					while (!batch.isEmpty()) {
+						QueuedMessage message = batch.get(0);
+						writeChunks(outputStream, message.bytes, message.length);
+						batch.remove(0);
+						synchronized (this) {
+							message.socket = sock;
+							message.done = true;
+							notifyAll();
+						}
+					}
+				}
+			} catch (Exception ex) {
+				if (sipStack.isLoggingEnabled())
+					sipStack.getStackLogger().logDebug(
+							"Could not connect to " + receiverAddress + ":"
+									+ port + " " + ex);
+				if (sock != null) {
+					try {
+						sock.close();
+					} catch (IOException e) {
+					}
+				}
+				fail(ex instanceof IOException ? (IOException) ex
+						: new IOException(ex.getMessage()), batch);
+			}
+		}
+
+		private Socket connectTls() throws IOException {
+			SSLSocket sslsock = sipStack.getNetworkLayer().createSSLSocket(
+					receiverAddress, port, senderAddress);
+			HandshakeCompletedListener listner = new HandshakeCompletedListenerImpl(
+					(TLSMessageChannel) first.messageChannel);
+			((TLSMessageChannel) first.messageChannel)
+					.setHandshakeCompletedListener(listner);
+			sslsock.addHandshakeCompletedListener(listner);
+			sslsock.setEnabledProtocols(sipStack.getEnabledProtocols());
+			sslsock.startHandshake();
+			if (sipStack.isLoggingEnabled()) {
+				sipStack.getStackLogger().logDebug("Handshake passed");
+			}
+			// allow application to enforce policy by validating the
+			// certificate
+
+			try {
+				sipStack.getTlsSecurityPolicy().enforceTlsPolicy(
+						first.messageChannel
+								.getEncapsulatedClientTransaction());
+			} catch (SecurityException ex) {
+				sslsock.close();
+				throw new IOException(ex.getMessage());
+			}
+
+			if (sipStack.isLoggingEnabled()) {
+				sipStack.getStackLogger().logDebug(
+						"TLS Security policy passed");
+			}
+			return sslsock;
+		}
+
+		/**
+		 * Read the messages coming in on the new connection, with a channel
+		 * of its own if it is an extra connection to the destination, else
+		 * with the channel that opened it.
+		 */
+		private void read(Socket sock) throws IOException {
+			if (pooled) {
+				new TCPMessageChannel(sock, sipStack,
+						(TCPMessageProcessor) first.messageChannel
+								.getMessageProcessor());
+			} else if (first.messageChannel instanceof TCPMessageChannel) {
+				((TCPMessageChannel) first.messageChannel).useSocket(sock);
+			} else if (first.messageChannel instanceof TLSMessageChannel) {
+				((TLSMessageChannel) first.messageChannel).useSocket(sock);
+			}
+		}
+
+		/**
+		 * Stop queueing messages.
+		 */
+		private void finish() {
+			done = true;
+			pendingConnections.remove(key, this);
+			notifyAll();
+		}
+
+		/**
+		 * Fail the messages not written.
+		 * 
+		 * @param unsent messages taken off the queue but not written.
+		 */
+		void fail(IOException failure, List<QueuedMessage> unsent) {
+			List<QueuedMessage> failed = new ArrayList<QueuedMessage>();
+			synchronized (this) {
+				if (unsent != null)
+					failed.addAll(unsent);
+				failed.addAll(queue);
+				queue.clear();
+				for (QueuedMessage message : failed) {
+					message.failure = failure;
+					message.done = true;
+				}
+				finish();
+			}
+			connectionFailed(failed, receiverAddress, port, failure
+					.getMessage());
+		}
+
+		/**
+		 * Drop the messages queued without waiting past their deadline.
+		 */
+		public void runTask() {
+			List<QueuedMessage> expired = new ArrayList<QueuedMessage>();
+			long now = System.currentTimeMillis();
+			long next = Long.MAX_VALUE;
+			synchronized (this) {
+				for (Iterator<QueuedMessage> it = queue.iterator(); it
+						.hasNext();) {
+					QueuedMessage message = it.next();
+					if (message.waiting)
+						continue;
+					if (message.deadline <= now) {
+						it.remove();
+						message.done = true;
+						expired.add(message);
+					} else {
+						next = Math.min(next, message.deadline);
+					}
+				}
+				expiryScheduled = next != Long.MAX_VALUE && !done;
+			}
+			if (expiryScheduled && sipStack.getTimer() != null)
+				sipStack.getTimer().schedule(this, next - now);
+			connectionFailed(expired, receiverAddress, port, "within "
+					+ sipStack.connectTimeout + " ms");
+		}
+	}
 
 	/**
 	 * Close all the cached connections.
 	 */
 	public void closeAll() {
+		synchronized (this) {
+			closed = true;
+			if (connectExecutor != null)
+				connectExecutor.shutdown();
+		}
 		for (Enumeration<Socket> values = socketTable.elements(); values
 				.hasMoreElements();) {
 			Socket s = (Socket) values.nextElement();
@@ -0,0 +1,284 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package gov.nist.javax.sip.stack;
+
+import gov.nist.core.ServerLogger;
+import gov.nist.javax.sip.header.CSeq;
+import gov.nist.javax.sip.header.CallID;
+import gov.nist.javax.sip.header.From;
+import gov.nist.javax.sip.header.RequestLine;
+import gov.nist.javax.sip.header.StatusLine;
+import gov.nist.javax.sip.header.To;
+import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.parser.MessageParser;
+import gov.nist.javax.sip.parser.ParseExceptionListener;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.text.ParseException;
+
+/**
+ * Message channel of the in-JVM loop transport. Sending a message hands its
+ * encoded bytes over to the loop message processor registered at the peer
+ * address and port, incoming messages are parsed and processed by the
+ * threads of the local processor.
+ * 
+ * @see LoopMessageProcessor
+ */
+public class LoopMessageChannel extends MessageChannel implements ParseExceptionListener,
+        RawMessageChannel {
+
+    private final LoopMessageProcessor processor;
+
+    private final InetAddress peerAddress;
+
+    private final int peerPort;
+
+    private long receptionTime;
+
+    LoopMessageChannel(LoopMessageProcessor processor, InetAddress peerAddress, int peerPort) {
+        this.processor = processor;
+        this.messageProcessor = processor;
+        this.peerAddress = peerAddress;
+        this.peerPort = peerPort;
+    }
+
+    /**
+     * Parse and process a message queued by a peer.
+     */
+    void processIncomingMessage(byte[] bytes, MessageParser parser) throws Exception {
+        SIPTransactionStack sipStack = processor.getSIPStack();
+        this.receptionTime = System.currentTimeMillis();
+        SIPMessage sipMessage;
+        try {
+            sipMessage = parser.parseSIPMessage(bytes, true, false, this);
+        } catch (ParseException ex) {
+            if (sipStack.isLoggingEnabled()) {
+                sipStack.getStackLogger().logDebug("Rejecting message !  " + new String(bytes));
+                sipStack.getStackLogger().logException(ex);
+            }
+            return;
+        }
+        if (sipMessage == null) {
+            // keepalive
+            return;
+        }
+        if (sipMessage.getFrom() == null || sipMessage.getTo() == null
+                || sipMessage.getCallId() == null || sipMessage.getCSeq() == null
+                || sipMessage.getTopmostVia() == null) {
+            if (sipStack.isLoggingEnabled()) {
+                sipStack.getStackLogger().logError("bad message " + new String(bytes));
+            }
+            return;
+        }
+        processMessage(sipMessage);
+    }
+
+    /**
+     * Actually process the parsed message.
+     */
+    public void processMessage(SIPMessage sipMessage) throws Exception {
+        SIPTransactionStack sipStack = processor.getSIPStack();
+        if (sipMessage instanceof SIPRequest) {
+            SIPRequest sipRequest = (SIPRequest) sipMessage;
+            if (sipStack.getStackLogger().isLoggingEnabled(ServerLogger.TRACE_MESSAGES)) {
+                sipStack.serverLogger.logMessage(sipMessage, this.getPeerHostPort().toString(),
+                        this.getHost() + ":" + this.getPort(), false, receptionTime);
+            }
+            ServerRequestInterface sipServerRequest = sipStack.newSIPServerRequest(sipRequest,
+                    this);
+            // Drop it if there is no request returned
+            if (sipServerRequest == null) {
+                if (sipStack.isLoggingEnabled()) {
+                    sipStack.getStackLogger().logWarning(
+                            "Null request interface returned -- dropping request");
+                }
+                return;
+            }
+            try {
+                sipServerRequest.processRequest(sipRequest, this);
+            } finally {
+                if (sipServerRequest instanceof SIPTransaction) {
+                    SIPServerTransaction sipServerTx = (SIPServerTransaction) sipServerRequest;
+                    if (!sipServerTx.passToListener()) {
+                        ((SIPTransaction) sipServerRequest).releaseSem();
+                    }
+                }
+            }
+        } else {
+            SIPResponse sipResponse = (SIPResponse) sipMessage;
+            try {
+                sipResponse.checkHeaders();
+            } catch (ParseException ex) {
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logError(
+                            "Dropping Badly formatted response message >>> " + sipResponse);
+                return;
+            }
+            ServerResponseInterface sipServerResponse = sipStack.newSIPServerResponse(
+                    sipResponse, this);
+            if (sipServerResponse != null) {
+                try {
+                    if (sipServerResponse instanceof SIPClientTransaction
+                            && !((SIPClientTransaction) sipServerResponse)
+                                    .checkFromTag(sipResponse)) {
+                        if (sipStack.isLoggingEnabled())
+                            sipStack.getStackLogger().logError(
+                                    "Dropping response message with invalid tag >>> "
+                                            + sipResponse);
+                        return;
+                    }
+                    sipServerResponse.processResponse(sipResponse, this);
+                } finally {
+                    if (sipServerResponse instanceof SIPTransaction
+                            && !((SIPTransaction) sipServerResponse).passToListener())
+                        ((SIPTransaction) sipServerResponse).releaseSem();
+                }
+            } else {
+                if (sipStack.isLoggingEnabled()) {
+                    sipStack.getStackLogger().logDebug("null sipServerResponse!");
+                }
+            }
+        }
+    }
+
+    /**
+     * Implementation of the ParseExceptionListener interface.
+     */
+    public void handleException(ParseException ex, SIPMessage sipMessage, Class<?> hdrClass,
+            String header, String message) throws ParseException {
+        SIPTransactionStack sipStack = processor.getSIPStack();
+        if (sipStack.isLoggingEnabled())
+            sipStack.getStackLogger().logException(ex);
+        if ((hdrClass != null)
+                && (hdrClass.equals(From.class) || hdrClass.equals(To.class)
+                        || hdrClass.equals(CSeq.class) || hdrClass.equals(Via.class)
+                        || hdrClass.equals(CallID.class) || hdrClass.equals(RequestLine.class) || hdrClass
+                        .equals(StatusLine.class))) {
+            if (sipStack.isLoggingEnabled()) {
+                sipStack.getStackLogger().logError("BAD MESSAGE!");
+                sipStack.getStackLogger().logError(message);
+            }
+            throw ex;
+        } else {
+            sipMessage.addUnparsed(header);
+        }
+    }
+
+    public void sendMessage(SIPMessage sipMessage) throws IOException {
+        long time = System.currentTimeMillis();
+        byte[] msg = sipMessage.encodeAsBytes(this.getTransport());
+        sendMessage(msg, peerAddress, peerPort, sipMessage instanceof SIPRequest);
+        if (getSIPStack().getStackLogger().isLoggingEnabled(ServerLogger.TRACE_MESSAGES)
+                && !sipMessage.isNullRequest())
+            logMessage(sipMessage, peerAddress, peerPort, time);
+    }
+
+    protected void sendMessage(byte[] message, InetAddress receiverAddress, int receiverPort,
+            boolean reconnectFlag) throws IOException {
+        LoopMessageProcessor receiver = LoopMessageProcessor.getProcessor(receiverAddress,
+                receiverPort);
+        if (receiver == null) {
+            throw new IOException("No loop listening point at "
+                    + receiverAddress.getHostAddress() + ":" + receiverPort);
+        }
+        if (getSIPStack().isLoggingEnabled()) {
+            getSIPStack().getStackLogger().logDebug(
+                    "sendMessage " + receiverAddress.getHostAddress() + "/" + receiverPort
+                            + " messageSize = " + message.length);
+        }
+        receiver.deliver(message, processor.getIpAddress(), processor.getPort());
+    }
+
+    public void close() {
+    }
+
+    public SIPTransactionStack getSIPStack() {
+        return processor.getSIPStack();
+    }
+
+    public String getTransport() {
+        return processor.getTransport();
+    }
+
+    public boolean isReliable() {
+        return true;
+    }
+
+    public boolean isSecure() {
+        return false;
+    }
+
+    public String getPeerAddress() {
+        return peerAddress.getHostAddress();
+    }
+
+    protected InetAddress getPeerInetAddress() {
+        return peerAddress;
+    }
+
+    protected String getPeerProtocol() {
+        return processor.getTransport();
+    }
+
+    public int getPeerPort() {
+        return peerPort;
+    }
+
+    public int getPeerPacketSourcePort() {
+        return peerPort;
+    }
+
+    public InetAddress getPeerPacketSourceAddress() {
+        return peerAddress;
+    }
+
+    public String getKey() {
+        return getKey(peerAddress, peerPort, getTransport());
+    }
+
+    public String getViaHost() {
+        return processor.getSavedIpAddress();
+    }
+
+    public int getViaPort() {
+        return processor.getPort();
+    }
+
+    public boolean equals(Object other) {
+        if (other == null || !this.getClass().equals(other.getClass())) {
+            return false;
+        }
+        return this.getKey().equals(((LoopMessageChannel) other).getKey());
+    }
+
+    public int hashCode() {
+        return getKey().hashCode();
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package gov.nist.javax.sip.stack;
+
+import gov.nist.core.HostPort;
+import gov.nist.core.ThreadAuditor;
+import gov.nist.javax.sip.ListeningPointExt;
+import gov.nist.javax.sip.parser.MessageParser;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message processor of the in-JVM loop transport. Stacks running in the same
+ * JVM exchange their encoded messages through the queues of their loop
+ * message processors instead of sockets, so the transaction, dialog and
+ * parsing layers can be load tested without the network and the kernel in
+ * the way.
+ * <p>
+ * Loop processors register themselves in a JVM wide table under their
+ * address and port when started. A message sent to an address and port is
+ * added to the queue of the processor registered there, or fails with an
+ * IOException if there is none, the way a TCP connection would be refused.
+ * The queue is a lock free list, a semaphore counts the messages waiting in
+ * it so the processing threads block only when it is empty. The number of
+ * processing threads is the thread pool size of the stack, one if not set.
+ * Messages are never lost, the transport is reliable. Listening points of
+ * this transport are created with the {@link ListeningPointExt#LOOP}
+ * transport and requests are routed to them with a transport=loop URI
+ * parameter.
+ * 
+ * @see LoopMessageChannel
+ */
+public class LoopMessageProcessor extends MessageProcessor {
+
+    /**
+     * The started loop processors of the JVM, by address and port.
+     */
+    private static final ConcurrentHashMap<String, LoopMessageProcessor> processors = new ConcurrentHashMap<String, LoopMessageProcessor>();
+
+    /**
+     * A message waiting to be processed and where it comes from.
+     */
+    private static class LoopMessage {
+        final byte[] bytes;
+
+        final InetAddress sourceAddress;
+
+        final int sourcePort;
+
+        LoopMessage(byte[] bytes, InetAddress sourceAddress, int sourcePort) {
+            this.bytes = bytes;
+            this.sourceAddress = sourceAddress;
+            this.sourcePort = sourcePort;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<LoopMessage> messageQueue = new ConcurrentLinkedQueue<LoopMessage>();
+
+    private final Semaphore pendingMessages = new Semaphore(0);
+
+    private volatile boolean isRunning;
+
+    private Thread[] threads;
+
+    public LoopMessageProcessor(InetAddress ipAddress, SIPTransactionStack sipStack, int port) {
+        super(ipAddress, port, "loop", sipStack);
+    }
+
+    private static String getKey(InetAddress address, int port) {
+        return address.getHostAddress() + ":" + port;
+    }
+
+    /**
+     * Get the started loop processor listening at the given address and
+     * port, whatever the stack it belongs to.
+     */
+    static LoopMessageProcessor getProcessor(InetAddress address, int port) {
+        return processors.get(getKey(address, port));
+    }
+
+    /**
+     * Queue a message for this processor.
+     * 
+     * @param message the encoded message
+     * @param sourceAddress address of the processor sending the message
+     * @param sourcePort port of the processor sending the message
+     * @throws IOException if this processor is stopped
+     */
+    void deliver(byte[] message, InetAddress sourceAddress, int sourcePort) throws IOException {
+        if (!isRunning) {
+            throw new IOException("Loop listening point " + getKey(getIpAddress(), getPort())
+                    + " is stopped");
+        }
+        messageQueue.offer(new LoopMessage(message, sourceAddress, sourcePort));
+        pendingMessages.release();
+    }
+
+    /**
+     * Get the number of messages waiting to be processed.
+     */
+    public int getQueueSize() {
+        return pendingMessages.availablePermits();
+    }
+
+    public void start() throws IOException {
+        if (processors.putIfAbsent(getKey(getIpAddress(), getPort()), this) != null) {
+            throw new IOException("Loop address already in use: "
+                    + getKey(getIpAddress(), getPort()));
+        }
+        this.isRunning = true;
+        int threadCount = sipStack.threadPoolSize > 0 ? sipStack.threadPoolSize : 1;
+        threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread(this);
+            threads[i].setDaemon(true);
+            threads[i].setName("LoopMessageProcessorThread-" + i);
+            threads[i].start();
+        }
+    }
+
+    public void stop() {
+        this.isRunning = false;
+        processors.remove(getKey(getIpAddress(), getPort()), this);
+        if (threads != null) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+        messageQueue.clear();
+    }
+
+    /**
+     * Processing thread main routine, each thread has its own parser.
+     */
+    public void run() {
+        MessageParser parser = sipStack.getMessageParserFactory().createMessageParser(sipStack);
+        // Ask the auditor to monitor this thread
+        ThreadAuditor.ThreadHandle threadHandle = sipStack.getThreadAuditor().addCurrentThread();
+        // wake up now and then to let the auditor know we are alive
+        long timeout = threadHandle.getPingIntervalInMillisecs() > 0 ? threadHandle
+                .getPingIntervalInMillisecs() : 1000;
+        while (isRunning) {
+            try {
+                threadHandle.ping();
+                if (!pendingMessages.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+                LoopMessage message = messageQueue.poll();
+                if (message == null) {
+                    // cleared by stop()
+                    continue;
+                }
+                LoopMessageChannel channel = new LoopMessageChannel(this, message.sourceAddress,
+                        message.sourcePort);
+                channel.processIncomingMessage(message.bytes, parser);
+            } catch (InterruptedException ex) {
+                // stopped
+            } catch (Exception ex) {
+                if (sipStack.isLoggingEnabled()) {
+                    sipStack.getStackLogger().logError(
+                            "LoopMessageProcessor: error processing message", ex);
+                }
+            }
+        }
+    }
+
+    public MessageChannel createMessageChannel(HostPort targetHostPort) throws IOException {
+        return createMessageChannel(targetHostPort.getInetAddress(), targetHostPort.getPort());
+    }
+
+    public MessageChannel createMessageChannel(InetAddress targetHost, int port)
+            throws IOException {
+        return new LoopMessageChannel(this, targetHost, port);
+    }
+
+    public SIPTransactionStack getSIPStack() {
+        return sipStack;
+    }
+
+    public int getDefaultTargetPort() {
+        return 5060;
+    }
+
+    public boolean isSecure() {
+        return false;
+    }
+
+    public int getMaximumMessageSize() {
+        return Integer.MAX_VALUE;
+    }
+
+    public boolean inUse() {
+        return isRunning;
+    }
+}
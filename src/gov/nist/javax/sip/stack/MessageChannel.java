@@ -44,6 +44,8 @@ import gov.nist.javax.sip.message.SIPResponse;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 
 import javax.sip.address.Hop;
@@ -89,6 +91,19 @@ public abstract class MessageChannel {
      */
 	private SIPClientTransaction encapsulatedClientTransaction;
 
+    private static final int ENCODING_BUFFER_SIZE = 8 * 1024;
+
+    /*
+     * Buffers grown beyond this by a large message are not kept by the thread.
+     */
+    private static final int MAX_ENCODING_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> encodingBuffer = new ThreadLocal<ByteBuffer>() {
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(ENCODING_BUFFER_SIZE);
+        }
+    };
+
     /**
      * Close the message channel.
      */
@@ -173,6 +188,30 @@ public abstract class MessageChannel {
     protected abstract void sendMessage(byte[] message, InetAddress receiverAddress,
             int receiverPort, boolean reconnectFlag) throws IOException;
 
+    /**
+     * Encode a message into a buffer private to the calling thread, which is grown for
+     * messages that do not fit.
+     * 
+     * @param sipMessage Message to encode.
+     * @return the heap buffer holding the message, flipped for reading. It is only valid until
+     *         the calling thread encodes another message.
+     */
+    protected ByteBuffer encodeMessage(SIPMessage sipMessage) {
+        ByteBuffer buffer = encodingBuffer.get();
+        while (true) {
+            buffer.clear();
+            try {
+                sipMessage.encodeAsBytes(this.getTransport(), buffer);
+                buffer.flip();
+                return buffer;
+            } catch (BufferOverflowException ex) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                if (buffer.capacity() <= MAX_ENCODING_BUFFER_SIZE)
+                    encodingBuffer.set(buffer);
+            }
+        }
+    }
+
     /**
      * Get the host of this message channel.
      * 
@@ -0,0 +1,54 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package gov.nist.javax.sip.stack;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import javax.sip.ListeningPoint;
+
+/**
+ * Implementation of the MessageProcessorFactory based on NIO. TCP and TLS connections are
+ * multiplexed over a small set of selector threads instead of using a thread per connection (see
+ * NioTcpMessageProcessor). UDP and SCTP message processors are the same as the ones created by
+ * the OIOMessageProcessorFactory.
+ */
+public class NioMessageProcessorFactory extends OIOMessageProcessorFactory {
+
+	public MessageProcessor createMessageProcessor(
+			SIPTransactionStack sipStack, InetAddress ipAddress, int port,
+			String transport) throws IOException {
+		if (transport.equalsIgnoreCase(ListeningPoint.TCP)) {
+			return new NioTcpMessageProcessor(ipAddress, sipStack, port);
+		} else if (transport.equalsIgnoreCase(ListeningPoint.TLS)) {
+			return new NioTlsMessageProcessor(ipAddress, sipStack, port);
+		} else {
+			return super.createMessageProcessor(sipStack, ipAddress, port,
+					transport);
+		}
+	}
+
+}
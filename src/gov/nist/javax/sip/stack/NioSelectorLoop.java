@@ -0,0 +1,214 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package gov.nist.javax.sip.stack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A thread multiplexing the IO of many NIO message channels over a single Selector. Channels are
+ * assigned to a selector loop for their whole lifetime. Registration and interest changes
+ * requested from other threads are queued and applied by the selector thread itself.
+ * 
+ * @see NioTcpMessageProcessor
+ */
+class NioSelectorLoop implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final long SELECT_TIMEOUT = 1000;
+
+    private final SIPTransactionStack sipStack;
+
+    private final Selector selector;
+
+    private final Queue<Runnable> pendingChanges = new ConcurrentLinkedQueue<Runnable>();
+
+    // Only ever used from the selector thread.
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    private final String name;
+
+    private volatile boolean isRunning;
+
+    private Thread thread;
+
+    private long lastTimeoutCheck;
+
+    NioSelectorLoop(SIPTransactionStack sipStack, String name) throws IOException {
+        this.sipStack = sipStack;
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    void start() {
+        this.isRunning = true;
+        this.thread = new Thread(this);
+        this.thread.setName(name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    void stop() {
+        this.isRunning = false;
+        this.selector.wakeup();
+    }
+
+    /**
+     * Register a connected channel for reading.
+     */
+    void register(final SocketChannel socketChannel, final NioTcpMessageChannel messageChannel) {
+        addChange(new Runnable() {
+            public void run() {
+                try {
+                    SelectionKey key = socketChannel.register(selector, SelectionKey.OP_READ,
+                            messageChannel);
+                    messageChannel.setSelectionKey(key);
+                } catch (ClosedChannelException ex) {
+                    messageChannel.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Ask to be told when the channel can accept more bytes.
+     */
+    void requestWrite(final NioTcpMessageChannel messageChannel) {
+        addChange(new Runnable() {
+            public void run() {
+                SelectionKey key = messageChannel.getSelectionKey();
+                if (key != null && key.isValid())
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        });
+    }
+
+    /**
+     * Close the channel from the selector thread.
+     */
+    void requestClose(final NioTcpMessageChannel messageChannel) {
+        addChange(new Runnable() {
+            public void run() {
+                messageChannel.close();
+            }
+        });
+    }
+
+    private void addChange(Runnable change) {
+        pendingChanges.offer(change);
+        if (Thread.currentThread() != thread)
+            selector.wakeup();
+    }
+
+    public void run() {
+        try {
+            while (isRunning) {
+                Runnable change;
+                while ((change = pendingChanges.poll()) != null) {
+                    try {
+                        change.run();
+                    } catch (CancelledKeyException ex) {
+                        // channel closed by another thread.
+                    } catch (Exception ex) {
+                        sipStack.getStackLogger().logError("Unexpected exception in " + name, ex);
+                    }
+                }
+                selector.select(SELECT_TIMEOUT);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioTcpMessageChannel messageChannel = (NioTcpMessageChannel) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            messageChannel.readBytes(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            messageChannel.writePendingBytes();
+                        }
+                    } catch (CancelledKeyException ex) {
+                        // channel closed by another thread.
+                    } catch (Exception ex) {
+                        // only this connection is lost, keep serving the others
+                        sipStack.getStackLogger().logError("Unexpected exception on "
+                                + messageChannel.getKey() + ", closing it", ex);
+                        messageChannel.close();
+                    }
+                }
+                closeTimedOutChannels();
+            }
+        } catch (Exception ex) {
+            if (isRunning)
+                sipStack.getStackLogger().logError("Unexpected exception in " + name, ex);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((NioTcpMessageChannel) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    /**
+     * Guard against bad guys : close the connections that started sending a message but did not
+     * complete it within the read timeout, and those that did not complete their handshake in
+     * time.
+     */
+    private void closeTimedOutChannels() {
+        long now = System.currentTimeMillis();
+        if (now - lastTimeoutCheck < SELECT_TIMEOUT)
+            return;
+        lastTimeoutCheck = now;
+        for (SelectionKey key : selector.keys()) {
+            NioTcpMessageChannel messageChannel = (NioTcpMessageChannel) key.attachment();
+            long startTime = messageChannel.getMessageStartTime();
+            long handshakeDeadline = messageChannel.getHandshakeDeadline();
+            if (sipStack.readTimeout != -1 && startTime != 0
+                    && now - startTime > sipStack.readTimeout) {
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logDebug(
+                            "Read timeout, closing " + messageChannel.getKey());
+                messageChannel.close();
+            } else if (handshakeDeadline != 0 && now > handshakeDeadline) {
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logDebug(
+                            "Handshake timeout, closing " + messageChannel.getKey());
+                messageChannel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,736 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package gov.nist.javax.sip.stack;
+
+import gov.nist.core.InternalErrorHandler;
+import gov.nist.core.ServerLogger;
+import gov.nist.javax.sip.header.CSeq;
+import gov.nist.javax.sip.header.CallID;
+import gov.nist.javax.sip.header.From;
+import gov.nist.javax.sip.header.RequestLine;
+import gov.nist.javax.sip.header.StatusLine;
+import gov.nist.javax.sip.header.To;
+import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.header.ViaList;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.parser.NioPipelineParser;
+import gov.nist.javax.sip.parser.SIPMessageListener;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.text.ParseException;
+import java.util.LinkedList;
+
+import javax.sip.address.Hop;
+
+/**
+ * Non blocking counterpart of the TCPMessageChannel. The channel does not own any thread : its
+ * socket is registered with one of the selector loops of the NioTcpMessageProcessor that reads
+ * from it, and the bytes read are framed by a NioPipelineParser which hands complete messages
+ * over to the stack thread pool. Writes are attempted directly from the sending thread; whatever
+ * the socket does not accept right away is queued and flushed by the selector loop. A peer
+ * that lets the queue grow past a megabyte is disconnected.
+ * 
+ * @see gov.nist.javax.sip.parser.NioPipelineParser
+ */
+public class NioTcpMessageChannel extends MessageChannel implements SIPMessageListener,
+        RawMessageChannel {
+
+    protected SIPTransactionStack sipStack;
+
+    protected NioTcpMessageProcessor nioTcpMessageProcessor;
+
+    protected SocketChannel socketChannel;
+
+    private NioSelectorLoop selectorLoop;
+
+    private volatile SelectionKey selectionKey;
+
+    private NioPipelineParser nioParser;
+
+    // bytes waiting for the socket to become writable, guarded by writeLock
+    private final LinkedList<ByteBuffer> pendingWrites = new LinkedList<ByteBuffer>();
+
+    private int pendingBytes;
+
+    /*
+     * A peer leaving more than this unread is dropped rather than let the
+     * queue grow without bounds.
+     */
+    private static final int MAX_PENDING_BYTES = 1024 * 1024;
+
+    private final Object writeLock = new Object();
+
+    protected String key;
+
+    protected boolean isCached;
+
+    protected boolean isIncoming;
+
+    protected String myAddress;
+
+    protected int myPort;
+
+    protected InetAddress peerAddress;
+
+    protected int peerPort;
+
+    protected String peerProtocol;
+
+    /**
+     * Constructor for a connection accepted by the message processor. The socket channel is
+     * already connected and in non blocking mode.
+     * 
+     * @param socketChannel the accepted connection.
+     * @param sipStack the stack.
+     * @param msgProcessor the message processor that accepted the connection.
+     * @param selectorLoop the selector loop the connection is served by.
+     */
+    protected NioTcpMessageChannel(SocketChannel socketChannel, SIPTransactionStack sipStack,
+            NioTcpMessageProcessor msgProcessor, NioSelectorLoop selectorLoop) {
+        if (sipStack.isLoggingEnabled()) {
+            sipStack.getStackLogger().logDebug("creating new " + getClass().getSimpleName());
+        }
+        this.sipStack = sipStack;
+        this.socketChannel = socketChannel;
+        this.selectorLoop = selectorLoop;
+        this.nioTcpMessageProcessor = msgProcessor;
+        this.peerAddress = socketChannel.socket().getInetAddress();
+        this.peerPort = socketChannel.socket().getPort();
+        this.myAddress = msgProcessor.getIpAddress().getHostAddress();
+        this.myPort = msgProcessor.getPort();
+        this.isIncoming = true;
+        this.nioParser = createParser();
+        super.messageProcessor = msgProcessor;
+    }
+
+    /**
+     * Constructor for an outgoing connection. The connection is only established when the first
+     * message is sent.
+     * 
+     * @param inetAddr inet address to connect to.
+     * @param port port to connect to.
+     * @param sipStack the stack.
+     * @param msgProcessor the message processor creating the channel.
+     */
+    protected NioTcpMessageChannel(InetAddress inetAddr, int port, SIPTransactionStack sipStack,
+            NioTcpMessageProcessor msgProcessor) {
+        if (sipStack.isLoggingEnabled()) {
+            sipStack.getStackLogger().logDebug("creating new " + getClass().getSimpleName());
+        }
+        this.sipStack = sipStack;
+        this.peerAddress = inetAddr;
+        this.peerPort = port;
+        this.peerProtocol = getTransport();
+        this.nioTcpMessageProcessor = msgProcessor;
+        this.myAddress = msgProcessor.getIpAddress().getHostAddress();
+        this.myPort = msgProcessor.getPort();
+        this.key = MessageChannel.getKey(peerAddress, peerPort, getTransport());
+        super.messageProcessor = msgProcessor;
+    }
+
+    private NioPipelineParser createParser() {
+        return new NioPipelineParser(sipStack, this, sipStack.getMaxMessageSize(),
+                nioTcpMessageProcessor.getMessageProcessingExecutor());
+    }
+
+    /**
+     * Connect to the peer if the channel is not connected yet (or any more), and register the
+     * connection with a selector loop.
+     */
+    protected synchronized void connect() throws IOException {
+        if (socketChannel != null)
+            return;
+        if (sipStack.isLoggingEnabled()) {
+            sipStack.getStackLogger().logDebug("connecting to " + peerAddress + ":" + peerPort);
+        }
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().bind(
+                    new InetSocketAddress(nioTcpMessageProcessor.getIpAddress(), 0));
+            channel.connect(new InetSocketAddress(peerAddress, peerPort));
+            channel.configureBlocking(false);
+        } catch (IOException ex) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            throw new IOException("Could not connect to " + peerAddress + ":" + peerPort);
+        }
+        this.nioParser = createParser();
+        this.isIncoming = false;
+        this.selectorLoop = nioTcpMessageProcessor.nextSelectorLoop();
+        this.socketChannel = channel;
+        nioTcpMessageProcessor.connectionOpened(this);
+        selectorLoop.register(channel, this);
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    SelectionKey getSelectionKey() {
+        return selectionKey;
+    }
+
+    long getMessageStartTime() {
+        NioPipelineParser parser = this.nioParser;
+        return parser == null ? 0 : parser.getMessageStartTime();
+    }
+
+    /**
+     * @return the time by which the connection must be ready to carry messages, or 0.
+     */
+    long getHandshakeDeadline() {
+        return 0;
+    }
+
+    /**
+     * Called by the selector loop when the socket is readable.
+     */
+    void readBytes(ByteBuffer readBuffer) {
+        SocketChannel channel = this.socketChannel;
+        if (channel == null)
+            return;
+        readBuffer.clear();
+        int nbytes;
+        try {
+            nbytes = channel.read(readBuffer);
+        } catch (IOException ex) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logDebug("IOException  closing sock " + ex);
+            close();
+            return;
+        }
+        if (nbytes == -1) {
+            // no more bytes to read...
+            close();
+            return;
+        }
+        try {
+            processBytes(readBuffer.array(), 0, nbytes);
+        } catch (IOException ex) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logDebug("IOException  closing sock " + ex);
+            close();
+        }
+    }
+
+    /**
+     * Hand the bytes read from the socket over to the parser.
+     */
+    protected void processBytes(byte[] bytes, int offset, int length) throws IOException {
+        nioParser.addBytes(bytes, offset, length);
+    }
+
+    /**
+     * Write bytes to the socket, queueing what cannot be written right away.
+     */
+    protected void writeBytes(ByteBuffer buffer) throws IOException {
+        SocketChannel channel = this.socketChannel;
+        if (channel == null)
+            throw new IOException("Connection closed " + getKey());
+        synchronized (writeLock) {
+            if (pendingWrites.isEmpty()) {
+                while (buffer.hasRemaining()) {
+                    if (channel.write(buffer) == 0)
+                        break;
+                }
+            }
+            if (!buffer.hasRemaining())
+                return;
+            if (pendingBytes + buffer.remaining() <= MAX_PENDING_BYTES) {
+                pendingWrites.add(buffer);
+                pendingBytes += buffer.remaining();
+                selectorLoop.requestWrite(this);
+                return;
+            }
+        }
+        // closed by the selector loop, since the caller may hold locks close() takes
+        selectorLoop.requestClose(this);
+        throw new IOException("Peer not reading, closing " + getKey());
+    }
+
+    /**
+     * Called by the selector loop when the socket is writable.
+     */
+    void writePendingBytes() {
+        SocketChannel channel = this.socketChannel;
+        if (channel == null)
+            return;
+        try {
+            synchronized (writeLock) {
+                while (!pendingWrites.isEmpty()) {
+                    ByteBuffer buffer = pendingWrites.getFirst();
+                    pendingBytes -= channel.write(buffer);
+                    if (buffer.hasRemaining())
+                        return;
+                    pendingWrites.removeFirst();
+                }
+                SelectionKey key = this.selectionKey;
+                if (key != null && key.isValid())
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        } catch (IOException ex) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logDebug("IOException  closing sock " + ex);
+            close();
+        }
+    }
+
+    /**
+     * Returns "true" as this is a reliable transport.
+     */
+    public boolean isReliable() {
+        return true;
+    }
+
+    /**
+     * Close the message channel.
+     */
+    public void close() {
+        SocketChannel channel;
+        synchronized (this) {
+            channel = this.socketChannel;
+            if (channel == null)
+                return;
+            this.socketChannel = null;
+        }
+        if (sipStack.isLoggingEnabled())
+            sipStack.getStackLogger().logDebug("Closing message Channel " + this);
+        SelectionKey key = this.selectionKey;
+        if (key != null)
+            key.cancel();
+        this.selectionKey = null;
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logDebug("Error closing socket " + ex);
+        }
+        synchronized (writeLock) {
+            pendingWrites.clear();
+            pendingBytes = 0;
+        }
+        nioTcpMessageProcessor.connectionClosed(this);
+    }
+
+    /**
+     * @return true if the channel currently has an open connection.
+     */
+    public boolean isConnected() {
+        return socketChannel != null;
+    }
+
+    /**
+     * Get my SIP Stack.
+     * 
+     * @return The SIP Stack for this message channel.
+     */
+    public SIPTransactionStack getSIPStack() {
+        return sipStack;
+    }
+
+    /**
+     * get the transport string.
+     * 
+     * @return "TCP" in this case.
+     */
+    public String getTransport() {
+        return "TCP";
+    }
+
+    /**
+     * get the address of the client that sent the data to us.
+     * 
+     * @return Address of the client that sent us data that resulted in this channel being
+     *         created.
+     */
+    public String getPeerAddress() {
+        if (peerAddress != null) {
+            return peerAddress.getHostAddress();
+        } else
+            return getHost();
+    }
+
+    protected InetAddress getPeerInetAddress() {
+        return peerAddress;
+    }
+
+    public String getPeerProtocol() {
+        return this.peerProtocol;
+    }
+
+    /**
+     * Send message to whoever is connected to us, re-connecting once if the connection was
+     * closed and retry is set.
+     * 
+     * @param msg is the message to send.
+     * @param retry
+     */
+    protected void sendMessage(byte[] msg, boolean retry) throws IOException {
+        if (sipStack.isLoggingEnabled()) {
+            sipStack.getStackLogger().logDebug(
+                    "sendBytes " + getTransport() + " inAddr " + peerAddress.getHostAddress()
+                            + " port = " + peerPort + " length = " + msg.length);
+        }
+        if (sipStack.isLoggingEnabled() && sipStack.isLogStackTraceOnMessageSend()) {
+            sipStack.getStackLogger().logStackTrace(ServerLogger.TRACE_INFO);
+        }
+        int maxRetry = retry ? 2 : 1;
+        for (int retryCount = 1;; retryCount++) {
+            try {
+                connect();
+                writeBytes(ByteBuffer.wrap(msg));
+                return;
+            } catch (IOException ex) {
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logDebug(
+                            "IOException occured retryCount " + retryCount);
+                close();
+                if (retryCount >= maxRetry)
+                    throw ex;
+            }
+        }
+    }
+
+    /**
+     * Return a formatted message to the client. We try to re-connect with the peer on the other
+     * end if possible.
+     * 
+     * @param sipMessage Message to send.
+     * @throws IOException If there is an error sending the message
+     */
+    public void sendMessage(SIPMessage sipMessage) throws IOException {
+        byte[] msg = sipMessage.encodeAsBytes(this.getTransport());
+
+        long time = System.currentTimeMillis();
+
+        this.sendMessage(msg, true);
+
+        if (this.sipStack.getStackLogger().isLoggingEnabled(ServerLogger.TRACE_MESSAGES))
+            logMessage(sipMessage, peerAddress, peerPort, time);
+    }
+
+    /**
+     * Send a message to a specified address. If it is not our peer, the message goes out
+     * through the channel the message processor has for that address.
+     * 
+     * @param message Pre-formatted message to send.
+     * @param receiverAddress Address to send it to.
+     * @param receiverPort Receiver port.
+     * @throws IOException If there is a problem connecting or sending.
+     */
+    public void sendMessage(byte message[], InetAddress receiverAddress, int receiverPort,
+            boolean retry) throws IOException {
+        if (message == null || receiverAddress == null)
+            throw new IllegalArgumentException("Null argument");
+        if (receiverAddress.equals(this.peerAddress) && receiverPort == this.peerPort) {
+            this.sendMessage(message, retry);
+        } else {
+            NioTcpMessageChannel messageChannel = (NioTcpMessageChannel) nioTcpMessageProcessor
+                    .createMessageChannel(receiverAddress, receiverPort);
+            messageChannel.sendMessage(message, retry);
+        }
+    }
+
+    /**
+     * Exception processor for exceptions detected from the parser. (This is invoked by the parser
+     * when an error is detected).
+     * 
+     * @param sipMessage -- the message that incurred the error.
+     * @param ex -- parse exception detected by the parser.
+     * @param header -- header that caused the error.
+     * @throws ParseException Thrown if we want to reject the message.
+     */
+    public void handleException(ParseException ex, SIPMessage sipMessage, Class<?> hdrClass,
+            String header, String message) throws ParseException {
+        if (sipStack.isLoggingEnabled())
+            sipStack.getStackLogger().logException(ex);
+        // Log the bad message for later reference.
+        if ((hdrClass != null)
+                && (hdrClass.equals(From.class) || hdrClass.equals(To.class)
+                        || hdrClass.equals(CSeq.class) || hdrClass.equals(Via.class)
+                        || hdrClass.equals(CallID.class) || hdrClass.equals(RequestLine.class) || hdrClass
+                        .equals(StatusLine.class))) {
+            if (sipStack.isLoggingEnabled()) {
+                sipStack.getStackLogger().logDebug(
+                        "Encountered Bad Message \n" + sipMessage.toString());
+            }
+
+            // JvB: send a 400 response for requests (except ACK)
+            String msgString = sipMessage.toString();
+            if (!msgString.startsWith("SIP/") && !msgString.startsWith("ACK ")) {
+
+                String badReqRes = createBadReqRes(msgString, ex);
+                if (badReqRes != null) {
+                    if (sipStack.isLoggingEnabled()) {
+                        sipStack.getStackLogger().logDebug("Sending automatic 400 Bad Request:");
+                        sipStack.getStackLogger().logDebug(badReqRes);
+                    }
+                    try {
+                        this.sendMessage(badReqRes.getBytes(), this.getPeerInetAddress(), this
+                                .getPeerPort(), false);
+                    } catch (IOException e) {
+                        this.sipStack.getStackLogger().logException(e);
+                    }
+                } else {
+                    if (sipStack.isLoggingEnabled()) {
+                        sipStack.getStackLogger().logDebug(
+                                "Could not formulate automatic 400 Bad Request");
+                    }
+                }
+            }
+
+            throw ex;
+        } else {
+            sipMessage.addUnparsed(header);
+        }
+    }
+
+    /**
+     * Gets invoked by the parser as a callback on successful message parsing (i.e. no parser
+     * errors). A fatal error in processing closes the connection.
+     * 
+     * @param sipMessage Mesage to process (this calls the application for processing the
+     *        message).
+     */
+    public void processMessage(SIPMessage sipMessage) throws Exception {
+        try {
+            doProcessMessage(sipMessage);
+        } catch (Exception ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    private void doProcessMessage(SIPMessage sipMessage) throws Exception {
+        if (sipMessage.getFrom() == null || sipMessage.getTo() == null
+                || sipMessage.getCallId() == null || sipMessage.getCSeq() == null
+                || sipMessage.getViaHeaders() == null) {
+            String badmsg = sipMessage.encode();
+            if (sipStack.isLoggingEnabled()) {
+                sipStack.getStackLogger().logDebug(">>> Dropped Bad Msg");
+                sipStack.getStackLogger().logDebug(badmsg);
+            }
+
+            return;
+        }
+
+        ViaList viaList = sipMessage.getViaHeaders();
+        // For a request
+        // first via header tells where the message is coming from.
+        // For response, this has already been recorded in the outgoing
+        // message.
+        if (sipMessage instanceof SIPRequest) {
+            Via v = (Via) viaList.getFirst();
+            Hop hop = sipStack.addressResolver.resolveAddress(v.getHop());
+            this.peerProtocol = v.getTransport();
+            try {
+                // JvB: if sender added 'rport', must always set received
+                if (v.hasParameter(Via.RPORT)
+                        || !hop.getHost().equals(this.peerAddress.getHostAddress())) {
+                    v.setParameter(Via.RECEIVED, this.peerAddress.getHostAddress());
+                }
+                v.setParameter(Via.RPORT, Integer.toString(this.peerPort));
+            } catch (java.text.ParseException ex) {
+                InternalErrorHandler.handleException(ex, sipStack.getStackLogger());
+            }
+            // Use this for outgoing messages as well.
+            if (!this.isCached && this.isIncoming) {
+                nioTcpMessageProcessor.cacheMessageChannel(this);
+                this.isCached = true;
+            }
+        }
+
+        long receptionTime = System.currentTimeMillis();
+
+        if (sipMessage instanceof SIPRequest) {
+            // This is a request - process the request.
+            SIPRequest sipRequest = (SIPRequest) sipMessage;
+            // Create a new sever side request processor for this
+            // message and let it handle the rest.
+
+            if (sipStack.isLoggingEnabled()) {
+                sipStack.getStackLogger().logDebug("----Processing Message---");
+            }
+
+            if (this.sipStack.getStackLogger().isLoggingEnabled(ServerLogger.TRACE_MESSAGES)) {
+                sipStack.serverLogger.logMessage(sipMessage, this.getPeerHostPort().toString(),
+                        this.getMessageProcessor().getIpAddress().getHostAddress() + ":"
+                                + this.getMessageProcessor().getPort(), false, receptionTime);
+
+            }
+
+            // Check for reasonable size - reject message
+            // if it is too long.
+            if (sipStack.getMaxMessageSize() > 0
+                    && sipRequest.getSize()
+                            + (sipRequest.getContentLength() == null ? 0 : sipRequest
+                                    .getContentLength().getContentLength()) > sipStack
+                            .getMaxMessageSize()) {
+                SIPResponse sipResponse = sipRequest.createResponse(SIPResponse.MESSAGE_TOO_LARGE);
+                byte[] resp = sipResponse.encodeAsBytes(this.getTransport());
+                this.sendMessage(resp, false);
+                throw new Exception("Message size exceeded");
+            }
+
+            ServerRequestInterface sipServerRequest = sipStack.newSIPServerRequest(sipRequest,
+                    this);
+
+            if (sipServerRequest != null) {
+                try {
+                    sipServerRequest.processRequest(sipRequest, this);
+                } finally {
+                    if (sipServerRequest instanceof SIPTransaction) {
+                        SIPServerTransaction sipServerTx = (SIPServerTransaction) sipServerRequest;
+                        if (!sipServerTx.passToListener())
+                            ((SIPTransaction) sipServerRequest).releaseSem();
+                    }
+                }
+            } else {
+                if (sipStack.isLoggingEnabled())
+                    this.sipStack.getStackLogger().logWarning(
+                            "Dropping request -- could not acquire semaphore in 10 sec");
+            }
+
+        } else {
+            SIPResponse sipResponse = (SIPResponse) sipMessage;
+            try {
+                sipResponse.checkHeaders();
+            } catch (ParseException ex) {
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logError(
+                            "Dropping Badly formatted response message >>> " + sipResponse);
+                return;
+            }
+            // This is a response message - process it.
+            // Check the size of the response.
+            // If it is too large dump it silently.
+            if (sipStack.getMaxMessageSize() > 0
+                    && sipResponse.getSize()
+                            + (sipResponse.getContentLength() == null ? 0 : sipResponse
+                                    .getContentLength().getContentLength()) > sipStack
+                            .getMaxMessageSize()) {
+                if (sipStack.isLoggingEnabled())
+                    this.sipStack.getStackLogger().logDebug("Message size exceeded");
+                return;
+
+            }
+            ServerResponseInterface sipServerResponse = sipStack.newSIPServerResponse(
+                    sipResponse, this);
+            if (sipServerResponse != null) {
+                try {
+                    if (sipServerResponse instanceof SIPClientTransaction
+                            && !((SIPClientTransaction) sipServerResponse)
+                                    .checkFromTag(sipResponse)) {
+                        if (sipStack.isLoggingEnabled())
+                            sipStack.getStackLogger().logError(
+                                    "Dropping response message with invalid tag >>> "
+                                            + sipResponse);
+                        return;
+                    }
+
+                    sipServerResponse.processResponse(sipResponse, this);
+                } finally {
+                    if (sipServerResponse instanceof SIPTransaction
+                            && !((SIPTransaction) sipServerResponse).passToListener())
+                        ((SIPTransaction) sipServerResponse).releaseSem();
+                }
+            } else {
+                sipStack.getStackLogger().logWarning(
+                        "Application is blocked -- could not acquire semaphore -- dropping response");
+            }
+        }
+    }
+
+    protected void uncache() {
+        if (isCached && !isConnected()) {
+            nioTcpMessageProcessor.remove(this);
+        }
+    }
+
+    /**
+     * Get an identifying key. This key is used to cache the connection and re-use it if
+     * necessary.
+     */
+    public String getKey() {
+        if (this.key != null) {
+            return this.key;
+        } else {
+            this.key = MessageChannel.getKey(this.peerAddress, this.peerPort, getTransport());
+            return this.key;
+        }
+    }
+
+    /**
+     * Get the host to assign to outgoing messages.
+     * 
+     * @return the host to assign to the via header.
+     */
+    public String getViaHost() {
+        return myAddress;
+    }
+
+    /**
+     * Get the port for outgoing messages sent from the channel.
+     * 
+     * @return the port to assign to the via header.
+     */
+    public int getViaPort() {
+        return myPort;
+    }
+
+    /**
+     * Get the port of the peer to whom we are sending messages.
+     * 
+     * @return the peer port.
+     */
+    public int getPeerPort() {
+        return peerPort;
+    }
+
+    public int getPeerPacketSourcePort() {
+        return this.peerPort;
+    }
+
+    public InetAddress getPeerPacketSourceAddress() {
+        return this.peerAddress;
+    }
+
+    /**
+     * TCP Is not a secure protocol.
+     */
+    public boolean isSecure() {
+        return false;
+    }
+}
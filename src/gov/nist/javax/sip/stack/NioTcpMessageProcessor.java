@@ -0,0 +1,378 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package gov.nist.javax.sip.stack;
+
+import gov.nist.core.HostPort;
+import gov.nist.core.InternalErrorHandler;
+import gov.nist.javax.sip.SipStackImpl;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non blocking TCP message processor. A single thread accepts the incoming connections and hands
+ * them over, round robin, to a small set of selector loops that do all the reading and the
+ * deferred writing for every connection. Messages framed on the selector loops are parsed and
+ * processed on a thread pool sized by gov.nist.javax.sip.THREAD_POOL_SIZE (unbounded if that
+ * property is not set), messages of a given connection being processed in order. The number of
+ * selector loops is given by the gov.nist.javax.sip.NIO_SELECTOR_THREADS property and defaults
+ * to the number of available processors.
+ * 
+ * @see NioMessageProcessorFactory
+ */
+public class NioTcpMessageProcessor extends MessageProcessor {
+
+    protected int nConnections;
+
+    private volatile boolean isRunning;
+
+    private ServerSocketChannel serverSocketChannel;
+
+    private NioSelectorLoop[] selectorLoops;
+
+    private final AtomicInteger nextSelectorLoop = new AtomicInteger();
+
+    private ExecutorService messageProcessingExecutor;
+
+    private final ConcurrentHashMap<String, NioTcpMessageChannel> messageChannels;
+
+    private final Set<NioTcpMessageChannel> incomingMessageChannels;
+
+    protected int useCount;
+
+    /**
+     * Constructor.
+     * 
+     * @param ipAddress -- inet address where I am listening.
+     * @param sipStack SIPStack structure.
+     * @param port port where this message processor listens.
+     */
+    protected NioTcpMessageProcessor(InetAddress ipAddress, SIPTransactionStack sipStack, int port) {
+        this(ipAddress, sipStack, port, "tcp");
+    }
+
+    protected NioTcpMessageProcessor(InetAddress ipAddress, SIPTransactionStack sipStack,
+            int port, String transport) {
+        super(ipAddress, port, transport, sipStack);
+        this.sipStack = sipStack;
+        this.messageChannels = new ConcurrentHashMap<String, NioTcpMessageChannel>();
+        this.incomingMessageChannels = Collections
+                .newSetFromMap(new ConcurrentHashMap<NioTcpMessageChannel, Boolean>());
+    }
+
+    /**
+     * Start the processor.
+     */
+    public void start() throws IOException {
+        this.serverSocketChannel = ServerSocketChannel.open();
+        this.serverSocketChannel.socket().bind(new InetSocketAddress(getIpAddress(), getPort()));
+        if (getIpAddress().getHostAddress().equals(IN_ADDR_ANY)
+                || getIpAddress().getHostAddress().equals(IN6_ADDR_ANY)) {
+            // Store the address to which we are actually bound
+            super.setIpAddress(serverSocketChannel.socket().getInetAddress());
+        }
+
+        int selectorThreads = Runtime.getRuntime().availableProcessors();
+        String nioSelectorThreads = ((SipStackImpl) sipStack).getConfigurationProperties()
+                .getProperty("gov.nist.javax.sip.NIO_SELECTOR_THREADS");
+        if (nioSelectorThreads != null) {
+            try {
+                selectorThreads = Integer.parseInt(nioSelectorThreads);
+            } catch (NumberFormatException ex) {
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logError(
+                            "nio selector threads - bad value " + ex.getMessage());
+            }
+        }
+        if (selectorThreads < 1)
+            selectorThreads = 1;
+
+        final String threadPrefix = getClass().getSimpleName() + "Thread";
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable);
+                thread.setName(threadPrefix + "-worker-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        if (sipStack.threadPoolSize > 0) {
+            this.messageProcessingExecutor = Executors.newFixedThreadPool(sipStack.threadPoolSize,
+                    threadFactory);
+        } else {
+            this.messageProcessingExecutor = Executors.newCachedThreadPool(threadFactory);
+        }
+
+        this.selectorLoops = new NioSelectorLoop[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++) {
+            selectorLoops[i] = new NioSelectorLoop(sipStack, threadPrefix + "-selector-" + i);
+            selectorLoops[i].start();
+        }
+
+        this.isRunning = true;
+        Thread thread = new Thread(this);
+        thread.setName(threadPrefix);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Run method for the thread that accepts the incoming connections.
+     */
+    public void run() {
+        // Accept new connectins on our socket.
+        while (this.isRunning) {
+            try {
+                synchronized (this) {
+                    // sipStack.maxConnections == -1 means we are
+                    // willing to handle an "infinite" number of
+                    // simultaneous connections (no resource limitation).
+                    // This is the default behavior.
+                    while (sipStack.maxConnections != -1
+                            && this.nConnections >= sipStack.maxConnections) {
+                        try {
+                            this.wait();
+
+                            if (!this.isRunning)
+                                return;
+                        } catch (InterruptedException ex) {
+                            break;
+                        }
+                    }
+                    if (sipStack.maxConnections != -1)
+                        this.nConnections++;
+                }
+
+                SocketChannel socketChannel = serverSocketChannel.accept();
+                if (sipStack.isLoggingEnabled()) {
+                    sipStack.getStackLogger().logDebug("Accepting new connection!");
+                }
+                socketChannel.configureBlocking(false);
+                NioSelectorLoop selectorLoop = nextSelectorLoop();
+                NioTcpMessageChannel messageChannel = createMessageChannel(socketChannel,
+                        selectorLoop);
+                incomingMessageChannels.add(messageChannel);
+                synchronized (this) {
+                    this.useCount++;
+                }
+                selectorLoop.register(socketChannel, messageChannel);
+            } catch (ClosedChannelException ex) {
+                this.isRunning = false;
+            } catch (IOException ex) {
+                // Problem accepting connection.
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logException(ex);
+                connectionClosed(null);
+                continue;
+            } catch (Exception ex) {
+                InternalErrorHandler.handleException(ex);
+            }
+        }
+    }
+
+    /**
+     * Create the message channel for an accepted connection.
+     */
+    protected NioTcpMessageChannel createMessageChannel(SocketChannel socketChannel,
+            NioSelectorLoop selectorLoop) throws IOException {
+        return new NioTcpMessageChannel(socketChannel, sipStack, this, selectorLoop);
+    }
+
+    /**
+     * Create the message channel for an outgoing connection.
+     */
+    protected NioTcpMessageChannel createMessageChannel(InetAddress inetAddress, int port,
+            SIPTransactionStack sipStack) throws IOException {
+        return new NioTcpMessageChannel(inetAddress, port, sipStack, this);
+    }
+
+    NioSelectorLoop nextSelectorLoop() {
+        int index = (nextSelectorLoop.getAndIncrement() & Integer.MAX_VALUE)
+                % selectorLoops.length;
+        return selectorLoops[index];
+    }
+
+    ExecutorService getMessageProcessingExecutor() {
+        return messageProcessingExecutor;
+    }
+
+    /**
+     * Returns the stack.
+     * 
+     * @return my sip stack.
+     */
+    public SIPTransactionStack getSIPStack() {
+        return sipStack;
+    }
+
+    /**
+     * Stop the message processor.
+     */
+    public synchronized void stop() {
+        if (!isRunning)
+            return;
+        isRunning = false;
+        try {
+            serverSocketChannel.close();
+        } catch (IOException ex) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logError("Error closing the server socket", ex);
+        }
+
+        for (NioTcpMessageChannel messageChannel : new ArrayList<NioTcpMessageChannel>(
+                messageChannels.values())) {
+            messageChannel.close();
+        }
+        for (NioTcpMessageChannel messageChannel : new ArrayList<NioTcpMessageChannel>(
+                incomingMessageChannels)) {
+            messageChannel.close();
+        }
+        for (NioSelectorLoop selectorLoop : selectorLoops) {
+            selectorLoop.stop();
+        }
+        messageProcessingExecutor.shutdown();
+
+        this.notify();
+    }
+
+    /**
+     * Called when a channel (re)connects to its peer.
+     */
+    protected void connectionOpened(NioTcpMessageChannel messageChannel) {
+        NioTcpMessageChannel currentChannel = messageChannels.putIfAbsent(
+                messageChannel.getKey(), messageChannel);
+        if (currentChannel == null)
+            messageChannel.isCached = true;
+    }
+
+    /**
+     * Called when the connection of a channel is closed.
+     */
+    protected void connectionClosed(NioTcpMessageChannel messageChannel) {
+        if (messageChannel != null) {
+            remove(messageChannel);
+            if (!incomingMessageChannels.remove(messageChannel))
+                return;
+            synchronized (this) {
+                this.useCount--;
+            }
+        }
+        if (sipStack.maxConnections != -1) {
+            synchronized (this) {
+                this.nConnections--;
+                this.notify();
+            }
+        }
+    }
+
+    protected void remove(NioTcpMessageChannel messageChannel) {
+        String key = messageChannel.getKey();
+        if (sipStack.isLoggingEnabled()) {
+            sipStack.getStackLogger().logDebug(Thread.currentThread() + " removing " + key);
+        }
+
+        /** May have been removed already */
+        messageChannels.remove(key, messageChannel);
+    }
+
+    protected void cacheMessageChannel(NioTcpMessageChannel messageChannel) {
+        String key = messageChannel.getKey();
+        NioTcpMessageChannel currentChannel = messageChannels.put(key, messageChannel);
+        if (currentChannel != null && currentChannel != messageChannel) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logDebug("Closing " + key);
+            currentChannel.close();
+        }
+        if (sipStack.isLoggingEnabled())
+            sipStack.getStackLogger().logDebug("Caching " + key);
+    }
+
+    public MessageChannel createMessageChannel(HostPort targetHostPort) throws IOException {
+        return createMessageChannel(targetHostPort.getInetAddress(), targetHostPort.getPort());
+    }
+
+    public MessageChannel createMessageChannel(InetAddress host, int port) throws IOException {
+        try {
+            String key = MessageChannel.getKey(host, port, getTransport());
+            NioTcpMessageChannel retval = messageChannels.get(key);
+            if (retval != null)
+                return retval;
+            NioTcpMessageChannel messageChannel = createMessageChannel(host, port, sipStack);
+            retval = messageChannels.putIfAbsent(key, messageChannel);
+            if (retval != null)
+                return retval;
+            messageChannel.isCached = true;
+            if (sipStack.isLoggingEnabled()) {
+                sipStack.getStackLogger().logDebug("key " + key);
+                sipStack.getStackLogger().logDebug("Creating " + messageChannel);
+            }
+            return messageChannel;
+        } catch (UnknownHostException ex) {
+            throw new IOException(ex.getMessage());
+        }
+    }
+
+    /**
+     * TCP can handle an unlimited number of bytes.
+     */
+    public int getMaximumMessageSize() {
+        return Integer.MAX_VALUE;
+    }
+
+    public boolean inUse() {
+        return this.useCount != 0;
+    }
+
+    /**
+     * Default target port for TCP
+     */
+    public int getDefaultTargetPort() {
+        return 5060;
+    }
+
+    /**
+     * TCP is not a secure protocol.
+     */
+    public boolean isSecure() {
+        return false;
+    }
+}
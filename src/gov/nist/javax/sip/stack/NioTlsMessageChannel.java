@@ -0,0 +1,368 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.SipStackImpl;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Non blocking counterpart of the TLSMessageChannel. The TLS records are encrypted and decrypted
+ * with an SSLEngine : bytes read by the selector loop are unwrapped before being framed, and
+ * outgoing messages are wrapped before being written. The handshake is driven by the selector
+ * loop as the peer's records arrive; outgoing connections wait for it to complete before the
+ * first message is sent and then enforce the stack TLS security policy.
+ * 
+ * @see NioTcpMessageChannel
+ */
+public class NioTlsMessageChannel extends NioTcpMessageChannel {
+
+    private static final long HANDSHAKE_TIMEOUT = 10000;
+
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    private SSLEngine sslEngine;
+
+    // guards every use of the engine and its buffers
+    private final Object engineLock = new Object();
+
+    private ByteBuffer netInBuffer;
+
+    private ByteBuffer appInBuffer;
+
+    private ByteBuffer netOutBuffer;
+
+    private final Object handshakeLock = new Object();
+
+    private boolean handshakeCompleted;
+
+    private String handshakeFailure;
+
+    // when an incoming connection is closed if its handshake is not complete, or 0
+    private long handshakeDeadline;
+
+    /**
+     * Constructor for a connection accepted by the message processor.
+     */
+    protected NioTlsMessageChannel(SocketChannel socketChannel, SIPTransactionStack sipStack,
+            NioTlsMessageProcessor msgProcessor, NioSelectorLoop selectorLoop) throws IOException {
+        super(socketChannel, sipStack, msgProcessor, selectorLoop);
+        SSLEngine engine = msgProcessor.getSSLContext().createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setNeedClientAuth(true);
+        engine.setEnabledCipherSuites(((SipStackImpl) sipStack).getEnabledCipherSuites());
+        initEngine(engine);
+        engine.beginHandshake();
+        if (sipStack.tlsHandshakeTimeout > 0)
+            handshakeDeadline = System.currentTimeMillis() + sipStack.tlsHandshakeTimeout;
+    }
+
+    /**
+     * Constructor for an outgoing connection. The connection and the handshake only take place
+     * when the first message is sent.
+     */
+    protected NioTlsMessageChannel(InetAddress inetAddr, int port, SIPTransactionStack sipStack,
+            NioTlsMessageProcessor msgProcessor) {
+        super(inetAddr, port, sipStack, msgProcessor);
+    }
+
+    private void initEngine(SSLEngine engine) {
+        SSLSession session = engine.getSession();
+        synchronized (engineLock) {
+            this.sslEngine = engine;
+            this.netInBuffer = ByteBuffer.allocate(session.getPacketBufferSize());
+            this.appInBuffer = ByteBuffer.allocate(session.getApplicationBufferSize());
+            this.netOutBuffer = ByteBuffer.allocate(session.getPacketBufferSize());
+        }
+        synchronized (handshakeLock) {
+            this.handshakeCompleted = false;
+            this.handshakeFailure = null;
+        }
+    }
+
+    /**
+     * Connect to the peer, perform the TLS handshake and check the peer certificates against the
+     * stack TLS security policy.
+     */
+    protected synchronized void connect() throws IOException {
+        if (socketChannel != null)
+            return;
+        SSLEngine engine = ((NioTlsMessageProcessor) nioTcpMessageProcessor).getSSLContext()
+                .createSSLEngine(peerAddress.getHostAddress(), peerPort);
+        engine.setUseClientMode(true);
+        engine.setEnabledProtocols(((SipStackImpl) sipStack).getEnabledProtocols());
+        initEngine(engine);
+        super.connect();
+        synchronized (engineLock) {
+            engine.beginHandshake();
+            handleHandshakeStatus(engine.getHandshakeStatus());
+        }
+        waitForHandshake();
+        if (sipStack.isLoggingEnabled()) {
+            sipStack.getStackLogger().logDebug("Handshake passed");
+        }
+        // allow application to enforce policy by validating the
+        // certificate
+        try {
+            ((SipStackImpl) sipStack).getTlsSecurityPolicy().enforceTlsPolicy(
+                    getEncapsulatedClientTransaction());
+        } catch (SecurityException ex) {
+            throw new IOException(ex.getMessage());
+        }
+        if (sipStack.isLoggingEnabled()) {
+            sipStack.getStackLogger().logDebug("TLS Security policy passed");
+        }
+    }
+
+    private void waitForHandshake() throws IOException {
+        long deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT;
+        synchronized (handshakeLock) {
+            while (!handshakeCompleted && handshakeFailure == null) {
+                long timeout = deadline - System.currentTimeMillis();
+                if (timeout <= 0) {
+                    handshakeFailure = "TLS handshake timed out";
+                    break;
+                }
+                try {
+                    handshakeLock.wait(timeout);
+                } catch (InterruptedException ex) {
+                    throw new IOException("Interrupted during TLS handshake");
+                }
+            }
+            if (handshakeFailure != null)
+                throw new IOException(handshakeFailure + " with " + peerAddress + ":" + peerPort);
+        }
+    }
+
+    private void handshakeDone(String failure) {
+        synchronized (handshakeLock) {
+            if (failure == null)
+                handshakeCompleted = true;
+            else if (!handshakeCompleted)
+                handshakeFailure = failure;
+            handshakeLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return the time by which an incoming connection must have completed its handshake, or 0
+     *         if it has completed or failed, or has no deadline.
+     */
+    long getHandshakeDeadline() {
+        synchronized (handshakeLock) {
+            return handshakeCompleted || handshakeFailure != null ? 0 : handshakeDeadline;
+        }
+    }
+
+    /**
+     * Unwrap the TLS records read from the socket and hand the decrypted bytes over to the
+     * parser. Called from the selector loop only.
+     */
+    protected void processBytes(byte[] bytes, int offset, int length) throws IOException {
+        try {
+            synchronized (engineLock) {
+                if (netInBuffer.remaining() < length) {
+                    ByteBuffer buffer = ByteBuffer.allocate(netInBuffer.position() + length);
+                    netInBuffer.flip();
+                    buffer.put(netInBuffer);
+                    netInBuffer = buffer;
+                }
+                netInBuffer.put(bytes, offset, length);
+                netInBuffer.flip();
+                try {
+                    unwrap();
+                } finally {
+                    netInBuffer.compact();
+                }
+            }
+        } catch (SSLException ex) {
+            handshakeDone(ex.getMessage());
+            sendCloseNotify();
+            throw ex;
+        }
+    }
+
+    /**
+     * Best effort to let the peer know why the connection is about to be closed.
+     */
+    private void sendCloseNotify() {
+        synchronized (engineLock) {
+            try {
+                sslEngine.closeOutbound();
+                while (!sslEngine.isOutboundDone()) {
+                    if (wrap(EMPTY_BUFFER).bytesProduced() == 0)
+                        break;
+                }
+            } catch (IOException ex) {
+                // the connection is being closed anyway.
+            }
+        }
+    }
+
+    private void unwrap() throws IOException {
+        while (netInBuffer.hasRemaining()) {
+            SSLEngineResult result = sslEngine.unwrap(netInBuffer, appInBuffer);
+            switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                // wait for the rest of the record
+                return;
+            case BUFFER_OVERFLOW:
+                ByteBuffer buffer = ByteBuffer.allocate(appInBuffer.capacity()
+                        + sslEngine.getSession().getApplicationBufferSize());
+                appInBuffer.flip();
+                buffer.put(appInBuffer);
+                appInBuffer = buffer;
+                continue;
+            case CLOSED:
+                throw new IOException("TLS connection closed by peer");
+            default:
+                break;
+            }
+            handleHandshakeStatus(result.getHandshakeStatus());
+            if (appInBuffer.position() > 0) {
+                appInBuffer.flip();
+                super.processBytes(appInBuffer.array(), 0, appInBuffer.limit());
+                appInBuffer.clear();
+            }
+            if (result.bytesConsumed() == 0
+                    && sslEngine.getHandshakeStatus() != HandshakeStatus.NEED_UNWRAP)
+                return;
+        }
+    }
+
+    /**
+     * Run the delegated tasks and send the handshake records the engine asks for.
+     */
+    private void handleHandshakeStatus(HandshakeStatus handshakeStatus) throws IOException {
+        while (true) {
+            switch (handshakeStatus) {
+            case NEED_TASK:
+                Runnable task;
+                while ((task = sslEngine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                handshakeStatus = sslEngine.getHandshakeStatus();
+                break;
+            case NEED_WRAP:
+                handshakeStatus = wrap(EMPTY_BUFFER).getHandshakeStatus();
+                break;
+            case FINISHED:
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logDebug(
+                            "TLS handshake completed with " + getKey() + " "
+                                    + sslEngine.getSession().getCipherSuite());
+                handshakeDone(null);
+                return;
+            default:
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wrap application bytes (or handshake records) and write them to the socket.
+     */
+    private SSLEngineResult wrap(ByteBuffer appOutBuffer) throws IOException {
+        while (true) {
+            netOutBuffer.clear();
+            SSLEngineResult result = sslEngine.wrap(appOutBuffer, netOutBuffer);
+            switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                netOutBuffer = ByteBuffer.allocate(netOutBuffer.capacity()
+                        + sslEngine.getSession().getPacketBufferSize());
+                continue;
+            default:
+                break;
+            }
+            netOutBuffer.flip();
+            if (netOutBuffer.hasRemaining()) {
+                ByteBuffer record = ByteBuffer.allocate(netOutBuffer.remaining());
+                record.put(netOutBuffer);
+                record.flip();
+                super.writeBytes(record);
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED
+                    && appOutBuffer.hasRemaining())
+                throw new IOException("TLS connection closed");
+            return result;
+        }
+    }
+
+    /**
+     * Encrypt and write the bytes of a message, once the handshake has completed.
+     */
+    protected void writeBytes(ByteBuffer buffer) throws IOException {
+        waitForHandshake();
+        synchronized (engineLock) {
+            while (buffer.hasRemaining()) {
+                SSLEngineResult result = wrap(buffer);
+                handleHandshakeStatus(result.getHandshakeStatus());
+            }
+        }
+    }
+
+    public void close() {
+        // wake up a sender waiting for the handshake before taking the channel lock
+        handshakeDone("TLS connection closed");
+        super.close();
+    }
+
+    /**
+     * @return the SSL session of the connection, or null if the handshake has not completed.
+     */
+    public SSLSession getSSLSession() {
+        synchronized (handshakeLock) {
+            if (!handshakeCompleted)
+                return null;
+        }
+        return sslEngine.getSession();
+    }
+
+    /**
+     * get the transport string.
+     * 
+     * @return "TLS" in this case.
+     */
+    public String getTransport() {
+        return "TLS";
+    }
+
+    /**
+     * TLS is a secure protocol.
+     */
+    public boolean isSecure() {
+        return true;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package gov.nist.javax.sip.stack;
+
+import gov.nist.core.net.NetworkLayer;
+import gov.nist.core.net.SslNetworkLayer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Non blocking TLS message processor. Connections are accepted and multiplexed exactly as by the
+ * NioTcpMessageProcessor, the TLS layer being handled by an SSLEngine per connection (see
+ * NioTlsMessageChannel). The SSLContext is the one of the SslNetworkLayer when the stack is
+ * configured with a private keystore, the default SSLContext of the JVM otherwise.
+ * 
+ * @see NioMessageProcessorFactory
+ */
+public class NioTlsMessageProcessor extends NioTcpMessageProcessor {
+
+    private SSLContext sslContext;
+
+    /**
+     * Constructor.
+     * 
+     * @param ipAddress -- inet address where I am listening.
+     * @param sipStack SIPStack structure.
+     * @param port port where this message processor listens.
+     */
+    protected NioTlsMessageProcessor(InetAddress ipAddress, SIPTransactionStack sipStack, int port) {
+        super(ipAddress, sipStack, port, "tls");
+    }
+
+    /**
+     * Start the processor.
+     */
+    public void start() throws IOException {
+        NetworkLayer networkLayer = sipStack.getNetworkLayer();
+        if (networkLayer instanceof SslNetworkLayer) {
+            this.sslContext = ((SslNetworkLayer) networkLayer).getSSLContext();
+        } else {
+            try {
+                this.sslContext = SSLContext.getInstance("TLS");
+                this.sslContext.init(null, null, null);
+            } catch (GeneralSecurityException ex) {
+                throw new IOException("Could not get the default SSLContext " + ex.getMessage());
+            }
+        }
+        super.start();
+    }
+
+    SSLContext getSSLContext() {
+        return sslContext;
+    }
+
+    protected NioTcpMessageChannel createMessageChannel(SocketChannel socketChannel,
+            NioSelectorLoop selectorLoop) throws IOException {
+        return new NioTlsMessageChannel(socketChannel, sipStack, this, selectorLoop);
+    }
+
+    protected NioTcpMessageChannel createMessageChannel(InetAddress inetAddress, int port,
+            SIPTransactionStack sipStack) throws IOException {
+        return new NioTlsMessageChannel(inetAddress, port, sipStack, this);
+    }
+
+    /**
+     * Default target port for TLS
+     */
+    public int getDefaultTargetPort() {
+        return 5061;
+    }
+
+    /**
+     * TLS is a secure protocol.
+     */
+    public boolean isSecure() {
+        return true;
+    }
+}
@@ -25,6 +25,8 @@
  */
 package gov.nist.javax.sip.stack;
 
+import gov.nist.javax.sip.ListeningPointExt;
+
 import java.io.IOException;
 import java.net.InetAddress;
 
@@ -78,6 +80,8 @@ public class OIOMessageProcessorFactory implements MessageProcessorFactory {
 				throw new IllegalArgumentException("Error initializing SCTP",
 						ie);
 			}
+		} else if (transport.equalsIgnoreCase(ListeningPointExt.LOOP)) {
+			return new LoopMessageProcessor(ipAddress, sipStack, port);
 		} else {
 			throw new IllegalArgumentException("bad transport");
 		}
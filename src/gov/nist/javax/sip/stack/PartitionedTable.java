@@ -0,0 +1,249 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package gov.nist.javax.sip.stack;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A table of dialogs or transactions split into partitions by the hash of
+ * their id. Each partition keeps its own count of entries and the largest
+ * count it has reached, so that the size of the table is read without locking.
+ * The counts of the partitions show how evenly the entries are spread.
+ *
+ * The number of partitions is rounded up to a power of two.
+ */
+public class PartitionedTable<V> extends AbstractMap<String, V> implements
+        ConcurrentMap<String, V> {
+
+    private static final class Partition<V> {
+        final ConcurrentHashMap<String, V> entries;
+
+        final AtomicInteger size = new AtomicInteger();
+
+        final AtomicInteger peakSize = new AtomicInteger();
+
+        Partition(int concurrencyLevel) {
+            entries = new ConcurrentHashMap<String, V>(16, 0.75f, concurrencyLevel);
+        }
+
+        void added() {
+            int size = this.size.incrementAndGet();
+            int peak;
+            while (size > (peak = peakSize.get()) && !peakSize.compareAndSet(peak, size))
+                ;
+        }
+    }
+
+    private final List<Partition<V>> partitions;
+
+    private final int mask;
+
+    private Set<Map.Entry<String, V>> entrySet;
+
+    /**
+     * @param partitions number of partitions, rounded up to a power of two.
+     */
+    public PartitionedTable(int partitions) {
+        int count = 1;
+        while (count < partitions)
+            count <<= 1;
+        this.partitions = new ArrayList<Partition<V>>(count);
+        // keep about as many lock stripes in all as a single table would have
+        int concurrencyLevel = Math.max(1, 16 / count);
+        for (int i = 0; i < count; i++)
+            this.partitions.add(new Partition<V>(concurrencyLevel));
+        this.mask = count - 1;
+    }
+
+    private Partition<V> partitionFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return partitions.get((h ^ (h >>> 8)) & mask);
+    }
+
+    /**
+     * Return the number of partitions.
+     */
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    /**
+     * Return the number of entries of each partition.
+     */
+    public int[] getPartitionSizes() {
+        int[] sizes = new int[partitions.size()];
+        for (int i = 0; i < partitions.size(); i++)
+            sizes[i] = partitions.get(i).size.get();
+        return sizes;
+    }
+
+    /**
+     * Return the largest number of entries each partition has held.
+     */
+    public int[] getPartitionPeakSizes() {
+        int[] sizes = new int[partitions.size()];
+        for (int i = 0; i < partitions.size(); i++)
+            sizes[i] = partitions.get(i).peakSize.get();
+        return sizes;
+    }
+
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < partitions.size(); i++)
+            size += partitions.get(i).size.get();
+        return size;
+    }
+
+    public boolean isEmpty() {
+        for (int i = 0; i < partitions.size(); i++) {
+            if (partitions.get(i).size.get() > 0)
+                return false;
+        }
+        return true;
+    }
+
+    public V get(Object key) {
+        return partitionFor(key).entries.get(key);
+    }
+
+    public boolean containsKey(Object key) {
+        return partitionFor(key).entries.containsKey(key);
+    }
+
+    public V put(String key, V value) {
+        Partition<V> partition = partitionFor(key);
+        V old = partition.entries.put(key, value);
+        if (old == null)
+            partition.added();
+        return old;
+    }
+
+    public V putIfAbsent(String key, V value) {
+        Partition<V> partition = partitionFor(key);
+        V old = partition.entries.putIfAbsent(key, value);
+        if (old == null)
+            partition.added();
+        return old;
+    }
+
+    public V remove(Object key) {
+        Partition<V> partition = partitionFor(key);
+        V old = partition.entries.remove(key);
+        if (old != null)
+            partition.size.decrementAndGet();
+        return old;
+    }
+
+    public boolean remove(Object key, Object value) {
+        Partition<V> partition = partitionFor(key);
+        if (!partition.entries.remove(key, value))
+            return false;
+        partition.size.decrementAndGet();
+        return true;
+    }
+
+    public V replace(String key, V value) {
+        return partitionFor(key).entries.replace(key, value);
+    }
+
+    public boolean replace(String key, V oldValue, V newValue) {
+        return partitionFor(key).entries.replace(key, oldValue, newValue);
+    }
+
+    public void clear() {
+        for (int i = 0; i < partitions.size(); i++) {
+            for (String key : partitions.get(i).entries.keySet())
+                remove(key);
+        }
+    }
+
+    /**
+     * The entries of the partitions one after the other. Like the entries of a
+     * ConcurrentHashMap, they never throw a ConcurrentModificationException.
+     */
+    public Set<Map.Entry<String, V>> entrySet() {
+        Set<Map.Entry<String, V>> entrySet = this.entrySet;
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<String, V>>() {
+                public Iterator<Map.Entry<String, V>> iterator() {
+                    return new EntryIterator();
+                }
+
+                public int size() {
+                    return PartitionedTable.this.size();
+                }
+
+                public void clear() {
+                    PartitionedTable.this.clear();
+                }
+            };
+            this.entrySet = entrySet;
+        }
+        return entrySet;
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<String, V>> {
+        private int partition;
+
+        private Iterator<Map.Entry<String, V>> entries = partitions.get(0).entries.entrySet()
+                .iterator();
+
+        private Map.Entry<String, V> last;
+
+        public boolean hasNext() {
+            while (!entries.hasNext()) {
+                if (++partition == partitions.size())
+                    return false;
+                entries = partitions.get(partition).entries.entrySet().iterator();
+            }
+            return true;
+        }
+
+        public Map.Entry<String, V> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return last = entries.next();
+        }
+
+        public void remove() {
+            if (last == null)
+                throw new IllegalStateException();
+            PartitionedTable.this.remove(last.getKey(), last.getValue());
+            last = null;
+        }
+    }
+}
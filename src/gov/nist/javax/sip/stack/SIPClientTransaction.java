@@ -29,7 +29,6 @@ import gov.nist.core.InternalErrorHandler;
 import gov.nist.core.NameValueList;
 import gov.nist.javax.sip.SIPConstants;
 import gov.nist.javax.sip.SipStackImpl;
-import gov.nist.javax.sip.Utils;
 import gov.nist.javax.sip.address.AddressImpl;
 import gov.nist.javax.sip.header.Contact;
 import gov.nist.javax.sip.header.Event;
@@ -212,19 +211,22 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
 
     private int callingStateTimeoutCount;
     
-    private SIPStackTimerTask transactionTimer;
-    
     // jeand/ avoid keeping the full Original Request in memory
 	private String originalRequestFromTag;
 	private String originalRequestCallId;
 	private Event originalRequestEventHeader;
 	private Contact originalRequestContact;
 	private String originalRequestScheme;
-	
-	private Object transactionTimerLock = new Object();
+	// key in the subscribe transaction index of the stack, kept since the
+	// original request may be modified or released after indexing
+	private volatile String subscribeIndexKey;
+
 	private AtomicBoolean timerKStarted = new AtomicBoolean(false);
-	private boolean transactionTimerCancelled = false;
 
+    /**
+     * One shot task run at the next deadline of the timers of the transaction,
+     * which schedules the next one.
+     */
     public class TransactionTimer extends SIPStackTimerTask {
 
         public TransactionTimer() {
@@ -233,34 +235,28 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
 
         public void runTask() {
             SIPClientTransaction clientTransaction;
-            SIPTransactionStack sipStack;
             clientTransaction = SIPClientTransaction.this;
-            sipStack = clientTransaction.sipStack;
+            if (!clientTransaction.transactionTimerExpired(this))
+                return;
 
             // If the transaction has terminated,
             if (clientTransaction.isTerminated()) {                             
 
-                try {
-                	sipStack.getTimer().cancel(this);
-
-                } catch (IllegalStateException ex) {
-                    if (!sipStack.isAlive())
-                        return;
-                }
-
-                cleanUpOnTerminated();
+                if (cancelTransactionTimer())
+                    cleanUpOnTerminated();
 
             } else {
                 // If this transaction has not
                 // terminated,
                 // Fire the transaction timer.
                 clientTransaction.fireTimer();
-                                
-//                sipStack.getTimer().schedule(this, BASE_TIMER_INTERVAL);
             }
 
         }
 
+        public Object getThreadHash() {
+            return originalRequestCallId;
+        }
     }
 
     /**
@@ -275,7 +271,7 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
         // Create a random branch parameter for this transaction
         // setBranch( SIPConstants.BRANCH_MAGIC_COOKIE +
         // Integer.toHexString( hashCode( ) ) );
-        setBranch(Utils.getInstance().generateBranchId());
+        setBranch(newSIPStack.getUtils().generateBranchId());
         this.messageProcessor = newChannelToUse.messageProcessor;
         this.setEncapsulatedChannel(newChannelToUse);
         this.notifyOnRetransmit = false;
@@ -438,6 +434,11 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
                     // Save this request as the one this transaction
                     // is handling
                     setOriginalRequest(transactionRequest);
+                    // the Event header may have been set after the
+                    // transaction was created
+                    if (transactionRequest.getMethod().equals(Request.SUBSCRIBE)) {
+                        sipStack.updateSubscribeIndex(this);
+                    }
                     // Change to trying/calling state
                     // Set state first to avoid race condition..
 
@@ -654,23 +655,18 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
         }
     }    
 
-    // avoid re-scheduling the transaction timer every 500ms while we know we have to wait for TIMER_K * 500 ms
+    // the transaction timer is done with once we know we only have to wait for TIMER_K * 500 ms
 	private void scheduleTimerK() {
-		if(transactionTimer != null &&  timerKStarted.compareAndSet(false, true)) {
-			synchronized (transactionTimerLock) {
-				if(!transactionTimerCancelled) {
-					sipStack.getTimer().cancel(transactionTimer);
-					transactionTimer = null;
-					sipStack.getTimer().schedule(new SIPStackTimerTask () {                        	
-		                
-		                public void runTask() {
-		                    fireTimeoutTimer();                                  
-		                    cleanUpOnTerminated();
-		                }
-		            }, TIMER_K * BASE_TIMER_INTERVAL);
-					transactionTimerCancelled =true;
-				}
-			}        	        	
+		if(transactionTimerStarted != null && transactionTimerStarted.get() && timerKStarted.compareAndSet(false, true)) {
+			if(cancelTransactionTimer()) {
+				sipStack.getTimer().schedule(new SIPStackTimerTask () {                        	
+	                
+	                public void runTask() {
+	                    fireTimeoutTimer();                                  
+	                    cleanUpOnTerminated();
+	                }
+	            }, TIMER_K * BASE_TIMER_INTERVAL);
+			}
         }            
 	}
 
@@ -1318,17 +1314,14 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
      */
     protected  void startTransactionTimer() {
         if (this.transactionTimerStarted.compareAndSet(false, true)) {        	
-	        if ( sipStack.getTimer() != null ) {
-	        	synchronized (transactionTimerLock) {
-	        		if(!transactionTimerCancelled) {
-	        			transactionTimer = new TransactionTimer();
-	        			sipStack.getTimer().scheduleWithFixedDelay(transactionTimer, BASE_TIMER_INTERVAL, BASE_TIMER_INTERVAL);
-	        		}
-				}	        	
-	        }
+        	scheduleTransactionTimer();
         }
     }
 
+    protected SIPStackTimerTask createTransactionTimer() {
+        return new TransactionTimer();
+    }
+
     /*
      * Terminate a transaction. This marks the tx as terminated The tx scanner will run and remove
      * the tx. (non-Javadoc)
@@ -1659,9 +1652,7 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
 //	    	sipDialogs = null;
     	}
     	respondTo = null;
-    	transactionTimer = null;
     	lastResponse = null;
-    	transactionTimerLock = null;
     	transactionTimerStarted = null;
     	timerKStarted = null;    	
     	
@@ -1771,5 +1762,17 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
 		}
 		return originalRequest.getRequestURI().getScheme();
 	}
-   
+
+	/**
+	 * @return the key under which this SUBSCRIBE transaction is kept in the
+	 *         subscribe transaction index of the stack, null if not indexed.
+	 */
+	String getSubscribeIndexKey() {
+		return subscribeIndexKey;
+	}
+
+	void setSubscribeIndexKey(String subscribeIndexKey) {
+		this.subscribeIndexKey = subscribeIndexKey;
+	}
+
 }
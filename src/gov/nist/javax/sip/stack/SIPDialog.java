@@ -35,7 +35,6 @@ import gov.nist.javax.sip.DialogExt;
 import gov.nist.javax.sip.ListeningPointImpl;
 import gov.nist.javax.sip.SipListenerExt;
 import gov.nist.javax.sip.SipProviderImpl;
-import gov.nist.javax.sip.Utils;
 import gov.nist.javax.sip.address.AddressImpl;
 import gov.nist.javax.sip.address.SipUri;
 import gov.nist.javax.sip.header.Authorization;
@@ -200,7 +199,8 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 
 	protected transient long nextSeqno;
 
-    private transient int retransmissionTicksLeft;
+    // Time of the next retransmission of the 2xx to the INVITE.
+    private transient long retransmissionDeadline;
 
     private transient int prevRetransmissionTicks;
 
@@ -395,17 +395,22 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
             cleanUp();
         }
 
+        public Object getThreadHash() {
+            return getCallIdString();
+        }
     }
 
     class DialogTimerTask extends SIPStackTimerTask implements Serializable {
-        int nRetransmissions;
+        // Time at which the dialog stops waiting for the ACK.
+        long ackTimeoutDeadline;
 
         SIPServerTransaction transaction;
 //        long cseqNumber;
 
         public DialogTimerTask(SIPServerTransaction transaction) {
             this.transaction = transaction;
-            this.nRetransmissions = 0;
+            this.ackTimeoutDeadline = System.currentTimeMillis() + sipStack.getAckTimeoutFactor()
+                    * SIPTransaction.T1 * SIPTransactionStack.BASE_TIMER_INTERVAL;
 //            this.cseqNumber = transaction.getLastResponseCSeqNumber();
         }
 
@@ -415,7 +420,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
             SIPDialog dialog = SIPDialog.this;
             if (sipStack.isLoggingEnabled())
                 sipStack.getStackLogger().logDebug("Running dialog timer");
-            nRetransmissions++;
+            long now = System.currentTimeMillis();
             SIPServerTransaction transaction = this.transaction;
             /*
              * Issue 106. Section 13.3.1.4 RFC 3261 The 2xx response is passed to the transport
@@ -425,7 +430,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
              * be terminated.
              */
 
-            if (nRetransmissions > sipStack.getAckTimeoutFactor()* SIPTransaction.T1) {
+            if (now >= ackTimeoutDeadline) {
             	if (SIPDialog.this.getSipProvider().getSipListener() != null && SIPDialog.this.getSipProvider().getSipListener() instanceof SipListenerExt ) {
             		raiseErrorEvent(SIPDialogErrorEvent.DIALOG_ACK_NOT_RECEIVED_TIMEOUT); 
             	} else {
@@ -441,7 +446,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
                     try {
 
                         // resend the last response.
-                        if (dialog.toRetransmitFinalResponse(transaction.T2)) {
+                        if (dialog.toRetransmitFinalResponse(transaction.T2, now)) {
                             transaction.resendLastResponseAsBytes();
                         }
                     } catch (IOException ex) {
@@ -469,9 +474,15 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
             // confirmed state or ack seen if retransmit filter on.
             if (dialog.isAckSeen() || dialog.dialogState == TERMINATED_STATE) {
             	this.transaction = null;
-                getStack().getTimer().cancel(this);
-
-            } 
+                cleanUpBeforeCancel();
+            } else if (dialog.timerTask == this) {
+                // Run again for the next retransmission or the ACK timeout,
+                // and every tick once the ACK timeout is past.
+                long next = Math.min(ackTimeoutDeadline, retransmissionDeadline);
+                if (next <= now)
+                    next = now + SIPTransactionStack.BASE_TIMER_INTERVAL;
+                sipStack.getDialogTimerScheduler().schedule(this, next - now);
+            }
 
         }
         
@@ -483,6 +494,9 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
         	super.cleanUpBeforeCancel();
         }
 
+        public Object getThreadHash() {
+            return getCallIdString();
+        }
     }
 
     /**
@@ -496,6 +510,9 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
             delete();
         }
 
+        public Object getThreadHash() {
+            return getCallIdString();
+        }
     }
     
     /**
@@ -558,6 +575,9 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
             }
         }
 
+        public Object getThreadHash() {
+            return getCallIdString();
+        }
     }
 
     // ///////////////////////////////////////////////////////////
@@ -1036,7 +1056,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
             throw new SipException("Could not create message channel", ex);
         }
         if (this.dialogDeleteTask != null) {
-        	this.getStack().getTimer().cancel(dialogDeleteTask);
+        	sipStack.getDialogTimerScheduler().cancel(dialogDeleteTask);
             this.dialogDeleteTask = null;
         }
       
@@ -1091,14 +1111,14 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
             	acquireTimerTaskSem();
             	try {
 	                if (this.timerTask != null) {                	                	
-	                	this.getStack().getTimer().cancel(timerTask);
+	                	sipStack.getDialogTimerScheduler().cancel(timerTask);
 		                this.timerTask = null;                	
 	                }
             	} finally {
             		releaseTimerTaskSem();
             	}
                 if (this.dialogDeleteTask != null) {
-                	this.getStack().getTimer().cancel(dialogDeleteTask);                    
+                	sipStack.getDialogTimerScheduler().cancel(dialogDeleteTask);                    
                     this.dialogDeleteTask = null;
                 }
                 lastAckReceivedCSeqNumber = Long.valueOf(cseqNumber);
@@ -1216,7 +1236,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
         else {
             this.dialogDeleteTask = new DialogDeleteTask();
             // Delete the transaction after the max ack timeout.
-            sipStack.getTimer().schedule(this.dialogDeleteTask,
+            sipStack.getDialogTimerScheduler().schedule(this.dialogDeleteTask,
                     SIPTransaction.TIMER_H * SIPTransactionStack.BASE_TIMER_INTERVAL);
         }
 
@@ -1841,6 +1861,15 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
         return this.callIdHeader;
     }
 
+    /**
+     * @return the Call-ID of this dialog, used as thread hash by the dialog timers
+     * so that they run in order with the timers of its transactions
+     */
+    private String getCallIdString() {
+    	CallIdHeader callId = getCallId();
+    	return callId == null ? null : callId.getCallId();
+    }
+
     /**
      * set the call id header for this dialog.
      */
@@ -2193,7 +2222,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
             if (getLastResponseStatusCode().intValue() >= 300 ) {
                 branch = lastResponseTopMostVia.getBranch();   // non-2xx ACK uses same branch
             } else {
-                branch = Utils.getInstance().generateBranchId();    // 2xx ACK gets new branch
+                branch = sipStack.getUtils().generateBranchId();    // 2xx ACK gets new branch
             }
         } else if (method.equals( Request.CANCEL )) {
             branch = lastResponseTopMostVia.getBranch();   // CANCEL uses same branch
@@ -2419,13 +2448,12 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
     /**
      * Return yes if the last response is to be retransmitted.
      */
-    private boolean toRetransmitFinalResponse(int T2) {
-        if (--retransmissionTicksLeft == 0) {
+    private boolean toRetransmitFinalResponse(int T2, long now) {
+        if (now >= retransmissionDeadline) {
             if (2 * prevRetransmissionTicks <= T2)
-                this.retransmissionTicksLeft = 2 * prevRetransmissionTicks;
-            else
-                this.retransmissionTicksLeft = prevRetransmissionTicks;
-            this.prevRetransmissionTicks = retransmissionTicksLeft;
+                this.prevRetransmissionTicks = 2 * prevRetransmissionTicks;
+            this.retransmissionDeadline = now + prevRetransmissionTicks
+                    * SIPTransactionStack.BASE_TIMER_INTERVAL;
             return true;
         } else
             return false;
@@ -2433,8 +2461,9 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
     }
 
     protected void setRetransmissionTicks() {
-        this.retransmissionTicksLeft = 1;
         this.prevRetransmissionTicks = 1;
+        this.retransmissionDeadline = System.currentTimeMillis()
+                + SIPTransactionStack.BASE_TIMER_INTERVAL;
     }
 
     /**
@@ -2490,14 +2519,13 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 	            this.timerTask.transaction = transaction;
 	        } else {
 	            this.timerTask = new DialogTimerTask(transaction);
-	            sipStack.getTimer().scheduleWithFixedDelay(timerTask, SIPTransactionStack.BASE_TIMER_INTERVAL,
-	                    SIPTransactionStack.BASE_TIMER_INTERVAL);
 	        }
+	        this.setRetransmissionTicks();
+	        sipStack.getDialogTimerScheduler().schedule(timerTask,
+	                SIPTransactionStack.BASE_TIMER_INTERVAL);
 		} finally {
 			releaseTimerTaskSem();
 		}
-        
-        this.setRetransmissionTicks();
     }
 
     /**
@@ -2509,7 +2537,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
         	acquireTimerTaskSem();
         	try {
 	            if (this.timerTask != null) {
-	            	this.getStack().getTimer().cancel(timerTask);	            	
+	            	sipStack.getDialogTimerScheduler().cancel(timerTask);	            	
 		            this.timerTask = null;
 	            }   
         	} finally {
@@ -2674,7 +2702,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
                     via.setParameters((NameValueList) originalRequestParameters.clone());
                 }
             }
-            via.setBranch(Utils.getInstance().generateBranchId()); // new branch
+            via.setBranch(sipStack.getUtils().generateBranchId()); // new branch
             vias.add(via);
             sipRequest.setVia(vias);
             From from = new From();
@@ -3375,7 +3403,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
             acquireTimerTaskSem();
             try {
             	if (this.timerTask != null) {
-            		this.getStack().getTimer().cancel(timerTask);	                
+            		sipStack.getDialogTimerScheduler().cancel(timerTask);	                
 	                this.timerTask = null;
             	} 
             } finally {
@@ -3501,7 +3529,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 		} else if(dialogDeleteIfNoAckSentTask == null){
 			// Delete the transaction after the max ack timeout.
 			dialogDeleteIfNoAckSentTask = new DialogDeleteIfNoAckSentTask(seqno);
-			sipStack.getTimer().schedule(
+			sipStack.getDialogTimerScheduler().schedule(
 					dialogDeleteIfNoAckSentTask,
 					sipStack.getAckTimeoutFactor()
 							* SIPTransactionStack.BASE_TIMER_INTERVAL);
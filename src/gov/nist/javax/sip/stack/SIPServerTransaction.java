@@ -30,7 +30,6 @@ import gov.nist.core.InternalErrorHandler;
 import gov.nist.javax.sip.SIPConstants;
 import gov.nist.javax.sip.ServerTransactionExt;
 import gov.nist.javax.sip.SipProviderImpl;
-import gov.nist.javax.sip.Utils;
 import gov.nist.javax.sip.header.Expires;
 import gov.nist.javax.sip.header.ParameterNames;
 import gov.nist.javax.sip.header.RSeq;
@@ -221,6 +220,8 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
 	
 	private HostPort originalRequestSentBy;
 	private String originalRequestFromTag;
+	// key in the RFC 2543 transaction index of the stack, null if not indexed
+	private volatile String rfc2543IndexKey;
 
     /**
      * This timer task is used for alerting the application to send retransmission alerts.
@@ -251,6 +252,9 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
 
         }
 
+        public Object getThreadHash() {
+            return originalRequestCallId;
+        }
     }
 
     class ProvisionalResponseTask extends SIPStackTimerTask {
@@ -302,6 +306,9 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
 
         }
 
+        public Object getThreadHash() {
+            return originalRequestCallId;
+        }
     }
 
     /**
@@ -330,6 +337,10 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
                 sipStack.getStackLogger().logError("unexpected exception", ex);
             }
         }
+
+        public Object getThreadHash() {
+            return originalRequestCallId;
+        }
     }
 
     /**
@@ -367,8 +378,16 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
             }
 
         }
+
+        public Object getThreadHash() {
+            return originalRequestCallId;
+        }
     }
 
+    /**
+     * One shot task run at the next deadline of the timers of the transaction,
+     * which schedules the next one.
+     */
     class TransactionTimer extends SIPStackTimerTask {
 
         public TransactionTimer() {
@@ -379,18 +398,16 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
         }
 
         public void runTask() {
+            if (!transactionTimerExpired(this))
+                return;
             // If the transaction has terminated,
             if (isTerminated()) {
                 // Keep the transaction hanging around in the transaction table
                 // to catch the incoming ACK -- this is needed for tcp only.
                 // Note that the transaction record is actually removed in
                 // the connection linger timer.
-                try {
-               		sipStack.getTimer().cancel(this);
-                } catch (IllegalStateException ex) {
-                    if (!sipStack.isAlive())
-                        return;
-                }
+                if (!cancelTransactionTimer())
+                    return;
 
               
                 // Oneshot timer that garbage collects the SeverTransaction
@@ -413,6 +430,9 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
             }
         }
 
+        public Object getThreadHash() {
+            return originalRequestCallId;
+        }
     }
 
     /**
@@ -1427,7 +1447,7 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
                         // to
                         // tag on the response -- be nice and assign the tag for
                         // the user.
-                        sipResponse.getTo().setTag(Utils.getInstance().generateTag());
+                        sipResponse.getTo().setTag(sipStack.getUtils().generateTag());
                     } else if (dialog.getLocalTag() != null && sipResponse.getToTag() == null) {
                     	if ( sipStack.getStackLogger().isLoggingEnabled()) {
                     		sipStack.getStackLogger().logDebug("assigning toTag : serverTransaction = " + this + " dialog " 
@@ -1567,18 +1587,16 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
     protected void startTransactionTimer() {
 //    	if(getMethod().equalsIgnoreCase(Request.INVITE) || getMethod().equalsIgnoreCase(Request.CANCEL) || getMethod().equalsIgnoreCase(Request.ACK)) {
 	        if (this.transactionTimerStarted.compareAndSet(false, true)) {
-	        	if (sipStack.getTimer() != null) {
-	                // The timer is set to null when the Stack is
-	                // shutting down.
-	                SIPStackTimerTask myTimer = new TransactionTimer();
-	//                sipStack.getTimer().schedule(myTimer, BASE_TIMER_INTERVAL);
-	                sipStack.getTimer().scheduleWithFixedDelay(myTimer, BASE_TIMER_INTERVAL, BASE_TIMER_INTERVAL);
-	                myTimer = null;
-	            }
+	        	// nothing is scheduled until a timer is enabled
+	        	scheduleTransactionTimer();
 	        }        
 //    	}
     }
 
+    protected SIPStackTimerTask createTransactionTimer() {
+        return new TransactionTimer();
+    }
+
     public boolean equals(Object other) {
         if (!other.getClass().equals(this.getClass())) {
             return false;
@@ -1925,4 +1943,16 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
     	requestOf = null;
         messageProcessor = null;
     }	
+
+	/**
+	 * @return the key under which this transaction is kept in the RFC 2543
+	 *         transaction index of the stack, null if not indexed.
+	 */
+	String getRfc2543IndexKey() {
+		return rfc2543IndexKey;
+	}
+
+	void setRfc2543IndexKey(String rfc2543IndexKey) {
+		this.rfc2543IndexKey = rfc2543IndexKey;
+	}
 }
@@ -25,6 +25,16 @@ public abstract class SIPStackTimerTask {
     
     public void cleanUpBeforeCancel() {
     	
+    }
+
+    /**
+     * Timers returning the same thread hash are run in order by the same thread of the
+     * stack timer, if it has several. Tasks related to a call should return its Call-ID.
+     * 
+     * @return the thread hash of this task or null if it doesn't matter
+     */
+    public Object getThreadHash() {
+    	return null;
     }
     
 	public void setSipTimerTask(Object timer) {
@@ -33,6 +33,7 @@ import gov.nist.javax.sip.header.Via;
 import gov.nist.javax.sip.message.SIPMessage;
 import gov.nist.javax.sip.message.SIPRequest;
 import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.stack.timers.SipTimer;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -53,6 +54,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
 import javax.sip.Dialog;
 import javax.sip.IOExceptionEvent;
 import javax.sip.TransactionState;
@@ -193,6 +195,7 @@ public abstract class SIPTransaction extends MessageChannel implements
     protected long originalRequestCSeqNumber;
     protected String originalRequestBranch;	
     protected boolean originalRequestHasPort;
+    protected String originalRequestCallId;
 	
     // Underlying channel being used to send messages for this transaction
     private transient MessageChannel encapsulatedChannel;
@@ -232,11 +235,23 @@ public abstract class SIPTransaction extends MessageChannel implements
     // Number of ticks the retransmission timer was set to last
     private transient int retransmissionTimerLastTickCount;
 
-    // Number of ticks before the message is retransmitted
-    private transient int retransmissionTimerTicksLeft;
+    // Time at which the message is retransmitted, -1 if it is not
+    private transient volatile long retransmissionTimerDeadline;
 
-    // Number of ticks before the transaction times out
-    protected int timeoutTimerTicksLeft;
+    // Time at which the transaction times out, -1 if it does not
+    private transient volatile long timeoutTimerDeadline;
+
+    // One shot task run at the earliest of the deadlines, null if none is
+    // scheduled. There is no task while no timer is enabled.
+    private transient SIPStackTimerTask transactionTimer;
+
+    // Time at which transactionTimer runs
+    private transient long transactionTimerDeadline;
+
+    // Set once the transaction timer is no longer scheduled
+    private transient boolean transactionTimerCancelled;
+
+    private final Object transactionTimerLock = new Object();
 
     // List of event listeners for this transaction
     private transient Set<SIPTransactionEventListener> eventListeners;
@@ -292,6 +307,10 @@ public abstract class SIPTransaction extends MessageChannel implements
         public void runTask() {
             cleanUp();
         }
+
+        public Object getThreadHash() {
+            return originalRequestCallId;
+        }
     }
 
     /**
@@ -368,6 +387,9 @@ public abstract class SIPTransaction extends MessageChannel implements
         final Via topmostVia = newOriginalRequest.getTopmostVia();
         this.originalRequestBranch = topmostVia.getBranch();
         this.originalRequestHasPort = topmostVia.hasPort();
+        if (newOriginalRequest.getCallId() != null) {
+            this.originalRequestCallId = newOriginalRequest.getCallId().getCallId();
+        }
         // just cache the control information so the
         // original request can be released later.
         this.method = newOriginalRequest.getMethod();
@@ -526,6 +548,10 @@ public abstract class SIPTransaction extends MessageChannel implements
                     + " isClient = " + (this instanceof SIPClientTransaction));
             sipStack.getStackLogger().logStackTrace();
         }
+        if (newState == TransactionState._TERMINATED) {
+            // the transaction timer gets rid of the terminated transaction
+            scheduleTransactionTimer(System.currentTimeMillis() + BASE_TIMER_INTERVAL);
+        }
     }
 
     /**
@@ -567,21 +593,21 @@ public abstract class SIPTransaction extends MessageChannel implements
      */
     protected final void enableRetransmissionTimer(int tickCount) {
         // For INVITE Client transactions, double interval each time
-        if (isInviteTransaction() && (this instanceof SIPClientTransaction)) {
-            retransmissionTimerTicksLeft = tickCount;
-        } else {
+        if (!isInviteTransaction() || !(this instanceof SIPClientTransaction)) {
             // non-INVITE transactions and 3xx-6xx responses are capped at T2
-            retransmissionTimerTicksLeft = Math.min(tickCount,
-                    MAXIMUM_RETRANSMISSION_TICK_COUNT);
+            tickCount = Math.min(tickCount, MAXIMUM_RETRANSMISSION_TICK_COUNT);
         }
-        retransmissionTimerLastTickCount = retransmissionTimerTicksLeft;
+        retransmissionTimerLastTickCount = tickCount;
+        long deadline = System.currentTimeMillis() + (long) tickCount * BASE_TIMER_INTERVAL;
+        retransmissionTimerDeadline = deadline;
+        scheduleTransactionTimer(deadline);
     }
 
     /**
      * Turns off retransmission events for this transaction.
      */
     protected final void disableRetransmissionTimer() {
-        retransmissionTimerTicksLeft = -1;
+        retransmissionTimerDeadline = -1;
     }
 
     /**
@@ -594,45 +620,133 @@ public abstract class SIPTransaction extends MessageChannel implements
     protected final void enableTimeoutTimer(int tickCount) {
         if (sipStack.isLoggingEnabled())
             sipStack.getStackLogger().logDebug("enableTimeoutTimer " + this
-                    + " tickCount " + tickCount + " currentTickCount = "
-                    + timeoutTimerTicksLeft);
+                    + " tickCount " + tickCount + " currentDeadline = "
+                    + timeoutTimerDeadline);
 
-        timeoutTimerTicksLeft = tickCount;
+        long deadline = System.currentTimeMillis() + (long) tickCount * BASE_TIMER_INTERVAL;
+        timeoutTimerDeadline = deadline;
+        scheduleTransactionTimer(deadline);
     }
 
     /**
      * Disabled the timeout timer.
      */
     protected final void disableTimeoutTimer() {
-        timeoutTimerTicksLeft = -1;
+        timeoutTimerDeadline = -1;
     }
 
     /**
-     * Fired after each timer tick. Checks the retransmission and timeout timers
-     * of this transaction, and fired these events if necessary.
+     * Checks the retransmission and timeout timers of this transaction, fires
+     * those that are due, and schedules the transaction timer for the next
+     * one.
      */
     final void fireTimer() {
-        // If the timeout timer is enabled,
+        long now = System.currentTimeMillis();
+        // If the timeout timer is enabled and has run out,
+        long deadline = timeoutTimerDeadline;
+        if (deadline != -1 && deadline <= now) {
+            disableTimeoutTimer();
+            // Fire the timeout timer
+            fireTimeoutTimer();
+        }
 
-        if (timeoutTimerTicksLeft != -1) {
-            // Count down the timer, and if it has run out,
-            if (--timeoutTimerTicksLeft == 0) {
-                // Fire the timeout timer
-                fireTimeoutTimer();
+        // If the retransmission timer is enabled and has run out,
+        deadline = retransmissionTimerDeadline;
+        if (deadline != -1 && deadline <= now) {
+            // Enable this timer to fire again after
+            // twice the original time
+            enableRetransmissionTimer(retransmissionTimerLastTickCount * 2);
+            // Fire the retransmission timer
+            fireRetransmissionTimer();
+        }
+        scheduleTransactionTimer();
+    }
+
+    /**
+     * Schedules the transaction timer for the earliest of the retransmission
+     * and timeout timers, if one of them is enabled, or for the next tick if
+     * the transaction terminated before the timer was started. Nothing is
+     * scheduled before the transaction timer is started.
+     */
+    protected final void scheduleTransactionTimer() {
+        long retransmissionDeadline = retransmissionTimerDeadline;
+        long timeoutDeadline = timeoutTimerDeadline;
+        if (retransmissionDeadline == -1)
+            retransmissionDeadline = timeoutDeadline;
+        else if (timeoutDeadline != -1)
+            retransmissionDeadline = Math.min(retransmissionDeadline, timeoutDeadline);
+        if (isTerminated()) {
+            // the transaction timer gets rid of the terminated transaction
+            long deadline = System.currentTimeMillis() + BASE_TIMER_INTERVAL;
+            if (retransmissionDeadline == -1 || deadline < retransmissionDeadline)
+                retransmissionDeadline = deadline;
+        }
+        if (retransmissionDeadline != -1)
+            scheduleTransactionTimer(retransmissionDeadline);
+    }
+
+    /**
+     * Schedules the transaction timer to run at the given time, unless it is
+     * already scheduled to run before.
+     */
+    private void scheduleTransactionTimer(long deadline) {
+        AtomicBoolean started = transactionTimerStarted;
+        SipTimer timer = sipStack.getTimer();
+        if (started == null || !started.get() || timer == null)
+            return;
+        synchronized (transactionTimerLock) {
+            if (transactionTimerCancelled)
+                return;
+            if (transactionTimer != null) {
+                if (transactionTimerDeadline <= deadline)
+                    return;
+                timer.cancel(transactionTimer);
             }
+            transactionTimer = createTransactionTimer();
+            transactionTimerDeadline = deadline;
+            try {
+                timer.schedule(transactionTimer,
+                        Math.max(0, deadline - System.currentTimeMillis()));
+            } catch (IllegalStateException ex) {
+                // the stack is stopping
+                transactionTimer = null;
+            }
+        }
+    }
+
+    /**
+     * Called by the transaction timer when it runs.
+     *
+     * @return false if the task has been replaced by another one since it
+     *         was scheduled, in which case it should do nothing.
+     */
+    protected final boolean transactionTimerExpired(SIPStackTimerTask task) {
+        synchronized (transactionTimerLock) {
+            if (task != transactionTimer)
+                return false;
+            transactionTimer = null;
+            return true;
         }
+    }
 
-        // If the retransmission timer is enabled,
-        if (retransmissionTimerTicksLeft != -1) {
-            // Count down the timer, and if it has run out,
-            if (--retransmissionTimerTicksLeft == 0) {
-                // Enable this timer to fire again after
-                // twice the original time
-                enableRetransmissionTimer(retransmissionTimerLastTickCount * 2);
-                // Fire the timeout timer
-                fireRetransmissionTimer();
+    /**
+     * Cancels the transaction timer for good.
+     *
+     * @return false if it was already cancelled.
+     */
+    protected final boolean cancelTransactionTimer() {
+        synchronized (transactionTimerLock) {
+            if (transactionTimerCancelled)
+                return false;
+            transactionTimerCancelled = true;
+            if (transactionTimer != null) {
+                SipTimer timer = sipStack.getTimer();
+                if (timer != null)
+                    timer.cancel(transactionTimer);
+                transactionTimer = null;
             }
-        } 
+            return true;
+        }
     }
 
     /**
@@ -892,6 +1006,13 @@ public abstract class SIPTransaction extends MessageChannel implements
         return this.transactionId;
     }
 
+    /**
+     * Get the Call-ID of the original request, kept after the request is cleared.
+     */
+    public String getOriginalRequestCallId() {
+        return this.originalRequestCallId;
+    }
+
     /**
      * Hashcode method for fast hashtable lookup.
      */
@@ -1219,6 +1340,9 @@ public abstract class SIPTransaction extends MessageChannel implements
             else if ( ((TLSMessageChannel) this.getMessageChannel()).getHandshakeCompletedListener().getHandshakeCompletedEvent() == null)
                 return null;
             else return ((TLSMessageChannel) this.getMessageChannel()).getHandshakeCompletedListener().getHandshakeCompletedEvent().getCipherSuite();
+        } else if (this.getMessageChannel() instanceof NioTlsMessageChannel) {
+            SSLSession sslSession = ((NioTlsMessageChannel) this.getMessageChannel()).getSSLSession();
+            return sslSession == null ? null : sslSession.getCipherSuite();
         } else throw new UnsupportedOperationException("Not a TLS channel");
 
     }
@@ -1231,6 +1355,9 @@ public abstract class SIPTransaction extends MessageChannel implements
             else if ( ((TLSMessageChannel) this.getMessageChannel()).getHandshakeCompletedListener().getHandshakeCompletedEvent() == null)
                 return null;
             else return ((TLSMessageChannel) this.getMessageChannel()).getHandshakeCompletedListener().getHandshakeCompletedEvent().getLocalCertificates();
+        } else if (this.getMessageChannel() instanceof NioTlsMessageChannel) {
+            SSLSession sslSession = ((NioTlsMessageChannel) this.getMessageChannel()).getSSLSession();
+            return sslSession == null ? null : sslSession.getLocalCertificates();
         } else throw new UnsupportedOperationException("Not a TLS channel");
     }
 
@@ -1242,6 +1369,9 @@ public abstract class SIPTransaction extends MessageChannel implements
             else if ( ((TLSMessageChannel) this.getMessageChannel()).getHandshakeCompletedListener().getHandshakeCompletedEvent() == null)
                 return null;
             else return ((TLSMessageChannel) this.getMessageChannel()).getHandshakeCompletedListener().getHandshakeCompletedEvent().getPeerCertificates();
+        } else if (this.getMessageChannel() instanceof NioTlsMessageChannel) {
+            SSLSession sslSession = ((NioTlsMessageChannel) this.getMessageChannel()).getSSLSession();
+            return sslSession == null ? null : sslSession.getPeerCertificates();
         } else throw new UnsupportedOperationException("Not a TLS channel");
 
     }
@@ -1252,7 +1382,8 @@ public abstract class SIPTransaction extends MessageChannel implements
      * @return list of authenticated identities
      */
     public List<String> extractCertIdentities() throws SSLPeerUnverifiedException {
-        if (this.getMessageChannel() instanceof TLSMessageChannel) {
+        if (this.getMessageChannel() instanceof TLSMessageChannel
+                || this.getMessageChannel() instanceof NioTlsMessageChannel) {
             List<String> certIdentities = new ArrayList<String>();
             Certificate[] certs = getPeerCertificates();
             if (certs == null) {
@@ -1352,6 +1483,13 @@ public abstract class SIPTransaction extends MessageChannel implements
 
     protected abstract void startTransactionTimer();
 
+    /**
+     * Create the one shot task that runs the transaction state machine at the
+     * next deadline of its timers, or gets rid of the transaction once it has
+     * terminated.
+     */
+    protected abstract SIPStackTimerTask createTransactionTimer();
+
     /**
      * Tests a message to see if it is part of this transaction.
      *
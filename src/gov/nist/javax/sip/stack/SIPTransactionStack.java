@@ -40,6 +40,8 @@ import gov.nist.javax.sip.SIPConstants;
 import gov.nist.javax.sip.SipListenerExt;
 import gov.nist.javax.sip.SipProviderImpl;
 import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.Utils;
+import gov.nist.javax.sip.UtilsExt;
 import gov.nist.javax.sip.header.Event;
 import gov.nist.javax.sip.header.Via;
 import gov.nist.javax.sip.header.extensions.JoinHeader;
@@ -58,9 +60,11 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
@@ -109,6 +113,11 @@ public abstract class SIPTransactionStack implements
      */
     public static final int BASE_TIMER_INTERVAL = 500;
 
+    /*
+     * Number of milliseconds between two runs of the dialog timers due (100).
+     */
+    public static final int DIALOG_TIMER_RESOLUTION = 100;
+
     /*
 	 * Connection linger time (seconds) this is the time (in seconds) for which
 	 * we linger the TCP connection before closing it.
@@ -121,10 +130,16 @@ public abstract class SIPTransactionStack implements
     protected ConcurrentHashMap<String, SIPServerTransaction> retransmissionAlertTransactions;
 
     // Table of early dialogs ( to keep identity mapping )
-    protected ConcurrentHashMap<String, SIPDialog> earlyDialogTable;
+    protected PartitionedTable<SIPDialog> earlyDialogTable;
 
     // Table of dialogs.
-    protected ConcurrentHashMap<String, SIPDialog> dialogTable;
+    protected PartitionedTable<SIPDialog> dialogTable;
+
+    // Number of partitions of the dialog and transaction tables.
+    protected int tablePartitionCount = Runtime.getRuntime().availableProcessors();
+
+    // Shared scheduler of the 2xx retransmissions and ACK timeouts of the dialogs.
+    protected DialogTimerScheduler dialogTimerScheduler;
 
 	// Table of server dialogs ( for loop detection)
 	protected ConcurrentHashMap<String, SIPDialog> serverDialogMergeTestTable;
@@ -139,8 +154,18 @@ public abstract class SIPTransactionStack implements
     // List of pending server transactions
     private ConcurrentHashMap<String, SIPServerTransaction> pendingTransactions;
 
-    // hashtable for fast lookup
-    private ConcurrentHashMap<String, SIPClientTransaction> clientTransactionTable;
+    // hashtable for fast lookup, also counts the client transactions not yet
+    // completed against the capacity of its partitions
+    private PartitionedTable<SIPClientTransaction> clientTransactionTable;
+
+    // SUBSCRIBE client transactions by From tag, event and Call-ID, to match
+    // incoming NOTIFYs without scanning the client transaction table
+    private ConcurrentHashMap<String, ConcurrentLinkedQueue<SIPClientTransaction>> subscribeTransactionIndex;
+
+    // server transactions of RFC 2543 clients (no magic cookie in their
+    // branch) by Call-ID and CSeq number, to match their messages without
+    // scanning the server transaction table
+    private ConcurrentHashMap<String, ConcurrentLinkedQueue<SIPServerTransaction>> rfc2543ServerTransactionIndex;
 
     // Set to false if you want hiwat and lowat to be consulted.
     protected boolean unlimitedServerTransactionTableSize = true;
@@ -167,7 +192,7 @@ public abstract class SIPTransactionStack implements
     private AtomicInteger activeClientTransactionCount = new AtomicInteger(0);
 
     // Hashtable for server transactions.
-    private ConcurrentHashMap<String, SIPServerTransaction> serverTransactionTable;
+    private PartitionedTable<SIPServerTransaction> serverTransactionTable;
 
     // A table of ongoing transactions indexed by mergeId ( for detecting merged
     // requests.
@@ -296,6 +321,39 @@ public abstract class SIPTransactionStack implements
      */
     protected int readTimeout;
 
+    /*
+     * Time in ms a caller waits for an outbound TCP or TLS connection to be
+     * established.
+     */
+    protected int connectTimeout = 10000;
+
+    /*
+     * Queue the messages sent while their TCP or TLS connection is being
+     * established instead of waiting for it.
+     */
+    protected boolean nonBlockingConnect;
+
+    /*
+     * Number of TCP connections the messages to a destination are spread over.
+     */
+    protected int connectionsPerDestination = 1;
+
+    /*
+     * Number of threads establishing the outbound TCP and TLS connections.
+     */
+    protected int connectThreads = 16;
+
+    /*
+     * Number of threads running the handshakes of the incoming TLS connections.
+     */
+    protected int tlsHandshakeThreads = 8;
+
+    /*
+     * Time in ms an incoming TLS connection is given, from its accept, to
+     * complete its handshake.
+     */
+    protected int tlsHandshakeTimeout = 10000;
+
     /*
 	 * The socket factory. Can be overriden by applications that want direct
 	 * access to the underlying socket.
@@ -359,8 +417,17 @@ public abstract class SIPTransactionStack implements
     // Send UDP buffer size
     protected int sendUdpBufferSize;
 
+    // Number of sockets reading each UDP port
+    protected int udpReceiveSockets = 1;
+
     protected boolean stackDoesCongestionControl = true;
 
+    // Decides which incoming UDP messages are dropped under load
+    protected CongestionControlPolicy congestionControlPolicy;
+
+    // Max # of messages waiting to be processed for each UDP socket
+    protected int udpQueueCapacity = 8192;
+
     protected boolean isBackToBackUserAgent = false;
 
     protected boolean checkBranchId;
@@ -394,6 +461,9 @@ public abstract class SIPTransactionStack implements
 	public MessageParserFactory messageParserFactory;
 	// factory used to create MessageProcessor objects
 	public MessageProcessorFactory messageProcessorFactory;
+
+	// generator of the Call-IDs, tags and branch identifiers
+	protected UtilsExt utils = Utils.getInstance();
    
 	  /**
 	 * Executor used to optimise the ReinviteSender Runnable in the sendRequest
@@ -502,13 +572,13 @@ public abstract class SIPTransactionStack implements
         // the code.
         // Create the transaction collections
 
-        // Dialog dable.
-        this.dialogTable = new ConcurrentHashMap<String, SIPDialog>();
-        this.earlyDialogTable = new ConcurrentHashMap<String, SIPDialog>();
+        // Dialog and transaction tables.
+        createPartitionedTables();
 		this.serverDialogMergeTestTable = new ConcurrentHashMap<String, SIPDialog>();
+        this.dialogTimerScheduler = new DialogTimerScheduler(this, DIALOG_TIMER_RESOLUTION);
 
-        clientTransactionTable = new ConcurrentHashMap<String, SIPClientTransaction>();
-        serverTransactionTable = new ConcurrentHashMap<String, SIPServerTransaction>();
+        subscribeTransactionIndex = new ConcurrentHashMap<String, ConcurrentLinkedQueue<SIPClientTransaction>>();
+        rfc2543ServerTransactionIndex = new ConcurrentHashMap<String, ConcurrentLinkedQueue<SIPServerTransaction>>();
         this.terminatedServerTransactionsPendingAck = new ConcurrentHashMap<String, SIPServerTransaction>();
         mergeTable = new ConcurrentHashMap<String, SIPServerTransaction>();
         retransmissionAlertTransactions = new ConcurrentHashMap<String, SIPServerTransaction>();
@@ -536,14 +606,14 @@ public abstract class SIPTransactionStack implements
         // clientTransactions = new ConcurrentLinkedQueue();
         // serverTransactions = new ConcurrentLinkedQueue();
         pendingTransactions = new ConcurrentHashMap<String, SIPServerTransaction>();
-        clientTransactionTable = new ConcurrentHashMap<String, SIPClientTransaction>();
-        serverTransactionTable = new ConcurrentHashMap<String, SIPServerTransaction>();
+        subscribeTransactionIndex = new ConcurrentHashMap<String, ConcurrentLinkedQueue<SIPClientTransaction>>();
+        rfc2543ServerTransactionIndex = new ConcurrentHashMap<String, ConcurrentLinkedQueue<SIPServerTransaction>>();
         retransmissionAlertTransactions = new ConcurrentHashMap<String, SIPServerTransaction>();
         mergeTable = new ConcurrentHashMap<String, SIPServerTransaction>();
-        // Dialog dable.
-        this.dialogTable = new ConcurrentHashMap<String, SIPDialog>();
-        this.earlyDialogTable = new ConcurrentHashMap<String, SIPDialog>();
+        // Dialog and transaction tables.
+        createPartitionedTables();
 		this.serverDialogMergeTestTable = new ConcurrentHashMap<String, SIPDialog>();
+        this.dialogTimerScheduler = new DialogTimerScheduler(this, DIALOG_TIMER_RESOLUTION);
         this.terminatedServerTransactionsPendingAck = new ConcurrentHashMap<String,SIPServerTransaction>();
         this.forkedClientTransactionTable = new ConcurrentHashMap<String,SIPClientTransaction>();
 
@@ -553,6 +623,17 @@ public abstract class SIPTransactionStack implements
 
     }
 
+    /**
+     * (Re)create the empty dialog and transaction tables, split into
+     * tablePartitionCount partitions.
+     */
+    protected void createPartitionedTables() {
+        this.dialogTable = new PartitionedTable<SIPDialog>(tablePartitionCount);
+        this.earlyDialogTable = new PartitionedTable<SIPDialog>(tablePartitionCount);
+        this.clientTransactionTable = new PartitionedTable<SIPClientTransaction>(tablePartitionCount);
+        this.serverTransactionTable = new PartitionedTable<SIPServerTransaction>(tablePartitionCount);
+    }
+
     /**
      * Creates and binds, if necessary, a socket connected to the specified
      * destination address and port and then returns its local address.
@@ -879,10 +960,6 @@ public abstract class SIPTransactionStack implements
 			SIPRequest notifyMessage, ListeningPointImpl listeningPoint) {
         SIPClientTransaction retval = null;
         try {
-            Iterator it = clientTransactionTable.values().iterator();
-            if (stackLogger.isLoggingEnabled())
-				stackLogger.logDebug("ct table size = "
-						+ clientTransactionTable.size());
             String thisToTag = notifyMessage.getTo().getTag();
             if (thisToTag == null) {
                 return retval;
@@ -896,38 +973,24 @@ public abstract class SIPTransactionStack implements
 
                 return retval;
             }
-            while (it.hasNext()) {
-                SIPClientTransaction ct = (SIPClientTransaction) it.next();
-                if (!ct.getMethod().equals(Request.SUBSCRIBE))
-                    continue;
-
-                // if ( sipProvider.getListeningPoint(transport) == null)
-                String fromTag = ct.getOriginalRequestFromTag();
-                Event hisEvent = (Event) ct.getOriginalRequestEvent();
-                // Event header is mandatory but some slopply clients
-                // dont include it.
-                if (hisEvent == null)
-                    continue;
-                if (stackLogger.isLoggingEnabled()) {
-                    stackLogger.logDebug("ct.fromTag = " + fromTag);
-                    stackLogger.logDebug("thisToTag = " + thisToTag);
-                    stackLogger.logDebug("hisEvent = " + hisEvent);
-                    stackLogger.logDebug("eventHdr " + eventHdr);
-                }
-
-                if (  fromTag.equalsIgnoreCase(thisToTag)
-                      && hisEvent != null
-                      && eventHdr.match(hisEvent)
-                      && notifyMessage.getCallId().getCallId().equalsIgnoreCase(
-                                ct.getOriginalRequestCallId())) {
-                    if (!this.isDeliverUnsolicitedNotify() ) {
+            String key = getSubscribeIndexKey(thisToTag, eventHdr, notifyMessage
+                    .getCallId().getCallId());
+            if (stackLogger.isLoggingEnabled())
+                stackLogger.logDebug("looking for subscribe transaction " + key);
+            if (key == null) {
+                return retval;
+            }
+            ConcurrentLinkedQueue<SIPClientTransaction> subscribeTransactions = subscribeTransactionIndex
+                    .get(key);
+            if (subscribeTransactions != null) {
+                SIPClientTransaction ct = subscribeTransactions.peek();
+                if (ct != null) {
+                    if (!this.isDeliverUnsolicitedNotify()) {
                         ct.acquireSem();
-                    }      
+                    }
                     retval = ct;
-                    return ct;
                 }
             }
-
             return retval;
         } finally {
         	if (stackLogger.isLoggingEnabled())
@@ -937,6 +1000,124 @@ public abstract class SIPTransactionStack implements
         }
 
     }
+
+    /**
+     * Key of a SUBSCRIBE client transaction in the subscribe transaction
+     * index. The NOTIFYs of the subscription have the From tag of the
+     * SUBSCRIBE in their To header, and an Event header that matches (same
+     * event type and id, ignoring case) the one of the SUBSCRIBE.
+     * 
+     * @return the key, or null if one of the parts is missing.
+     */
+    private static String getSubscribeIndexKey(String fromTag, Event event, String callId) {
+        if (fromTag == null || event == null || event.getEventType() == null || callId == null)
+            return null;
+        // tags and event are tokens so they can't contain the separators
+        StringBuilder key = new StringBuilder(fromTag.length() + callId.length() + 32);
+        key.append(fromTag.toLowerCase()).append(':').append(event.getEventType().toLowerCase());
+        if (event.getEventId() != null)
+            key.append(";id=").append(event.getEventId().toLowerCase());
+        key.append(':').append(callId.toLowerCase());
+        return key.toString();
+    }
+
+    private static String getSubscribeIndexKey(SIPClientTransaction clientTransaction) {
+        if (!Request.SUBSCRIBE.equals(clientTransaction.getMethod()))
+            return null;
+        return getSubscribeIndexKey(clientTransaction.getOriginalRequestFromTag(),
+                clientTransaction.getOriginalRequestEvent(), clientTransaction
+                        .getOriginalRequestCallId());
+    }
+
+    /**
+     * Add a SUBSCRIBE client transaction of the client transaction table to
+     * the subscribe transaction index, or move it if its key changed since it
+     * was indexed.
+     */
+    void updateSubscribeIndex(SIPClientTransaction clientTransaction) {
+        String key = getSubscribeIndexKey(clientTransaction);
+        String indexedKey = clientTransaction.getSubscribeIndexKey();
+        if (key == null ? indexedKey == null : key.equals(indexedKey))
+            return;
+        removeSubscribeIndex(clientTransaction);
+        if (key == null
+                || clientTransactionTable.get(clientTransaction.getTransactionId()) != clientTransaction)
+            return;
+        clientTransaction.setSubscribeIndexKey(key);
+        addToIndex(subscribeTransactionIndex, key, clientTransaction);
+    }
+
+    private void removeSubscribeIndex(SIPClientTransaction clientTransaction) {
+        String key = clientTransaction.getSubscribeIndexKey();
+        if (key == null)
+            return;
+        clientTransaction.setSubscribeIndexKey(null);
+        removeFromIndex(subscribeTransactionIndex, key, clientTransaction);
+    }
+
+    /**
+     * Key of a server transaction in the RFC 2543 transaction index. RFC 2543
+     * matching compares the Request-URI, tags, Call-ID, CSeq number and top
+     * Via, but tags may be missing on either side and the Request-URI and Via
+     * are compared as SIP headers, so only the Call-ID and CSeq number go in
+     * the key. The few transactions sharing them are then checked one by one.
+     */
+    private static String getRfc2543IndexKey(String callId, long cseqNumber) {
+        return callId.toLowerCase() + ':' + cseqNumber;
+    }
+
+    private void addRfc2543Index(SIPServerTransaction serverTransaction) {
+        String key = getRfc2543IndexKey(serverTransaction.getOriginalRequest().getCallId()
+                .getCallId(), serverTransaction.getOriginalRequest().getCSeq().getSeqNumber());
+        removeRfc2543Index(serverTransaction);
+        serverTransaction.setRfc2543IndexKey(key);
+        addToIndex(rfc2543ServerTransactionIndex, key, serverTransaction);
+    }
+
+    private void removeRfc2543Index(SIPServerTransaction serverTransaction) {
+        String key = serverTransaction.getRfc2543IndexKey();
+        if (key == null)
+            return;
+        serverTransaction.setRfc2543IndexKey(null);
+        removeFromIndex(rfc2543ServerTransactionIndex, key, serverTransaction);
+    }
+
+    /**
+     * Add a transaction to a secondary index of transactions. Transactions
+     * with the same key are kept in order, the oldest first. A queue is only
+     * taken out of the index while locked and empty, so a transaction added
+     * to a queue still in the index under the lock is never lost.
+     */
+    private static <T extends SIPTransaction> void addToIndex(
+            ConcurrentHashMap<String, ConcurrentLinkedQueue<T>> index, String key, T transaction) {
+        while (true) {
+            ConcurrentLinkedQueue<T> transactions = index.get(key);
+            if (transactions == null) {
+                ConcurrentLinkedQueue<T> newQueue = new ConcurrentLinkedQueue<T>();
+                transactions = index.putIfAbsent(key, newQueue);
+                if (transactions == null)
+                    transactions = newQueue;
+            }
+            synchronized (transactions) {
+                if (index.get(key) == transactions) {
+                    transactions.add(transaction);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static <T extends SIPTransaction> void removeFromIndex(
+            ConcurrentHashMap<String, ConcurrentLinkedQueue<T>> index, String key, T transaction) {
+        ConcurrentLinkedQueue<T> transactions = index.get(key);
+        if (transactions == null)
+            return;
+        synchronized (transactions) {
+            transactions.remove(transaction);
+            if (transactions.isEmpty())
+                index.remove(key, transactions);
+        }
+    }
     
     /**
      * Add entry to "Transaction Pending ACK" table.
@@ -1032,47 +1213,44 @@ public abstract class SIPTransactionStack implements
                     }
 
                 }
-                // Need to scan the table for old style transactions (RFC 2543
-                // style)
-				Iterator<SIPServerTransaction> it = serverTransactionTable
-						.values().iterator();
-                while (it.hasNext()) {
-					SIPServerTransaction sipServerTransaction = (SIPServerTransaction) it
-							.next();
-					if (sipServerTransaction
-							.isMessagePartOfTransaction(sipMessage)) {
-                        retval = sipServerTransaction;
-                        return retval;
+                // Old style transactions (RFC 2543 style) are looked up by
+                // Call-ID and CSeq number and then matched one by one.
+                ConcurrentLinkedQueue<SIPServerTransaction> rfc2543Transactions = rfc2543ServerTransactionIndex
+                        .get(getRfc2543IndexKey(sipMessage.getCallId().getCallId(), sipMessage
+                                .getCSeq().getSeqNumber()));
+                if (rfc2543Transactions != null) {
+                    for (SIPServerTransaction sipServerTransaction : rfc2543Transactions) {
+                        if (sipServerTransaction.isMessagePartOfTransaction(sipMessage)
+                                && serverTransactionTable.get(sipServerTransaction
+                                        .getTransactionId()) == sipServerTransaction) {
+                            retval = sipServerTransaction;
+                            return retval;
+                        }
                     }
                 }
 
             } else {
                 Via via = sipMessage.getTopmostVia();
+                String key = sipMessage.getTransactionId();
+                if (stackLogger.isLoggingEnabled())
+					getStackLogger().logDebug(
+							"clientTx: looking for key " + key);
+                SIPClientTransaction clientTransaction = clientTransactionTable.get(key);
                 if (via.getBranch() != null) {
-                    String key = sipMessage.getTransactionId();
-                    if (stackLogger.isLoggingEnabled())
-						getStackLogger().logDebug(
-								"clientTx: looking for key " + key);
-                    retval = (SIPTransaction) clientTransactionTable.get(key);
+                    retval = clientTransaction;
 					if (key
 							.startsWith(SIPConstants.BRANCH_MAGIC_COOKIE_LOWER_CASE)) {
                         return retval;
                     }
 
                 }
-                // Need to scan the table for old style transactions (RFC 2543
-                // style). This is terribly slow but we need to do this
-                // for backasswords compatibility.
-				Iterator<SIPClientTransaction> it = clientTransactionTable
-						.values().iterator();
-                while (it.hasNext()) {
-					SIPClientTransaction clientTransaction = (SIPClientTransaction) it
-							.next();
-					if (clientTransaction
-							.isMessagePartOfTransaction(sipMessage)) {
-                        retval = clientTransaction;
-                        return retval;
-                    }
+                // Old style transactions (RFC 2543 style) only match messages
+                // with their transaction id, which is also their key in the
+                // table.
+                if (clientTransaction != null
+                        && clientTransaction.isMessagePartOfTransaction(sipMessage)) {
+                    retval = clientTransaction;
+                    return retval;
                 }
 
             }
@@ -1095,8 +1273,10 @@ public abstract class SIPTransactionStack implements
     }
 
     /**
-	 * Get the transaction to cancel. Search the server transaction table for a
-	 * transaction that matches the given transaction.
+	 * Get the transaction to cancel. The cancelled transaction is looked up in
+	 * the server or client transaction table by the transaction id computed
+	 * from the CANCEL (its branch, or for RFC 2543 clients the id of the
+	 * INVITE it cancels), then checked against the CANCEL.
      */
 	public SIPTransaction findCancelTransaction(SIPRequest cancelRequest,
 			boolean isServer) {
@@ -1107,32 +1287,17 @@ public abstract class SIPTransactionStack implements
 					+ isServer);
         }
 
+        String transactionId = cancelRequest.getCancelledTransactionId();
+        SIPTransaction transaction;
         if (isServer) {
-			Iterator<SIPServerTransaction> li = this.serverTransactionTable
-					.values().iterator();
-            while (li.hasNext()) {
-                SIPTransaction transaction = (SIPTransaction) li.next();
-
-                SIPServerTransaction sipServerTransaction = (SIPServerTransaction) transaction;
-				if (sipServerTransaction
-						.doesCancelMatchTransaction(cancelRequest))
-                    return sipServerTransaction;
-            }
-
+            transaction = serverTransactionTable.get(transactionId);
         } else {
-			Iterator<SIPClientTransaction> li = this.clientTransactionTable
-					.values().iterator();
-            while (li.hasNext()) {
-                SIPTransaction transaction = (SIPTransaction) li.next();
-
-                SIPClientTransaction sipClientTransaction = (SIPClientTransaction) transaction;
-				if (sipClientTransaction
-						.doesCancelMatchTransaction(cancelRequest))
-                    return sipClientTransaction;
-
-            }
-
+            transaction = clientTransactionTable.get(transactionId);
         }
+        if (transaction != null
+                && transaction.doesCancelMatchTransaction(cancelRequest))
+            return transaction;
+
         if (stackLogger.isLoggingEnabled())
 			stackLogger
 					.logDebug("Could not find transaction for cancel request");
@@ -1602,6 +1767,138 @@ public abstract class SIPTransactionStack implements
         return this.serverTransactionTable.size();
     }
 
+    /**
+     * Get the number of dialogs of each partition of the dialog table.
+     */
+    public int[] getDialogTablePartitionSizes() {
+        return this.dialogTable.getPartitionSizes();
+    }
+
+    /**
+     * Get the number of early dialogs of each partition of the early dialog
+     * table.
+     */
+    public int[] getEarlyDialogTablePartitionSizes() {
+        return this.earlyDialogTable.getPartitionSizes();
+    }
+
+    /**
+     * Get the number of transactions of each partition of the client
+     * transaction table.
+     */
+    public int[] getClientTransactionTablePartitionSizes() {
+        return this.clientTransactionTable.getPartitionSizes();
+    }
+
+    /**
+     * Get the number of transactions of each partition of the server
+     * transaction table.
+     */
+    public int[] getServerTransactionTablePartitionSizes() {
+        return this.serverTransactionTable.getPartitionSizes();
+    }
+
+    /**
+     * Get the largest number of transactions each partition of the client
+     * transaction table has held.
+     */
+    public int[] getClientTransactionTablePartitionPeakSizes() {
+        return this.clientTransactionTable.getPartitionPeakSizes();
+    }
+
+    /**
+     * Get the largest number of transactions each partition of the server
+     * transaction table has held.
+     */
+    public int[] getServerTransactionTablePartitionPeakSizes() {
+        return this.serverTransactionTable.getPartitionPeakSizes();
+    }
+
+    /**
+     * Get the scheduler of the 2xx retransmission and ACK timeout timers of
+     * the dialogs.
+     */
+    public DialogTimerScheduler getDialogTimerScheduler() {
+        return this.dialogTimerScheduler;
+    }
+
+    /**
+     * Get the number of dialog timers pending in the dialog timer scheduler,
+     * mostly dialogs waiting for the ACK to their 2xx.
+     */
+    public int getPendingDialogTimerCount() {
+        return this.dialogTimerScheduler.getPendingCount();
+    }
+
+    /**
+     * Get the number of handshakes the incoming TLS connections of the TLS
+     * listening points have completed.
+     */
+    public long getTlsHandshakeCount() {
+        long count = 0;
+        for (MessageProcessor messageProcessor : messageProcessors) {
+            if (messageProcessor instanceof TLSMessageProcessor)
+                count += ((TLSMessageProcessor) messageProcessor).getHandshakeCount();
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of handshakes of incoming TLS connections that failed,
+     * including those that timed out.
+     */
+    public long getTlsHandshakeFailureCount() {
+        long count = 0;
+        for (MessageProcessor messageProcessor : messageProcessors) {
+            if (messageProcessor instanceof TLSMessageProcessor)
+                count += ((TLSMessageProcessor) messageProcessor).getHandshakeFailureCount();
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of incoming TLS connections closed for not completing
+     * their handshake in time.
+     */
+    public long getTlsHandshakeTimeoutCount() {
+        long count = 0;
+        for (MessageProcessor messageProcessor : messageProcessors) {
+            if (messageProcessor instanceof TLSMessageProcessor)
+                count += ((TLSMessageProcessor) messageProcessor).getHandshakeTimeoutCount();
+        }
+        return count;
+    }
+
+    /**
+     * Get the average time in ms, from accept to completion, of the completed
+     * handshakes of incoming TLS connections.
+     */
+    public long getAverageTlsHandshakeTime() {
+        long count = 0;
+        long time = 0;
+        for (MessageProcessor messageProcessor : messageProcessors) {
+            if (messageProcessor instanceof TLSMessageProcessor) {
+                count += ((TLSMessageProcessor) messageProcessor).getHandshakeCount();
+                time += ((TLSMessageProcessor) messageProcessor).getTotalHandshakeTime();
+            }
+        }
+        return count == 0 ? 0 : time / count;
+    }
+
+    /**
+     * Get the longest time in ms, from accept to completion, a handshake of
+     * an incoming TLS connection took.
+     */
+    public long getMaxTlsHandshakeTime() {
+        long max = 0;
+        for (MessageProcessor messageProcessor : messageProcessors) {
+            if (messageProcessor instanceof TLSMessageProcessor)
+                max = Math.max(max, ((TLSMessageProcessor) messageProcessor)
+                        .getMaxHandshakeTime());
+        }
+        return max;
+    }
+
     /**
 	 * Add a new client transaction to the set of existing transactions. Add it
 	 * to the top of the list so an incoming response has less work to do in
@@ -1632,6 +1929,7 @@ public abstract class SIPTransactionStack implements
                 stackLogger.logStackTrace();
             String key = sipTransaction.getTransactionId();
             Object removed = serverTransactionTable.remove(key);
+            removeRfc2543Index((SIPServerTransaction) sipTransaction);
             String method = sipTransaction.getMethod();
 			this
 					.removePendingTransaction((SIPServerTransaction) sipTransaction);
@@ -1656,6 +1954,7 @@ public abstract class SIPTransactionStack implements
 
             String key = sipTransaction.getTransactionId();
             Object removed = clientTransactionTable.remove(key);
+            removeSubscribeIndex((SIPClientTransaction) sipTransaction);
 
             if (stackLogger.isLoggingEnabled()) {
 				stackLogger.logDebug("REMOVED client tx " + removed + " KEY = "
@@ -1733,6 +2032,7 @@ public abstract class SIPTransactionStack implements
             String key = sipRequest.getTransactionId();
 			clientTransactionTable.put(key,
 					(SIPClientTransaction) sipTransaction);
+            updateSubscribeIndex((SIPClientTransaction) sipTransaction);
             
             if (stackLogger.isLoggingEnabled()) {
 				stackLogger
@@ -1747,6 +2047,8 @@ public abstract class SIPTransactionStack implements
             }
 			serverTransactionTable.put(key,
 					(SIPServerTransaction) sipTransaction);
+            if (!key.startsWith(SIPConstants.BRANCH_MAGIC_COOKIE_LOWER_CASE))
+                addRfc2543Index((SIPServerTransaction) sipTransaction);
 
         }
 
@@ -1783,10 +2085,12 @@ public abstract class SIPTransactionStack implements
                 stackLogger.logDebug("removing client Tx : " + key);
             }
             clientTransactionTable.remove(key);
+            removeSubscribeIndex((SIPClientTransaction) sipTransaction);
 
         } else if (sipTransaction instanceof SIPServerTransaction) {
             String key = sipTransaction.getTransactionId();
             serverTransactionTable.remove(key);
+            removeRfc2543Index((SIPServerTransaction) sipTransaction);
             if (stackLogger.isLoggingEnabled()) {
                 stackLogger.logDebug("removing server Tx : " + key);
             }
@@ -1874,9 +2178,13 @@ public abstract class SIPTransactionStack implements
         } catch (InterruptedException ex) {
         }
         this.clientTransactionTable.clear();
+        this.subscribeTransactionIndex.clear();
+        this.rfc2543ServerTransactionIndex.clear();
         this.serverTransactionTable.clear();
 
         this.dialogTable.clear();
+        this.earlyDialogTable.clear();
+        this.dialogTimerScheduler.clear();
         this.serverLogger.closeLogFile();
 
     }
@@ -2411,7 +2719,7 @@ public abstract class SIPTransactionStack implements
      *
      * @return Audit report, null if no transaction leaks were found
      */
-    private String auditTransactions(ConcurrentHashMap transactionsMap,
+    private String auditTransactions(Map transactionsMap,
             long a_nLeakedTransactionTimer) {
         String auditReport = "  Leaked transactions:\n";
         int leakedTransactions = 0;
@@ -2554,19 +2862,7 @@ public abstract class SIPTransactionStack implements
         String fromTag = replacesHeader.getFromTag();
         String toTag = replacesHeader.getToTag();
 
-        StringBuilder dialogId = new StringBuilder(cid);
-
-        // retval.append(COLON).append(to.getUserAtHostPort());
-        if (toTag != null) {
-            dialogId.append(":");
-            dialogId.append(toTag);
-        }
-        // retval.append(COLON).append(from.getUserAtHostPort());
-        if (fromTag != null) {
-            dialogId.append(":");
-            dialogId.append(fromTag);
-        }
-        String did = dialogId.toString().toLowerCase();
+        String did = Utils.toLowerCaseIdentifier(cid, toTag, fromTag);
         if (stackLogger.isLoggingEnabled())
         	stackLogger.logDebug("Looking for dialog " + did);
         /*
@@ -2600,19 +2896,7 @@ public abstract class SIPTransactionStack implements
         String fromTag = joinHeader.getFromTag();
         String toTag = joinHeader.getToTag();
 
-        StringBuilder retval = new StringBuilder(cid);
-
-        // retval.append(COLON).append(to.getUserAtHostPort());
-        if (toTag != null) {
-            retval.append(":");
-            retval.append(toTag);
-        }
-        // retval.append(COLON).append(from.getUserAtHostPort());
-        if (fromTag != null) {
-            retval.append(":");
-            retval.append(fromTag);
-        }
-        return this.dialogTable.get(retval.toString().toLowerCase());
+        return this.dialogTable.get(Utils.toLowerCaseIdentifier(cid, toTag, fromTag));
     }
 
     /**
@@ -2673,6 +2957,65 @@ public abstract class SIPTransactionStack implements
 		this.sendUdpBufferSize = sendUdpBufferSize;
 	}
 
+    /**
+	 * Number of sockets bound with SO_REUSEPORT to each UDP listening point,
+	 * each one being read by its own thread.
+     * 
+     * @return
+     */
+	public int getUdpReceiveSockets() {
+		return udpReceiveSockets;
+	}
+
+    /**
+	 * Number of sockets bound with SO_REUSEPORT to each UDP listening point,
+	 * each one being read by its own thread.
+     * 
+     * @return
+     */
+	public void setUdpReceiveSockets(int udpReceiveSockets) {
+		this.udpReceiveSockets = udpReceiveSockets;
+	}
+
+	/**
+	 * Policy deciding which incoming UDP messages are dropped under load.
+	 * 
+	 * @return the policy, null if the stack does not do congestion control.
+	 */
+	public CongestionControlPolicy getCongestionControlPolicy() {
+		return congestionControlPolicy;
+	}
+
+	/**
+	 * Policy deciding which incoming UDP messages are dropped under load.
+	 * 
+	 * @param congestionControlPolicy
+	 */
+	public void setCongestionControlPolicy(
+			CongestionControlPolicy congestionControlPolicy) {
+		this.congestionControlPolicy = congestionControlPolicy;
+	}
+
+	/**
+	 * Max number of incoming messages waiting to be processed for each UDP
+	 * socket.
+	 * 
+	 * @return the capacity of the queue
+	 */
+	public int getUdpQueueCapacity() {
+		return udpQueueCapacity;
+	}
+
+	/**
+	 * Max number of incoming messages waiting to be processed for each UDP
+	 * socket.
+	 * 
+	 * @param udpQueueCapacity
+	 */
+	public void setUdpQueueCapacity(int udpQueueCapacity) {
+		this.udpQueueCapacity = udpQueueCapacity;
+	}
+
 	/**
 	 * @param stackLogger
 	 *            the stackLogger to set
@@ -2805,6 +3148,14 @@ public abstract class SIPTransactionStack implements
     return reinviteExecutor;
   }
 	
+	/**
+	 * @return the generator of the Call-IDs, tags and branch identifiers of
+	 *         the stack.
+	 */
+	public UtilsExt getUtils() {
+		return utils;
+	}
+
 	/**
 	 * @param messageParserFactory the messageParserFactory to set
 	 */
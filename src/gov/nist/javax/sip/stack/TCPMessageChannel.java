@@ -50,6 +50,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 
 import javax.sip.address.Hop;
@@ -92,7 +93,7 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
     protected boolean isCached;
 
     // Set here on initialization to avoid thread leak. See issue 266
-    protected boolean isRunning = true;
+    protected volatile boolean isRunning = true;
 
     private Thread mythread;
 
@@ -253,9 +254,10 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
      * Send message to whoever is connected to us. Uses the topmost via address to send to.
      * 
      * @param msg is the message to send.
+     * @param length is the length of the message at the start of msg.
      * @param retry
      */
-    private void sendMessage(byte[] msg, boolean retry) throws IOException {
+    private void sendMessage(byte[] msg, int length, boolean retry) throws IOException {
 
         /*
          * Patch from kircuv@dev.java.net (Issue 119 ) This patch avoids the case where two
@@ -266,7 +268,7 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
        // Socket s = this.sipStack.ioHandler.getSocket(IOHandler.makeKey(
        // this.peerAddress, this.peerPort));
         Socket sock = this.sipStack.ioHandler.sendBytes(this.messageProcessor.getIpAddress(),
-                this.peerAddress, this.peerPort, this.peerProtocol, msg, retry, this);
+                this.peerAddress, this.peerPort, this.peerProtocol, msg, length, retry, this);
 
         // Created a new socket so close the old one and stick the new
         // one in its place but dont do this if it is a datagram socket.
@@ -274,7 +276,20 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
         // if (mySock == null && s != null) {
         // this.uncache();
         // } else
-        if (sock != mySock && sock != null) {
+        if (sock != null)
+            useSocket(sock);
+
+    }
+
+    /**
+     * Read from the given socket in place of the current one, if it is a new
+     * one. This is also called by the IOHandler when a connection it opened
+     * for this channel in the background is established.
+     * 
+     * @param sock the socket connected to the peer.
+     */
+    protected synchronized void useSocket(Socket sock) throws IOException {
+        if (sock != mySock) {
             try {
                 if (mySock != null)
                     mySock.close();
@@ -288,7 +303,6 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
             thread.setName("TCPMessageChannelThread");
             thread.start();
         }
-
     }
 
     /**
@@ -299,13 +313,13 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
      * @throws IOException If there is an error sending the message
      */
     public void sendMessage(SIPMessage sipMessage) throws IOException {
-        byte[] msg = sipMessage.encodeAsBytes(this.getTransport());
+        ByteBuffer msg = encodeMessage(sipMessage);
 
         long time = System.currentTimeMillis();
 
         // JvB: also retry for responses, if the connection is gone we should
         // try to reconnect
-        this.sendMessage(msg, /* sipMessage instanceof SIPRequest */true);
+        this.sendMessage(msg.array(), msg.limit(), /* sipMessage instanceof SIPRequest */true);
 
         if (this.sipStack.getStackLogger().isLoggingEnabled(ServerLogger.TRACE_MESSAGES))
             logMessage(sipMessage, peerAddress, peerPort, time);
@@ -515,7 +529,7 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
                     SIPResponse sipResponse = sipRequest
                             .createResponse(SIPResponse.MESSAGE_TOO_LARGE);
                     byte[] resp = sipResponse.encodeAsBytes(this.getTransport());
-                    this.sendMessage(resp, false);
+                    this.sendMessage(resp, resp.length, false);
                     throw new Exception("Message size exceeded");
                 }
 
@@ -613,7 +627,7 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
         myParser.processInput();
         // bug fix by Emmanuel Proulx
         int bufferSize = 4096;
-        this.tcpMessageProcessor.useCount++;
+        this.tcpMessageProcessor.useCount.incrementAndGet();
         this.isRunning = true;
         try {
             while (true) {
@@ -624,12 +638,6 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
                     if (nbytes == -1) {
                         hispipe.write("\r\n\r\n".getBytes("UTF-8"));
                         try {
-                            if (sipStack.maxConnections != -1) {
-                                synchronized (tcpMessageProcessor) {
-                                    tcpMessageProcessor.nConnections--;
-                                    tcpMessageProcessor.notify();
-                                }
-                            }
                             hispipe.close();
                             mySock.close();
                         } catch (IOException ioex) {
@@ -650,13 +658,6 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
                         if (sipStack.isLoggingEnabled())
                             sipStack.getStackLogger().logDebug("IOException  closing sock " + ex);
                         try {
-                            if (sipStack.maxConnections != -1) {
-                                synchronized (tcpMessageProcessor) {
-                                    tcpMessageProcessor.nConnections--;
-                                    // System.out.println("Notifying!");
-                                    tcpMessageProcessor.notify();
-                                }
-                            }
                             mySock.close();
                             hispipe.close();
                         } catch (IOException ioex) {
@@ -672,7 +673,7 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
         } finally {
             this.isRunning = false;
             this.tcpMessageProcessor.remove(this);
-            this.tcpMessageProcessor.useCount--;
+            this.tcpMessageProcessor.useCount.decrementAndGet();
             myParser.close();
         }
 
@@ -35,6 +35,8 @@ import java.net.SocketException;
 import gov.nist.core.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*
  * Acknowledgement: Jeff Keyser suggested that a Stop mechanism be added to this. Niklas Uhrberg
@@ -57,17 +59,17 @@ import java.util.*;
  */
 public class TCPMessageProcessor extends MessageProcessor {
 
-    protected int nConnections;
+    protected final AtomicInteger nConnections = new AtomicInteger();
 
-    private boolean isRunning;
+    private volatile boolean isRunning;
 
-    private Hashtable tcpMessageChannels;
+    private final ConcurrentHashMap<String, TCPMessageChannel> tcpMessageChannels;
 
-    private ArrayList<TCPMessageChannel> incomingTcpMessageChannels;
+    private final Set<TCPMessageChannel> incomingTcpMessageChannels;
 
     private ServerSocket sock;
 
-    protected int useCount;
+    protected final AtomicInteger useCount = new AtomicInteger();
 
     /**
      * Constructor.
@@ -80,8 +82,9 @@ public class TCPMessageProcessor extends MessageProcessor {
 
         this.sipStack = sipStack;
 
-        this.tcpMessageChannels = new Hashtable();
-        this.incomingTcpMessageChannels = new ArrayList<TCPMessageChannel>();
+        this.tcpMessageChannels = new ConcurrentHashMap<String, TCPMessageChannel>();
+        this.incomingTcpMessageChannels = Collections
+                .newSetFromMap(new ConcurrentHashMap<TCPMessageChannel, Boolean>());
     }
 
     /**
@@ -111,33 +114,45 @@ public class TCPMessageProcessor extends MessageProcessor {
         // Accept new connectins on our socket.
         while (this.isRunning) {
             try {
-                synchronized (this) {
-                    // sipStack.maxConnections == -1 means we are
-                    // willing to handle an "infinite" number of
-                    // simultaneous connections (no resource limitation).
-                    // This is the default behavior.
-                    while (sipStack.maxConnections != -1
-                            && this.nConnections >= sipStack.maxConnections) {
-                        try {
-                            this.wait();
-
-                            if (!this.isRunning)
-                                return;
-                        } catch (InterruptedException ex) {
-                            break;
+                // sipStack.maxConnections == -1 means we are
+                // willing to handle an "infinite" number of
+                // simultaneous connections (no resource limitation).
+                // This is the default behavior.
+                if (sipStack.maxConnections != -1) {
+                    synchronized (nConnections) {
+                        while (nConnections.get() >= sipStack.maxConnections) {
+                            try {
+                                nConnections.wait();
+
+                                if (!this.isRunning)
+                                    return;
+                            } catch (InterruptedException ex) {
+                                break;
+                            }
                         }
                     }
-                    this.nConnections++;
                 }
 
                 Socket newsock = sock.accept();
                 if (sipStack.isLoggingEnabled()) {
                     getSIPStack().getStackLogger().logDebug("Accepting new connection!");
                 }
+                if (sipStack.maxConnections != -1)
+                    nConnections.incrementAndGet();
+                TCPMessageChannel messageChannel;
+                try {
+                    messageChannel = new TCPMessageChannel(newsock, sipStack, this);
+                } catch (IOException ex) {
+                    connectionClosed();
+                    newsock.close();
+                    throw ex;
+                }
                 // Note that for an incoming message channel, the
-                // thread is already running
-               
-                incomingTcpMessageChannels.add(new TCPMessageChannel(newsock, sipStack, this));
+                // thread is already running, and releases the connection
+                // when it ends unless it ended before being added here.
+                incomingTcpMessageChannels.add(messageChannel);
+                if (!messageChannel.isRunning)
+                    remove(messageChannel);
             } catch (SocketException ex) {
                 this.isRunning = false;
             } catch (IOException ex) {
@@ -172,7 +187,7 @@ public class TCPMessageProcessor extends MessageProcessor {
     /**
      * Stop the message processor. Feature suggested by Jeff Keyser.
      */
-    public synchronized void stop() {
+    public void stop() {
         isRunning = false;
         // this.listeningPoint = null;
         try {
@@ -181,22 +196,20 @@ public class TCPMessageProcessor extends MessageProcessor {
             e.printStackTrace();
         }
 
-        Collection en = tcpMessageChannels.values();
-        for (Iterator it = en.iterator(); it.hasNext();) {
-            TCPMessageChannel next = (TCPMessageChannel) it.next();
+        for (TCPMessageChannel next : tcpMessageChannels.values()) {
             next.close();
         }
         // RRPN: fix
-        for (Iterator incomingMCIterator = incomingTcpMessageChannels.iterator(); incomingMCIterator
-                .hasNext();) {
-            TCPMessageChannel next = (TCPMessageChannel) incomingMCIterator.next();
+        for (TCPMessageChannel next : incomingTcpMessageChannels) {
             next.close();
         }
 
-        this.notify();
+        synchronized (nConnections) {
+            nConnections.notify();
+        }
     }
 
-    protected synchronized void remove(TCPMessageChannel tcpMessageChannel) {
+    protected void remove(TCPMessageChannel tcpMessageChannel) {
 
         String key = tcpMessageChannel.getKey();
         if (sipStack.isLoggingEnabled()) {
@@ -204,61 +217,62 @@ public class TCPMessageProcessor extends MessageProcessor {
         }
 
         /** May have been removed already */
-        if (tcpMessageChannels.get(key) == tcpMessageChannel) {
-            this.tcpMessageChannels.remove(key);
-        }
+        tcpMessageChannels.remove(key, tcpMessageChannel);
 
-        incomingTcpMessageChannels.remove(tcpMessageChannel);
+        if (incomingTcpMessageChannels.remove(tcpMessageChannel))
+            connectionClosed();
     }
 
-    public synchronized MessageChannel createMessageChannel(HostPort targetHostPort)
-            throws IOException {
-        String key = MessageChannel.getKey(targetHostPort, "TCP");
-        if (tcpMessageChannels.get(key) != null) {
-            return (TCPMessageChannel) this.tcpMessageChannels.get(key);
-        } else {
-            TCPMessageChannel retval = new TCPMessageChannel(targetHostPort.getInetAddress(),
-                    targetHostPort.getPort(), sipStack, this);
-            this.tcpMessageChannels.put(key, retval);
-            retval.isCached = true;
-            if (sipStack.isLoggingEnabled()) {
-                sipStack.getStackLogger().logDebug("key " + key);
-                sipStack.getStackLogger().logDebug("Creating " + retval);
+    /**
+     * Count an incoming connection closed, and let the accept loop go on if it
+     * waits for the number of connections to drop below the maximum.
+     */
+    private void connectionClosed() {
+        if (sipStack.maxConnections != -1) {
+            nConnections.decrementAndGet();
+            synchronized (nConnections) {
+                nConnections.notify();
             }
-            return retval;
         }
     }
 
-    protected synchronized void cacheMessageChannel(TCPMessageChannel messageChannel) {
+    public MessageChannel createMessageChannel(HostPort targetHostPort)
+            throws IOException {
+        return createMessageChannel(targetHostPort.getInetAddress(), targetHostPort.getPort());
+    }
+
+    protected void cacheMessageChannel(TCPMessageChannel messageChannel) {
         String key = messageChannel.getKey();
-        TCPMessageChannel currentChannel = (TCPMessageChannel) tcpMessageChannels.get(key);
-        if (currentChannel != null) {
+        TCPMessageChannel currentChannel = tcpMessageChannels.put(key, messageChannel);
+        if (currentChannel != null && currentChannel != messageChannel) {
             if (sipStack.isLoggingEnabled())
                 sipStack.getStackLogger().logDebug("Closing " + key);
             currentChannel.close();
         }
         if (sipStack.isLoggingEnabled())
             sipStack.getStackLogger().logDebug("Caching " + key);
-        this.tcpMessageChannels.put(key, messageChannel);
 
     }
 
-    public synchronized MessageChannel createMessageChannel(InetAddress host, int port)
+    public MessageChannel createMessageChannel(InetAddress host, int port)
             throws IOException {
         try {
             String key = MessageChannel.getKey(host, port, "TCP");
-            if (tcpMessageChannels.get(key) != null) {
-                return (TCPMessageChannel) this.tcpMessageChannels.get(key);
-            } else {
-                TCPMessageChannel retval = new TCPMessageChannel(host, port, sipStack, this);
-                this.tcpMessageChannels.put(key, retval);
-                retval.isCached = true;
-                if (sipStack.isLoggingEnabled()) {
-                    sipStack.getStackLogger().logDebug("key " + key);
-                    sipStack.getStackLogger().logDebug("Creating " + retval);
-                }
+            TCPMessageChannel retval = tcpMessageChannels.get(key);
+            if (retval != null)
+                return retval;
+            // an outgoing channel connects on its first message, so the one
+            // losing a race to be cached is simply dropped
+            TCPMessageChannel messageChannel = new TCPMessageChannel(host, port, sipStack, this);
+            messageChannel.isCached = true;
+            retval = tcpMessageChannels.putIfAbsent(key, messageChannel);
+            if (retval != null)
                 return retval;
+            if (sipStack.isLoggingEnabled()) {
+                sipStack.getStackLogger().logDebug("key " + key);
+                sipStack.getStackLogger().logDebug("Creating " + messageChannel);
             }
+            return messageChannel;
         } catch (UnknownHostException ex) {
             throw new IOException(ex.getMessage());
         }
@@ -272,7 +286,7 @@ public class TCPMessageProcessor extends MessageProcessor {
     }
 
     public boolean inUse() {
-        return this.useCount != 0;
+        return this.useCount.get() != 0;
     }
 
     /**
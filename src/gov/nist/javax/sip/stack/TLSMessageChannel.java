@@ -47,6 +47,7 @@ import gov.nist.javax.sip.parser.*;
 import gov.nist.core.*;
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 
 import javax.net.ssl.HandshakeCompletedListener;
@@ -82,7 +83,7 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
 
     protected boolean isCached;
 
-    protected boolean isRunning = true;
+    protected volatile boolean isRunning = true;
 
     private Thread mythread;
 
@@ -249,16 +250,30 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
      * Send message to whoever is connected to us. Uses the topmost via address to send to.
      *
      * @param msg is the message to send.
+     * @param length is the length of the message at the start of msg.
      * @param retry
      */
-    private void sendMessage(byte[] msg, boolean retry) throws IOException {
+    private void sendMessage(byte[] msg, int length, boolean retry) throws IOException {
         Socket sock = this.sipStack.ioHandler.sendBytes(
                 this.getMessageProcessor().getIpAddress(), this.peerAddress, this.peerPort,
-                this.peerProtocol, msg, retry,this);
+                this.peerProtocol, msg, length, retry,this);
         // Created a new socket so close the old one and stick the new
         // one in its place but dont do this if it is a datagram socket.
         // (could have replied via udp but received via tcp!).
-        if (sock != mySock && sock != null) {
+        if (sock != null)
+            useSocket(sock);
+
+    }
+
+    /**
+     * Read from the given socket in place of the current one, if it is a new
+     * one. This is also called by the IOHandler when a connection it opened
+     * for this channel in the background is established.
+     *
+     * @param sock the socket connected to the peer.
+     */
+    protected synchronized void useSocket(Socket sock) throws IOException {
+        if (sock != mySock) {
             try {
                 if (mySock != null)
                     mySock.close();
@@ -272,7 +287,6 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
             thread.setName("TLSMessageChannelThread");
             thread.start();
         }
-
     }
 
     /**
@@ -283,11 +297,11 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
      * @throws IOException If there is an error sending the message
      */
     public void sendMessage(SIPMessage sipMessage) throws IOException {
-        byte[] msg = sipMessage.encodeAsBytes(this.getTransport());
+        ByteBuffer msg = encodeMessage(sipMessage);
 
         long time = System.currentTimeMillis();
 
-        this.sendMessage(msg, sipMessage instanceof SIPRequest);
+        this.sendMessage(msg.array(), msg.limit(), sipMessage instanceof SIPRequest);
 
         if (this.sipStack.getStackLogger().isLoggingEnabled(ServerLogger.TRACE_MESSAGES))
             logMessage(sipMessage, peerAddress, peerPort, time);
@@ -471,7 +485,7 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
                     SIPResponse sipResponse = sipRequest
                             .createResponse(SIPResponse.MESSAGE_TOO_LARGE);
                     byte[] resp = sipResponse.encodeAsBytes(this.getTransport());
-                    this.sendMessage(resp, false);
+                    this.sendMessage(resp, resp.length, false);
                     throw new Exception("Message size exceeded");
                 }
 
@@ -580,7 +594,7 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
         myParser.processInput();
         // bug fix by Emmanuel Proulx
         int bufferSize = 4096;
-        this.tlsMessageProcessor.useCount++;
+        this.tlsMessageProcessor.useCount.incrementAndGet();
         this.isRunning = true;
         try {
             while (true) {
@@ -591,12 +605,6 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
                     if (nbytes == -1) {
                         hispipe.write("\r\n\r\n".getBytes("UTF-8"));
                         try {
-                            if (sipStack.maxConnections != -1) {
-                                synchronized (tlsMessageProcessor) {
-                                    tlsMessageProcessor.nConnections--;
-                                    tlsMessageProcessor.notify();
-                                }
-                            }
                             hispipe.close();
                             mySock.close();
                         } catch (IOException ioex) {
@@ -617,12 +625,6 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
                         if (sipStack.isLoggingEnabled())
                             sipStack.getStackLogger().logDebug("IOException  closing sock " + ex);
                         try {
-                            if (sipStack.maxConnections != -1) {
-                                synchronized (tlsMessageProcessor) {
-                                    tlsMessageProcessor.nConnections--;
-                                    tlsMessageProcessor.notify();
-                                }
-                            }
                             mySock.close();
                             hispipe.close();
                         } catch (IOException ioex) {
@@ -638,7 +640,7 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
         } finally {
             this.isRunning = false;
             this.tlsMessageProcessor.remove(this);
-            this.tlsMessageProcessor.useCount--;
+            this.tlsMessageProcessor.useCount.decrementAndGet();
             this.myParser.close();
         }
 
@@ -42,6 +42,7 @@ package gov.nist.javax.sip.stack;
 
 import gov.nist.core.HostPort;
 import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.stack.timers.SipTimer;
 
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLServerSocket;
@@ -49,15 +50,22 @@ import javax.net.ssl.SSLSocket;
 
 import java.io.IOException;
 import java.net.*;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Hashtable;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Sit in a loop waiting for incoming tls connections and start a new thread to handle each new
  * connection. This is the active object that creates new TLS MessageChannels (one for each new
- * accept socket).
+ * accept socket). The handshakes of the accepted connections are run by a pool of handshake
+ * threads, and a connection that has not completed its handshake in time is closed.
  * 
  * @version 1.2 $Revision: 1.25 $ $Date: 2010/02/22 23:32:58 $
  * 
@@ -66,17 +74,31 @@ import java.util.Iterator;
  */
 public class TLSMessageProcessor extends MessageProcessor {
 
-    protected int nConnections;
+    protected final AtomicInteger nConnections = new AtomicInteger();
 
-    private boolean isRunning;
+    private volatile boolean isRunning;
 
-    private Hashtable<String, TLSMessageChannel> tlsMessageChannels;
+    private final ConcurrentHashMap<String, TLSMessageChannel> tlsMessageChannels;
 
     private ServerSocket sock;
 
-    protected int useCount = 0;
+    protected final AtomicInteger useCount = new AtomicInteger();
 
-    private ArrayList<TLSMessageChannel> incomingTlsMessageChannels;
+    private final Set<TLSMessageChannel> incomingTlsMessageChannels;
+
+    private final Set<Handshake> pendingHandshakes;
+
+    private ThreadPoolExecutor handshakeExecutor;
+
+    private final AtomicLong handshakeCount = new AtomicLong();
+
+    private final AtomicLong handshakeFailureCount = new AtomicLong();
+
+    private final AtomicLong handshakeTimeoutCount = new AtomicLong();
+
+    private final AtomicLong totalHandshakeTime = new AtomicLong();
+
+    private final AtomicLong maxHandshakeTime = new AtomicLong();
 
     /**
      * Constructor.
@@ -88,8 +110,11 @@ public class TLSMessageProcessor extends MessageProcessor {
     protected TLSMessageProcessor(InetAddress ipAddress, SIPTransactionStack sipStack, int port) {
         super(ipAddress, port, "tls",sipStack);
         this.sipStack = sipStack;
-        this.tlsMessageChannels = new Hashtable<String, TLSMessageChannel>();
-        this.incomingTlsMessageChannels = new ArrayList<TLSMessageChannel>();
+        this.tlsMessageChannels = new ConcurrentHashMap<String, TLSMessageChannel>();
+        this.incomingTlsMessageChannels = Collections
+                .newSetFromMap(new ConcurrentHashMap<TLSMessageChannel, Boolean>());
+        this.pendingHandshakes = Collections
+                .newSetFromMap(new ConcurrentHashMap<Handshake, Boolean>());
 
     }
 
@@ -112,6 +137,17 @@ public class TLSMessageProcessor extends MessageProcessor {
         ((SSLServerSocket) this.sock).setEnabledCipherSuites(enabledCiphers);
         ((SSLServerSocket)this.sock).setWantClientAuth(true);
 
+        this.handshakeExecutor = new ThreadPoolExecutor(sipStack.tlsHandshakeThreads,
+                sipStack.tlsHandshakeThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable);
+                        thread.setDaemon(true);
+                        thread.setName("TLSHandshakeThread");
+                        return thread;
+                    }
+                });
+        this.handshakeExecutor.allowCoreThreadTimeOut(true);
 
         this.isRunning = true;
         thread.start();
@@ -126,24 +162,23 @@ public class TLSMessageProcessor extends MessageProcessor {
         while (this.isRunning) {
             try {
             	 
-                synchronized (this) {
-                    // sipStack.maxConnections == -1 means we are
-                    // willing to handle an "infinite" number of
-                    // simultaneous connections (no resource limitation).
-                    // This is the default behavior.
-                    while (sipStack.maxConnections != -1
-                            && this.nConnections >= sipStack.maxConnections) {
-                        try {
-                        	
-                            this.wait();
-
-                            if (!this.isRunning)
-                                return;
-                        } catch (InterruptedException ex) {
-                            break;
+                // sipStack.maxConnections == -1 means we are
+                // willing to handle an "infinite" number of
+                // simultaneous connections (no resource limitation).
+                // This is the default behavior.
+                if (sipStack.maxConnections != -1) {
+                    synchronized (nConnections) {
+                        while (nConnections.get() >= sipStack.maxConnections) {
+                            try {
+                                nConnections.wait();
+
+                                if (!this.isRunning)
+                                    return;
+                            } catch (InterruptedException ex) {
+                                break;
+                            }
                         }
                     }
-                    this.nConnections++;
                 }
                 if (sipStack.isLoggingEnabled()) {
                     sipStack.getStackLogger().logDebug(" waiting to accept new connection!");
@@ -154,12 +189,19 @@ public class TLSMessageProcessor extends MessageProcessor {
                 if (sipStack.isLoggingEnabled()) {
                     sipStack.getStackLogger().logDebug("Accepting new connection!");
                 }
+                if (sipStack.maxConnections != -1)
+                    nConnections.incrementAndGet();
 
                 
-               // Note that for an incoming message channel, the
-               // thread is already running
-
-                incomingTlsMessageChannels.add(new TLSMessageChannel(newsock, sipStack, this));
+                // The handshake is run by a handshake thread, which then
+                // starts the thread of the incoming message channel.
+                Handshake handshake = new Handshake(newsock);
+                try {
+                    handshakeExecutor.execute(handshake);
+                } catch (RejectedExecutionException ex) {
+                    // stopped meanwhile
+                    handshake.abort(false);
+                }
             } catch (SocketException ex) {
                 if ( this.isRunning ) {
                   sipStack.getStackLogger().logError(
@@ -194,7 +236,7 @@ public class TLSMessageProcessor extends MessageProcessor {
     /**
      * Stop the message processor. Feature suggested by Jeff Keyser.
      */
-    public synchronized void stop() {
+    public void stop() {
         if (!isRunning)
             return;
 
@@ -205,21 +247,23 @@ public class TLSMessageProcessor extends MessageProcessor {
             e.printStackTrace();
         }
 
-        Collection en = tlsMessageChannels.values();
-        for (Iterator it = en.iterator(); it.hasNext();) {
-            TLSMessageChannel next = (TLSMessageChannel) it.next();
+        for (TLSMessageChannel next : tlsMessageChannels.values()) {
             next.close();
         }
-        for (Iterator incomingMCIterator = incomingTlsMessageChannels.iterator(); incomingMCIterator
-                .hasNext();) {
-            TLSMessageChannel next = (TLSMessageChannel) incomingMCIterator.next();
+        for (TLSMessageChannel next : incomingTlsMessageChannels) {
             next.close();
         }
-        this.notify();
+        handshakeExecutor.shutdownNow();
+        for (Handshake handshake : pendingHandshakes) {
+            handshake.abort(false);
+        }
+        synchronized (nConnections) {
+            nConnections.notify();
+        }
 
     }
 
-    protected synchronized void remove(TLSMessageChannel tlsMessageChannel) {
+    protected void remove(TLSMessageChannel tlsMessageChannel) {
 
         String key = tlsMessageChannel.getKey();
         if (sipStack.isLoggingEnabled()) {
@@ -227,60 +271,203 @@ public class TLSMessageProcessor extends MessageProcessor {
         }
 
         /** May have been removed already */
-        if (tlsMessageChannels.get(key) == tlsMessageChannel)
-            this.tlsMessageChannels.remove(key);
+        tlsMessageChannels.remove(key, tlsMessageChannel);
         
-        incomingTlsMessageChannels.remove(tlsMessageChannel);
+        if (incomingTlsMessageChannels.remove(tlsMessageChannel))
+            connectionClosed();
     }
 
-    public synchronized MessageChannel createMessageChannel(HostPort targetHostPort)
-            throws IOException {
-        String key = MessageChannel.getKey(targetHostPort, "TLS");
-        if (tlsMessageChannels.get(key) != null) {
-            return (TLSMessageChannel) this.tlsMessageChannels.get(key);
-        } else {
-            TLSMessageChannel retval = new TLSMessageChannel(targetHostPort.getInetAddress(),
-                    targetHostPort.getPort(), sipStack, this);
-            this.tlsMessageChannels.put(key, retval);
-            retval.isCached = true;
-            if (sipStack.isLoggingEnabled()) {
-                sipStack.getStackLogger().logDebug("key " + key);
-                sipStack.getStackLogger().logDebug("Creating " + retval);
+    /**
+     * Count an incoming connection closed, and let the accept loop go on if it
+     * waits for the number of connections to drop below the maximum.
+     */
+    private void connectionClosed() {
+        if (sipStack.maxConnections != -1) {
+            nConnections.decrementAndGet();
+            synchronized (nConnections) {
+                nConnections.notify();
+            }
+        }
+    }
+
+    /**
+     * Get the number of handshakes the incoming connections have completed.
+     */
+    public long getHandshakeCount() {
+        return handshakeCount.get();
+    }
+
+    /**
+     * Get the number of handshakes of incoming connections that failed,
+     * including those that timed out.
+     */
+    public long getHandshakeFailureCount() {
+        return handshakeFailureCount.get();
+    }
+
+    /**
+     * Get the number of incoming connections closed for not completing their
+     * handshake in time.
+     */
+    public long getHandshakeTimeoutCount() {
+        return handshakeTimeoutCount.get();
+    }
+
+    /**
+     * Get the sum of the times in ms, from accept to completion, of the
+     * completed handshakes.
+     */
+    public long getTotalHandshakeTime() {
+        return totalHandshakeTime.get();
+    }
+
+    /**
+     * Get the longest time in ms, from accept to completion, a handshake took.
+     */
+    public long getMaxHandshakeTime() {
+        return maxHandshakeTime.get();
+    }
+
+    /**
+     * Get the number of accepted connections waiting for their handshake to
+     * complete.
+     */
+    public int getPendingHandshakeCount() {
+        return pendingHandshakes.size();
+    }
+
+    /**
+     * The handshake of an accepted connection, run by a handshake thread. It
+     * is also the timer task that closes the connection if the handshake has
+     * not completed by the handshake timeout.
+     */
+    private final class Handshake extends SIPStackTimerTask implements Runnable {
+        private final Socket newsock;
+
+        private final long accepted = System.currentTimeMillis();
+
+        // Guarded by this.
+        private boolean done;
+
+        Handshake(Socket newsock) {
+            this.newsock = newsock;
+            pendingHandshakes.add(this);
+            SipTimer timer = sipStack.getTimer();
+            if (sipStack.tlsHandshakeTimeout > 0 && timer != null)
+                timer.schedule(this, sipStack.tlsHandshakeTimeout);
+        }
+
+        /**
+         * Mark the handshake done.
+         * 
+         * @return false if it already was.
+         */
+        private synchronized boolean finish() {
+            if (done)
+                return false;
+            done = true;
+            pendingHandshakes.remove(this);
+            SipTimer timer = sipStack.getTimer();
+            if (sipStack.tlsHandshakeTimeout > 0 && timer != null)
+                timer.cancel(this);
+            return true;
+        }
+
+        /**
+         * Close the connection of a handshake that has not completed.
+         * 
+         * @return false if the handshake was already done.
+         */
+        boolean abort(boolean timedOut) {
+            if (!finish())
+                return false;
+            if (timedOut)
+                handshakeTimeoutCount.incrementAndGet();
+            handshakeFailureCount.incrementAndGet();
+            try {
+                newsock.close();
+            } catch (IOException ex) {
+                // already closed
+            }
+            connectionClosed();
+            return true;
+        }
+
+        public void runTask() {
+            if (abort(true) && sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logWarning(
+                        "TLS handshake timed out with " + newsock.getInetAddress());
+        }
+
+        public void run() {
+            TLSMessageChannel channel;
+            try {
+                channel = new TLSMessageChannel(newsock, sipStack, TLSMessageProcessor.this);
+            } catch (IOException ex) {
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logWarning(
+                            "TLS handshake failed with " + newsock.getInetAddress() + " : "
+                                    + ex);
+                abort(false);
+                return;
             }
-            return retval;
+            if (!finish()) {
+                // closed by the timeout as the handshake completed, which
+                // released the connection already
+                return;
+            }
+            long time = System.currentTimeMillis() - accepted;
+            handshakeCount.incrementAndGet();
+            totalHandshakeTime.addAndGet(time);
+            long max;
+            while (time > (max = maxHandshakeTime.get())
+                    && !maxHandshakeTime.compareAndSet(max, time))
+                ;
+            // the thread of the channel releases the connection when it
+            // ends, unless it ended before being added here
+            incomingTlsMessageChannels.add(channel);
+            if (!channel.isRunning)
+                remove(channel);
         }
     }
 
-    protected synchronized void cacheMessageChannel(TLSMessageChannel messageChannel) {
+    public MessageChannel createMessageChannel(HostPort targetHostPort)
+            throws IOException {
+        return createMessageChannel(targetHostPort.getInetAddress(), targetHostPort.getPort());
+    }
+
+    protected void cacheMessageChannel(TLSMessageChannel messageChannel) {
         String key = messageChannel.getKey();
-        TLSMessageChannel currentChannel = (TLSMessageChannel) tlsMessageChannels.get(key);
-        if (currentChannel != null) {
+        TLSMessageChannel currentChannel = tlsMessageChannels.put(key, messageChannel);
+        if (currentChannel != null && currentChannel != messageChannel) {
             if (sipStack.isLoggingEnabled())
                 sipStack.getStackLogger().logDebug("Closing " + key);
             currentChannel.close();
         }
         if (sipStack.isLoggingEnabled())
             sipStack.getStackLogger().logDebug("Caching " + key);
-        this.tlsMessageChannels.put(key, messageChannel);
 
     }
 
-    public synchronized MessageChannel createMessageChannel(InetAddress host, int port)
+    public MessageChannel createMessageChannel(InetAddress host, int port)
             throws IOException {
         try {
             String key = MessageChannel.getKey(host, port, "TLS");
-            if (tlsMessageChannels.get(key) != null) {
-                return (TLSMessageChannel) this.tlsMessageChannels.get(key);
-            } else {
-                TLSMessageChannel retval = new TLSMessageChannel(host, port, sipStack, this);
-                this.tlsMessageChannels.put(key, retval);
-                retval.isCached = true;
-                if (sipStack.isLoggingEnabled()) {
-                    sipStack.getStackLogger().logDebug("key " + key);
-                    sipStack.getStackLogger().logDebug("Creating " + retval);
-                }
+            TLSMessageChannel retval = tlsMessageChannels.get(key);
+            if (retval != null)
+                return retval;
+            // an outgoing channel connects on its first message, so the one
+            // losing a race to be cached is simply dropped
+            TLSMessageChannel messageChannel = new TLSMessageChannel(host, port, sipStack, this);
+            messageChannel.isCached = true;
+            retval = tlsMessageChannels.putIfAbsent(key, messageChannel);
+            if (retval != null)
                 return retval;
+            if (sipStack.isLoggingEnabled()) {
+                sipStack.getStackLogger().logDebug("key " + key);
+                sipStack.getStackLogger().logDebug("Creating " + messageChannel);
             }
+            return messageChannel;
         } catch (UnknownHostException ex) {
             throw new IOException(ex.getMessage());
         }
@@ -294,7 +481,7 @@ public class TLSMessageProcessor extends MessageProcessor {
     }
 
     public boolean inUse() {
-        return this.useCount != 0;
+        return this.useCount.get() != 0;
     }
 
     /**
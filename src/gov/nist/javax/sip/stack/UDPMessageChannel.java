@@ -45,6 +45,7 @@ import gov.nist.javax.sip.header.ViaList;
 import gov.nist.javax.sip.message.SIPMessage;
 import gov.nist.javax.sip.message.SIPRequest;
 import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.parser.MessageBufferParser;
 import gov.nist.javax.sip.parser.MessageParser;
 import gov.nist.javax.sip.parser.ParseExceptionListener;
 
@@ -54,9 +55,12 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
+import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
 
 import javax.sip.address.Hop;
 
@@ -131,6 +135,11 @@ public class UDPMessageChannel extends MessageChannel implements
     private DatagramPacket incomingPacket;
 
     private long receptionTime;
+
+    /**
+     * The queue this channel takes its packets from when it is part of the pool.
+     */
+    private BlockingQueue<DatagramPacket> messageQueue;
     
     /*
      * A table that keeps track of when the last pingback was sent to a given remote IP address
@@ -168,7 +177,24 @@ public class UDPMessageChannel extends MessageChannel implements
      */
     protected UDPMessageChannel(SIPTransactionStack stack,
             UDPMessageProcessor messageProcessor) {
+        this(stack, messageProcessor, messageProcessor.messageQueue);
+    }
+
+    /**
+     * Constructor - a pooled channel taking its packets from the given queue.
+     *
+     * @param stack
+     *            is the shared SIPStack structure
+     * @param messageProcessor
+     *            is the creating message processor.
+     * @param messageQueue
+     *            is the queue filled by the socket this channel is serving.
+     */
+    protected UDPMessageChannel(SIPTransactionStack stack,
+            UDPMessageProcessor messageProcessor,
+            BlockingQueue<DatagramPacket> messageQueue) {
         super.messageProcessor = messageProcessor;
+        this.messageQueue = messageQueue;
         this.sipStack = stack;
 
         // jeand : Create a new string message parser to parse the list of messages.
@@ -284,7 +310,7 @@ public class UDPMessageChannel extends MessageChannel implements
 ////                        }
 //                    }
                     try {
-                    	packet = udpMessageProcessor.messageQueue.take();
+                    	packet = messageQueue.take();
                     } catch (InterruptedException ex) {
                       if (!udpMessageProcessor.isRunning)
                           return;
@@ -303,6 +329,12 @@ public class UDPMessageChannel extends MessageChannel implements
                 sipStack.getStackLogger().logError(
                         "Error while processing incoming UDP packet", e);
             }
+            // The parsed message does not reference the buffer, hand it back
+            // to the processor for the next datagram.
+            this.incomingPacket = null;
+            if (packet != null) {
+                ((UDPMessageProcessor) messageProcessor).releasePacket(packet);
+            }
 
             if (sipStack.threadPoolSize == -1) {
                 return;
@@ -320,10 +352,9 @@ public class UDPMessageChannel extends MessageChannel implements
             throws Exception {
         this.peerAddress = packet.getAddress();
         int packetLength = packet.getLength();
-        // Read bytes and put it in a eueue.
+        // The message is parsed in place, the packet buffer is reused
+        // once this method returns.
         byte[] bytes = packet.getData();
-        byte[] msgBytes = new byte[packetLength];
-        System.arraycopy(bytes, 0, msgBytes, 0, packetLength);
 
         // Do debug logging.
         if (sipStack.isLoggingEnabled()) {
@@ -337,13 +368,20 @@ public class UDPMessageChannel extends MessageChannel implements
         SIPMessage sipMessage = null;
         try {
             this.receptionTime = System.currentTimeMillis();
-            sipMessage = myParser.parseSIPMessage(msgBytes, true, false, this);
+            if (myParser instanceof MessageBufferParser) {
+                sipMessage = ((MessageBufferParser) myParser).parseSIPMessage(bytes, packetLength,
+                        true, false, this);
+            } else {
+                // the parser may keep the buffer, which goes back to the pool
+                sipMessage = myParser.parseSIPMessage(Arrays.copyOf(bytes, packetLength),
+                        true, false, this);
+            }
 //            myParser = null;
         } catch (ParseException ex) {
 //            myParser = null; // let go of the parser reference.
             if (sipStack.isLoggingEnabled()) {
                 this.sipStack.getStackLogger().logDebug("Rejecting message !  "
-                        + new String(msgBytes));
+                        + new String(bytes, 0, packetLength));
                 this.sipStack.getStackLogger().logDebug("error message "
                         + ex.getMessage());
                 this.sipStack.getStackLogger().logException(ex);
@@ -352,7 +390,7 @@ public class UDPMessageChannel extends MessageChannel implements
 
             // JvB: send a 400 response for requests (except ACK)
             // Currently only UDP, @todo also other transports
-            String msgString = new String(msgBytes, 0, packetLength);
+            String msgString = new String(bytes, 0, packetLength);
             if (!msgString.startsWith("SIP/") && !msgString.startsWith("ACK ")) {
 
                 String badReqRes = createBadReqRes(msgString, ex);
@@ -408,8 +446,8 @@ public class UDPMessageChannel extends MessageChannel implements
                 || sipMessage.getCallId() == null
                 || sipMessage.getCSeq() == null
                 || topMostVia == null) {
-            String badmsg = new String(msgBytes);
             if (sipStack.isLoggingEnabled()) {
+                String badmsg = new String(bytes, 0, packetLength);
                 this.sipStack.getStackLogger().logError("bad message " + badmsg);
                 this.sipStack.getStackLogger().logError(">>> Dropped Bad Msg "
                         + "From = " + sipMessage.getFrom() + "To = "
@@ -655,9 +693,9 @@ public class UDPMessageChannel extends MessageChannel implements
                 }
             }
 
-            byte[] msg = sipMessage.encodeAsBytes( this.getTransport() );
+            ByteBuffer msg = encodeMessage(sipMessage);
 
-            sendMessage(msg, peerAddress, peerPort, peerProtocol,
+            sendMessage(msg.array(), msg.limit(), peerAddress, peerPort, peerProtocol,
                     sipMessage instanceof SIPRequest);
 
         } catch (IOException ex) {
@@ -755,6 +793,17 @@ public class UDPMessageChannel extends MessageChannel implements
     protected void sendMessage(byte[] msg, InetAddress peerAddress,
             int peerPort, String peerProtocol, boolean retry)
             throws IOException {
+        sendMessage(msg, msg.length, peerAddress, peerPort, peerProtocol, retry);
+    }
+
+    /**
+     * Send the first length bytes of an array to a specified receiver address.
+     *
+     * @see #sendMessage(byte[], InetAddress, int, String, boolean)
+     */
+    protected void sendMessage(byte[] msg, int length, InetAddress peerAddress,
+            int peerPort, String peerProtocol, boolean retry)
+            throws IOException {
         // Via is not included in the request so silently drop the reply.
         if (peerPort == -1) {
             if (sipStack.isLoggingEnabled()) {
@@ -765,11 +814,11 @@ public class UDPMessageChannel extends MessageChannel implements
         } else {
             if (sipStack.isLoggingEnabled()) {
                 this.sipStack.getStackLogger().logDebug( ":sendMessage " + peerAddress.getHostAddress() + "/"
-                        + peerPort + "\n" + " messageSize = " + msg.length);
+                        + peerPort + "\n" + " messageSize = " + length);
             }
         }
         if (peerProtocol.compareToIgnoreCase("UDP") == 0) {
-            DatagramPacket reply = new DatagramPacket(msg, msg.length,
+            DatagramPacket reply = new DatagramPacket(msg, 0, length,
                     peerAddress, peerPort);
 
             try {
@@ -784,7 +833,7 @@ public class UDPMessageChannel extends MessageChannel implements
                 if (sipStack.isLoggingEnabled()) {
                     this.sipStack.getStackLogger().logDebug("sendMessage "
                             + peerAddress.getHostAddress() + "/" + peerPort
-                            + "\n" + new String(msg));
+                            + "\n" + new String(msg, 0, length));
                 }
                 sock.send(reply);
                 if (!sipStack.udpFlag)
@@ -799,9 +848,9 @@ public class UDPMessageChannel extends MessageChannel implements
             // Use TCP to talk back to the sender.
             Socket outputSocket = sipStack.ioHandler.sendBytes(
                     this.messageProcessor.getIpAddress(), peerAddress,
-                    peerPort, "tcp", msg, retry,this);
+                    peerPort, "tcp", msg, length, retry,this);
             OutputStream myOutputStream = outputSocket.getOutputStream();
-            myOutputStream.write(msg, 0, msg.length);
+            myOutputStream.write(msg, 0, length);
             myOutputStream.flush();
             // The socket is cached (dont close it!);
         }
@@ -30,7 +30,11 @@ package gov.nist.javax.sip.stack;
 
 import gov.nist.core.HostPort;
 import gov.nist.core.InternalErrorHandler;
+import gov.nist.core.RingBlockingQueue;
 import gov.nist.core.ThreadAuditor;
+import gov.nist.core.net.DatagramChannelNetworkLayer;
+import gov.nist.core.net.NetworkLayer;
+import gov.nist.javax.sip.stack.CongestionControlPolicy.Decision;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
@@ -39,9 +43,10 @@ import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
 import java.util.LinkedList;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Sit in a loop and handle incoming udp datagram messages. For each Datagram
@@ -87,15 +92,59 @@ public class UDPMessageProcessor extends MessageProcessor {
 
     protected DatagramSocket sock;
 
+    /**
+     * Additional sockets bound to the same port with SO_REUSEPORT when
+     * gov.nist.javax.sip.UDP_RECEIVE_SOCKETS is greater than 1. Each one is
+     * read by its own thread and feeds its own queue.
+     */
+    protected UDPReceiver[] additionalReceivers = new UDPReceiver[0];
+
     /**
      * A flag that is set to false to exit the message processor (suggestion by
      * Jeff Keyser).
      */
     protected boolean isRunning;
-    
-    private static final int HIGHWAT=5000;
-    
-    private static final int LOWAT=2500;
+
+    /**
+     * # of messages dropped by congestion control, indexed by decision.
+     */
+    private final AtomicLongArray droppedMessages = new AtomicLongArray(
+            Decision.values().length);
+
+    /**
+     * Max # of idle packets kept for reuse by the receiving threads.
+     */
+    private static final int PACKET_POOL_SIZE = 1024;
+
+    /**
+     * Largest payload a UDP datagram can carry.
+     */
+    private static final int MAX_UDP_DATAGRAM_SIZE = 65535;
+
+    /**
+     * Packets handed back by the message channels once parsed, so that the
+     * receiving threads do not allocate a receive buffer per datagram.
+     */
+    private final BlockingQueue<DatagramPacket> packetPool = new RingBlockingQueue<DatagramPacket>(
+            PACKET_POOL_SIZE);
+
+    /**
+     * Reads one of the additional sockets.
+     */
+    protected class UDPReceiver implements Runnable {
+        protected DatagramSocket socket;
+
+        protected BlockingQueue<DatagramPacket> messageQueue = new RingBlockingQueue<DatagramPacket>(
+                sipStack.getUdpQueueCapacity());
+
+        protected UDPReceiver(DatagramSocket socket) {
+            this.socket = socket;
+        }
+
+        public void run() {
+            receive(socket, messageQueue);
+        }
+    }
 
     /**
      * Constructor.
@@ -109,22 +158,21 @@ public class UDPMessageProcessor extends MessageProcessor {
 
         this.sipStack = sipStack;
 
-        this.messageQueue = new LinkedBlockingQueue<DatagramPacket>();
+        this.messageQueue = new RingBlockingQueue<DatagramPacket>(sipStack.getUdpQueueCapacity());
 
         this.port = port;
         try {
-            this.sock = sipStack.getNetworkLayer().createDatagramSocket(port,
-                    ipAddress);
+            if (sipStack.getUdpReceiveSockets() > 1) {
+                openReusePortSockets(ipAddress, port, sipStack.getUdpReceiveSockets());
+            }
+            if (this.sock == null) {
+                this.sock = sipStack.getNetworkLayer().createDatagramSocket(port,
+                        ipAddress);
+            }
             // Create a new datagram socket.
-            sock.setReceiveBufferSize(sipStack.getReceiveUdpBufferSize());
-            sock.setSendBufferSize(sipStack.getSendUdpBufferSize());
-
-            /**
-             * If the thread auditor is enabled, define a socket timeout value in order to
-             * prevent sock.receive() from blocking forever
-             */
-            if (sipStack.getThreadAuditor().isEnabled()) {
-                sock.setSoTimeout((int) sipStack.getThreadAuditor().getPingIntervalInMillisecs());
+            configureSocket(sock);
+            for (int i = 0; i < additionalReceivers.length; i++) {
+                configureSocket(additionalReceivers[i].socket);
             }
             if ( ipAddress.getHostAddress().equals(IN_ADDR_ANY)  ||
                  ipAddress.getHostAddress().equals(IN6_ADDR_ANY)){
@@ -140,6 +188,68 @@ public class UDPMessageProcessor extends MessageProcessor {
         }
     }
 
+    private void configureSocket(DatagramSocket socket) throws SocketException {
+        socket.setReceiveBufferSize(sipStack.getReceiveUdpBufferSize());
+        socket.setSendBufferSize(sipStack.getSendUdpBufferSize());
+
+        /**
+         * If the thread auditor is enabled, define a socket timeout value in order to
+         * prevent sock.receive() from blocking forever
+         */
+        if (sipStack.getThreadAuditor().isEnabled()) {
+            socket.setSoTimeout((int) sipStack.getThreadAuditor().getPingIntervalInMillisecs());
+        }
+    }
+
+    /**
+     * Open several sockets on the same address and port so that the kernel spreads the
+     * incoming datagrams over them. Falls back to a single socket if the network layer
+     * cannot create datagram channels or SO_REUSEPORT is not available.
+     */
+    private void openReusePortSockets(InetAddress ipAddress, int port, int count) {
+        NetworkLayer networkLayer = sipStack.getNetworkLayer();
+        if (!(networkLayer instanceof DatagramChannelNetworkLayer)
+                || ipAddress.isMulticastAddress()) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logWarning(
+                        "UDP_RECEIVE_SOCKETS ignored, the network layer cannot create datagram channels");
+            return;
+        }
+        DatagramChannel[] channels = new DatagramChannel[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                // all the sockets have to be bound to the port the first one got
+                channels[i] = ((DatagramChannelNetworkLayer) networkLayer)
+                        .createDatagramChannel(i == 0 ? port : channels[0].socket()
+                                .getLocalPort(), ipAddress, true);
+            }
+        } catch (IOException ex) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logWarning(
+                        "UDP_RECEIVE_SOCKETS ignored, could not open "
+                                + count + " sockets on port " + port + " : "
+                                + ex.getMessage());
+            for (int i = 0; i < count; i++) {
+                if (channels[i] != null) {
+                    try {
+                        channels[i].close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+            return;
+        }
+        this.sock = channels[0].socket();
+        this.additionalReceivers = new UDPReceiver[count - 1];
+        for (int i = 1; i < count; i++) {
+            additionalReceivers[i - 1] = new UDPReceiver(channels[i].socket());
+        }
+        if (sipStack.isLoggingEnabled())
+            sipStack.getStackLogger().logDebug(
+                    "UDPMessageProcessor: reading port " + sock.getLocalPort()
+                            + " from " + count + " sockets");
+    }
+
 
 
     /**
@@ -158,6 +268,7 @@ public class UDPMessageProcessor extends MessageProcessor {
 
 
         this.isRunning = true;
+        this.messageChannels = new LinkedList();
         Thread thread = new Thread(this);
         thread.setDaemon(true);
         // Issue #32 on java.net
@@ -165,21 +276,41 @@ public class UDPMessageProcessor extends MessageProcessor {
         // Issue #184
         thread.setPriority(Thread.MAX_PRIORITY);
         thread.start();
+        for (int i = 0; i < additionalReceivers.length; i++) {
+            thread = new Thread(additionalReceivers[i]);
+            thread.setDaemon(true);
+            thread.setName("UDPMessageProcessorThread-" + (i + 1));
+            thread.setPriority(Thread.MAX_PRIORITY);
+            thread.start();
+        }
     }
 
     /**
      * Thread main routine.
      */
     public void run() {
-        // Check for running flag.
-        this.messageChannels = new LinkedList();
+        receive(sock, messageQueue);
+    }
+
+    /**
+     * Read a socket and queue the datagrams for the message channels.
+     *
+     * @param sock the socket to read
+     * @param messageQueue the queue of the message channels of this socket
+     */
+    protected void receive(DatagramSocket sock, BlockingQueue<DatagramPacket> messageQueue) {
         // start all our messageChannels (unless the thread pool size is
         // infinity.
         if (sipStack.threadPoolSize != -1) {
-            for (int i = 0; i < sipStack.threadPoolSize; i++) {
+            // the pool is shared between the sockets
+            int channels = Math.max(1, sipStack.threadPoolSize
+                    / (additionalReceivers.length + 1));
+            for (int i = 0; i < channels; i++) {
                 UDPMessageChannel channel = new UDPMessageChannel(sipStack,
-                        this);
-                this.messageChannels.add(channel);
+                        this, messageQueue);
+                synchronized (messageChannels) {
+                    this.messageChannels.add(channel);
+                }
 
             }
         }
@@ -187,6 +318,10 @@ public class UDPMessageProcessor extends MessageProcessor {
         // Ask the auditor to monitor this thread
         ThreadAuditor.ThreadHandle threadHandle = sipStack.getThreadAuditor().addCurrentThread();
 
+        // Packet being filled, kept across iterations when the previous
+        // datagram was dropped.
+        DatagramPacket packet = null;
+
         // Somebody asked us to exit. if isRunnning is set to false.
         while (this.isRunning) {
 
@@ -194,45 +329,28 @@ public class UDPMessageProcessor extends MessageProcessor {
                 // Let the thread auditor know we're up and running
                 threadHandle.ping();
 
-                int bufsize = sock.getReceiveBufferSize();
-                byte message[] = new byte[bufsize];
-                DatagramPacket packet = new DatagramPacket(message, bufsize);
+                if (packet == null) {
+                    packet = acquirePacket(sock);
+                } else {
+                    packet.setLength(packet.getData().length);
+                }
                 sock.receive(packet);
 
-           
-             
-             // This is a simplistic congestion control algorithm.
-             // It accepts packets if queuesize is < LOWAT. It drops
-             // requests if the queue size exceeds a HIGHWAT and accepts
-             // requests with probability p proportional to the difference
-             // between current queue size and LOWAT in the range
-             // of queue sizes between HIGHWAT and LOWAT.
-             // TODO -- penalize spammers by looking at the source
-             // port and IP address.
-             if ( sipStack.stackDoesCongestionControl ) {  
-            	 if ( this.messageQueue.size() >= HIGHWAT) {
-            		 if (sipStack.isLoggingEnabled()) {
-            			 sipStack.getStackLogger().logDebug("Dropping message -- queue length exceeded");
-            		 }
-            		 //System.out.println("HIGHWAT Drop!");
-            		 continue;
-            	 } else if ( this.messageQueue.size() > LOWAT && this .messageQueue.size() < HIGHWAT ) {
-            		 // Drop the message with a probabilty that is linear in the range 0 to 1
-            		 float threshold = ((float)(messageQueue.size() - LOWAT))/ ((float)(HIGHWAT - LOWAT));
-            		 boolean decision = Math.random() > 1.0 - threshold;
-            		 if ( decision ) {
-            			 if (sipStack.isLoggingEnabled()) {
-                            sipStack.getStackLogger().logDebug("Dropping message with probability  " + (1.0 - threshold));
-
-            			 }
-            			 //System.out.println("RED Drop!");
-            			 continue;
-            		 }
-            	 }
-             }
-                
-                
-                
+                CongestionControlPolicy congestionControlPolicy = sipStack.getCongestionControlPolicy();
+                if (sipStack.stackDoesCongestionControl && congestionControlPolicy != null) {
+                    Decision decision = congestionControlPolicy.accept(packet.getData(),
+                            packet.getLength(), messageQueue.size(), sipStack
+                                    .getUdpQueueCapacity());
+                    if (decision != Decision.ACCEPT) {
+                        droppedMessages.incrementAndGet(decision.ordinal());
+                        if (sipStack.isLoggingEnabled()) {
+                            sipStack.getStackLogger().logDebug(
+                                    "Dropping message -- " + decision);
+                        }
+                        continue;
+                    }
+                }
+
                 // Count of # of packets in process.
                 // this.useCount++;
                 if (sipStack.threadPoolSize != -1) {
@@ -242,7 +360,14 @@ public class UDPMessageProcessor extends MessageProcessor {
                     // condition you will have to call notifyAll instead of
                     // notify below.
 
-                    this.messageQueue.offer(packet);                 
+                    if (!messageQueue.offer(packet)) {
+                        droppedMessages.incrementAndGet(Decision.DROP_QUEUE_FULL.ordinal());
+                        if (sipStack.isLoggingEnabled()) {
+                            sipStack.getStackLogger().logDebug(
+                                    "Dropping message -- queue full");
+                        }
+                        continue;
+                    }
 //                    synchronized (messageQueue) {
                           // was addLast   
 //                    	  this.messageQueue.add(packet);
@@ -251,6 +376,8 @@ public class UDPMessageProcessor extends MessageProcessor {
                 } else {
                     new UDPMessageChannel(sipStack, this, packet);
                 }
+                // the message channel owns the packet now
+                packet = null;
             } catch (SocketTimeoutException ex) {
               // This socket timeout alows us to ping the thread auditor periodically
             } catch (SocketException ex) {
@@ -279,6 +406,29 @@ public class UDPMessageProcessor extends MessageProcessor {
         }
     }
 
+    /**
+     * Take a packet from the pool or allocate one large enough for the
+     * receive buffer of the socket.
+     */
+    private DatagramPacket acquirePacket(DatagramSocket sock) throws SocketException {
+        DatagramPacket packet = packetPool.poll();
+        if (packet == null) {
+            int bufsize = Math.min(sock.getReceiveBufferSize(), MAX_UDP_DATAGRAM_SIZE);
+            packet = new DatagramPacket(new byte[bufsize], bufsize);
+        } else {
+            packet.setLength(packet.getData().length);
+        }
+        return packet;
+    }
+
+    /**
+     * Give a packet back once its content has been parsed. The packet must
+     * not be referenced by the caller afterwards.
+     */
+    protected void releasePacket(DatagramPacket packet) {
+        packetPool.offer(packet);
+    }
+
     /**
      * Shut down the message processor. Close the socket for recieving incoming
      * messages.
@@ -288,6 +438,9 @@ public class UDPMessageProcessor extends MessageProcessor {
             this.isRunning = false;
 //            this.messageQueue.notifyAll();
             sock.close();
+            for (int i = 0; i < additionalReceivers.length; i++) {
+                additionalReceivers[i].socket.close();
+            }
 //        }
     }
 
@@ -344,6 +497,18 @@ public class UDPMessageProcessor extends MessageProcessor {
         return 8*1024;
     }
 
+    /**
+     * Number of incoming messages dropped for the given reason since the
+     * processor was created.
+     *
+     * @param decision
+     *            the congestion control decision
+     * @return the count of dropped messages
+     */
+    public long getDroppedMessageCount(Decision decision) {
+        return droppedMessages.get(decision.ordinal());
+    }
+
     /**
      * Return true if there are any messages in use.
      */
@@ -351,7 +516,13 @@ public class UDPMessageProcessor extends MessageProcessor {
 //        synchronized (messageQueue) {
 //            return messageQueue.size() != 0;
 //        }
-    	return !messageQueue.isEmpty();
+    	if (!messageQueue.isEmpty())
+    	    return true;
+    	for (int i = 0; i < additionalReceivers.length; i++) {
+    	    if (!additionalReceivers[i].messageQueue.isEmpty())
+    	        return true;
+    	}
+    	return false;
     }
 
 }
@@ -0,0 +1,401 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package gov.nist.javax.sip.stack.timers;
+
+import gov.nist.core.StackLogger;
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.stack.SIPStackTimerTask;
+
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Implementation of the SIP Timer based on a hashed timing wheel.
+ * 
+ * Time is divided into ticks of a configurable duration and each tick maps to a bucket of the
+ * wheel. Tasks are kept in doubly linked lists in their bucket together with the number of
+ * wheel rounds remaining before they expire, so scheduling and cancelling a task are O(1)
+ * operations and there is no priority queue to purge. Cancelled tasks are only flagged and
+ * unlinked by the timer thread on its next tick, which keeps mass cancellation
+ * (e.g. when a lot of transactions terminate at once) cheap for the calling threads.
+ * 
+ * The precision of the timer is the tick duration, which can be set through the
+ * gov.nist.javax.sip.TIMER_TICK_DURATION_MILLISECONDS stack property (default 10 ms).
+ * The number of buckets can be set through the gov.nist.javax.sip.TIMER_WHEEL_SIZE stack
+ * property (default 512, rounded up to the next power of two).
+ */
+public class HashedWheelSipTimer implements SipTimer {
+
+	public static final long DEFAULT_TICK_DURATION = 10;
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+	// maximum number of new tasks moved to the wheel per tick, so a burst of schedules cannot starve the timer thread
+	private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+	protected AtomicBoolean started = new AtomicBoolean(false);
+	protected SipStackImpl sipStackImpl;
+
+	private long tickDuration = DEFAULT_TICK_DURATION;
+	private WheelBucket[] wheel;
+	private int mask;
+	private long tick;
+	private long startTime;
+	private Thread workerThread;
+
+	private final Queue<WheelTimeout> newTimeouts = new ConcurrentLinkedQueue<WheelTimeout>();
+	private final Queue<WheelTimeout> cancelledTimeouts = new ConcurrentLinkedQueue<WheelTimeout>();
+
+	private static final int ST_PENDING = 0;
+	private static final int ST_CANCELLED = 1;
+	private static final int ST_EXPIRED = 2;
+
+	/**
+	 * A task scheduled in the wheel
+	 */
+	private class WheelTimeout {
+		private final AtomicInteger state = new AtomicInteger(ST_PENDING);
+		private SIPStackTimerTask task;
+		private long deadline;
+		private final long period;
+		private long remainingRounds;
+		private WheelBucket bucket;
+		private WheelTimeout next;
+		private WheelTimeout prev;
+
+		public WheelTimeout(SIPStackTimerTask task, long deadline, long period) {
+			this.task = task;
+			this.deadline = deadline;
+			this.period = period;
+			task.setSipTimerTask(this);
+		}
+
+		public boolean cancel() {
+			SIPStackTimerTask sipStackTimerTask = task;
+			if(sipStackTimerTask != null) {
+				sipStackTimerTask.cleanUpBeforeCancel();
+				sipStackTimerTask.setSipTimerTask(null);
+				task = null;
+			}
+			if(!state.compareAndSet(ST_PENDING, ST_CANCELLED)) {
+				return false;
+			}
+			// the timer thread will unlink it from its bucket on the next tick
+			cancelledTimeouts.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == ST_CANCELLED;
+		}
+
+		public void expire() {
+			SIPStackTimerTask sipStackTimerTask = task;
+			if(period <= 0 && !state.compareAndSet(ST_PENDING, ST_EXPIRED)) {
+				return;
+			}
+			try {
+				// task can be null if it has been cancelled
+				if(sipStackTimerTask != null) {
+					sipStackTimerTask.runTask();
+				}
+			} catch (Exception e) {
+				sipStackImpl.getStackLogger().logError("SIP stack timer task failed due to exception", e);
+			} catch (Error e) {
+				// keep the timer thread running the other tasks
+				sipStackImpl.getStackLogger().logError("SIP stack timer task failed due to error");
+				sipStackImpl.getStackLogger().logException(e);
+			}
+			if(period > 0 && state.get() == ST_PENDING && started.get()) {
+				// fixed delay : the next run is computed from the end of this one,
+				// it goes through the queue so it cannot land in the bucket being expired
+				deadline = currentTime() + period;
+				newTimeouts.add(this);
+			}
+		}
+	}
+
+	/**
+	 * Doubly linked list of the tasks hashed to the same tick of the wheel
+	 */
+	private static class WheelBucket {
+		private WheelTimeout head;
+		private WheelTimeout tail;
+
+		public void add(WheelTimeout timeout) {
+			timeout.bucket = this;
+			if(head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		public WheelTimeout remove(WheelTimeout timeout) {
+			WheelTimeout next = timeout.next;
+			if(timeout.prev != null) {
+				timeout.prev.next = next;
+			}
+			if(timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			}
+			if(timeout == head) {
+				if(timeout == tail) {
+					tail = null;
+					head = null;
+				} else {
+					head = next;
+				}
+			} else if(timeout == tail) {
+				tail = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.bucket = null;
+			return next;
+		}
+
+		public void clear() {
+			WheelTimeout timeout = head;
+			while(timeout != null) {
+				WheelTimeout next = timeout.next;
+				timeout.prev = null;
+				timeout.next = null;
+				timeout.bucket = null;
+				timeout = next;
+			}
+			head = tail = null;
+		}
+	}
+
+	private class Worker implements Runnable {
+		public void run() {
+			while(started.get()) {
+				long deadline = waitForNextTick();
+				if(deadline < 0) {
+					continue;
+				}
+				processCancelledTimeouts();
+				transferTimeoutsToBuckets();
+				WheelBucket bucket = wheel[(int) (tick & mask)];
+				expireTimeouts(bucket, deadline);
+				tick++;
+			}
+			for(WheelBucket bucket : wheel) {
+				bucket.clear();
+			}
+			newTimeouts.clear();
+			cancelledTimeouts.clear();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.stack.timers.SipTimer#schedule(gov.nist.javax.sip.stack.SIPStackTimerTask, long)
+	 */
+	public boolean schedule(SIPStackTimerTask task, long delay) {
+		return scheduleWithFixedDelay(task, delay, 0);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.stack.timers.SipTimer#scheduleWithFixedDelay(gov.nist.javax.sip.stack.SIPStackTimerTask, long, long)
+	 */
+	public boolean scheduleWithFixedDelay(SIPStackTimerTask task, long delay,
+			long period) {
+		if(!started.get()) {
+			throw new IllegalStateException("The SIP Stack Timer has been stopped, no new tasks can be scheduled !");
+		}
+		if(delay < 0) {
+			delay = 0;
+		}
+		newTimeouts.add(new WheelTimeout(task, currentTime() + delay, period));
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.stack.timers.SipTimer#cancel(gov.nist.javax.sip.stack.SIPStackTimerTask)
+	 */
+	public boolean cancel(SIPStackTimerTask task) {
+		WheelTimeout timeout = (WheelTimeout) task.getSipTimerTask();
+		if(timeout == null) {
+			return false;
+		}
+		return timeout.cancel();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.stack.timers.SipTimer#start(gov.nist.javax.sip.SipStackImpl, java.util.Properties)
+	 */
+	public void start(SipStackImpl sipStack, Properties configurationProperties) {
+		sipStackImpl= sipStack;
+		int wheelSize = DEFAULT_WHEEL_SIZE;
+		try {
+			tickDuration = Long.parseLong(configurationProperties.getProperty(
+					"gov.nist.javax.sip.TIMER_TICK_DURATION_MILLISECONDS", "" + DEFAULT_TICK_DURATION));
+			wheelSize = Integer.parseInt(configurationProperties.getProperty(
+					"gov.nist.javax.sip.TIMER_WHEEL_SIZE", "" + DEFAULT_WHEEL_SIZE));
+		} catch (NumberFormatException ex) {
+			sipStackImpl.getStackLogger().logError(
+					"Bad configuration value for the hashed wheel timer, using defaults", ex);
+			tickDuration = DEFAULT_TICK_DURATION;
+			wheelSize = DEFAULT_WHEEL_SIZE;
+		}
+		if(tickDuration <= 0) {
+			tickDuration = DEFAULT_TICK_DURATION;
+		}
+		if(wheelSize <= 0 || wheelSize > (1 << 30)) {
+			wheelSize = DEFAULT_WHEEL_SIZE;
+		}
+		int normalizedWheelSize = 1;
+		while(normalizedWheelSize < wheelSize) {
+			normalizedWheelSize <<= 1;
+		}
+		wheel = new WheelBucket[normalizedWheelSize];
+		for(int i = 0; i < wheel.length; i++) {
+			wheel[i] = new WheelBucket();
+		}
+		mask = wheel.length - 1;
+		tick = 0;
+		startTime = System.nanoTime();
+		started.set(true);
+		workerThread = new Thread(new Worker(), "HashedWheelSipTimer");
+		workerThread.setDaemon(true);
+		workerThread.start();
+		if(sipStackImpl.getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+			sipStackImpl.getStackLogger().logInfo("the sip stack timer " + this.getClass().getName() + " has been started with a tick of "
+					+ tickDuration + " ms and a wheel of " + wheel.length + " buckets");
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.stack.timers.SipTimer#stop()
+	 */
+	public void stop() {
+		started.set(false);
+		if(workerThread != null) {
+			workerThread.interrupt();
+		}
+		sipStackImpl.getStackLogger().logStackTrace(StackLogger.TRACE_DEBUG);
+		if(sipStackImpl.getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+			sipStackImpl.getStackLogger().logInfo("the sip stack timer " + this.getClass().getName() + " has been stopped");
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.stack.timers.SipTimer#isStarted()
+	 */
+	public boolean isStarted() {
+		return started.get();
+	}
+
+	/**
+	 * @return the milliseconds elapsed since the timer has been started
+	 */
+	private long currentTime() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+	}
+
+	/**
+	 * Sleep until the end of the current tick.
+	 * 
+	 * @return the time of the end of the tick or -1 if the thread has been interrupted
+	 */
+	private long waitForNextTick() {
+		long deadline = tickDuration * (tick + 1);
+		while(true) {
+			long currentTime = currentTime();
+			long sleepTime = deadline - currentTime;
+			if(sleepTime <= 0) {
+				return currentTime;
+			}
+			try {
+				Thread.sleep(sleepTime);
+			} catch (InterruptedException e) {
+				if(!started.get()) {
+					return -1;
+				}
+			}
+		}
+	}
+
+	private void processCancelledTimeouts() {
+		WheelTimeout timeout;
+		while((timeout = cancelledTimeouts.poll()) != null) {
+			if(timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+			}
+		}
+	}
+
+	private void transferTimeoutsToBuckets() {
+		for(int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+			WheelTimeout timeout = newTimeouts.poll();
+			if(timeout == null) {
+				break;
+			}
+			if(timeout.isCancelled()) {
+				continue;
+			}
+			addToWheel(timeout);
+		}
+	}
+
+	/**
+	 * Hash the timeout to its bucket, only called from the timer thread
+	 */
+	private void addToWheel(WheelTimeout timeout) {
+		long expirationTick = (timeout.deadline + tickDuration - 1) / tickDuration - 1;
+		timeout.remainingRounds = (expirationTick - tick) / wheel.length;
+		// make sure we don't schedule in the past
+		long ticks = Math.max(expirationTick, tick);
+		wheel[(int) (ticks & mask)].add(timeout);
+	}
+
+	private void expireTimeouts(WheelBucket bucket, long deadline) {
+		WheelTimeout timeout = bucket.head;
+		while(timeout != null) {
+			if(timeout.isCancelled()) {
+				timeout = bucket.remove(timeout);
+			} else if(timeout.remainingRounds <= 0) {
+				WheelTimeout next = bucket.remove(timeout);
+				timeout.expire();
+				timeout = next;
+			} else {
+				timeout.remainingRounds--;
+				timeout = timeout.next;
+			}
+		}
+	}
+}
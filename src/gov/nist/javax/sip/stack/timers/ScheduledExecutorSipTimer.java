@@ -29,34 +29,46 @@ import gov.nist.core.StackLogger;
 import gov.nist.javax.sip.SipStackImpl;
 import gov.nist.javax.sip.stack.SIPStackTimerTask;
 
+import java.lang.reflect.Method;
 import java.util.Properties;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Implementation of the SIP Timer based on java.util.concurrent.ScheduledThreadPoolExecutor
- * Seems to perform 
+ * 
+ * The timer is made of several single threaded executors (shards), the number of which is set
+ * through the gov.nist.javax.sip.TIMER_THREAD_POOL_SIZE stack property. A task is always scheduled
+ * on the shard picked from its {@link SIPStackTimerTask#getThreadHash()} so all the timers of a given
+ * call run in order on the same thread, while a slow task only delays the calls sharing its shard.
  * 
  * @author jean.deruelle@gmail.com
  *
  */
 public class ScheduledExecutorSipTimer implements SipTimer {
 
+	// interval between two purges of the cancelled tasks still in the executors queues
+	private static final long PURGE_INTERVAL = 5000;
+
 	protected SipStackImpl sipStackImpl;
-	ScheduledThreadPoolExecutor threadPoolExecutor;
-	// Counts the number of cancelled tasks
-    private volatile int numCancelled = 0;
-    
-	public ScheduledExecutorSipTimer() {
-		threadPoolExecutor = new ScheduledThreadPoolExecutor(1);		
-	}
-	
+	ScheduledThreadPoolExecutor[] threadPoolExecutors;
+	// whether the executors drop the cancelled tasks from their queue themselves
+	private boolean removeOnCancel;
+	protected AtomicBoolean started = new AtomicBoolean(false);
+
 	/* (non-Javadoc)
 	 * @see gov.nist.javax.sip.stack.timers.SipTimer#stop()
 	 */
 	public void stop() {
-		threadPoolExecutor.shutdown();
+		started.set(false);
+		if(threadPoolExecutors != null) {
+			for(ScheduledThreadPoolExecutor threadPoolExecutor : threadPoolExecutors) {
+				threadPoolExecutor.shutdown();
+			}
+		}
 		sipStackImpl.getStackLogger().logStackTrace(StackLogger.TRACE_DEBUG);
 		if(sipStackImpl.getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
 			sipStackImpl.getStackLogger().logInfo("the sip stack timer " + this.getClass().getName() + " has been stopped");
@@ -67,10 +79,10 @@ public class ScheduledExecutorSipTimer implements SipTimer {
 	 * @see gov.nist.javax.sip.stack.timers.SipTimer#schedule(gov.nist.javax.sip.stack.SIPStackTimerTask, long)
 	 */
 	public boolean schedule(SIPStackTimerTask task, long delay) {
-		if(threadPoolExecutor.isShutdown()) {
+		if(!started.get()) {
 			throw new IllegalStateException("The SIP Stack Timer has been stopped, no new tasks can be scheduled !");
 		}
-		ScheduledFuture<?> future = threadPoolExecutor.schedule(new ScheduledSipTimerTask(task), delay, TimeUnit.MILLISECONDS);
+		ScheduledFuture<?> future = getThreadPoolExecutor(task).schedule(new ScheduledSipTimerTask(task), delay, TimeUnit.MILLISECONDS);
 		task.setSipTimerTask(future);
 		return true;
 	}
@@ -81,10 +93,10 @@ public class ScheduledExecutorSipTimer implements SipTimer {
 	 */
 	public boolean scheduleWithFixedDelay(SIPStackTimerTask task, long delay,
 			long period) {
-		if(threadPoolExecutor.isShutdown()) {
+		if(!started.get()) {
 			throw new IllegalStateException("The SIP Stack Timer has been stopped, no new tasks can be scheduled !");
 		}
-		ScheduledFuture<?> future = threadPoolExecutor.scheduleWithFixedDelay(new ScheduledSipTimerTask(task), delay, period, TimeUnit.MILLISECONDS);
+		ScheduledFuture<?> future = getThreadPoolExecutor(task).scheduleWithFixedDelay(new ScheduledSipTimerTask(task), delay, period, TimeUnit.MILLISECONDS);
 		task.setSipTimerTask(future);
 		return true;
 	}
@@ -95,10 +107,55 @@ public class ScheduledExecutorSipTimer implements SipTimer {
 	 */
 	public void start(SipStackImpl sipStack, Properties configurationProperties) {
 		sipStackImpl= sipStack;
-		// TODO have a param in the stack properties to set the number of thread for the timer executor
-		threadPoolExecutor.prestartAllCoreThreads();
+		int threadPoolSize = Runtime.getRuntime().availableProcessors();
+		String threadPoolSizeProperty = configurationProperties.getProperty("gov.nist.javax.sip.TIMER_THREAD_POOL_SIZE");
+		if(threadPoolSizeProperty != null) {
+			try {
+				threadPoolSize = Integer.parseInt(threadPoolSizeProperty);
+			} catch (NumberFormatException ex) {
+				sipStackImpl.getStackLogger().logError(
+						"Bad configuration value for gov.nist.javax.sip.TIMER_THREAD_POOL_SIZE", ex);
+			}
+		}
+		if(threadPoolSize <= 0) {
+			threadPoolSize = 1;
+		}
+		threadPoolExecutors = new ScheduledThreadPoolExecutor[threadPoolSize];
+		// setRemoveOnCancelPolicy is a Java 7 API, looked up by reflection
+		Method setRemoveOnCancelPolicy = null;
+		try {
+			setRemoveOnCancelPolicy = ScheduledThreadPoolExecutor.class.getMethod("setRemoveOnCancelPolicy", boolean.class);
+		} catch (NoSuchMethodException ex) {
+		}
+		removeOnCancel = setRemoveOnCancelPolicy != null;
+		for(int i = 0; i < threadPoolSize; i++) {
+			final String threadName = "SipTimer-" + i;
+			final ScheduledThreadPoolExecutor threadPoolExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					return new Thread(runnable, threadName);
+				}
+			});
+			if(removeOnCancel) {
+				// cancelled tasks are removed right away from the queue
+				try {
+					setRemoveOnCancelPolicy.invoke(threadPoolExecutor, Boolean.TRUE);
+				} catch (Exception ex) {
+					removeOnCancel = false;
+				}
+			}
+			threadPoolExecutor.prestartAllCoreThreads();
+			// and the remaining ones (i.e. cancelled while being removed) are purged every now and then
+			threadPoolExecutor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					threadPoolExecutor.purge();
+				}
+			}, PURGE_INTERVAL, PURGE_INTERVAL, TimeUnit.MILLISECONDS);
+			threadPoolExecutors[i] = threadPoolExecutor;
+		}
+		started.set(true);
 		if(sipStackImpl.getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
-			sipStackImpl.getStackLogger().logInfo("the sip stack timer " + this.getClass().getName() + " has been started");
+			sipStackImpl.getStackLogger().logInfo("the sip stack timer " + this.getClass().getName() + " has been started with "
+					+ threadPoolSize + " threads");
 		}
 	}
 	/*
@@ -111,19 +168,28 @@ public class ScheduledExecutorSipTimer implements SipTimer {
 		if(sipTimerTask != null) {
 			task.cleanUpBeforeCancel();			
 			task.setSipTimerTask(null);
-			threadPoolExecutor.remove((Runnable)sipTimerTask);
+			if(!removeOnCancel) {
+				getThreadPoolExecutor(task).remove((Runnable) sipTimerTask);
+			}
 			cancelled = sipTimerTask.cancel(false);
 		} 
-		// Purge is expensive when called frequently, only call it every now and then.
-        // We do not sync the numCancelled variable. We dont care about correctness of
-        // the number, and we will still call purge rought once on every 100 cancels.
-        numCancelled++;
-        if(numCancelled % 50 == 0) {
-            threadPoolExecutor.purge();
-        }
 		return cancelled;
 	}
 
+	/**
+	 * Pick the shard of a task, tasks with the same thread hash always go to the same shard
+	 */
+	private ScheduledThreadPoolExecutor getThreadPoolExecutor(SIPStackTimerTask task) {
+		if(threadPoolExecutors.length == 1) {
+			return threadPoolExecutors[0];
+		}
+		Object threadHash = task.getThreadHash();
+		int hash = threadHash == null ? System.identityHashCode(task) : threadHash.hashCode();
+		// spread the bits so that hashes differing only in the high bits don't collide
+		hash ^= (hash >>> 16);
+		return threadPoolExecutors[(hash & Integer.MAX_VALUE) % threadPoolExecutors.length];
+	}
+
 	private class ScheduledSipTimerTask implements Runnable {
 		private SIPStackTimerTask task;
 
@@ -149,7 +215,7 @@ public class ScheduledExecutorSipTimer implements SipTimer {
 	 * @see gov.nist.javax.sip.stack.timers.SipTimer#isStarted()
 	 */
 	public boolean isStarted() {
-		return threadPoolExecutor.isTerminated();
+		return started.get();
 	}
 	
 }
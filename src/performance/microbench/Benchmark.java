@@ -0,0 +1,31 @@
+package performance.microbench;
+
+/**
+ * A micro benchmark run by the {@link BenchmarkRunner}. The state needed by
+ * the measured operation is built in {@link #setUp()}, outside of the timed
+ * loop, and {@link #run()} is then called repeatedly. The value returned by
+ * run() is consumed by the runner so the JIT cannot drop the operation.
+ */
+public abstract class Benchmark {
+
+    private final String name;
+
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setUp() throws Exception {
+    }
+
+    public void tearDown() throws Exception {
+    }
+
+    /**
+     * Performs one operation.
+     */
+    public abstract Object run() throws Exception;
+}
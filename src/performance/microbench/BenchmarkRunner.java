@@ -0,0 +1,163 @@
+package performance.microbench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the micro benchmarks of the stack: the parser families against each
+ * other on the corpus messages, encoding and cloning of those messages, and
+ * the transaction and dialog lookups, and the generation of identifiers.
+ * 
+ * Each benchmark is warmed up, then timed over several rounds and the
+ * average time per operation is printed along with the fastest and slowest
+ * round, and the bytes allocated per operation when the JVM reports them. The
+ * arguments, if any, are substrings of the names of the benchmarks
+ * to run, e.g. "parse.chars" or "findTransaction". The following system
+ * properties tune the run:
+ * <ul>
+ * <li><b>bench.warmup</b> warm up time of each benchmark in milliseconds
+ * (2000 by default)</li>
+ * <li><b>bench.rounds</b> number of measured rounds (5 by default)</li>
+ * <li><b>bench.round</b> duration of a round in milliseconds (1000 by
+ * default)</li>
+ * <li><b>bench.tableSize</b> number of transactions or dialogs in the
+ * tables for the lookups (10000 by default)</li>
+ * <li><b>bench.threads</b> number of threads generating identifiers
+ * alongside the contended identifier benchmarks (8 by default)</li>
+ * <li><b>bench.port</b> UDP port of the stack used for the lookups (5099 by
+ * default), nothing is sent to or received on it</li>
+ * </ul>
+ */
+public class BenchmarkRunner {
+
+    private static volatile int sink;
+
+    private final long warmupMillis = Long.getLong("bench.warmup", 2000);
+
+    private final int rounds = Integer.getInteger("bench.rounds", 5);
+
+    private final long roundMillis = Long.getLong("bench.round", 1000);
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /**
+     * getThreadAllocatedBytes(long) of the HotSpot thread bean, null when the
+     * JVM does not provide it.
+     */
+    private final Method allocatedBytes;
+
+    BenchmarkRunner() {
+        Method method = null;
+        try {
+            method = Class.forName("com.sun.management.ThreadMXBean").getMethod(
+                    "getThreadAllocatedBytes", long.class);
+            method.invoke(threads, Thread.currentThread().getId());
+        } catch (Exception ex) {
+            method = null;
+        }
+        allocatedBytes = method;
+    }
+
+    /**
+     * Returns the bytes allocated so far by the calling thread, or -1 if
+     * unknown.
+     */
+    private long allocatedBytes() {
+        if (allocatedBytes == null) {
+            return -1;
+        }
+        try {
+            return ((Long) allocatedBytes.invoke(threads, Thread.currentThread().getId()))
+                    .longValue();
+        } catch (Exception ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Runs the operation for the given time and returns the number of
+     * operations done. The clock is only read every few operations so its
+     * cost stays out of the measure.
+     */
+    private long loop(Benchmark benchmark, long millis, long[] elapsed) throws Exception {
+        long start = System.nanoTime();
+        long deadline = start + millis * 1000000L;
+        long operations = 0;
+        int hash = 0;
+        long now;
+        do {
+            for (int i = 0; i < 64; i++) {
+                Object result = benchmark.run();
+                hash ^= System.identityHashCode(result);
+            }
+            operations += 64;
+            now = System.nanoTime();
+        } while (now < deadline);
+        sink ^= hash;
+        elapsed[0] = now - start;
+        return operations;
+    }
+
+    void run(Benchmark benchmark) throws Exception {
+        benchmark.setUp();
+        try {
+            long[] elapsed = new long[1];
+            loop(benchmark, warmupMillis, elapsed);
+            double total = 0;
+            double min = Double.MAX_VALUE;
+            double max = 0;
+            long allOperations = 0;
+            long allocatedBefore = allocatedBytes();
+            for (int i = 0; i < rounds; i++) {
+                long operations = loop(benchmark, roundMillis, elapsed);
+                double nanosPerOp = (double) elapsed[0] / operations;
+                total += nanosPerOp;
+                min = Math.min(min, nanosPerOp);
+                max = Math.max(max, nanosPerOp);
+                allOperations += operations;
+            }
+            long allocated = allocatedBytes() - allocatedBefore;
+            System.out.println(String.format("%-45s %12.1f %12.1f %12.1f %10s", benchmark
+                    .getName(), total / rounds, min, max, allocatedBefore < 0 ? "-" : String
+                    .valueOf(allocated / allOperations)));
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    private static boolean selected(Benchmark benchmark, String[] filters) {
+        if (filters.length == 0) {
+            return true;
+        }
+        for (String filter : filters) {
+            if (benchmark.getName().contains(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LookupBenchmarks lookups = new LookupBenchmarks();
+        try {
+            List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+            ParserBenchmarks.addTo(benchmarks, lookups.getSipStack());
+            lookups.addTo(benchmarks, Integer.getInteger("bench.tableSize", 10000));
+            IdentifierBenchmarks.addTo(benchmarks);
+
+            BenchmarkRunner runner = new BenchmarkRunner();
+            System.out.println(String.format("%-45s %12s %12s %12s %10s", "benchmark", "ns/op",
+                    "min", "max", "B/op"));
+            for (Benchmark benchmark : benchmarks) {
+                if (selected(benchmark, args)) {
+                    runner.run(benchmark);
+                }
+            }
+        } finally {
+            lookups.stop();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package performance.microbench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The messages the benchmarks work on. They are captures of real traffic
+ * (addresses and identifiers rewritten) stored under corpus/ next to this
+ * class. Line ends are normalized to CRLF when loaded, whatever the checkout
+ * did to the files.
+ */
+public class Corpus {
+
+    public static final String INVITE = "invite";
+
+    public static final String OK = "ok";
+
+    public static final String REGISTER = "register";
+
+    public static final String SUBSCRIBE = "subscribe";
+
+    public static final String[] MESSAGES = { INVITE, OK, REGISTER, SUBSCRIBE };
+
+    public static byte[] load(String name) throws IOException {
+        InputStream in = Corpus.class.getResourceAsStream("corpus/" + name + ".sip");
+        if (in == null) {
+            throw new IOException("corpus message not found : " + name);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        String message = new String(out.toByteArray(), "UTF-8");
+        message = message.replace("\r\n", "\n").replace("\n", "\r\n");
+        return message.getBytes("UTF-8");
+    }
+}
@@ -0,0 +1,106 @@
+package performance.microbench;
+
+import gov.nist.javax.sip.ThreadLocalUtils;
+import gov.nist.javax.sip.Utils;
+import gov.nist.javax.sip.UtilsExt;
+
+import java.util.List;
+
+/**
+ * Generation of Call-IDs, tags and branch identifiers by the synchronized
+ * {@link Utils} and by the lock free {@link ThreadLocalUtils}, alone and
+ * while bench.threads other threads keep generating identifiers with the same
+ * generator, the way the worker threads of a busy stack do.
+ */
+public class IdentifierBenchmarks {
+
+    public static void addTo(List<Benchmark> benchmarks) {
+        int threads = Integer.getInteger("bench.threads", 8);
+        addTo(benchmarks, "digest", Utils.getInstance(), threads);
+        addTo(benchmarks, "random", new ThreadLocalUtils(false), threads);
+        addTo(benchmarks, "sequential", new ThreadLocalUtils(true), threads);
+    }
+
+    private static void addTo(List<Benchmark> benchmarks, String name, UtilsExt utils,
+            int threads) {
+        for (int contenders : new int[] { 0, threads }) {
+            benchmarks.add(new CallIdGeneration(name, utils, contenders));
+            benchmarks.add(new TagGeneration(name, utils, contenders));
+            benchmarks.add(new BranchGeneration(name, utils, contenders));
+        }
+    }
+
+    private abstract static class Generation extends Benchmark {
+        protected final UtilsExt utils;
+
+        private final int contenders;
+
+        private Thread[] threads;
+
+        private volatile boolean running;
+
+        Generation(String operation, String name, UtilsExt utils, int contenders) {
+            super("generate." + operation + "." + name
+                    + (contenders == 0 ? "" : ".contended." + contenders));
+            this.utils = utils;
+            this.contenders = contenders;
+        }
+
+        public void setUp() throws Exception {
+            running = true;
+            threads = new Thread[contenders];
+            for (int i = 0; i < contenders; i++) {
+                threads[i] = new Thread() {
+                    public void run() {
+                        while (running) {
+                            try {
+                                Generation.this.run();
+                            } catch (Exception ex) {
+                                return;
+                            }
+                        }
+                    }
+                };
+                threads[i].setDaemon(true);
+                threads[i].start();
+            }
+        }
+
+        public void tearDown() throws Exception {
+            running = false;
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+    }
+
+    private static class CallIdGeneration extends Generation {
+        CallIdGeneration(String name, UtilsExt utils, int contenders) {
+            super("callId", name, utils, contenders);
+        }
+
+        public Object run() {
+            return utils.generateCallIdentifier("atlanta.example.com");
+        }
+    }
+
+    private static class TagGeneration extends Generation {
+        TagGeneration(String name, UtilsExt utils, int contenders) {
+            super("tag", name, utils, contenders);
+        }
+
+        public Object run() {
+            return utils.generateTag();
+        }
+    }
+
+    private static class BranchGeneration extends Generation {
+        BranchGeneration(String name, UtilsExt utils, int contenders) {
+            super("branch", name, utils, contenders);
+        }
+
+        public Object run() {
+            return utils.generateBranchId();
+        }
+    }
+}
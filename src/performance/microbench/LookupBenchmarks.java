@@ -0,0 +1,341 @@
+package performance.microbench;
+
+import gov.nist.javax.sip.ListeningPointImpl;
+import gov.nist.javax.sip.SipProviderImpl;
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.parser.StringMsgParser;
+import gov.nist.javax.sip.stack.MessageChannel;
+import gov.nist.javax.sip.stack.SIPClientTransaction;
+import gov.nist.javax.sip.stack.SIPDialog;
+import gov.nist.javax.sip.stack.SIPServerTransaction;
+import gov.nist.javax.sip.stack.SIPTransaction;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Properties;
+
+import javax.sip.ListeningPoint;
+import javax.sip.SipFactory;
+
+/**
+ * Lookup of transactions and dialogs in the tables of a stack filled with
+ * the given number of entries, the way the stack looks them up when a message
+ * comes in. Nothing is sent on the wire: the transactions are put in the
+ * tables directly and are never started.
+ */
+public class LookupBenchmarks {
+
+    private final SipStackImpl sipStack;
+
+    private final SipProviderImpl sipProvider;
+
+    private final MessageChannel channel;
+
+    private final byte[] invite;
+
+    private final byte[] ok;
+
+    private int sequence;
+
+    public LookupBenchmarks() throws Exception {
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.setPathName("gov.nist");
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "microbench");
+        properties.setProperty("javax.sip.AUTOMATIC_DIALOG_SUPPORT", "off");
+        properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "0");
+        sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        try {
+            ListeningPoint listeningPoint = sipStack.createListeningPoint("127.0.0.1",
+                    Integer.getInteger("bench.port", 5099), "udp");
+            sipProvider = (SipProviderImpl) sipStack.createSipProvider(listeningPoint);
+            channel = ((ListeningPointImpl) listeningPoint).getMessageProcessor()
+                    .createMessageChannel(InetAddress.getByName("127.0.0.1"), 5060);
+        } catch (Exception ex) {
+            sipStack.stop();
+            throw ex;
+        }
+        invite = Corpus.load(Corpus.INVITE);
+        ok = Corpus.load(Corpus.OK);
+    }
+
+    public SipStackImpl getSipStack() {
+        return sipStack;
+    }
+
+    public void stop() {
+        sipStack.stop();
+    }
+
+    public void addTo(List<Benchmark> benchmarks, int tableSize) {
+        benchmarks.add(new ServerTransactionLookup(tableSize, true));
+        benchmarks.add(new ServerTransactionLookup(tableSize, false));
+        benchmarks.add(new ServerTransactionIdLookup(tableSize));
+        benchmarks.add(new ClientTransactionLookup(tableSize));
+        benchmarks.add(new CancelLookup(tableSize, true, true));
+        benchmarks.add(new CancelLookup(tableSize, true, false));
+        benchmarks.add(new CancelLookup(tableSize, false, true));
+        benchmarks.add(new DialogLookup(tableSize, false));
+        benchmarks.add(new DialogLookup(tableSize, true));
+    }
+
+    /**
+     * A copy of the corpus INVITE, or of its response, with identifiers of
+     * its own.
+     */
+    private SIPRequest newRequest(int n, boolean withBranch) throws Exception {
+        SIPRequest request = (SIPRequest) new StringMsgParser().parseSIPMessage(invite, true,
+                false, null);
+        customize(request.getTopmostVia(), request, n, withBranch);
+        return request;
+    }
+
+    private SIPResponse newResponse(int n) throws Exception {
+        SIPResponse response = (SIPResponse) new StringMsgParser().parseSIPMessage(ok, true, false,
+                null);
+        customize(response.getTopmostVia(), response, n, true);
+        response.getTo().setTag("to" + n);
+        return response;
+    }
+
+    private void customize(Via via, SIPMessage message, int n, boolean withBranch) throws Exception {
+        int id = sequence + n;
+        if (withBranch) {
+            via.setBranch("z9hG4bK" + id + "b" + Integer.toHexString(id * 31));
+        } else {
+            via.removeParameter("branch");
+        }
+        message.getCallId().setCallId(id + "-" + Integer.toHexString(id * 17) + "@atlanta.example.com");
+        message.getFrom().setTag("from" + id);
+    }
+
+    private abstract class Lookup extends Benchmark {
+        protected final int size;
+
+        protected int next;
+
+        Lookup(String name, int size) {
+            super(name + "." + size);
+            this.size = size;
+        }
+
+        protected int nextIndex() {
+            int index = next++;
+            if (next == size) {
+                next = 0;
+            }
+            return index;
+        }
+
+        public void tearDown() {
+            // the next benchmark fills the tables with fresh identifiers
+            sequence += size;
+        }
+
+        protected void remove(SIPTransaction transaction) {
+            // on big tables the stack may have timed some of them out already
+            boolean isServer = transaction instanceof SIPServerTransaction;
+            if (sipStack.findTransaction(transaction.getTransactionId(), isServer) == transaction) {
+                sipStack.removeTransaction(transaction);
+            }
+        }
+    }
+
+    private class ServerTransactionLookup extends Lookup {
+        private final boolean withBranch;
+
+        private SIPRequest[] requests;
+
+        private SIPServerTransaction[] transactions;
+
+        ServerTransactionLookup(int size, boolean withBranch) {
+            super(withBranch ? "findTransaction.server" : "findTransaction.server.rfc2543", size);
+            this.withBranch = withBranch;
+        }
+
+        public void setUp() throws Exception {
+            requests = new SIPRequest[size];
+            transactions = new SIPServerTransaction[size];
+            for (int i = 0; i < size; i++) {
+                transactions[i] = sipStack.createServerTransaction(channel);
+                transactions[i].setOriginalRequest(newRequest(i, withBranch));
+                sipStack.addTransaction(transactions[i]);
+                // what comes in is a retransmission, not the stored request
+                requests[i] = newRequest(i, withBranch);
+            }
+        }
+
+        public Object run() {
+            return sipStack.findTransaction(requests[nextIndex()], true);
+        }
+
+        public void tearDown() {
+            for (SIPServerTransaction transaction : transactions) {
+                remove(transaction);
+            }
+            super.tearDown();
+        }
+    }
+
+    private class ServerTransactionIdLookup extends Lookup {
+        private String[] transactionIds;
+
+        private SIPServerTransaction[] transactions;
+
+        ServerTransactionIdLookup(int size) {
+            super("findTransaction.server.id", size);
+        }
+
+        public void setUp() throws Exception {
+            transactionIds = new String[size];
+            transactions = new SIPServerTransaction[size];
+            for (int i = 0; i < size; i++) {
+                transactions[i] = sipStack.createServerTransaction(channel);
+                SIPRequest request = newRequest(i, true);
+                transactions[i].setOriginalRequest(request);
+                sipStack.addTransaction(transactions[i]);
+                transactionIds[i] = new String(request.getTransactionId());
+            }
+        }
+
+        public Object run() {
+            return sipStack.findTransaction(transactionIds[nextIndex()], true);
+        }
+
+        public void tearDown() {
+            for (SIPServerTransaction transaction : transactions) {
+                remove(transaction);
+            }
+            super.tearDown();
+        }
+    }
+
+    private class ClientTransactionLookup extends Lookup {
+        private SIPResponse[] responses;
+
+        private SIPClientTransaction[] transactions;
+
+        ClientTransactionLookup(int size) {
+            super("findTransaction.client", size);
+        }
+
+        public void setUp() throws Exception {
+            responses = new SIPResponse[size];
+            transactions = new SIPClientTransaction[size];
+            for (int i = 0; i < size; i++) {
+                transactions[i] = sipStack.createClientTransaction(newRequest(i, true), channel);
+                sipStack.addTransaction(transactions[i]);
+                responses[i] = newResponse(i);
+            }
+        }
+
+        public Object run() {
+            return sipStack.findTransaction(responses[nextIndex()], false);
+        }
+
+        public void tearDown() {
+            for (SIPClientTransaction transaction : transactions) {
+                remove(transaction);
+            }
+            super.tearDown();
+        }
+    }
+
+    private class CancelLookup extends Lookup {
+        private final boolean isServer;
+
+        private final boolean withBranch;
+
+        private SIPRequest[] cancels;
+
+        private SIPTransaction[] transactions;
+
+        CancelLookup(int size, boolean isServer, boolean withBranch) {
+            super("findCancelTransaction." + (isServer ? "server" : "client")
+                    + (withBranch ? "" : ".rfc2543"), size);
+            this.isServer = isServer;
+            this.withBranch = withBranch;
+        }
+
+        public void setUp() throws Exception {
+            cancels = new SIPRequest[size];
+            transactions = new SIPTransaction[size];
+            for (int i = 0; i < size; i++) {
+                SIPRequest request = newRequest(i, withBranch);
+                if (isServer) {
+                    SIPServerTransaction serverTransaction = sipStack.createServerTransaction(channel);
+                    serverTransaction.setOriginalRequest(request);
+                    sipStack.addTransaction(serverTransaction);
+                    transactions[i] = serverTransaction;
+                } else {
+                    SIPClientTransaction clientTransaction = sipStack.createClientTransaction(
+                            request, channel);
+                    sipStack.addTransaction(clientTransaction);
+                    transactions[i] = clientTransaction;
+                }
+                cancels[i] = newRequest(i, withBranch).createCancelRequest();
+            }
+        }
+
+        public Object run() {
+            return sipStack.findCancelTransaction(cancels[nextIndex()], isServer);
+        }
+
+        public void tearDown() {
+            for (SIPTransaction transaction : transactions) {
+                remove(transaction);
+            }
+            super.tearDown();
+        }
+    }
+
+    private class DialogLookup extends Lookup {
+        private final boolean fromMessage;
+
+        private String[] dialogIds;
+
+        private SIPResponse[] responses;
+
+        private SIPDialog[] dialogs;
+
+        DialogLookup(int size, boolean fromMessage) {
+            super(fromMessage ? "getDialog.message" : "getDialog", size);
+            this.fromMessage = fromMessage;
+        }
+
+        public void setUp() throws Exception {
+            dialogIds = new String[size];
+            responses = new SIPResponse[size];
+            dialogs = new SIPDialog[size];
+            for (int i = 0; i < size; i++) {
+                SIPResponse response = newResponse(i);
+                dialogs[i] = new SIPDialog(sipProvider, response);
+                dialogs[i].setDialogId(response.getDialogId(false));
+                sipStack.putDialog(dialogs[i]);
+                // the id of an incoming in-dialog request is computed anew
+                dialogIds[i] = new String(response.getDialogId(false));
+                responses[i] = newResponse(i);
+            }
+        }
+
+        public Object run() {
+            int index = nextIndex();
+            if (fromMessage) {
+                // the stack asks a message for its dialog id several times
+                return sipStack.getDialog(responses[index].getDialogId(false));
+            }
+            return sipStack.getDialog(dialogIds[index]);
+        }
+
+        public void tearDown() {
+            for (SIPDialog dialog : dialogs) {
+                sipStack.removeDialog(dialog);
+            }
+            super.tearDown();
+        }
+    }
+}
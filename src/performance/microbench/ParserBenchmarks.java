@@ -0,0 +1,204 @@
+package performance.microbench;
+
+import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.parser.MessageParser;
+import gov.nist.javax.sip.parser.MessageParserFactory;
+import gov.nist.javax.sip.parser.StringMsgParserFactory;
+import gov.nist.javax.sip.parser.chars.CharsMsgParserFactory;
+import gov.nist.javax.sip.parser.selective.SelectiveCharParserFactory;
+import gov.nist.javax.sip.parser.selective.SelectiveParserFactory;
+import gov.nist.javax.sip.stack.SIPTransactionStack;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.ExpiresHeader;
+import javax.sip.header.FromHeader;
+import javax.sip.header.RouteHeader;
+import javax.sip.header.ToHeader;
+import javax.sip.header.ViaHeader;
+
+/**
+ * Parsing, encoding and cloning of the corpus messages. Every parser family
+ * shipped with the stack parses every message, so the families can be
+ * compared message per message. The requests are also relayed the way a proxy
+ * or B2BUA relays them.
+ */
+public class ParserBenchmarks {
+
+    public static void addTo(List<Benchmark> benchmarks, SIPTransactionStack sipStack)
+            throws Exception {
+        MessageParserFactory[] factories = { new StringMsgParserFactory(),
+                new CharsMsgParserFactory(), new SelectiveParserFactory(),
+                new SelectiveCharParserFactory() };
+        String[] families = { "string", "chars", "selective", "selectivechar" };
+        for (String message : Corpus.MESSAGES) {
+            byte[] bytes = Corpus.load(message);
+            for (int i = 0; i < factories.length; i++) {
+                benchmarks.add(new Parse(families[i], factories[i].createMessageParser(sipStack),
+                        message, bytes));
+            }
+            // the stack parses with the string parser by default
+            SIPMessage sipMessage = factories[0].createMessageParser(sipStack).parseSIPMessage(bytes,
+                    true, false, null);
+            benchmarks.add(new Encode(message, sipMessage));
+            benchmarks.add(new EncodeAsBytes(message, sipMessage));
+            benchmarks.add(new EncodeIntoBuffer("heapBuffer", ByteBuffer.allocate(8192), message,
+                    sipMessage));
+            benchmarks.add(new EncodeIntoBuffer("directBuffer", ByteBuffer.allocateDirect(8192),
+                    message, sipMessage));
+            benchmarks.add(new Clone(message, sipMessage));
+            benchmarks.add(new GetHeader(message, sipMessage));
+            if (sipMessage instanceof SIPRequest) {
+                benchmarks.add(new Relay(message, (SIPRequest) factories[0].createMessageParser(
+                        sipStack).parseSIPMessage(bytes, true, false, null)));
+            }
+        }
+    }
+
+    static class Parse extends Benchmark {
+        private final MessageParser parser;
+
+        private final byte[] bytes;
+
+        Parse(String family, MessageParser parser, String message, byte[] bytes) {
+            super("parse." + family + "." + message);
+            this.parser = parser;
+            this.bytes = bytes;
+        }
+
+        public Object run() throws Exception {
+            return parser.parseSIPMessage(bytes, true, false, null);
+        }
+    }
+
+    static class Encode extends Benchmark {
+        private final SIPMessage message;
+
+        Encode(String name, SIPMessage message) {
+            super("encode." + name);
+            this.message = message;
+        }
+
+        public Object run() {
+            return message.encode();
+        }
+    }
+
+    static class EncodeAsBytes extends Benchmark {
+        private final SIPMessage message;
+
+        EncodeAsBytes(String name, SIPMessage message) {
+            super("encodeAsBytes." + name);
+            this.message = message;
+        }
+
+        public Object run() {
+            return message.encodeAsBytes("UDP");
+        }
+    }
+
+    static class EncodeIntoBuffer extends Benchmark {
+        private final ByteBuffer buffer;
+
+        private final SIPMessage message;
+
+        EncodeIntoBuffer(String kind, ByteBuffer buffer, String name, SIPMessage message) {
+            super("encodeAsBytes." + kind + "." + name);
+            this.buffer = buffer;
+            this.message = message;
+        }
+
+        public Object run() {
+            buffer.clear();
+            message.encodeAsBytes("UDP", buffer);
+            return buffer;
+        }
+    }
+
+    static class Clone extends Benchmark {
+        private final SIPMessage message;
+
+        Clone(String name, SIPMessage message) {
+            super("clone." + name);
+            this.message = message;
+        }
+
+        public Object run() {
+            return message.clone();
+        }
+    }
+
+    /**
+     * Looks up by name the headers the stack and the applications usually read,
+     * and a header the message does not have.
+     */
+    static class GetHeader extends Benchmark {
+        private static final String[] NAMES = { ViaHeader.NAME, FromHeader.NAME, ToHeader.NAME,
+                CallIdHeader.NAME, CSeqHeader.NAME, ContactHeader.NAME, RouteHeader.NAME,
+                ExpiresHeader.NAME, "X-Missing" };
+
+        private final SIPMessage message;
+
+        GetHeader(String name, SIPMessage message) {
+            super("getHeader." + name);
+            this.message = message;
+        }
+
+        public Object run() {
+            Object last = null;
+            for (int i = 0; i < NAMES.length; i++) {
+                Object header = message.getHeader(NAMES[i]);
+                if (header != null)
+                    last = header;
+            }
+            return last;
+        }
+    }
+
+    /**
+     * Relays a request: the stack has read the headers it matches transactions
+     * and dialogs on, then the request is cloned, its topmost Route removed,
+     * Max-Forwards decremented, a Via pushed and the clone encoded into a
+     * reused buffer as the stack sends it.
+     */
+    static class Relay extends Benchmark {
+        private final SIPRequest request;
+
+        private final Via via;
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+        Relay(String name, SIPRequest request) throws Exception {
+            super("relay." + name);
+            this.request = request;
+            request.getTopmostVia().getBranch();
+            request.getFrom().getTag();
+            request.getTo().getTag();
+            request.getCallId().getCallId();
+            request.getCSeq().getSeqNumber();
+            via = new Via();
+            via.setHost("192.0.2.200");
+            via.setPort(5060);
+            via.setTransport("UDP");
+            via.setBranch("z9hG4bK1d32hr4");
+        }
+
+        public Object run() throws Exception {
+            SIPRequest relayed = (SIPRequest) request.clone();
+            relayed.removeFirst(RouteHeader.NAME);
+            if (relayed.getMaxForwards() != null) {
+                relayed.getMaxForwards().decrementMaxForwards();
+            }
+            relayed.addFirst((Via) via.clone());
+            buffer.clear();
+            relayed.encodeAsBytes("UDP", buffer);
+            return relayed;
+        }
+    }
+}
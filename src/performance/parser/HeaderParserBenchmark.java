@@ -0,0 +1,112 @@
+package performance.parser;
+
+import gov.nist.javax.sip.header.SIPHeaderNamesCache;
+import gov.nist.javax.sip.parser.HeaderParser;
+import gov.nist.javax.sip.parser.Lexer;
+import gov.nist.javax.sip.parser.ParserFactory;
+
+import java.lang.reflect.Constructor;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures the header parser dispatch of the ParserFactory (table of parser
+ * creators) against the reflective construction it replaced (cached
+ * Constructor and Object[] per header) on the headers of a typical INVITE.
+ * 
+ * Each round creates the parsers of the 15 headers, alone and followed by the
+ * parsing of the header since the latter dominates. Run it with
+ * "ant run" from this directory, the number of rounds can be given as
+ * argument.
+ */
+public class HeaderParserBenchmark {
+
+    static final String[] INVITE_HEADERS = {
+            "Via: SIP/2.0/UDP 192.168.0.10:5060;branch=z9hG4bK776asdhds;rport\n",
+            "Max-Forwards: 70\n",
+            "To: \"Bob\" <sip:bob@biloxi.example.com>\n",
+            "From: \"Alice\" <sip:alice@atlanta.example.com>;tag=1928301774\n",
+            "Call-ID: a84b4c76e66710@pc33.atlanta.example.com\n",
+            "CSeq: 314159 INVITE\n",
+            "Contact: <sip:alice@192.168.0.10:5060;transport=udp>\n",
+            "Record-Route: <sip:proxy.atlanta.example.com;lr>\n",
+            "Route: <sip:proxy.biloxi.example.com;lr>\n",
+            "Allow: INVITE, ACK, CANCEL, OPTIONS, BYE, REFER, NOTIFY, MESSAGE, SUBSCRIBE, INFO\n",
+            "Supported: replaces, timer, 100rel\n",
+            "User-Agent: NIST JAIN-SIP benchmark\n",
+            "Session-Expires: 1800;refresher=uac\n",
+            "Content-Type: application/sdp\n",
+            "Content-Length: 142\n" };
+
+    private static final Map<String, Constructor<?>> constructors = new HashMap<String, Constructor<?>>();
+
+    static {
+        try {
+            for (String header : INVITE_HEADERS) {
+                Class<?> parserClass = ParserFactory.createParser(header).getClass();
+                constructors.put(SIPHeaderNamesCache.toLowerCase(Lexer.getHeaderName(header)),
+                        parserClass.getConstructor(new Class[] { String.class }));
+            }
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    static long dispatch(int rounds, boolean parse) throws Exception {
+        long checksum = 0;
+        for (int i = 0; i < rounds; i++) {
+            for (String header : INVITE_HEADERS) {
+                HeaderParser parser = ParserFactory.createParser(header);
+                checksum += parse ? parser.parse().getHeaderName().length() : parser.hashCode();
+            }
+        }
+        return checksum;
+    }
+
+    static long reflection(int rounds, boolean parse) throws Exception {
+        long checksum = 0;
+        for (int i = 0; i < rounds; i++) {
+            for (String header : INVITE_HEADERS) {
+                // what ParserFactory.createParser used to do
+                String headerName = Lexer.getHeaderName(header);
+                Lexer.getHeaderValue(header);
+                Constructor<?> cons = constructors.get(SIPHeaderNamesCache.toLowerCase(headerName));
+                Object[] args = new Object[1];
+                args[0] = header;
+                HeaderParser parser = (HeaderParser) cons.newInstance(args);
+                checksum += parse ? parser.parse().getHeaderName().length() : parser.hashCode();
+            }
+        }
+        return checksum;
+    }
+
+    private static void report(String name, long nanos, int rounds) {
+        System.out.println(name + ": " + (nanos / rounds) + " ns per INVITE ("
+                + (nanos / ((long) rounds * INVITE_HEADERS.length)) + " ns per header)");
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        long checksum = 0;
+        // warm up both paths before measuring
+        for (int i = 0; i < 5; i++) {
+            checksum += dispatch(rounds / 10, true);
+            checksum += reflection(rounds / 10, true);
+        }
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            checksum += reflection(rounds, false);
+            report("create only, reflection", System.nanoTime() - start, rounds);
+            start = System.nanoTime();
+            checksum += dispatch(rounds, false);
+            report("create only, dispatch  ", System.nanoTime() - start, rounds);
+            start = System.nanoTime();
+            checksum += reflection(rounds, true);
+            report("create+parse, reflection", System.nanoTime() - start, rounds);
+            start = System.nanoTime();
+            checksum += dispatch(rounds, true);
+            report("create+parse, dispatch  ", System.nanoTime() - start, rounds);
+        }
+        System.out.println("checksum " + checksum);
+    }
+}
@@ -26,7 +26,8 @@ public class ProtocolObjects {
 
     public static String logFileDirectory = "";
 
-    public static String transport = "tcp";
+    // "loop" runs the self test without sockets
+    public static String transport = System.getProperty("transport", "tcp");
 
 
 
@@ -0,0 +1,97 @@
+package test.unit.gov.nist.javax.sip.parser;
+
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.parser.StringMsgParser;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that messages encoded straight into byte buffers have the same bytes
+ * as the ones encoded into arrays.
+ */
+public class ByteBufferEncodingTest extends TestCase {
+
+    private static final String REQUEST = "MESSAGE sip:bob@127.0.0.1:5080 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 127.0.0.1:5060;branch=z9hG4bKd2c87858eb0a7a09becc7a115c608d27\r\n"
+            + "CSeq: 1 MESSAGE\r\n"
+            + "Call-ID: 84a5c57fd263bcce6fec05edf20c5aba@127.0.0.1\r\n"
+            + "From: \"Andr\u00e9 \u0411\u043e\u0440\u0438\u0441\" <sip:alice@127.0.0.1>;tag=12345\r\n"
+            + "To: <sip:bob@127.0.0.1>\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "Content-Type: text/plain;charset=UTF-8\r\n"
+            + "Content-Length: 5\r\n"
+            + "\r\n"
+            + "hello";
+
+    private static final String RESPONSE = "SIP/2.0 200 OK\r\n"
+            + "Via: SIP/2.0/TCP 127.0.0.1:5060;branch=z9hG4bKd2c87858eb0a7a09becc7a115c608d27\r\n"
+            + "CSeq: 1 MESSAGE\r\n"
+            + "Call-ID: 84a5c57fd263bcce6fec05edf20c5aba@127.0.0.1\r\n"
+            + "From: <sip:alice@127.0.0.1>;tag=12345\r\n"
+            + "To: <sip:bob@127.0.0.1>;tag=6789\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+
+    private SIPMessage parse(String message) throws Exception {
+        return new StringMsgParser().parseSIPMessage(message.getBytes("UTF-8"), true, false, null);
+    }
+
+    private byte[] encode(SIPMessage message, String transport, ByteBuffer buffer) {
+        int start = buffer.position();
+        message.encodeAsBytes(transport, buffer);
+        byte[] encoded = new byte[buffer.position() - start];
+        buffer.position(start);
+        buffer.get(encoded);
+        return encoded;
+    }
+
+    private void checkEncoding(String text, String transport) throws Exception {
+        SIPMessage message = parse(text);
+        byte[] expected = message.encodeAsBytes(transport);
+        assertTrue(Arrays.equals(expected, encode(message, transport, ByteBuffer.allocate(4096))));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(4096);
+        direct.position(100);
+        assertTrue(Arrays.equals(expected, encode(message, transport, direct)));
+    }
+
+    public void testRequest() throws Exception {
+        checkEncoding(REQUEST, "UDP");
+    }
+
+    public void testResponse() throws Exception {
+        checkEncoding(RESPONSE, "TCP");
+    }
+
+    public void testNullRequest() throws Exception {
+        SIPRequest request = new SIPRequest();
+        request.setNullRequest();
+        assertTrue(Arrays.equals("\r\n\r\n".getBytes(), encode(request, "TCP", ByteBuffer
+                .allocate(16))));
+    }
+
+    public void testOverflow() throws Exception {
+        SIPMessage message = parse(REQUEST);
+        int length = message.encodeAsBytes("UDP").length;
+        // the content overflows
+        try {
+            message.encodeAsBytes("UDP", ByteBuffer.allocate(length - 1));
+            fail("message encoded into a buffer too small for it");
+        } catch (BufferOverflowException ex) {
+        }
+        // the headers overflow past the non ASCII display name
+        try {
+            message.encodeAsBytes("UDP", ByteBuffer.allocate(length - 10));
+            fail("message encoded into a buffer too small for it");
+        } catch (BufferOverflowException ex) {
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        message.encodeAsBytes("UDP", buffer);
+        assertFalse(buffer.hasRemaining());
+    }
+}
@@ -0,0 +1,132 @@
+package test.unit.gov.nist.javax.sip.parser;
+
+import gov.nist.core.HostPort;
+import gov.nist.javax.sip.address.AddressFactoryImpl;
+import gov.nist.javax.sip.address.SipUri;
+import gov.nist.javax.sip.header.CSeq;
+import gov.nist.javax.sip.header.From;
+import gov.nist.javax.sip.header.HeaderFactoryImpl;
+import gov.nist.javax.sip.header.MaxForwards;
+import gov.nist.javax.sip.header.To;
+import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.parser.StringMsgParser;
+
+import javax.sip.address.Address;
+import javax.sip.address.SipURI;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the headers keeping their encoding are encoded again once
+ * modified, directly or through one of their parts.
+ */
+public class HeaderEncodingCacheTest extends TestCase {
+
+    private static final String REQUEST = "INVITE sip:bob@127.0.0.1:5080 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 127.0.0.1:5060;branch=z9hG4bKd2c87858eb0a7a09becc7a115c608d27\r\n"
+            + "CSeq: 1 INVITE\r\n"
+            + "Call-ID: 84a5c57fd263bcce6fec05edf20c5aba@127.0.0.1\r\n"
+            + "From: <sip:alice@127.0.0.1>;tag=12345\r\n"
+            + "To: <sip:bob@127.0.0.1>\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+
+    private SIPRequest request;
+
+    protected void setUp() throws Exception {
+        request = (SIPRequest) new StringMsgParser().parseSIPMessage(REQUEST.getBytes(), true,
+                false, null);
+        // keep the encodings of the headers
+        request.encode();
+    }
+
+    public void testUnmodified() {
+        assertEquals(request.encode(), request.encode());
+        assertEquals(request.encode(), ((SIPRequest) request.clone()).encode());
+    }
+
+    public void testSetters() throws Exception {
+        Via via = request.getTopmostVia();
+        via.setBranch("z9hG4bK1234");
+        via.setTransport("TCP");
+        assertEquals("Via: SIP/2.0/TCP 127.0.0.1:5060;branch=z9hG4bK1234\r\n", via.encode());
+
+        From from = (From) request.getFrom();
+        from.setTag("abc");
+        assertEquals("From: <sip:alice@127.0.0.1>;tag=abc\r\n", from.encode());
+
+        To to = (To) request.getTo();
+        to.setTag("def");
+        assertEquals("To: <sip:bob@127.0.0.1>;tag=def\r\n", to.encode());
+
+        MaxForwards maxForwards = (MaxForwards) request.getMaxForwards();
+        maxForwards.decrementMaxForwards();
+        assertEquals("Max-Forwards: 69\r\n", maxForwards.encode());
+
+        CSeq cseq = (CSeq) request.getCSeq();
+        cseq.setSeqNumber(2);
+        assertEquals("CSeq: 2 INVITE\r\n", cseq.encode());
+
+        request.getCallId().setCallId("other@127.0.0.1");
+        assertEquals("Call-ID: other@127.0.0.1\r\n", request.getCallId().toString());
+
+        String encoded = request.encode();
+        assertTrue(encoded.indexOf("branch=z9hG4bK1234") > 0);
+        assertTrue(encoded.indexOf("tag=abc") > 0);
+        assertTrue(encoded.indexOf("tag=def") > 0);
+        assertTrue(encoded.indexOf("Max-Forwards: 69") > 0);
+    }
+
+    public void testExposedParts() throws Exception {
+        Via via = request.getTopmostVia();
+        via.getSentBy().setPort(5070);
+        assertEquals("Via: SIP/2.0/UDP 127.0.0.1:5070;"
+                + "branch=z9hG4bKd2c87858eb0a7a09becc7a115c608d27\r\n", via.encode());
+        via.getSentBy().setPort(5071);
+        assertTrue(via.encode().indexOf(":5071;") > 0);
+
+        From from = (From) request.getFrom();
+        ((SipUri) from.getAddress().getURI()).setUser("carol");
+        assertEquals("From: <sip:carol@127.0.0.1>;tag=12345\r\n", from.encode());
+        assertTrue(request.encode().indexOf("sip:carol@") > 0);
+    }
+
+    public void testClone() throws Exception {
+        SIPRequest clone = (SIPRequest) request.clone();
+        clone.getTopmostVia().setBranch("z9hG4bK5678");
+        clone.getFromHeader().setTag("xyz");
+        assertTrue(clone.encode().indexOf("branch=z9hG4bK5678") > 0);
+        assertTrue(clone.encode().indexOf("tag=xyz") > 0);
+        assertTrue(request.encode().indexOf("branch=z9hG4bKd2c87858") > 0);
+        assertTrue(request.encode().indexOf("tag=12345") > 0);
+    }
+
+    public void testHeldParts() throws Exception {
+        AddressFactoryImpl addressFactory = new AddressFactoryImpl();
+        SipURI uri = addressFactory.createSipURI("bob", "127.0.0.1");
+        Address address = addressFactory.createAddress(uri);
+        To to = (To) new HeaderFactoryImpl().createToHeader(address, "def");
+        assertEquals("To: <sip:bob@127.0.0.1>;tag=def\r\n", to.encode());
+        // the caller still holds the URI given to the header
+        uri.setUser("carol");
+        assertEquals("To: <sip:carol@127.0.0.1>;tag=def\r\n", to.toString());
+        assertEquals("To: <sip:carol@127.0.0.1>;tag=def\r\n", to.encode());
+
+        HostPort sentBy = request.getTopmostVia().getSentBy();
+        Via via = new Via();
+        via.setSentBy(sentBy);
+        via.setTransport("UDP");
+        assertTrue(via.encode().indexOf("127.0.0.1:5060") > 0);
+        sentBy.setPort(5070);
+        assertTrue(via.encode().indexOf("127.0.0.1:5070") > 0);
+
+        // a clone owns copies of the parts
+        To clone = (To) to.clone();
+        assertEquals(to.encode(), clone.encode());
+        uri.setUser("dave");
+        assertEquals("To: <sip:carol@127.0.0.1>;tag=def\r\n", clone.encode());
+        assertEquals("To: <sip:dave@127.0.0.1>;tag=def\r\n", to.encode());
+    }
+}
@@ -0,0 +1,105 @@
+package test.unit.gov.nist.javax.sip.parser;
+
+import gov.nist.javax.sip.header.HeaderFactoryImpl;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.parser.StringMsgParser;
+
+import java.util.Iterator;
+import java.util.ListIterator;
+
+import javax.sip.header.ContactHeader;
+import javax.sip.header.FromHeader;
+import javax.sip.header.Header;
+import javax.sip.header.RouteHeader;
+import javax.sip.header.SubjectHeader;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the order and the lookup of the headers kept by a message.
+ */
+public class HeaderStoreTest extends TestCase {
+
+    private static final String REQUEST = "INVITE sip:bob@127.0.0.1:5080 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 127.0.0.1:5060;branch=z9hG4bKd2c87858eb0a7a09becc7a115c608d27\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "X-First: one\r\n"
+            + "To: <sip:bob@127.0.0.1>\r\n"
+            + "From: <sip:alice@127.0.0.1>;tag=12345\r\n"
+            + "Call-ID: 84a5c57fd263bcce6fec05edf20c5aba@127.0.0.1\r\n"
+            + "CSeq: 1 INVITE\r\n"
+            + "Subject: lunch\r\n"
+            + "Route: <sip:proxy1@127.0.0.3;lr>\r\n"
+            + "x-second: two\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+
+    private final HeaderFactoryImpl headerFactory = new HeaderFactoryImpl();
+
+    private SIPRequest request;
+
+    protected void setUp() throws Exception {
+        request = (SIPRequest) new StringMsgParser().parseSIPMessage(REQUEST.getBytes(), true,
+                false, null);
+    }
+
+    private String names() {
+        StringBuilder names = new StringBuilder();
+        for (ListIterator<String> it = request.getHeaderNames(); it.hasNext();)
+            names.append(it.next()).append(' ');
+        return names.toString().trim();
+    }
+
+    public void testOrder() throws Exception {
+        // the message is created with a Content-Length header
+        assertEquals("Content-Length Via Max-Forwards X-First To From Call-ID CSeq Subject Route "
+                + "x-second", names());
+        request.removeHeader(SubjectHeader.NAME);
+        request.removeFirst(RouteHeader.NAME);
+        assertEquals("Content-Length Via Max-Forwards X-First To From Call-ID CSeq x-second",
+                names());
+        request.setHeader(headerFactory.createHeader("X-FIRST", "three"));
+        request.addHeader(headerFactory.createHeader(ContactHeader.NAME, "<sip:alice@127.0.0.1>"));
+        assertEquals("Content-Length Via Max-Forwards To From Call-ID CSeq x-second X-FIRST "
+                + "Contact", names());
+    }
+
+    public void testLookup() throws Exception {
+        assertEquals("X-First: one\r\n", request.getHeader("X-FIRST").toString());
+        assertEquals("x-second: two\r\n", request.getHeader("X-Second").toString());
+        assertEquals("Subject: lunch\r\n", request.getHeader("subject").toString());
+        assertNull(request.getHeader("X-Third"));
+        assertNotNull(request.getHeader("route"));
+        request.removeHeader("X-SECOND");
+        assertNull(request.getHeader("x-second"));
+        assertNotNull(request.getHeader("x-first"));
+    }
+
+    public void testModifyWhileIterating() throws Exception {
+        int count = 0;
+        for (Iterator<?> it = request.getHeaders(); it.hasNext();) {
+            Header header = (Header) it.next();
+            if (count++ == 0) {
+                request.removeHeader(SubjectHeader.NAME);
+                request.addHeader(headerFactory.createHeader("X-Third", "three"));
+            }
+            assertNotNull(header);
+        }
+        assertEquals(11, count);
+        assertNull(request.getHeader(SubjectHeader.NAME));
+        assertNotNull(request.getHeader("X-Third"));
+    }
+
+    public void testRemoveWhileIterating() throws Exception {
+        for (Iterator<?> it = request.getHeaders(); it.hasNext();) {
+            Header header = (Header) it.next();
+            if (header instanceof SubjectHeader || header instanceof FromHeader
+                    || "X-First".equals(header.getName()))
+                it.remove();
+        }
+        assertEquals("Content-Length Via Max-Forwards To Call-ID CSeq Route x-second", names());
+        assertNull(request.getHeader(SubjectHeader.NAME));
+        assertNull(request.getHeader("x-first"));
+        assertNull(request.getFrom());
+    }
+}
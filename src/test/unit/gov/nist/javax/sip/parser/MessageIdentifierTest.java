@@ -0,0 +1,59 @@
+package test.unit.gov.nist.javax.sip.parser;
+
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.parser.StringMsgParser;
+
+import javax.sip.message.Request;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the dialog and transaction identifiers of a message, which the
+ * message computes once and recomputes when the headers they come from change.
+ */
+public class MessageIdentifierTest extends TestCase {
+
+    private static final String REQUEST = "INVITE sip:bob@127.0.0.1:5080 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 127.0.0.1:5060;branch=z9hG4bKd2C87858eb\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "To: <sip:bob@127.0.0.1>;tag=ToTag\r\n"
+            + "From: <sip:alice@127.0.0.1>;tag=FromTag\r\n"
+            + "Call-ID: 84A5c57f@127.0.0.1\r\n"
+            + "CSeq: 1 INVITE\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+
+    private SIPRequest request;
+
+    protected void setUp() throws Exception {
+        request = (SIPRequest) new StringMsgParser().parseSIPMessage(REQUEST.getBytes(), true,
+                false, null);
+    }
+
+    public void testDialogId() throws Exception {
+        assertEquals("84a5c57f@127.0.0.1:fromtag:totag", request.getDialogId(false));
+        assertEquals("84a5c57f@127.0.0.1:totag:fromtag", request.getDialogId(true));
+        assertEquals("84a5c57f@127.0.0.1:fromtag", request.getDialogId(false, null));
+        // the identifier is reused while the headers are not modified
+        assertSame(request.getDialogId(true), request.getDialogId(true));
+
+        request.getTo().setTag("Other");
+        assertEquals("84a5c57f@127.0.0.1:other:fromtag", request.getDialogId(true));
+        request.getFrom().setTag("Mine");
+        assertEquals("84a5c57f@127.0.0.1:other:mine", request.getDialogId(true));
+        request.getCallId().setCallId("New@127.0.0.1");
+        assertEquals("new@127.0.0.1:other:mine", request.getDialogId(true));
+        assertEquals("new@127.0.0.1:mine:other", ((SIPRequest) request.clone()).getDialogId(false));
+    }
+
+    public void testTransactionId() throws Exception {
+        assertEquals("z9hg4bkd2c87858eb", request.getTransactionId());
+        assertSame(request.getTransactionId(), request.getTransactionId());
+        assertEquals("z9hg4bkd2c87858eb:cancel", request.createCancelRequest().getTransactionId());
+
+        request.getTopmostVia().setBranch("z9hG4bKOther");
+        assertEquals("z9hg4bkother", request.getTransactionId());
+        request.getCSeq().setMethod(Request.CANCEL);
+        assertEquals("z9hg4bkother:cancel", request.getTransactionId());
+    }
+}
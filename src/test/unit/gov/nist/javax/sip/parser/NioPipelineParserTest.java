@@ -0,0 +1,108 @@
+package test.unit.gov.nist.javax.sip.parser;
+
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.parser.NioPipelineParser;
+import gov.nist.javax.sip.parser.SIPMessageListener;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.sip.SipFactory;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the NIO framer delivers the messages of a stream whatever the way the stream is
+ * split by the network.
+ */
+public class NioPipelineParserTest extends TestCase implements SIPMessageListener {
+
+    private static final String MESSAGE = "MESSAGE sip:LittleGuy@there.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/TCP 127.0.0.1:5060;branch=z9hG4bKd2c87858eb0a7a09becc7a115c608d27\r\n"
+            + "CSeq: 1 MESSAGE\r\n"
+            + "Call-ID: 84a5c57fd263bcce6fec05edf20c5aba@127.0.0.1\r\n"
+            + "From: <sip:BigGuy@here.com>;tag=12345\r\n"
+            + "To: <sip:LittleGuy@there.com>\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "l: 13\r\n\r\n"
+            + "Hello\r\n\r\nSIP!";
+
+    private static final String OPTIONS = "OPTIONS sip:LittleGuy@there.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/TCP 127.0.0.1:5060;branch=z9hG4bKd2c87858eb0a7a09becc7a115c608d28\r\n"
+            + "CSeq: 2 OPTIONS\r\n"
+            + "Call-ID: 84a5c57fd263bcce6fec05edf20c5aba@127.0.0.1\r\n"
+            + "From: <sip:BigGuy@here.com>;tag=12345\r\n"
+            + "To: <sip:LittleGuy@there.com>\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "Content-Length: 0\r\n\r\n";
+
+    private SipStackImpl sipStack;
+
+    private List<SIPMessage> messages = new ArrayList<SIPMessage>();
+
+    public void setUp() throws Exception {
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.resetFactory();
+        sipFactory.setPathName("gov.nist");
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "nioparser");
+        this.sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+    }
+
+    public void tearDown() {
+        this.sipStack.stop();
+    }
+
+    public void processMessage(SIPMessage sipMessage) throws Exception {
+        messages.add(sipMessage);
+    }
+
+    public void handleException(ParseException ex, SIPMessage sipMessage, Class headerClass,
+            String headerText, String messageText) throws ParseException {
+        throw ex;
+    }
+
+    private void checkMessages() {
+        assertEquals(2, messages.size());
+        assertEquals("MESSAGE", messages.get(0).getCSeq().getMethod());
+        assertEquals("Hello\r\n\r\nSIP!", new String(messages.get(0).getRawContent()));
+        assertEquals("OPTIONS", messages.get(1).getCSeq().getMethod());
+        assertNull(messages.get(1).getRawContent());
+    }
+
+    public void testWholeStream() throws Exception {
+        NioPipelineParser parser = new NioPipelineParser(sipStack, this, 0, null);
+        byte[] stream = ("\r\n\r\n" + MESSAGE + "\r\n\r\n" + OPTIONS).getBytes();
+        parser.addBytes(stream, 0, stream.length);
+        checkMessages();
+        assertEquals(0, parser.getMessageStartTime());
+    }
+
+    public void testByteByByte() throws Exception {
+        NioPipelineParser parser = new NioPipelineParser(sipStack, this, 0, null);
+        byte[] stream = (MESSAGE + OPTIONS).getBytes();
+        for (int i = 0; i < stream.length; i++) {
+            parser.addBytes(stream, i, 1);
+            if (i == MESSAGE.length())
+                assertTrue(parser.getMessageStartTime() != 0);
+        }
+        checkMessages();
+    }
+
+    public void testMaxMessageSize() throws Exception {
+        NioPipelineParser parser = new NioPipelineParser(sipStack, this, 100, null);
+        byte[] stream = OPTIONS.getBytes();
+        try {
+            parser.addBytes(stream, 0, stream.length);
+            fail("Headers larger than the maximum message size should be rejected");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertTrue(messages.isEmpty());
+    }
+}
@@ -0,0 +1,86 @@
+package test.unit.gov.nist.javax.sip.parser;
+
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.parser.MessageBufferParser;
+import gov.nist.javax.sip.parser.ParseExceptionListener;
+import gov.nist.javax.sip.parser.StringMsgParser;
+import gov.nist.javax.sip.parser.chars.CharsMsgParser;
+
+import java.text.ParseException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Parses messages out of a larger buffer filled with stale bytes, the way the
+ * UDP message processor hands over its pooled receive buffers.
+ */
+public class ReusedBufferParserTest extends TestCase {
+
+    private static final String MESSAGE = "MESSAGE sip:bob@127.0.0.1:5080 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 127.0.0.1:5060;branch=z9hG4bKd2c87858eb0a7a09becc7a115c608d27\r\n"
+            + "CSeq: 1 MESSAGE\r\n"
+            + "Call-ID: 84a5c57fd263bcce6fec05edf20c5aba@127.0.0.1\r\n"
+            + "From: <sip:alice@127.0.0.1>;tag=12345\r\n"
+            + "To: <sip:bob@127.0.0.1>\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "Content-Length: 5\r\n"
+            + "\r\n"
+            + "hello";
+
+    private byte[] fillBuffer(String message) {
+        byte[] buffer = new byte[4096];
+        // leftovers of a previous, longer datagram
+        Arrays.fill(buffer, (byte) 'X');
+        byte[] msgBytes = message.getBytes();
+        System.arraycopy(msgBytes, 0, buffer, 0, msgBytes.length);
+        return buffer;
+    }
+
+    private void checkParse(MessageBufferParser parser) throws Exception {
+        byte[] buffer = fillBuffer(MESSAGE);
+        SIPMessage message = parser.parseSIPMessage(buffer, MESSAGE.length(), true, false, null);
+        assertTrue(message instanceof SIPRequest);
+        assertEquals("hello", new String(message.getRawContent()));
+
+        // the parsed message must not see the buffer being reused
+        Arrays.fill(buffer, (byte) 0);
+        assertEquals("hello", new String(message.getRawContent()));
+        assertEquals("84a5c57fd263bcce6fec05edf20c5aba@127.0.0.1", message.getCallId().getCallId());
+    }
+
+    public void testStringMsgParser() throws Exception {
+        checkParse(new StringMsgParser());
+    }
+
+    public void testCharsMsgParser() throws Exception {
+        checkParse(new CharsMsgParser());
+    }
+
+    private void checkBadHeader(MessageBufferParser parser) throws Exception {
+        final String badMessage = MESSAGE.replace("CSeq: 1 MESSAGE", "CSeq: one MESSAGE");
+        final String[] reported = new String[1];
+        ParseExceptionListener listener = new ParseExceptionListener() {
+            public void handleException(ParseException ex, SIPMessage sipMessage,
+                    Class headerClass, String headerText, String messageText) {
+                reported[0] = messageText;
+            }
+        };
+        parser.parseSIPMessage(fillBuffer(badMessage), badMessage.length(), true, false, listener);
+        // only the message is reported, not the rest of the buffer
+        assertEquals(badMessage, reported[0]);
+    }
+
+    public void testBadHeader() throws Exception {
+        checkBadHeader(new StringMsgParser());
+        checkBadHeader(new CharsMsgParser());
+    }
+
+    public void testControlCharactersOnly() throws Exception {
+        byte[] buffer = fillBuffer("\r\n\r\n");
+        assertNull(new StringMsgParser().parseSIPMessage(buffer, 4, true, false, null));
+        assertNull(new CharsMsgParser().parseSIPMessage(buffer, 4, true, false, null));
+    }
+}
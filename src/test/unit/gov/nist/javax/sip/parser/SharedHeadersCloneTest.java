@@ -0,0 +1,173 @@
+package test.unit.gov.nist.javax.sip.parser;
+
+import gov.nist.javax.sip.header.From;
+import gov.nist.javax.sip.header.To;
+import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.header.ViaList;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.parser.StringMsgParser;
+
+import java.util.Iterator;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sip.header.ContactHeader;
+import javax.sip.header.Header;
+import javax.sip.header.RouteHeader;
+import javax.sip.message.Request;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that a message and its clones share their headers without seeing
+ * each other's modifications.
+ */
+public class SharedHeadersCloneTest extends TestCase {
+
+    private static final String REQUEST = "INVITE sip:bob@127.0.0.1:5080 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 127.0.0.1:5060;branch=z9hG4bKd2c87858eb0a7a09becc7a115c608d27\r\n"
+            + "Via: SIP/2.0/UDP 127.0.0.2:5060;branch=z9hG4bK1234\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "To: <sip:bob@127.0.0.1>\r\n"
+            + "From: <sip:alice@127.0.0.1>;tag=12345\r\n"
+            + "Call-ID: 84a5c57fd263bcce6fec05edf20c5aba@127.0.0.1\r\n"
+            + "CSeq: 1 INVITE\r\n"
+            + "Contact: <sip:alice@127.0.0.1:5060>\r\n"
+            + "Route: <sip:proxy1@127.0.0.3;lr>\r\n"
+            + "Route: <sip:proxy2@127.0.0.4;lr>\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "Content-Length: 5\r\n"
+            + "\r\n"
+            + "hello";
+
+    private SIPRequest request;
+
+    private String encoded;
+
+    protected void setUp() throws Exception {
+        request = (SIPRequest) new StringMsgParser().parseSIPMessage(REQUEST.getBytes(), true,
+                false, null);
+        encoded = request.encode();
+    }
+
+    public void testModifyClone() throws Exception {
+        SIPRequest clone = (SIPRequest) request.clone();
+        clone.getMaxForwards().decrementMaxForwards();
+        clone.getFromHeader().setTag("abc");
+        clone.setToTag("def");
+        ((Via) clone.getTopmostVia()).setBranch("z9hG4bK5678");
+        clone.removeFirst(RouteHeader.NAME);
+        clone.setMessageContent("text", "plain", "hello world".getBytes());
+
+        assertEquals(encoded, request.encode());
+        String cloneEncoded = clone.encode();
+        assertTrue(cloneEncoded.indexOf("Max-Forwards: 69\r\n") > 0);
+        assertTrue(cloneEncoded.indexOf("tag=abc") > 0);
+        assertTrue(cloneEncoded.indexOf("tag=def") > 0);
+        assertTrue(cloneEncoded.indexOf("branch=z9hG4bK5678") > 0);
+        assertTrue(cloneEncoded.indexOf("proxy1") < 0);
+        assertTrue(cloneEncoded.indexOf("Content-Length: 11\r\n") > 0);
+        // the copied headers keep their place
+        assertTrue(cloneEncoded.indexOf("Max-Forwards") < cloneEncoded.indexOf("To:"));
+        assertTrue(cloneEncoded.indexOf("From:") < cloneEncoded.indexOf("Call-ID:"));
+    }
+
+    public void testModifyOriginal() throws Exception {
+        SIPRequest clone = (SIPRequest) request.clone();
+        String cloneEncoded = clone.encode();
+        request.getMaxForwards().decrementMaxForwards();
+        request.getCSeq().setSeqNumber(2);
+        request.removeFirst(RouteHeader.NAME);
+        request.removeLast(RouteHeader.NAME);
+        request.removeContent();
+        assertEquals(cloneEncoded, clone.encode());
+        assertEquals(encoded, clone.encode());
+    }
+
+    public void testHandedOutHeadersAreCopied() throws Exception {
+        // the application may keep the headers it got and modify them later
+        From from = (From) request.getFrom();
+        Header contact = request.getHeader(ContactHeader.NAME);
+        SIPRequest clone = (SIPRequest) request.clone();
+        assertNotSame(from, clone.getFrom());
+        assertNotSame(contact, clone.getHeader(ContactHeader.NAME));
+        from.setTag("abc");
+        assertEquals(encoded, clone.encode());
+
+        // as well as the headers it added
+        Via via = (Via) ((Via) request.getTopmostVia()).clone();
+        via.setBranch("z9hG4bK9999");
+        request.addFirst(via);
+        SIPRequest secondClone = (SIPRequest) request.clone();
+        via.setBranch("z9hG4bK8888");
+        assertTrue(secondClone.encode().indexOf("z9hG4bK9999") > 0);
+        assertTrue(secondClone.encode().indexOf("z9hG4bK8888") < 0);
+    }
+
+    public void testHeaderIterator() throws Exception {
+        SIPRequest clone = (SIPRequest) request.clone();
+        for (Iterator<?> it = clone.getHeaders(); it.hasNext();) {
+            Header header = (Header) it.next();
+            if (header instanceof ViaList)
+                ((Via) ((ViaList) header).getFirst()).setBranch("z9hG4bK5678");
+        }
+        assertEquals(encoded, request.encode());
+        assertTrue(clone.encode().indexOf("z9hG4bK5678") > 0);
+    }
+
+    public void testCreatedMessages() throws Exception {
+        SIPRequest cancel = request.createCancelRequest();
+        assertEquals(Request.CANCEL, cancel.getCSeq().getMethod());
+        cancel.getCallId().setCallId("other@127.0.0.1");
+
+        SIPResponse response = request.createResponse(180);
+        response.setToTag("def");
+        response.getCSeq().setSeqNumber(5);
+        assertEquals(encoded, request.encode());
+        assertEquals("INVITE", request.getCSeq().getMethod());
+
+        SIPRequest ack = request.createAckRequest((To) response.getTo());
+        assertEquals(Request.ACK, ack.getCSeq().getMethod());
+        assertEquals("def", ack.getToTag());
+        assertEquals(encoded, request.encode());
+        assertEquals(5L, response.getCSeq().getSeqNumber());
+        assertEquals(1L, request.getCSeq().getSeqNumber());
+    }
+
+    public void testConcurrentReads() throws Exception {
+        final SIPRequest[] clones = new SIPRequest[2];
+        final CyclicBarrier barrier = new CyclicBarrier(3);
+        final AtomicInteger rounds = new AtomicInteger(20000);
+        // two threads reading the same clone, each getting its To header
+        for (int i = 0; i < 2; i++) {
+            Thread reader = new Thread() {
+                public void run() {
+                    try {
+                        while (rounds.get() > 0) {
+                            barrier.await();
+                            clones[0].getTo();
+                            barrier.await();
+                        }
+                    } catch (Exception ex) {
+                    }
+                }
+            };
+            reader.setDaemon(true);
+            reader.start();
+        }
+        while (rounds.get() > 0) {
+            SIPRequest original = (SIPRequest) new StringMsgParser().parseSIPMessage(
+                    REQUEST.getBytes(), true, false, null);
+            clones[0] = (SIPRequest) original.clone();
+            clones[1] = (SIPRequest) original.clone();
+            barrier.await();
+            barrier.await();
+            rounds.decrementAndGet();
+            original.setToTag("zzz");
+            assertTrue(clones[1].encode().indexOf("zzz") < 0);
+            assertTrue(clones[0].encode().indexOf("zzz") < 0);
+        }
+        barrier.reset();
+    }
+}
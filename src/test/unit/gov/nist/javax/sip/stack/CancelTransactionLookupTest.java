@@ -0,0 +1,117 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.ListeningPointImpl;
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.parser.StringMsgParser;
+import gov.nist.javax.sip.stack.MessageChannel;
+import gov.nist.javax.sip.stack.SIPClientTransaction;
+import gov.nist.javax.sip.stack.SIPServerTransaction;
+
+import java.net.InetAddress;
+import java.util.Properties;
+
+import javax.sip.ListeningPoint;
+import javax.sip.SipFactory;
+
+import junit.framework.TestCase;
+
+/**
+ * Looks up the transaction cancelled by a CANCEL, as RFC 3261 9.2 matches
+ * them: by branch and sent-by, or for RFC 2543 clients by Request-URI, tags,
+ * Call-ID, CSeq number and top Via.
+ */
+public class CancelTransactionLookupTest extends TestCase {
+
+    private SipStackImpl sipStack;
+
+    private MessageChannel channel;
+
+    public void setUp() throws Exception {
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.resetFactory();
+        sipFactory.setPathName("gov.nist");
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "canceller");
+        sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        ListeningPoint listeningPoint = sipStack.createListeningPoint("127.0.0.1", 5096, "udp");
+        sipStack.createSipProvider(listeningPoint);
+        channel = ((ListeningPointImpl) listeningPoint).getMessageProcessor()
+                .createMessageChannel(InetAddress.getByName("127.0.0.1"), 5097);
+    }
+
+    public void tearDown() {
+        sipStack.stop();
+    }
+
+    private SIPRequest parse(String method, String callId, String branch, String sentBy)
+            throws Exception {
+        String message = method + " sip:bob@127.0.0.1:5096 SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP " + sentBy + (branch == null ? "" : ";branch=" + branch)
+                + "\r\n" + "From: <sip:alice@127.0.0.1>;tag=1234\r\n"
+                + "To: <sip:bob@127.0.0.1>\r\n" + "Call-ID: " + callId + "\r\n" + "CSeq: 1 "
+                + method + "\r\n" + "Max-Forwards: 70\r\n"
+                + "Contact: <sip:alice@127.0.0.1:5097>\r\n" + "Content-Length: 0\r\n\r\n";
+        return (SIPRequest) new StringMsgParser().parseSIPMessage(message.getBytes(), true, false,
+                null);
+    }
+
+    private SIPServerTransaction serverTransaction(SIPRequest request) throws Exception {
+        SIPServerTransaction transaction = sipStack.createServerTransaction(channel);
+        transaction.setOriginalRequest(request);
+        sipStack.addTransaction(transaction);
+        return transaction;
+    }
+
+    public void testServer() throws Exception {
+        SIPServerTransaction invite = null;
+        for (int i = 0; i < 100; i++) {
+            SIPServerTransaction transaction = serverTransaction(parse("INVITE", "call" + i,
+                    "z9hG4bK" + i, "127.0.0.1:5097"));
+            if (i == 42)
+                invite = transaction;
+        }
+        assertSame(invite, sipStack.findCancelTransaction(parse("CANCEL", "call42", "z9hG4bK42",
+                "127.0.0.1:5097"), true));
+        // branch is compared ignoring case
+        assertSame(invite, sipStack.findCancelTransaction(parse("CANCEL", "call42", "Z9HG4BK42",
+                "127.0.0.1:5097"), true));
+        assertNull(sipStack.findCancelTransaction(parse("CANCEL", "call42", "z9hG4bK420",
+                "127.0.0.1:5097"), true));
+        assertNull(sipStack.findCancelTransaction(parse("CANCEL", "call42", "z9hG4bK42",
+                "127.0.0.2:5097"), true));
+        // the CANCEL has a transaction of its own, that it doesn't cancel
+        SIPRequest cancel = parse("CANCEL", "call42", "z9hG4bK42", "127.0.0.1:5097");
+        serverTransaction(cancel);
+        sipStack.removeTransaction(invite);
+        assertNull(sipStack.findCancelTransaction(cancel, true));
+    }
+
+    public void testServerRfc2543() throws Exception {
+        SIPServerTransaction invite = null;
+        for (int i = 0; i < 100; i++) {
+            SIPServerTransaction transaction = serverTransaction(parse("INVITE", "call" + i, null,
+                    "127.0.0.1:5097"));
+            if (i == 42)
+                invite = transaction;
+        }
+        assertSame(invite, sipStack.findCancelTransaction(parse("CANCEL", "call42", null,
+                "127.0.0.1:5097"), true));
+        assertNull(sipStack.findCancelTransaction(parse("CANCEL", "call420", null,
+                "127.0.0.1:5097"), true));
+        assertNull(sipStack.findCancelTransaction(parse("CANCEL", "call42", null,
+                "127.0.0.1:5098"), true));
+        assertNull(sipStack.findCancelTransaction(parse("CANCEL", "call42", "z9hG4bK42",
+                "127.0.0.1:5097"), true));
+    }
+
+    public void testClient() throws Exception {
+        SIPRequest request = parse("INVITE", "call", "z9hG4bK42", "127.0.0.1:5096");
+        SIPClientTransaction invite = sipStack.createClientTransaction(request, channel);
+        sipStack.addTransaction(invite);
+        assertSame(invite, sipStack.findCancelTransaction(request.createCancelRequest(), false));
+        assertNull(sipStack.findCancelTransaction(request.createCancelRequest(), true));
+        sipStack.removeTransaction(invite);
+        assertNull(sipStack.findCancelTransaction(request.createCancelRequest(), false));
+    }
+}
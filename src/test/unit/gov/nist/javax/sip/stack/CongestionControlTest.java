@@ -0,0 +1,187 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.core.RingBlockingQueue;
+import gov.nist.javax.sip.stack.CongestionControlPolicy.Decision;
+import gov.nist.javax.sip.stack.DefaultCongestionControlPolicy;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sip.PeerUnavailableException;
+import javax.sip.SipFactory;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the ring buffer backing the UDP queues and the decisions of the default
+ * congestion control policy, and that a stack is not created with a policy that fails.
+ */
+public class CongestionControlTest extends TestCase {
+
+    private static final String NEW_INVITE = "INVITE sip:bob@127.0.0.1:5080 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 127.0.0.1:5060;branch=z9hG4bK1234\r\n"
+            + "From: <sip:alice@127.0.0.1>;tag=12345\r\n"
+            + "To: <sip:bob@127.0.0.1>\r\n"
+            + "Call-ID: 1234@127.0.0.1\r\n"
+            + "CSeq: 1 INVITE\r\n"
+            + "Content-Length: 0\r\n\r\n";
+
+    private static final String REINVITE = "INVITE sip:bob@127.0.0.1:5080 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 127.0.0.1:5060;branch=z9hG4bK1235\r\n"
+            + "f: <sip:alice@127.0.0.1>;tag=12345\r\n"
+            + "t: <sip:bob@127.0.0.1>;TAG=6789\r\n"
+            + "Call-ID: 1234@127.0.0.1\r\n"
+            + "CSeq: 2 INVITE\r\n"
+            + "Content-Length: 0\r\n\r\n";
+
+    private static final String NEW_OPTIONS = "OPTIONS sip:bob@127.0.0.1:5080 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 127.0.0.1:5060;branch=z9hG4bK1236\r\n"
+            + "From: <sip:alice@127.0.0.1>;tag=12345\r\n"
+            + "To: <sip:bob@127.0.0.1>\r\n"
+            + "Call-ID: 1235@127.0.0.1\r\n"
+            + "CSeq: 1 OPTIONS\r\n"
+            + "Content-Length: 0\r\n\r\n";
+
+    private static final String RESPONSE = "SIP/2.0 180 Ringing\r\n"
+            + "Via: SIP/2.0/UDP 127.0.0.1:5060;branch=z9hG4bK1234\r\n"
+            + "From: <sip:alice@127.0.0.1>;tag=12345\r\n"
+            + "To: <sip:bob@127.0.0.1>\r\n"
+            + "Call-ID: 1234@127.0.0.1\r\n"
+            + "CSeq: 1 INVITE\r\n"
+            + "Content-Length: 0\r\n\r\n";
+
+    private DefaultCongestionControlPolicy policy;
+
+    public void setUp() {
+        Properties properties = new Properties();
+        properties.setProperty("gov.nist.javax.sip.CONGESTION_CONTROL_LOW_WATERMARK", "10");
+        properties.setProperty("gov.nist.javax.sip.CONGESTION_CONTROL_HIGH_WATERMARK", "20");
+        policy = new DefaultCongestionControlPolicy();
+        policy.init(null, properties);
+    }
+
+    private Decision accept(String message, int queueSize) {
+        byte[] buffer = new byte[2048];
+        byte[] bytes = message.getBytes();
+        System.arraycopy(bytes, 0, buffer, 0, bytes.length);
+        return policy.accept(buffer, bytes.length, queueSize, 32);
+    }
+
+    public void testBelowLowWatermark() {
+        assertEquals(Decision.ACCEPT, accept(NEW_INVITE, 9));
+        assertEquals(Decision.ACCEPT, accept(NEW_OPTIONS, 9));
+    }
+
+    public void testAboveHighWatermark() {
+        assertEquals(Decision.DROP_HIGH_WATERMARK, accept(NEW_INVITE, 20));
+        assertEquals(Decision.DROP_HIGH_WATERMARK, accept(NEW_OPTIONS, 25));
+        assertEquals(Decision.ACCEPT, accept(REINVITE, 30));
+        assertEquals(Decision.ACCEPT, accept(RESPONSE, 30));
+        assertEquals(Decision.ACCEPT, accept("\r\n\r\n", 30));
+    }
+
+    public void testBetweenWatermarks() {
+        int dropped = 0;
+        for (int i = 0; i < 1000; i++) {
+            Decision decision = accept(NEW_INVITE, 19);
+            if (decision == Decision.DROP_RANDOM_EARLY) {
+                dropped++;
+            } else {
+                assertEquals(Decision.ACCEPT, decision);
+            }
+            assertEquals(Decision.ACCEPT, accept(NEW_OPTIONS, 19));
+            assertEquals(Decision.ACCEPT, accept(REINVITE, 19));
+        }
+        // drop probability is 0.9 at that queue size
+        assertTrue("dropped " + dropped, dropped > 700 && dropped < 1000);
+    }
+
+    public void testRingBounds() throws Exception {
+        RingBlockingQueue<Integer> queue = new RingBlockingQueue<Integer>(5);
+        assertEquals(8, queue.capacity());
+        assertNull(queue.poll());
+        for (int i = 0; i < 8; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(8));
+        assertEquals(8, queue.size());
+        assertEquals(0, queue.remainingCapacity());
+        assertEquals(Integer.valueOf(0), queue.peek());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(Integer.valueOf(i), queue.take());
+            assertTrue(queue.offer(i + 8));
+        }
+        assertEquals(8, queue.size());
+        queue.clear();
+        assertTrue(queue.isEmpty());
+    }
+
+    public void testRingConcurrency() throws Exception {
+        final RingBlockingQueue<Long> queue = new RingBlockingQueue<Long>(64);
+        final int producers = 4;
+        final int consumers = 4;
+        final int perProducer = 50000;
+        final AtomicLong sum = new AtomicLong();
+        final AtomicLong count = new AtomicLong();
+        Thread[] threads = new Thread[producers + consumers];
+        for (int i = 0; i < producers; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (long j = 1; j <= perProducer; j++) {
+                            queue.put(j);
+                        }
+                    } catch (InterruptedException e) {
+                    }
+                }
+            };
+        }
+        for (int i = 0; i < consumers; i++) {
+            threads[producers + i] = new Thread() {
+                public void run() {
+                    try {
+                        while (true) {
+                            long value = queue.take();
+                            if (value < 0) {
+                                return;
+                            }
+                            sum.addAndGet(value);
+                            count.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (int i = 0; i < producers; i++) {
+            threads[i].join(30000);
+        }
+        for (int i = 0; i < consumers; i++) {
+            queue.put(-1L);
+        }
+        for (int i = 0; i < consumers; i++) {
+            threads[producers + i].join(30000);
+        }
+        assertEquals((long) producers * perProducer, count.get());
+        assertEquals((long) producers * perProducer * (perProducer + 1) / 2, sum.get());
+        assertTrue(queue.isEmpty());
+    }
+
+    public void testBadPolicy() throws Exception {
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.resetFactory();
+        sipFactory.setPathName("gov.nist");
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "congestion");
+        properties.setProperty("gov.nist.javax.sip.CONGESTION_CONTROL_LOW_WATERMARK", "20");
+        properties.setProperty("gov.nist.javax.sip.CONGESTION_CONTROL_HIGH_WATERMARK", "10");
+        try {
+            sipFactory.createSipStack(properties);
+            fail("created a stack without congestion control");
+        } catch (PeerUnavailableException ex) {
+        }
+    }
+}
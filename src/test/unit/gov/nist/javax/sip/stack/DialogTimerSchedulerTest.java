@@ -0,0 +1,224 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.stack.DialogTimerScheduler;
+import gov.nist.javax.sip.stack.SIPStackTimerTask;
+import gov.nist.javax.sip.stack.timers.ScheduledExecutorSipTimer;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Properties;
+import java.util.Vector;
+
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.AddressFactory;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.ToHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the dialog timers run in the order of their deadlines, that a
+ * slow dialog timer does not hold up those of the other calls, and that a
+ * dialog waits for the ACK to its 2xx in the dialog timer scheduler.
+ */
+public class DialogTimerSchedulerTest extends TestCase {
+
+    private class RecordingTask extends SIPStackTimerTask {
+        final String name;
+
+        long sleep;
+
+        boolean cleanedUp;
+
+        RecordingTask(String name) {
+            this.name = name;
+        }
+
+        public void runTask() {
+            try {
+                Thread.sleep(sleep);
+            } catch (InterruptedException ex) {
+            }
+            run.add(name);
+        }
+
+        public Object getThreadHash() {
+            return name;
+        }
+
+        public void cleanUpBeforeCancel() {
+            cleanedUp = true;
+        }
+    }
+
+    private final List<String> run = new Vector<String>();
+
+    private SipStackImpl sipStack;
+
+    private SipProvider sipProvider;
+
+    private DatagramSocket peer;
+
+    public void setUp() throws Exception {
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.resetFactory();
+        sipFactory.setPathName("gov.nist");
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "dialogtimers");
+        properties.setProperty("gov.nist.javax.sip.TIMER_CLASS_NAME",
+                ScheduledExecutorSipTimer.class.getName());
+        properties.setProperty("gov.nist.javax.sip.TIMER_THREAD_POOL_SIZE", "4");
+        sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        final MessageFactory messageFactory = sipFactory.createMessageFactory();
+        final HeaderFactory headerFactory = sipFactory.createHeaderFactory();
+        final AddressFactory addressFactory = sipFactory.createAddressFactory();
+        ListeningPoint listeningPoint = sipStack.createListeningPoint("127.0.0.1", 5098, "udp");
+        sipProvider = sipStack.createSipProvider(listeningPoint);
+        sipProvider.addSipListener(new SipListener() {
+            public void processRequest(RequestEvent requestEvent) {
+                try {
+                    Request request = requestEvent.getRequest();
+                    if (!request.getMethod().equals(Request.INVITE))
+                        return;
+                    ServerTransaction serverTransaction = sipProvider
+                            .getNewServerTransaction(request);
+                    Response response = messageFactory.createResponse(Response.OK, request);
+                    ((ToHeader) response.getHeader(ToHeader.NAME)).setTag("5678");
+                    ContactHeader contact = headerFactory.createContactHeader(addressFactory
+                            .createAddress("<sip:bob@127.0.0.1:5098>"));
+                    response.addHeader(contact);
+                    serverTransaction.sendResponse(response);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+
+            public void processResponse(ResponseEvent responseEvent) {
+            }
+
+            public void processTimeout(TimeoutEvent timeoutEvent) {
+            }
+
+            public void processIOException(IOExceptionEvent exceptionEvent) {
+            }
+
+            public void processTransactionTerminated(TransactionTerminatedEvent event) {
+            }
+
+            public void processDialogTerminated(DialogTerminatedEvent event) {
+            }
+        });
+        peer = new DatagramSocket(5099, InetAddress.getByName("127.0.0.1"));
+        peer.setSoTimeout(5000);
+    }
+
+    public void tearDown() {
+        peer.close();
+        sipStack.stop();
+    }
+
+    private String receive() throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[4096], 4096);
+        peer.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength());
+    }
+
+    private void send(String message) throws Exception {
+        byte[] bytes = message.getBytes();
+        peer.send(new DatagramPacket(bytes, bytes.length, InetAddress.getByName("127.0.0.1"),
+                5098));
+    }
+
+    private static String request(String method, String branch, String toTag) {
+        return method + " sip:bob@127.0.0.1:5098 SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 127.0.0.1:5099;branch=" + branch + "\r\n"
+                + "From: <sip:alice@127.0.0.1>;tag=1234\r\n" + "To: <sip:bob@127.0.0.1>"
+                + (toTag == null ? "" : ";tag=" + toTag) + "\r\n"
+                + "Call-ID: dialogtimer@127.0.0.1\r\n" + "CSeq: 1 " + method + "\r\n"
+                + "Max-Forwards: 70\r\n" + "Contact: <sip:alice@127.0.0.1:5099>\r\n"
+                + "Content-Length: 0\r\n\r\n";
+    }
+
+    public void testDeadlineOrder() throws Exception {
+        DialogTimerScheduler scheduler = sipStack.getDialogTimerScheduler();
+        RecordingTask first = new RecordingTask("first");
+        RecordingTask second = new RecordingTask("second");
+        RecordingTask cancelled = new RecordingTask("cancelled");
+        RecordingTask third = new RecordingTask("third");
+        scheduler.schedule(third, 600);
+        scheduler.schedule(second, 400);
+        scheduler.schedule(cancelled, 300);
+        // rescheduled before the second
+        scheduler.schedule(first, 5000);
+        scheduler.schedule(first, 200);
+        assertEquals(4, scheduler.getPendingCount());
+        assertTrue(scheduler.cancel(cancelled));
+        assertTrue(cancelled.cleanedUp);
+        assertFalse(scheduler.cancel(cancelled));
+        assertEquals(3, scheduler.getPendingCount());
+        Thread.sleep(1000);
+        assertEquals("[first, second, third]", run.toString());
+        assertEquals(0, scheduler.getPendingCount());
+        assertFalse(first.cleanedUp);
+    }
+
+    public void testSlowTimer() throws Exception {
+        DialogTimerScheduler scheduler = sipStack.getDialogTimerScheduler();
+        RecordingTask slow = new RecordingTask("slow");
+        slow.sleep = 2000;
+        scheduler.schedule(slow, 0);
+        Thread.sleep(300);
+        // at least one of the other calls is run by another thread than the slow one
+        for (int i = 0; i < 20; i++)
+            scheduler.schedule(new RecordingTask("call-" + i), 0);
+        Thread.sleep(500);
+        assertFalse(run.contains("slow"));
+        assertFalse(run.isEmpty());
+        // and the timers of those calls scheduled later are not held up either
+        String call = run.get(0);
+        scheduler.schedule(new RecordingTask(call), 0);
+        Thread.sleep(500);
+        assertTrue(run.lastIndexOf(call) > run.indexOf(call));
+    }
+
+    public void testWaitForAck() throws Exception {
+        send(request(Request.INVITE, "z9hG4bKwaitack", null));
+        String response;
+        do {
+            response = receive();
+        } while (!response.startsWith("SIP/2.0 200"));
+        long sent = System.currentTimeMillis();
+        // the timer is started once the 2xx is sent
+        Thread.sleep(100);
+        assertEquals(1, sipStack.getPendingDialogTimerCount());
+        // the 2xx is retransmitted after 500 ms, then 1 s
+        long[] intervals = { 500, 1000 };
+        for (int i = 0; i < intervals.length; i++) {
+            assertTrue(receive().startsWith("SIP/2.0 200"));
+            long now = System.currentTimeMillis();
+            assertTrue("retransmitted after " + (now - sent) + " ms",
+                    Math.abs(now - sent - intervals[i]) < 250);
+            sent = now;
+        }
+        send(request(Request.ACK, "z9hG4bKack", "5678"));
+        Thread.sleep(500);
+        assertEquals(0, sipStack.getPendingDialogTimerCount());
+    }
+}
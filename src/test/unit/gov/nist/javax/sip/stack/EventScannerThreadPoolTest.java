@@ -0,0 +1,211 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.sip.ClientTransaction;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.Address;
+import javax.sip.address.AddressFactory;
+import javax.sip.address.SipURI;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.FromHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.MaxForwardsHeader;
+import javax.sip.header.ToHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+import junit.framework.TestCase;
+
+/**
+ * Sends MESSAGE requests on several calls to a stack delivering its events with
+ * gov.nist.javax.sip.EVENT_SCANNER_THREAD_POOL_SIZE threads and checks that the calls
+ * are delivered concurrently while the requests of each call stay in order.
+ */
+public class EventScannerThreadPoolTest extends TestCase {
+
+    private static final int NUMBER_OF_CALLS = 8;
+
+    private static final int MESSAGES_PER_CALL = 10;
+
+    private SipFactory sipFactory;
+
+    private MessageFactory messageFactory;
+
+    private AddressFactory addressFactory;
+
+    private HeaderFactory headerFactory;
+
+    private Endpoint client;
+
+    private Endpoint server;
+
+    class Endpoint implements SipListener {
+
+        SipStack sipStack;
+
+        SipProvider sipProvider;
+
+        int port;
+
+        int requestsReceived;
+
+        int responsesReceived;
+
+        int concurrentRequests;
+
+        int maxConcurrentRequests;
+
+        boolean outOfOrder;
+
+        Map<String, Long> lastCSeqs = new HashMap<String, Long>();
+
+        Set<String> threads = new HashSet<String>();
+
+        Endpoint(String name, int port, int eventScannerThreads) throws Exception {
+            this.port = port;
+            Properties properties = new Properties();
+            properties.setProperty("javax.sip.STACK_NAME", name);
+            properties.setProperty("gov.nist.javax.sip.EVENT_SCANNER_THREAD_POOL_SIZE", ""
+                    + eventScannerThreads);
+            this.sipStack = sipFactory.createSipStack(properties);
+            ListeningPoint listeningPoint = sipStack.createListeningPoint("127.0.0.1", port,
+                    ListeningPoint.TCP);
+            this.sipProvider = sipStack.createSipProvider(listeningPoint);
+            this.sipProvider.addSipListener(this);
+        }
+
+        public void processRequest(RequestEvent requestEvent) {
+            try {
+                Request request = requestEvent.getRequest();
+                String callId = ((CallIdHeader) request.getHeader(CallIdHeader.NAME)).getCallId();
+                long cseq = ((CSeqHeader) request.getHeader(CSeqHeader.NAME)).getSeqNumber();
+                synchronized (this) {
+                    Long lastCSeq = lastCSeqs.get(callId);
+                    if (lastCSeq != null && lastCSeq.longValue() >= cseq)
+                        outOfOrder = true;
+                    lastCSeqs.put(callId, new Long(cseq));
+                    threads.add(Thread.currentThread().getName());
+                    concurrentRequests++;
+                    maxConcurrentRequests = Math.max(maxConcurrentRequests, concurrentRequests);
+                }
+                // a slow listener
+                Thread.sleep(20);
+                synchronized (this) {
+                    concurrentRequests--;
+                    requestsReceived++;
+                }
+                ServerTransaction st = sipProvider.getNewServerTransaction(request);
+                st.sendResponse(messageFactory.createResponse(Response.OK, request));
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                fail("Unexpected exception");
+            }
+        }
+
+        public synchronized void processResponse(ResponseEvent responseEvent) {
+            if (responseEvent.getResponse().getStatusCode() == Response.OK)
+                responsesReceived++;
+        }
+
+        public void processTimeout(TimeoutEvent timeoutEvent) {
+            fail("Unexpected timeout");
+        }
+
+        public void processIOException(IOExceptionEvent exceptionEvent) {
+            fail("Unexpected IO exception");
+        }
+
+        public void processTransactionTerminated(
+                TransactionTerminatedEvent transactionTerminatedEvent) {
+        }
+
+        public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {
+        }
+    }
+
+    public void setUp() throws Exception {
+        sipFactory = SipFactory.getInstance();
+        sipFactory.resetFactory();
+        sipFactory.setPathName("gov.nist");
+        messageFactory = sipFactory.createMessageFactory();
+        addressFactory = sipFactory.createAddressFactory();
+        headerFactory = sipFactory.createHeaderFactory();
+        server = new Endpoint("server", 6090, 4);
+        client = new Endpoint("client", 6080, 1);
+    }
+
+    public void tearDown() {
+        client.sipStack.stop();
+        server.sipStack.stop();
+    }
+
+    private Request createMessage(CallIdHeader callIdHeader, long cseq) throws Exception {
+        SipURI fromAddress = addressFactory.createSipURI("BigGuy", "127.0.0.1:" + client.port);
+        Address fromNameAddress = addressFactory.createAddress(fromAddress);
+        FromHeader fromHeader = headerFactory.createFromHeader(fromNameAddress, "12345");
+        SipURI toAddress = addressFactory.createSipURI("LittleGuy", "127.0.0.1:" + server.port);
+        ToHeader toHeader = headerFactory.createToHeader(addressFactory.createAddress(toAddress),
+                null);
+        SipURI requestURI = addressFactory.createSipURI("LittleGuy", "127.0.0.1:" + server.port);
+        requestURI.setTransportParam("tcp");
+        ArrayList viaHeaders = new ArrayList();
+        ViaHeader viaHeader = headerFactory.createViaHeader("127.0.0.1", client.port, "tcp",
+                null);
+        viaHeaders.add(viaHeader);
+        CSeqHeader cSeqHeader = headerFactory.createCSeqHeader(cseq, Request.MESSAGE);
+        MaxForwardsHeader maxForwards = headerFactory.createMaxForwardsHeader(70);
+        return messageFactory.createRequest(requestURI, Request.MESSAGE, callIdHeader,
+                cSeqHeader, fromHeader, toHeader, viaHeaders, maxForwards);
+    }
+
+    public void testPerCallOrdering() throws Exception {
+        CallIdHeader[] callIds = new CallIdHeader[NUMBER_OF_CALLS];
+        for (int i = 0; i < NUMBER_OF_CALLS; i++) {
+            callIds[i] = client.sipProvider.getNewCallId();
+        }
+        for (int cseq = 1; cseq <= MESSAGES_PER_CALL; cseq++) {
+            for (int i = 0; i < NUMBER_OF_CALLS; i++) {
+                ClientTransaction ct = client.sipProvider.getNewClientTransaction(createMessage(
+                        callIds[i], cseq));
+                ct.sendRequest();
+            }
+        }
+        int total = NUMBER_OF_CALLS * MESSAGES_PER_CALL;
+        for (int i = 0; i < 100; i++) {
+            synchronized (client) {
+                if (client.responsesReceived == total)
+                    break;
+            }
+            Thread.sleep(100);
+        }
+        synchronized (server) {
+            assertEquals(total, server.requestsReceived);
+            assertFalse("requests of a call delivered out of order", server.outOfOrder);
+            assertTrue("calls not delivered concurrently", server.maxConcurrentRequests > 1);
+            assertTrue(server.threads.size() > 1);
+        }
+        synchronized (client) {
+            assertEquals(total, client.responsesReceived);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.stack.SIPStackTimerTask;
+import gov.nist.javax.sip.stack.timers.HashedWheelSipTimer;
+import gov.nist.javax.sip.stack.timers.SipTimer;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sip.SipFactory;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks scheduling, cancellation and fixed delay tasks on the HashedWheelSipTimer
+ * plugged in through gov.nist.javax.sip.TIMER_CLASS_NAME.
+ */
+public class HashedWheelSipTimerTest extends TestCase {
+
+    private SipStackImpl sipStack;
+
+    private SipTimer timer;
+
+    class CountingTask extends SIPStackTimerTask {
+        AtomicInteger runs = new AtomicInteger();
+        AtomicInteger cleanUps = new AtomicInteger();
+        CountDownLatch latch;
+
+        CountingTask(int expectedRuns) {
+            latch = new CountDownLatch(expectedRuns);
+        }
+
+        public void runTask() {
+            runs.incrementAndGet();
+            latch.countDown();
+        }
+
+        public void cleanUpBeforeCancel() {
+            cleanUps.incrementAndGet();
+        }
+    }
+
+    public void setUp() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "wheel");
+        properties.setProperty("gov.nist.javax.sip.TIMER_CLASS_NAME", HashedWheelSipTimer.class.getName());
+        properties.setProperty("gov.nist.javax.sip.TIMER_TICK_DURATION_MILLISECONDS", "5");
+        // small wheel so that delays span several rounds
+        properties.setProperty("gov.nist.javax.sip.TIMER_WHEEL_SIZE", "10");
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.resetFactory();
+        sipFactory.setPathName("gov.nist");
+        sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        timer = sipStack.getTimer();
+    }
+
+    public void tearDown() throws Exception {
+        sipStack.stop();
+    }
+
+    public void testTimerIsPlugged() {
+        assertTrue(timer instanceof HashedWheelSipTimer);
+        assertTrue(timer.isStarted());
+    }
+
+    public void testSchedule() throws Exception {
+        CountingTask shortTask = new CountingTask(1);
+        CountingTask longTask = new CountingTask(1);
+        long start = System.currentTimeMillis();
+        timer.schedule(shortTask, 20);
+        // longer than a full rotation of the wheel
+        timer.schedule(longTask, 200);
+        assertTrue(shortTask.latch.await(2, TimeUnit.SECONDS));
+        assertTrue(longTask.latch.await(2, TimeUnit.SECONDS));
+        assertTrue("task expired too early", System.currentTimeMillis() - start >= 200);
+        Thread.sleep(50);
+        assertEquals(1, shortTask.runs.get());
+        assertEquals(1, longTask.runs.get());
+    }
+
+    public void testCancel() throws Exception {
+        CountingTask[] tasks = new CountingTask[1000];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new CountingTask(1);
+            timer.schedule(tasks[i], 100 + i % 50);
+        }
+        for (int i = 0; i < tasks.length; i++) {
+            assertTrue(timer.cancel(tasks[i]));
+            assertNull(tasks[i].getSipTimerTask());
+        }
+        CountingTask witness = new CountingTask(1);
+        timer.schedule(witness, 200);
+        assertTrue(witness.latch.await(2, TimeUnit.SECONDS));
+        for (int i = 0; i < tasks.length; i++) {
+            assertEquals(0, tasks[i].runs.get());
+            assertEquals(1, tasks[i].cleanUps.get());
+            assertFalse(timer.cancel(tasks[i]));
+        }
+    }
+
+    public void testScheduleWithFixedDelay() throws Exception {
+        CountingTask task = new CountingTask(5);
+        timer.scheduleWithFixedDelay(task, 0, 10);
+        assertTrue(task.latch.await(2, TimeUnit.SECONDS));
+        timer.cancel(task);
+        int runs = task.runs.get();
+        Thread.sleep(100);
+        assertTrue(task.runs.get() <= runs + 1);
+    }
+
+    public void testStop() throws Exception {
+        timer.stop();
+        assertFalse(timer.isStarted());
+        try {
+            timer.schedule(new CountingTask(1), 10);
+            fail("the timer should refuse tasks once stopped");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
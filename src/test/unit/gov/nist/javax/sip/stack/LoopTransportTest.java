@@ -0,0 +1,272 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.ListeningPointExt;
+
+import java.util.ArrayList;
+import java.util.Properties;
+
+import javax.sip.ClientTransaction;
+import javax.sip.Dialog;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipException;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.Address;
+import javax.sip.address.AddressFactory;
+import javax.sip.address.SipURI;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.ContentTypeHeader;
+import javax.sip.header.FromHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.MaxForwardsHeader;
+import javax.sip.header.ToHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs a burst of MESSAGE requests and a whole INVITE dialog between two stacks
+ * of the same JVM over the loop transport.
+ */
+public class LoopTransportTest extends TestCase {
+
+    private static final int NUMBER_OF_MESSAGES = 200;
+
+    private SipFactory sipFactory;
+
+    private MessageFactory messageFactory;
+
+    private AddressFactory addressFactory;
+
+    private HeaderFactory headerFactory;
+
+    private Endpoint client;
+
+    private Endpoint server;
+
+    class Endpoint implements SipListener {
+
+        SipStack sipStack;
+
+        SipProvider sipProvider;
+
+        int port;
+
+        int requestsReceived;
+
+        int responsesReceived;
+
+        boolean ackReceived;
+
+        boolean byeAnswered;
+
+        Dialog dialog;
+
+        Endpoint(String name, int port) throws Exception {
+            this.port = port;
+            Properties properties = new Properties();
+            properties.setProperty("javax.sip.STACK_NAME", name);
+            properties.setProperty("gov.nist.javax.sip.THREAD_POOL_SIZE", "4");
+            this.sipStack = sipFactory.createSipStack(properties);
+            ListeningPoint listeningPoint = sipStack.createListeningPoint("127.0.0.1", port,
+                    ListeningPointExt.LOOP);
+            this.sipProvider = sipStack.createSipProvider(listeningPoint);
+            this.sipProvider.addSipListener(this);
+        }
+
+        public void processRequest(RequestEvent requestEvent) {
+            try {
+                Request request = requestEvent.getRequest();
+                if (request.getMethod().equals(Request.ACK)) {
+                    synchronized (this) {
+                        ackReceived = true;
+                    }
+                    return;
+                }
+                synchronized (this) {
+                    requestsReceived++;
+                }
+                ServerTransaction st = requestEvent.getServerTransaction();
+                if (st == null) {
+                    st = sipProvider.getNewServerTransaction(request);
+                }
+                Response response = messageFactory.createResponse(Response.OK, request);
+                if (request.getMethod().equals(Request.INVITE)) {
+                    ((ToHeader) response.getHeader(ToHeader.NAME)).setTag("4321");
+                    response.addHeader(createContact(this));
+                }
+                st.sendResponse(response);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                fail("Unexpected exception");
+            }
+        }
+
+        public void processResponse(ResponseEvent responseEvent) {
+            try {
+                Response response = responseEvent.getResponse();
+                if (response.getStatusCode() != Response.OK) {
+                    return;
+                }
+                String method = ((CSeqHeader) response.getHeader(CSeqHeader.NAME)).getMethod();
+                if (method.equals(Request.INVITE)) {
+                    Dialog dialog = responseEvent.getClientTransaction().getDialog();
+                    dialog.sendAck(dialog.createAck(((CSeqHeader) response
+                            .getHeader(CSeqHeader.NAME)).getSeqNumber()));
+                    synchronized (this) {
+                        this.dialog = dialog;
+                    }
+                } else if (method.equals(Request.BYE)) {
+                    synchronized (this) {
+                        byeAnswered = true;
+                    }
+                } else {
+                    synchronized (this) {
+                        responsesReceived++;
+                    }
+                }
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                fail("Unexpected exception");
+            }
+        }
+
+        public void processTimeout(TimeoutEvent timeoutEvent) {
+            fail("Unexpected timeout");
+        }
+
+        public void processIOException(IOExceptionEvent exceptionEvent) {
+            fail("Unexpected IO exception");
+        }
+
+        public void processTransactionTerminated(
+                TransactionTerminatedEvent transactionTerminatedEvent) {
+        }
+
+        public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {
+        }
+    }
+
+    public void setUp() throws Exception {
+        sipFactory = SipFactory.getInstance();
+        sipFactory.resetFactory();
+        sipFactory.setPathName("gov.nist");
+        messageFactory = sipFactory.createMessageFactory();
+        addressFactory = sipFactory.createAddressFactory();
+        headerFactory = sipFactory.createHeaderFactory();
+        server = new Endpoint("server", 7070);
+        client = new Endpoint("client", 7060);
+    }
+
+    public void tearDown() {
+        client.sipStack.stop();
+        server.sipStack.stop();
+    }
+
+    private ContactHeader createContact(Endpoint endpoint) throws Exception {
+        SipURI contactUri = addressFactory.createSipURI(null, "127.0.0.1:" + endpoint.port);
+        contactUri.setTransportParam("loop");
+        return headerFactory.createContactHeader(addressFactory.createAddress(contactUri));
+    }
+
+    private Request createRequest(String method, long cseq, int port) throws Exception {
+        SipURI fromAddress = addressFactory.createSipURI("BigGuy", "127.0.0.1:" + client.port);
+        Address fromNameAddress = addressFactory.createAddress(fromAddress);
+        FromHeader fromHeader = headerFactory.createFromHeader(fromNameAddress, "12345");
+        SipURI toAddress = addressFactory.createSipURI("LittleGuy", "127.0.0.1:" + port);
+        ToHeader toHeader = headerFactory.createToHeader(addressFactory.createAddress(toAddress),
+                null);
+        SipURI requestURI = addressFactory.createSipURI("LittleGuy", "127.0.0.1:" + port);
+        requestURI.setTransportParam("loop");
+        ArrayList viaHeaders = new ArrayList();
+        ViaHeader viaHeader = headerFactory.createViaHeader("127.0.0.1", client.port, "loop",
+                null);
+        viaHeaders.add(viaHeader);
+        CallIdHeader callIdHeader = client.sipProvider.getNewCallId();
+        CSeqHeader cSeqHeader = headerFactory.createCSeqHeader(cseq, method);
+        MaxForwardsHeader maxForwards = headerFactory.createMaxForwardsHeader(70);
+        Request request = messageFactory.createRequest(requestURI, method, callIdHeader,
+                cSeqHeader, fromHeader, toHeader, viaHeaders, maxForwards);
+        request.addHeader(createContact(client));
+        return request;
+    }
+
+    private void waitFor(Endpoint endpoint, String field) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            synchronized (endpoint) {
+                if (field.equals("messages") && endpoint.responsesReceived == NUMBER_OF_MESSAGES
+                        || field.equals("dialog") && endpoint.dialog != null
+                        || field.equals("ack") && endpoint.ackReceived
+                        || field.equals("bye") && endpoint.byeAnswered)
+                    return;
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    public void testMessageBurst() throws Exception {
+        ContentTypeHeader contentTypeHeader = headerFactory.createContentTypeHeader("text",
+                "plain");
+        for (int i = 1; i <= NUMBER_OF_MESSAGES; i++) {
+            Request request = createRequest(Request.MESSAGE, i, server.port);
+            request.setContent("Hello " + i, contentTypeHeader);
+            ClientTransaction ct = client.sipProvider.getNewClientTransaction(request);
+            ct.sendRequest();
+        }
+        waitFor(client, "messages");
+        synchronized (server) {
+            assertEquals(NUMBER_OF_MESSAGES, server.requestsReceived);
+        }
+        synchronized (client) {
+            assertEquals(NUMBER_OF_MESSAGES, client.responsesReceived);
+        }
+    }
+
+    public void testInviteDialog() throws Exception {
+        ClientTransaction ct = client.sipProvider.getNewClientTransaction(createRequest(
+                Request.INVITE, 1, server.port));
+        ct.sendRequest();
+        waitFor(client, "dialog");
+        waitFor(server, "ack");
+        synchronized (server) {
+            assertTrue("ACK not received", server.ackReceived);
+        }
+        Dialog dialog;
+        synchronized (client) {
+            dialog = client.dialog;
+        }
+        assertNotNull("no dialog", dialog);
+        ClientTransaction byeTransaction = client.sipProvider.getNewClientTransaction(dialog
+                .createRequest(Request.BYE));
+        dialog.sendRequest(byeTransaction);
+        waitFor(client, "bye");
+        synchronized (client) {
+            assertTrue("BYE not answered", client.byeAnswered);
+        }
+    }
+
+    public void testNoListeningPoint() throws Exception {
+        ClientTransaction ct = client.sipProvider.getNewClientTransaction(createRequest(
+                Request.MESSAGE, 1, 7080));
+        try {
+            ct.sendRequest();
+            fail("sent to nobody");
+        } catch (SipException ex) {
+            // expected
+        }
+    }
+}
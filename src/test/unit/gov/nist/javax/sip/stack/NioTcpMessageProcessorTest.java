@@ -0,0 +1,190 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import java.util.ArrayList;
+import java.util.Properties;
+
+import javax.sip.ClientTransaction;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.Address;
+import javax.sip.address.AddressFactory;
+import javax.sip.address.SipURI;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ContentTypeHeader;
+import javax.sip.header.FromHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.MaxForwardsHeader;
+import javax.sip.header.ToHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+import junit.framework.TestCase;
+
+/**
+ * Sends a burst of MESSAGE requests, one of them with a body larger than the NIO read buffer,
+ * between two stacks using the NioMessageProcessorFactory over TCP.
+ */
+public class NioTcpMessageProcessorTest extends TestCase {
+
+    private static final int NUMBER_OF_MESSAGES = 50;
+
+    private static final int LARGE_BODY_SIZE = 100 * 1024;
+
+    private SipFactory sipFactory;
+
+    private MessageFactory messageFactory;
+
+    private AddressFactory addressFactory;
+
+    private HeaderFactory headerFactory;
+
+    private Endpoint client;
+
+    private Endpoint server;
+
+    class Endpoint implements SipListener {
+
+        SipStack sipStack;
+
+        SipProvider sipProvider;
+
+        int port;
+
+        int requestsReceived;
+
+        int largeBodiesReceived;
+
+        int responsesReceived;
+
+        Endpoint(String name, int port) throws Exception {
+            this.port = port;
+            Properties properties = new Properties();
+            properties.setProperty("javax.sip.STACK_NAME", name);
+            properties.setProperty("gov.nist.javax.sip.MESSAGE_PROCESSOR_FACTORY",
+                    "gov.nist.javax.sip.stack.NioMessageProcessorFactory");
+            properties.setProperty("gov.nist.javax.sip.NIO_SELECTOR_THREADS", "2");
+            this.sipStack = sipFactory.createSipStack(properties);
+            ListeningPoint listeningPoint = sipStack.createListeningPoint("127.0.0.1", port,
+                    ListeningPoint.TCP);
+            this.sipProvider = sipStack.createSipProvider(listeningPoint);
+            this.sipProvider.addSipListener(this);
+        }
+
+        public void processRequest(RequestEvent requestEvent) {
+            try {
+                Request request = requestEvent.getRequest();
+                synchronized (this) {
+                    requestsReceived++;
+                    if (request.getRawContent() != null
+                            && request.getRawContent().length == LARGE_BODY_SIZE)
+                        largeBodiesReceived++;
+                }
+                ServerTransaction st = sipProvider.getNewServerTransaction(request);
+                st.sendResponse(messageFactory.createResponse(Response.OK, request));
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                fail("Unexpected exception");
+            }
+        }
+
+        public synchronized void processResponse(ResponseEvent responseEvent) {
+            if (responseEvent.getResponse().getStatusCode() == Response.OK)
+                responsesReceived++;
+        }
+
+        public void processTimeout(TimeoutEvent timeoutEvent) {
+            fail("Unexpected timeout");
+        }
+
+        public void processIOException(IOExceptionEvent exceptionEvent) {
+            fail("Unexpected IO exception");
+        }
+
+        public void processTransactionTerminated(
+                TransactionTerminatedEvent transactionTerminatedEvent) {
+        }
+
+        public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {
+        }
+    }
+
+    public void setUp() throws Exception {
+        sipFactory = SipFactory.getInstance();
+        sipFactory.resetFactory();
+        sipFactory.setPathName("gov.nist");
+        messageFactory = sipFactory.createMessageFactory();
+        addressFactory = sipFactory.createAddressFactory();
+        headerFactory = sipFactory.createHeaderFactory();
+        server = new Endpoint("server", 6070);
+        client = new Endpoint("client", 6060);
+    }
+
+    public void tearDown() {
+        client.sipStack.stop();
+        server.sipStack.stop();
+    }
+
+    private Request createMessage(long cseq, byte[] body) throws Exception {
+        SipURI fromAddress = addressFactory.createSipURI("BigGuy", "127.0.0.1:" + client.port);
+        Address fromNameAddress = addressFactory.createAddress(fromAddress);
+        FromHeader fromHeader = headerFactory.createFromHeader(fromNameAddress, "12345");
+        SipURI toAddress = addressFactory.createSipURI("LittleGuy", "127.0.0.1:" + server.port);
+        ToHeader toHeader = headerFactory.createToHeader(addressFactory.createAddress(toAddress),
+                null);
+        SipURI requestURI = addressFactory.createSipURI("LittleGuy", "127.0.0.1:" + server.port);
+        requestURI.setTransportParam("tcp");
+        ArrayList viaHeaders = new ArrayList();
+        ViaHeader viaHeader = headerFactory.createViaHeader("127.0.0.1", client.port, "tcp",
+                null);
+        viaHeaders.add(viaHeader);
+        CallIdHeader callIdHeader = client.sipProvider.getNewCallId();
+        CSeqHeader cSeqHeader = headerFactory.createCSeqHeader(cseq, Request.MESSAGE);
+        MaxForwardsHeader maxForwards = headerFactory.createMaxForwardsHeader(70);
+        Request request = messageFactory.createRequest(requestURI, Request.MESSAGE, callIdHeader,
+                cSeqHeader, fromHeader, toHeader, viaHeaders, maxForwards);
+        ContentTypeHeader contentTypeHeader = headerFactory.createContentTypeHeader("text",
+                "plain");
+        request.setContent(body, contentTypeHeader);
+        return request;
+    }
+
+    public void testMessageBurst() throws Exception {
+        byte[] largeBody = new byte[LARGE_BODY_SIZE];
+        for (int i = 0; i < largeBody.length; i++) {
+            largeBody[i] = (byte) ('a' + i % 26);
+        }
+        for (int i = 1; i <= NUMBER_OF_MESSAGES; i++) {
+            byte[] body = i == NUMBER_OF_MESSAGES / 2 ? largeBody : ("Hello " + i).getBytes();
+            ClientTransaction ct = client.sipProvider.getNewClientTransaction(createMessage(i,
+                    body));
+            ct.sendRequest();
+        }
+        for (int i = 0; i < 100; i++) {
+            synchronized (client) {
+                if (client.responsesReceived == NUMBER_OF_MESSAGES)
+                    break;
+            }
+            Thread.sleep(100);
+        }
+        synchronized (server) {
+            assertEquals(NUMBER_OF_MESSAGES, server.requestsReceived);
+            assertEquals(1, server.largeBodiesReceived);
+        }
+        synchronized (client) {
+            assertEquals(NUMBER_OF_MESSAGES, client.responsesReceived);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.core.net.DefaultNetworkLayer;
+import gov.nist.core.net.NetworkLayer;
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.message.MessageFactoryImpl;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.stack.HopImpl;
+import gov.nist.javax.sip.stack.MessageChannel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Properties;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.sip.ListeningPoint;
+import javax.sip.SipException;
+import javax.sip.SipFactory;
+import javax.sip.SipProvider;
+import javax.sip.message.Request;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that callers sending over TCP wait at most the connect timeout for a
+ * slow connection, or not at all when connecting without blocking, that the
+ * connects run on a bounded number of threads, and that the calls to a
+ * destination are spread over its pooled connections.
+ */
+public class OutboundConnectionTest extends TestCase {
+
+    /**
+     * Takes a while to connect a socket.
+     */
+    public static class SlowNetworkLayer implements NetworkLayer {
+        static volatile long connectDelay;
+
+        private final NetworkLayer networkLayer = DefaultNetworkLayer.SINGLETON;
+
+        public ServerSocket createServerSocket(int port, int backlog, InetAddress bindAddress)
+                throws IOException {
+            return networkLayer.createServerSocket(port, backlog, bindAddress);
+        }
+
+        public SSLServerSocket createSSLServerSocket(int port, int backlog,
+                InetAddress bindAddress) throws IOException {
+            return networkLayer.createSSLServerSocket(port, backlog, bindAddress);
+        }
+
+        public Socket createSocket(InetAddress address, int port) throws IOException {
+            return createSocket(address, port, null);
+        }
+
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress)
+                throws IOException {
+            try {
+                Thread.sleep(connectDelay);
+            } catch (InterruptedException ex) {
+                throw new IOException("interrupted");
+            }
+            return networkLayer.createSocket(address, port, localAddress);
+        }
+
+        public Socket createSocket(InetAddress address, int port, InetAddress myAddress,
+                int myPort) throws IOException {
+            return networkLayer.createSocket(address, port, myAddress, myPort);
+        }
+
+        public SSLSocket createSSLSocket(InetAddress address, int port) throws IOException {
+            return networkLayer.createSSLSocket(address, port);
+        }
+
+        public SSLSocket createSSLSocket(InetAddress address, int port, InetAddress localAddress)
+                throws IOException {
+            return networkLayer.createSSLSocket(address, port, localAddress);
+        }
+
+        public DatagramSocket createDatagramSocket() throws SocketException {
+            return networkLayer.createDatagramSocket();
+        }
+
+        public DatagramSocket createDatagramSocket(int port, InetAddress laddr)
+                throws SocketException {
+            return networkLayer.createDatagramSocket(port, laddr);
+        }
+    }
+
+    private SipStackImpl sipStack;
+
+    private SipProvider sipProvider;
+
+    private ServerSocket peer;
+
+    private void createStack(Properties properties) throws Exception {
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.resetFactory();
+        sipFactory.setPathName("gov.nist");
+        properties.setProperty("javax.sip.STACK_NAME", "connections");
+        properties.setProperty("gov.nist.javax.sip.NETWORK_LAYER", SlowNetworkLayer.class
+                .getName());
+        sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        ListeningPoint listeningPoint = sipStack.createListeningPoint("127.0.0.1", 5098, "tcp");
+        sipProvider = sipStack.createSipProvider(listeningPoint);
+        peer = new ServerSocket(5099, 50, InetAddress.getByName("127.0.0.1"));
+        peer.setSoTimeout(5000);
+    }
+
+    public void tearDown() throws Exception {
+        SlowNetworkLayer.connectDelay = 0;
+        if (peer != null)
+            peer.close();
+        if (sipStack != null)
+            sipStack.stop();
+    }
+
+    private static Request request(int cseq) throws Exception {
+        return request("connection" + cseq, cseq);
+    }
+
+    private static Request request(String callId, int cseq) throws Exception {
+        return new MessageFactoryImpl().createRequest("MESSAGE sip:bob@127.0.0.1:5099;transport=tcp SIP/2.0\r\n"
+                + "Via: SIP/2.0/TCP 127.0.0.1:5098;branch=z9hG4bK" + callId + cseq + "\r\n"
+                + "From: <sip:alice@127.0.0.1>;tag=1234\r\n" + "To: <sip:bob@127.0.0.1>\r\n"
+                + "Call-ID: " + callId + "@127.0.0.1\r\n" + "CSeq: " + cseq
+                + " MESSAGE\r\n" + "Max-Forwards: 70\r\n" + "Content-Length: 0\r\n\r\n");
+    }
+
+    private void send(int cseq) throws Exception {
+        sipProvider.getNewClientTransaction(request(cseq)).sendRequest();
+    }
+
+    /**
+     * Return the requests read on the given connection until none comes for
+     * a while.
+     */
+    private static String read(Socket socket) throws IOException {
+        socket.setSoTimeout(1000);
+        InputStream in = socket.getInputStream();
+        StringBuffer requests = new StringBuffer();
+        byte[] buffer = new byte[4096];
+        try {
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                requests.append(new String(buffer, 0, n));
+        } catch (SocketTimeoutException ex) {
+        }
+        return requests.toString();
+    }
+
+    private static int count(String requests, String s) {
+        int count = 0;
+        for (int i = requests.indexOf(s); i >= 0; i = requests.indexOf(s, i + 1))
+            count++;
+        return count;
+    }
+
+    public void testConnectTimeout() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("gov.nist.javax.sip.CONNECT_TIMEOUT", "300");
+        createStack(properties);
+        SlowNetworkLayer.connectDelay = 2000;
+        long start = System.currentTimeMillis();
+        try {
+            send(1);
+            fail("sent over a connection not established");
+        } catch (SipException ex) {
+        }
+        long waited = System.currentTimeMillis() - start;
+        assertTrue("waited " + waited + " ms", waited < 1500);
+    }
+
+    public void testNonBlockingConnect() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("gov.nist.javax.sip.NON_BLOCKING_CONNECT", "true");
+        createStack(properties);
+        SlowNetworkLayer.connectDelay = 500;
+        long start = System.currentTimeMillis();
+        for (int cseq = 1; cseq <= 3; cseq++)
+            send(cseq);
+        long waited = System.currentTimeMillis() - start;
+        assertTrue("waited " + waited + " ms", waited < 400);
+        String requests = read(peer.accept());
+        // all queued on the one connection, in order
+        assertEquals(3, count(requests, "MESSAGE sip:"));
+        assertTrue(requests.indexOf("CSeq: 1 ") < requests.indexOf("CSeq: 2 "));
+        assertTrue(requests.indexOf("CSeq: 2 ") < requests.indexOf("CSeq: 3 "));
+    }
+
+    public void testNonBlockingChannelSend() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("gov.nist.javax.sip.NON_BLOCKING_CONNECT", "true");
+        createStack(properties);
+        SlowNetworkLayer.connectDelay = 500;
+        // encodes into the buffer of the calling thread
+        MessageChannel channel = sipStack.createRawMessageChannel("127.0.0.1", 5098,
+                new HopImpl("127.0.0.1", 5099, "tcp"));
+        for (int cseq = 1; cseq <= 3; cseq++)
+            channel.sendMessage((SIPMessage) request(cseq));
+        String requests = read(peer.accept());
+        assertEquals(3, count(requests, "MESSAGE sip:"));
+        assertEquals(1, count(requests, "CSeq: 1 "));
+        assertEquals(1, count(requests, "CSeq: 2 "));
+        assertEquals(1, count(requests, "CSeq: 3 "));
+    }
+
+    public void testConnectThreads() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("gov.nist.javax.sip.CONNECT_TIMEOUT", "300");
+        properties.setProperty("gov.nist.javax.sip.CONNECT_THREADS", "1");
+        createStack(properties);
+        SlowNetworkLayer.connectDelay = 1000;
+        ServerSocket other = new ServerSocket(5100, 50, InetAddress.getByName("127.0.0.1"));
+        try {
+            other.setSoTimeout(2000);
+            int[] ports = { 5099, 5100 };
+            for (int i = 0; i < ports.length; i++) {
+                MessageChannel channel = sipStack.createRawMessageChannel("127.0.0.1", 5098,
+                        new HopImpl("127.0.0.1", ports[i], "tcp"));
+                try {
+                    channel.sendMessage((SIPMessage) request(i + 1));
+                    fail("sent over a connection not established");
+                } catch (IOException ex) {
+                }
+            }
+            // the connect to the first peer had the only thread and goes on
+            peer.accept().close();
+            // the one to the second peer waited for it and was given up
+            try {
+                other.accept().close();
+                fail("connected with no message left to send");
+            } catch (SocketTimeoutException ex) {
+            }
+        } finally {
+            other.close();
+        }
+    }
+
+    public void testPooledConnections() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("gov.nist.javax.sip.CONNECTIONS_PER_DESTINATION", "2");
+        createStack(properties);
+        for (int call = 1; call <= 8; call++) {
+            for (int cseq = 1; cseq <= 2; cseq++)
+                sipProvider.getNewClientTransaction(request("call" + call, cseq)).sendRequest();
+        }
+        String first = read(peer.accept());
+        String second = read(peer.accept());
+        assertEquals(16, count(first, "MESSAGE sip:") + count(second, "MESSAGE sip:"));
+        // the requests of a call all go on the same connection
+        for (int call = 1; call <= 8; call++)
+            assertEquals(0, count(first, "Call-ID: call" + call + "@") % 2);
+    }
+}
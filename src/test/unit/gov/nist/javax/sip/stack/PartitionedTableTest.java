@@ -0,0 +1,75 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.stack.PartitionedTable;
+
+import java.util.Iterator;
+import java.util.Properties;
+
+import javax.sip.SipFactory;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the counts of the partitions of the dialog and transaction tables.
+ */
+public class PartitionedTableTest extends TestCase {
+
+    private static int sum(int[] counts) {
+        int sum = 0;
+        for (int i = 0; i < counts.length; i++)
+            sum += counts[i];
+        return sum;
+    }
+
+    public void testCounts() {
+        PartitionedTable<String> table = new PartitionedTable<String>(3);
+        assertEquals(4, table.getPartitionCount());
+        for (int i = 0; i < 1000; i++)
+            table.put("z9hg4bk" + i, "transaction" + i);
+        table.put("z9hg4bk0", "replaced");
+        assertEquals(1000, table.size());
+        assertEquals(1000, sum(table.getPartitionSizes()));
+        int[] sizes = table.getPartitionSizes();
+        for (int i = 0; i < sizes.length; i++)
+            assertTrue("partition " + i + " holds " + sizes[i], sizes[i] > 150);
+        assertEquals("replaced", table.get("z9hg4bk0"));
+
+        for (int i = 0; i < 500; i++)
+            assertNotNull(table.remove("z9hg4bk" + i));
+        assertNull(table.remove("z9hg4bk0"));
+        assertFalse(table.remove("z9hg4bk500", "another"));
+        assertEquals(500, table.size());
+        assertEquals(1000, sum(table.getPartitionPeakSizes()));
+
+        int count = 0;
+        for (Iterator<String> it = table.values().iterator(); it.hasNext();) {
+            it.next();
+            if (count++ % 2 == 0)
+                it.remove();
+        }
+        assertEquals(500, count);
+        assertEquals(250, table.size());
+        table.clear();
+        assertTrue(table.isEmpty());
+        assertEquals(0, sum(table.getPartitionSizes()));
+    }
+
+    public void testStackTablePartitions() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "partitions");
+        properties.setProperty("gov.nist.javax.sip.TABLE_PARTITIONS", "8");
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.resetFactory();
+        sipFactory.setPathName("gov.nist");
+        SipStackImpl sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        try {
+            assertEquals(8, sipStack.getClientTransactionTablePartitionSizes().length);
+            assertEquals(8, sipStack.getServerTransactionTablePartitionSizes().length);
+            assertEquals(8, sipStack.getDialogTablePartitionSizes().length);
+            assertEquals(0, sipStack.getActiveClientTransactionCount());
+        } finally {
+            sipStack.stop();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.ListeningPointImpl;
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.parser.StringMsgParser;
+import gov.nist.javax.sip.stack.MessageChannel;
+import gov.nist.javax.sip.stack.SIPClientTransaction;
+import gov.nist.javax.sip.stack.SIPServerTransaction;
+
+import java.net.InetAddress;
+import java.util.Properties;
+
+import javax.sip.ListeningPoint;
+import javax.sip.SipFactory;
+
+import junit.framework.TestCase;
+
+/**
+ * Matches the messages of RFC 2543 clients, which have no magic cookie in
+ * their branch, with their transactions.
+ */
+public class Rfc2543TransactionLookupTest extends TestCase {
+
+    private SipStackImpl sipStack;
+
+    private MessageChannel channel;
+
+    public void setUp() throws Exception {
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.resetFactory();
+        sipFactory.setPathName("gov.nist");
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "rfc2543");
+        sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        ListeningPoint listeningPoint = sipStack.createListeningPoint("127.0.0.1", 5096, "udp");
+        sipStack.createSipProvider(listeningPoint);
+        channel = ((ListeningPointImpl) listeningPoint).getMessageProcessor()
+                .createMessageChannel(InetAddress.getByName("127.0.0.1"), 5097);
+    }
+
+    public void tearDown() {
+        sipStack.stop();
+    }
+
+    private SIPMessage parse(String firstLine, String method, String callId, String branch,
+            String toTag) throws Exception {
+        String message = firstLine + "\r\n" + "Via: SIP/2.0/UDP 127.0.0.1:5097"
+                + (branch == null ? "" : ";branch=" + branch) + "\r\n"
+                + "From: <sip:alice@127.0.0.1>;tag=1234\r\n" + "To: <sip:bob@127.0.0.1>"
+                + (toTag == null ? "" : ";tag=" + toTag) + "\r\n" + "Call-ID: " + callId
+                + "\r\n" + "CSeq: 1 " + method + "\r\n" + "Max-Forwards: 70\r\n"
+                + "Contact: <sip:alice@127.0.0.1:5097>\r\n" + "Content-Length: 0\r\n\r\n";
+        return new StringMsgParser().parseSIPMessage(message.getBytes(), true, false, null);
+    }
+
+    private SIPMessage request(String method, String callId, String branch, String toTag)
+            throws Exception {
+        return parse(method + " sip:bob@127.0.0.1:5096 SIP/2.0", method, callId, branch, toTag);
+    }
+
+    private SIPServerTransaction serverTransaction(SIPMessage request) throws Exception {
+        SIPServerTransaction transaction = sipStack.createServerTransaction(channel);
+        transaction.setOriginalRequest((SIPRequest) request);
+        sipStack.addTransaction(transaction);
+        return transaction;
+    }
+
+    public void testServer() throws Exception {
+        SIPServerTransaction invite = null;
+        SIPServerTransaction legacyBranch = null;
+        for (int i = 0; i < 100; i++) {
+            SIPServerTransaction transaction = serverTransaction(request("INVITE", "call" + i,
+                    null, null));
+            if (i == 42)
+                invite = transaction;
+            serverTransaction(request("INVITE", "branch" + i, "z9hG4bK" + i, null));
+            transaction = serverTransaction(request("INVITE", "legacy" + i, "1234." + i, null));
+            if (i == 42)
+                legacyBranch = transaction;
+        }
+        SIPServerTransaction options = serverTransaction(request("OPTIONS", "options42", null,
+                null));
+
+        assertSame(invite, sipStack.findTransaction(request("INVITE", "call42", null, null), true));
+        // the ACK of a non 2xx final response has the To tag of the response
+        assertSame(invite, sipStack.findTransaction(request("ACK", "call42", null, "5678"), true));
+        assertSame(legacyBranch, sipStack.findTransaction(request("INVITE", "legacy42", "1234.42",
+                null), true));
+        assertSame(options, sipStack
+                .findTransaction(request("OPTIONS", "options42", null, null), true));
+
+        assertNull(sipStack.findTransaction(request("INVITE", "call420", null, null), true));
+        assertNull(sipStack.findTransaction(parse("INVITE sip:carol@127.0.0.1:5096 SIP/2.0",
+                "INVITE", "call42", null, null), true));
+        // a CANCEL has a transaction of its own
+        assertNull(sipStack.findTransaction(request("CANCEL", "call42", null, null), true));
+
+        sipStack.removeTransaction(invite);
+        assertNull(sipStack.findTransaction(request("ACK", "call42", null, "5678"), true));
+    }
+
+    public void testClient() throws Exception {
+        SIPRequest request = (SIPRequest) request("INVITE", "call", null, null);
+        SIPClientTransaction invite = sipStack.createClientTransaction(request, channel);
+        sipStack.addTransaction(invite);
+        assertSame(invite, sipStack.findTransaction(parse("SIP/2.0 180 Ringing", "INVITE", "call",
+                null, "5678"), false));
+        assertNull(sipStack.findTransaction(parse("SIP/2.0 180 Ringing", "INVITE", "call2", null,
+                "5678"), false));
+        sipStack.removeTransaction(invite);
+        assertNull(sipStack.findTransaction(parse("SIP/2.0 180 Ringing", "INVITE", "call", null,
+                "5678"), false));
+    }
+}
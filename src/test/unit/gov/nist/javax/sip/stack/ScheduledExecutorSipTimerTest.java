@@ -0,0 +1,108 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.stack.SIPStackTimerTask;
+import gov.nist.javax.sip.stack.timers.ScheduledExecutorSipTimer;
+import gov.nist.javax.sip.stack.timers.SipTimer;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.sip.SipFactory;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the ScheduledExecutorSipTimer runs the tasks of a given call on the same thread
+ * and that a slow task does not hold back the tasks of the other calls.
+ */
+public class ScheduledExecutorSipTimerTest extends TestCase {
+
+    private SipStackImpl sipStack;
+
+    private SipTimer timer;
+
+    class CallTask extends SIPStackTimerTask {
+        String callId;
+        long sleep;
+        Set<String> threads;
+        CountDownLatch latch;
+
+        CallTask(String callId, long sleep, Set<String> threads, CountDownLatch latch) {
+            this.callId = callId;
+            this.sleep = sleep;
+            this.threads = threads;
+            this.latch = latch;
+        }
+
+        public void runTask() {
+            threads.add(Thread.currentThread().getName());
+            try {
+                Thread.sleep(sleep);
+            } catch (InterruptedException e) {
+            }
+            latch.countDown();
+        }
+
+        public Object getThreadHash() {
+            return callId;
+        }
+    }
+
+    public void setUp() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "sharded");
+        properties.setProperty("gov.nist.javax.sip.TIMER_CLASS_NAME", ScheduledExecutorSipTimer.class.getName());
+        properties.setProperty("gov.nist.javax.sip.TIMER_THREAD_POOL_SIZE", "4");
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.resetFactory();
+        sipFactory.setPathName("gov.nist");
+        sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        timer = sipStack.getTimer();
+    }
+
+    public void tearDown() throws Exception {
+        sipStack.stop();
+    }
+
+    public void testSameCallSameThread() throws Exception {
+        assertTrue(timer.isStarted());
+        Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        CountDownLatch latch = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            timer.schedule(new CallTask("call-1", 0, threads, latch), i % 3);
+        }
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals(1, threads.size());
+    }
+
+    public void testSlowTaskDoesNotBlockOtherCalls() throws Exception {
+        Set<String> slowThreads = Collections.synchronizedSet(new HashSet<String>());
+        CountDownLatch slowLatch = new CountDownLatch(1);
+        timer.schedule(new CallTask("slow-call", 2000, slowThreads, slowLatch), 0);
+        Thread.sleep(100);
+        // at least one of the other calls goes to another shard than the slow one
+        Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        CountDownLatch latch = new CountDownLatch(1);
+        for (int i = 0; i < 50; i++) {
+            timer.schedule(new CallTask("call-" + i, 0, threads, latch), 0);
+        }
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertTrue(slowLatch.getCount() == 1);
+        assertTrue(slowLatch.await(3, TimeUnit.SECONDS));
+    }
+
+    public void testCancel() throws Exception {
+        Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        CountDownLatch latch = new CountDownLatch(1);
+        CallTask task = new CallTask("call-1", 0, threads, latch);
+        timer.schedule(task, 100);
+        assertTrue(timer.cancel(task));
+        assertFalse(latch.await(300, TimeUnit.MILLISECONDS));
+        assertFalse(timer.cancel(task));
+    }
+}
@@ -0,0 +1,139 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.header.HeaderFactoryImpl;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.parser.StringMsgParser;
+import gov.nist.javax.sip.stack.SIPClientTransaction;
+
+import java.util.Properties;
+
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+
+import junit.framework.TestCase;
+
+/**
+ * Matches NOTIFY requests against the SUBSCRIBE client transactions of the
+ * stack the way RFC 3265 describes it: Call-ID, To tag of the NOTIFY against
+ * From tag of the SUBSCRIBE, and Event header.
+ */
+public class SubscribeTransactionIndexTest extends TestCase implements SipListener {
+
+    private SipStackImpl sipStack;
+
+    private SipProvider sipProvider;
+
+    public void setUp() throws Exception {
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.resetFactory();
+        sipFactory.setPathName("gov.nist");
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "subscriber");
+        properties.setProperty("gov.nist.javax.sip.DELIVER_UNSOLICITED_NOTIFY", "true");
+        sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        ListeningPoint listeningPoint = sipStack.createListeningPoint("127.0.0.1", 5096, "udp");
+        sipProvider = sipStack.createSipProvider(listeningPoint);
+        sipProvider.addSipListener(this);
+    }
+
+    public void tearDown() {
+        sipStack.stop();
+    }
+
+    private SIPRequest parse(String method, String callId, String fromTag, String toTag,
+            String event) throws Exception {
+        String message = method + " sip:bob@127.0.0.1:5097 SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 127.0.0.1:5096;branch=z9hG4bK" + method + callId + fromTag
+                + "\r\n" + "From: <sip:alice@127.0.0.1>;tag=" + fromTag + "\r\n"
+                + "To: <sip:bob@127.0.0.1>" + (toTag == null ? "" : ";tag=" + toTag) + "\r\n"
+                + "Call-ID: " + callId + "\r\n" + "CSeq: 1 " + method + "\r\n"
+                + "Max-Forwards: 70\r\n" + "Contact: <sip:alice@127.0.0.1:5096>\r\n"
+                + (event == null ? "" : "Event: " + event + "\r\n") + "Content-Length: 0\r\n\r\n";
+        return (SIPRequest) new StringMsgParser().parseSIPMessage(message.getBytes(), true, false,
+                null);
+    }
+
+    private SIPClientTransaction subscribe(String callId, String fromTag, String event)
+            throws Exception {
+        return (SIPClientTransaction) sipProvider.getNewClientTransaction(parse("SUBSCRIBE",
+                callId, fromTag, null, event));
+    }
+
+    private SIPClientTransaction notify(String callId, String toTag, String event)
+            throws Exception {
+        return sipStack.findSubscribeTransaction(parse("NOTIFY", callId, "bobtag", toTag, event),
+                null);
+    }
+
+    public void testMatch() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            subscribe("call" + i + "@127.0.0.1", "tag" + i, "presence");
+        }
+        SIPClientTransaction dialog = subscribe("call1@127.0.0.1", "tag1", "dialog");
+        SIPClientTransaction withId = subscribe("call1@127.0.0.1", "tag1", "refer;id=93809824");
+
+        SIPClientTransaction presence = notify("call1@127.0.0.1", "tag1", "presence");
+        assertNotNull(presence);
+        assertEquals("tag1", presence.getOriginalRequestFromTag());
+        assertEquals("call1@127.0.0.1", presence.getOriginalRequestCallId());
+        assertEquals("presence", presence.getOriginalRequestEvent().getEventType());
+        // Call-ID, tags and event are compared ignoring case
+        assertSame(presence, notify("CALL1@127.0.0.1", "TAG1", "Presence"));
+        assertSame(dialog, notify("call1@127.0.0.1", "tag1", "dialog"));
+        assertSame(withId, notify("call1@127.0.0.1", "tag1", "refer;id=93809824"));
+
+        assertNull(notify("call1@127.0.0.1", "tag2", "presence"));
+        assertNull(notify("call2@127.0.0.1", "tag1", "presence"));
+        assertNull(notify("call1@127.0.0.1", "tag1", "message-summary"));
+        assertNull(notify("call1@127.0.0.1", "tag1", "refer"));
+        assertNull(notify("call1@127.0.0.1", "tag1", "refer;id=1"));
+        assertNull(notify("call1@127.0.0.1", "tag1", "dialog;id=1"));
+    }
+
+    public void testRemove() throws Exception {
+        SIPClientTransaction first = subscribe("call@127.0.0.1", "tag", "presence");
+        SIPClientTransaction refresh = subscribe("call@127.0.0.1", "tag", "presence");
+        assertSame(first, notify("call@127.0.0.1", "tag", "presence"));
+        sipStack.removeTransaction(first);
+        assertSame(refresh, notify("call@127.0.0.1", "tag", "presence"));
+        sipStack.removeTransaction(refresh);
+        assertNull(notify("call@127.0.0.1", "tag", "presence"));
+    }
+
+    public void testEventSetBeforeSending() throws Exception {
+        SIPClientTransaction ct = subscribe("late@127.0.0.1", "tag", null);
+        assertNull(notify("late@127.0.0.1", "tag", "presence"));
+        ct.getRequest().addHeader(new HeaderFactoryImpl().createEventHeader("presence"));
+        ct.sendRequest();
+        assertSame(ct, notify("late@127.0.0.1", "tag", "presence"));
+        sipStack.removeTransaction(ct);
+        assertNull(notify("late@127.0.0.1", "tag", "presence"));
+    }
+
+    public void processRequest(RequestEvent requestEvent) {
+    }
+
+    public void processResponse(ResponseEvent responseEvent) {
+    }
+
+    public void processTimeout(TimeoutEvent timeoutEvent) {
+    }
+
+    public void processIOException(IOExceptionEvent exceptionEvent) {
+    }
+
+    public void processTransactionTerminated(TransactionTerminatedEvent transactionTerminatedEvent) {
+    }
+
+    public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {
+    }
+}
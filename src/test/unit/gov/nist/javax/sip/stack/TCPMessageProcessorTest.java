@@ -0,0 +1,151 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.stack.HopImpl;
+import gov.nist.javax.sip.stack.MessageChannel;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the channels of the TCP message processor are looked up and
+ * created concurrently, and that it accepts no more connections than the
+ * maximum.
+ */
+public class TCPMessageProcessorTest extends TestCase {
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private SipStackImpl sipStack;
+
+    private void createStack(Properties properties) throws Exception {
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.resetFactory();
+        sipFactory.setPathName("gov.nist");
+        properties.setProperty("javax.sip.STACK_NAME", "tcpchannels");
+        sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        ListeningPoint listeningPoint = sipStack.createListeningPoint("127.0.0.1", 5098, "tcp");
+        SipProvider sipProvider = sipStack.createSipProvider(listeningPoint);
+        sipProvider.addSipListener(new SipListener() {
+            public void processRequest(RequestEvent requestEvent) {
+                requests.incrementAndGet();
+            }
+
+            public void processResponse(ResponseEvent responseEvent) {
+            }
+
+            public void processTimeout(TimeoutEvent timeoutEvent) {
+            }
+
+            public void processIOException(IOExceptionEvent exceptionEvent) {
+            }
+
+            public void processTransactionTerminated(TransactionTerminatedEvent event) {
+            }
+
+            public void processDialogTerminated(DialogTerminatedEvent event) {
+            }
+        });
+    }
+
+    public void tearDown() {
+        if (sipStack != null)
+            sipStack.stop();
+    }
+
+    public void testConcurrentChannelLookup() throws Exception {
+        createStack(new Properties());
+        final ConcurrentHashMap<Integer, MessageChannel> channels = new ConcurrentHashMap<Integer, MessageChannel>();
+        final AtomicInteger mismatches = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int i = 0; i < 8; i++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        for (int port = 6000; port < 6200; port++) {
+                            MessageChannel channel = sipStack.createRawMessageChannel(
+                                    "127.0.0.1", 5098, new HopImpl("127.0.0.1", port, "tcp"));
+                            MessageChannel previous = channels.putIfAbsent(port, channel);
+                            if (previous != null && previous != channel)
+                                mismatches.incrementAndGet();
+                        }
+                    } catch (Exception ex) {
+                        mismatches.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(200, channels.size());
+        assertEquals(0, mismatches.get());
+    }
+
+    private static void sendOptions(Socket socket, String branch) throws Exception {
+        String request = "OPTIONS sip:bob@127.0.0.1:5098;transport=tcp SIP/2.0\r\n"
+                + "Via: SIP/2.0/TCP 127.0.0.1:" + socket.getLocalPort() + ";branch=" + branch
+                + "\r\n" + "From: <sip:alice@127.0.0.1>;tag=1234\r\n"
+                + "To: <sip:bob@127.0.0.1>\r\n" + "Call-ID: " + branch + "@127.0.0.1\r\n"
+                + "CSeq: 1 OPTIONS\r\n" + "Max-Forwards: 70\r\n" + "Content-Length: 0\r\n\r\n";
+        OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes());
+        out.flush();
+    }
+
+    private void waitForRequests(int count) throws Exception {
+        for (int i = 0; i < 40 && requests.get() < count; i++)
+            Thread.sleep(50);
+    }
+
+    public void testConnectionBudget() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("gov.nist.javax.sip.MAX_CONNECTIONS", "1");
+        createStack(properties);
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+        Socket first = new Socket(address, 5098);
+        sendOptions(first, "z9hG4bKbudget1");
+        waitForRequests(1);
+        assertEquals(1, requests.get());
+
+        // connected, but not accepted while the first connection is open
+        Socket second = new Socket(address, 5098);
+        sendOptions(second, "z9hG4bKbudget2");
+        Thread.sleep(500);
+        assertEquals(1, requests.get());
+
+        first.close();
+        waitForRequests(2);
+        assertEquals(2, requests.get());
+
+        // the closed connection was released once only
+        Socket third = new Socket(address, 5098);
+        sendOptions(third, "z9hG4bKbudget3");
+        Thread.sleep(500);
+        assertEquals(2, requests.get());
+
+        second.close();
+        waitForRequests(3);
+        assertEquals(3, requests.get());
+        third.close();
+    }
+}
@@ -0,0 +1,88 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.SIPConstants;
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.ThreadLocalUtils;
+import gov.nist.javax.sip.Utils;
+import gov.nist.javax.sip.UtilsExt;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sip.PeerUnavailableException;
+import javax.sip.SipFactory;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the identifiers generated by the lock free generator and its
+ * selection by the stack.
+ */
+public class ThreadLocalUtilsTest extends TestCase {
+
+    public void testFormat() {
+        UtilsExt utils = new ThreadLocalUtils(false);
+        String branch = utils.generateBranchId();
+        assertTrue(branch.startsWith(SIPConstants.BRANCH_MAGIC_COOKIE));
+        assertTrue(branch.endsWith(Utils.getSignature()));
+        assertEquals(SIPConstants.BRANCH_MAGIC_COOKIE.length() + 32 + Utils.getSignature()
+                .length(), branch.length());
+        String callId = utils.generateCallIdentifier("127.0.0.1");
+        assertTrue(callId.matches("[0-9a-f]{32}@127\\.0\\.0\\.1"));
+        assertTrue(utils.generateTag().matches("[0-9a-f]{1,8}"));
+    }
+
+    public void testSequentialUniqueness() throws Exception {
+        final UtilsExt utils = new ThreadLocalUtils(true);
+        final Map<String, String> identifiers = new ConcurrentHashMap<String, String>();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        String branch = utils.generateBranchId();
+                        identifiers.put(branch, branch);
+                        String callId = utils.generateCallIdentifier("127.0.0.1");
+                        identifiers.put(callId, callId);
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(30000);
+        }
+        assertEquals(2 * threads.length * 10000, identifiers.size());
+    }
+
+    private UtilsExt createStack(String identifierGenerator) throws Exception {
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.resetFactory();
+        sipFactory.setPathName("gov.nist");
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "identifiers");
+        if (identifierGenerator != null)
+            properties.setProperty("gov.nist.javax.sip.IDENTIFIER_GENERATOR", identifierGenerator);
+        SipStackImpl sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        try {
+            return sipStack.getUtils();
+        } finally {
+            sipStack.stop();
+        }
+    }
+
+    public void testStackProperty() throws Exception {
+        assertSame(Utils.getInstance(), createStack(null));
+        assertSame(Utils.getInstance(), createStack("digest"));
+        assertFalse(((ThreadLocalUtils) createStack("random")).isSequential());
+        assertTrue(((ThreadLocalUtils) createStack("sequential")).isSequential());
+        try {
+            createStack("md4");
+            fail("bad value accepted");
+        } catch (PeerUnavailableException ex) {
+        }
+    }
+}
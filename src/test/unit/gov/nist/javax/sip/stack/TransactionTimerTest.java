@@ -0,0 +1,194 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.message.MessageFactoryImpl;
+import gov.nist.javax.sip.stack.SIPStackTimerTask;
+import gov.nist.javax.sip.stack.timers.DefaultSipTimer;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.message.Request;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the transaction timers run at their deadlines, that nothing is
+ * scheduled for a transaction while none of its timers is enabled, and that a
+ * transaction terminated before its timer started is still removed.
+ */
+public class TransactionTimerTest extends TestCase {
+
+    /**
+     * Counts the tasks scheduled on the stack timer.
+     */
+    public static class CountingSipTimer extends DefaultSipTimer {
+        static final AtomicInteger scheduled = new AtomicInteger();
+
+        static final AtomicInteger scheduledWithFixedDelay = new AtomicInteger();
+
+        public boolean schedule(SIPStackTimerTask task, long delay) {
+            scheduled.incrementAndGet();
+            return super.schedule(task, delay);
+        }
+
+        public boolean scheduleWithFixedDelay(SIPStackTimerTask task, long delay, long period) {
+            scheduledWithFixedDelay.incrementAndGet();
+            return super.scheduleWithFixedDelay(task, delay, period);
+        }
+    }
+
+    private SipStackImpl sipStack;
+
+    private SipProvider sipProvider;
+
+    private DatagramSocket peer;
+
+    public void setUp() throws Exception {
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.resetFactory();
+        sipFactory.setPathName("gov.nist");
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "timers");
+        properties.setProperty("gov.nist.javax.sip.TIMER_CLASS_NAME",
+                CountingSipTimer.class.getName());
+        sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        ListeningPoint listeningPoint = sipStack.createListeningPoint("127.0.0.1", 5098, "udp");
+        sipProvider = sipStack.createSipProvider(listeningPoint);
+        sipProvider.addListeningPoint(sipStack.createListeningPoint("127.0.0.1", 5098, "tcp"));
+        sipProvider.addSipListener(new SipListener() {
+            public void processRequest(RequestEvent requestEvent) {
+                try {
+                    Request request = requestEvent.getRequest();
+                    ServerTransaction serverTransaction = sipProvider
+                            .getNewServerTransaction(request);
+                    // keep ringing, or answer right away the other requests
+                    serverTransaction.sendResponse(new MessageFactoryImpl().createResponse(
+                            request.getMethod().equals(Request.INVITE) ? 180 : 200, request));
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+
+            public void processResponse(ResponseEvent responseEvent) {
+            }
+
+            public void processTimeout(TimeoutEvent timeoutEvent) {
+            }
+
+            public void processIOException(IOExceptionEvent exceptionEvent) {
+            }
+
+            public void processTransactionTerminated(TransactionTerminatedEvent event) {
+            }
+
+            public void processDialogTerminated(DialogTerminatedEvent event) {
+            }
+        });
+        peer = new DatagramSocket(5099, InetAddress.getByName("127.0.0.1"));
+        peer.setSoTimeout(5000);
+    }
+
+    public void tearDown() {
+        peer.close();
+        sipStack.stop();
+    }
+
+    private static String request(String method, String branch) {
+        return request(method, branch, "UDP");
+    }
+
+    private static String request(String method, String branch, String transport) {
+        return method + " sip:bob@127.0.0.1:5099 SIP/2.0\r\n"
+                + "Via: SIP/2.0/" + transport + " 127.0.0.1:5099;branch=" + branch + "\r\n"
+                + "From: <sip:alice@127.0.0.1>;tag=1234\r\n" + "To: <sip:bob@127.0.0.1>\r\n"
+                + "Call-ID: " + branch + "@127.0.0.1\r\n" + "CSeq: 1 " + method + "\r\n"
+                + "Max-Forwards: 70\r\n" + "Contact: <sip:alice@127.0.0.1:5099>\r\n"
+                + "Content-Length: 0\r\n\r\n";
+    }
+
+    private String receive() throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[4096], 4096);
+        peer.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength());
+    }
+
+    public void testTimerE() throws Exception {
+        Request request = new MessageFactoryImpl().createRequest(request(Request.OPTIONS,
+                "z9hG4bKtimere"));
+        // the request is sent by the stack, which pushes its own Via
+        request.removeHeader("Via");
+        sipProvider.getNewClientTransaction(request).sendRequest();
+        receive();
+        long sent = System.currentTimeMillis();
+        // retransmitted after 500 ms, then 1 s and 2 s
+        long[] intervals = { 500, 1000, 2000 };
+        for (int i = 0; i < intervals.length; i++) {
+            assertTrue(receive().startsWith(Request.OPTIONS));
+            long now = System.currentTimeMillis();
+            assertTrue("retransmitted after " + (now - sent) + " ms",
+                    Math.abs(now - sent - intervals[i]) < 250);
+            sent = now;
+        }
+    }
+
+    public void testIdleServerTransaction() throws Exception {
+        byte[] invite = request(Request.INVITE, "z9hG4bKidle").getBytes();
+        peer.send(new DatagramPacket(invite, invite.length, InetAddress.getByName("127.0.0.1"),
+                5098));
+        String response;
+        do {
+            response = receive();
+        } while (!response.startsWith("SIP/2.0 180"));
+        int scheduled = CountingSipTimer.scheduled.get();
+        // proceeding, none of the timers of the transaction is enabled
+        Thread.sleep(1500);
+        assertEquals(scheduled, CountingSipTimer.scheduled.get());
+        assertEquals(0, CountingSipTimer.scheduledWithFixedDelay.get());
+    }
+
+    public void testTerminatedOverTcp() throws Exception {
+        // a final response to a non-INVITE over a reliable transport
+        // terminates the transaction before its timer is started
+        Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), 5098);
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(request(Request.OPTIONS, "z9hG4bKreliable", "TCP").getBytes());
+            out.flush();
+            socket.setSoTimeout(5000);
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[4096];
+            StringBuffer response = new StringBuffer();
+            while (response.indexOf("\r\n\r\n") < 0) {
+                int n = in.read(buffer);
+                assertTrue(n > 0);
+                response.append(new String(buffer, 0, n));
+            }
+            assertTrue(response.toString().startsWith("SIP/2.0 200"));
+            assertEquals(1, sipStack.getServerTransactionTableSize());
+            // removed once the connection linger time has passed
+            for (int i = 0; i < 150 && sipStack.getServerTransactionTableSize() > 0; i++)
+                Thread.sleep(100);
+            assertEquals(0, sipStack.getServerTransactionTableSize());
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Properties;
+
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Response;
+
+import junit.framework.TestCase;
+
+/**
+ * Sends MESSAGE requests from several source ports to a stack reading its UDP port
+ * from several sockets (gov.nist.javax.sip.UDP_RECEIVE_SOCKETS) and checks they are all
+ * answered.
+ */
+public class UdpReceiveSocketsTest extends TestCase implements SipListener {
+
+    private static final int PORT = 6100;
+
+    private static final int NUMBER_OF_CLIENTS = 20;
+
+    private SipStack sipStack;
+
+    private SipProvider sipProvider;
+
+    private MessageFactory messageFactory;
+
+    private int requestsReceived;
+
+    public void setUp() throws Exception {
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.resetFactory();
+        sipFactory.setPathName("gov.nist");
+        messageFactory = sipFactory.createMessageFactory();
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "server");
+        properties.setProperty("gov.nist.javax.sip.UDP_RECEIVE_SOCKETS", "4");
+        properties.setProperty("gov.nist.javax.sip.THREAD_POOL_SIZE", "8");
+        sipStack = sipFactory.createSipStack(properties);
+        ListeningPoint listeningPoint = sipStack.createListeningPoint("127.0.0.1", PORT,
+                ListeningPoint.UDP);
+        sipProvider = sipStack.createSipProvider(listeningPoint);
+        sipProvider.addSipListener(this);
+    }
+
+    public void tearDown() {
+        sipStack.stop();
+    }
+
+    public void testSeveralSockets() throws Exception {
+        DatagramSocket[] clients = new DatagramSocket[NUMBER_OF_CLIENTS];
+        for (int i = 0; i < NUMBER_OF_CLIENTS; i++) {
+            clients[i] = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+            clients[i].setSoTimeout(5000);
+            String message = "MESSAGE sip:server@127.0.0.1:" + PORT + " SIP/2.0\r\n"
+                    + "Via: SIP/2.0/UDP 127.0.0.1:" + clients[i].getLocalPort()
+                    + ";branch=z9hG4bK-reuseport-" + i + "\r\n"
+                    + "From: <sip:client@127.0.0.1>;tag=" + i + "\r\n"
+                    + "To: <sip:server@127.0.0.1>\r\n"
+                    + "Call-ID: reuseport-" + i + "@127.0.0.1\r\n"
+                    + "CSeq: 1 MESSAGE\r\n"
+                    + "Max-Forwards: 70\r\n"
+                    + "Content-Length: 0\r\n\r\n";
+            byte[] bytes = message.getBytes();
+            clients[i].send(new DatagramPacket(bytes, bytes.length, InetAddress
+                    .getByName("127.0.0.1"), PORT));
+        }
+        for (int i = 0; i < NUMBER_OF_CLIENTS; i++) {
+            byte[] buffer = new byte[4096];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            clients[i].receive(packet);
+            String response = new String(packet.getData(), 0, packet.getLength());
+            assertTrue(response, response.startsWith("SIP/2.0 200"));
+            clients[i].close();
+        }
+        synchronized (this) {
+            assertEquals(NUMBER_OF_CLIENTS, requestsReceived);
+        }
+    }
+
+    public void processRequest(RequestEvent requestEvent) {
+        try {
+            synchronized (this) {
+                requestsReceived++;
+            }
+            sipProvider.getNewServerTransaction(requestEvent.getRequest()).sendResponse(
+                    messageFactory.createResponse(Response.OK, requestEvent.getRequest()));
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            fail("Unexpected exception");
+        }
+    }
+
+    public void processResponse(ResponseEvent responseEvent) {
+    }
+
+    public void processTimeout(TimeoutEvent timeoutEvent) {
+    }
+
+    public void processIOException(IOExceptionEvent exceptionEvent) {
+    }
+
+    public void processTransactionTerminated(
+            TransactionTerminatedEvent transactionTerminatedEvent) {
+    }
+
+    public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {
+    }
+}
@@ -0,0 +1,100 @@
+package test.unit.gov.nist.javax.sip.stack.tls;
+
+import gov.nist.javax.sip.SipStackImpl;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Properties;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.sip.ListeningPoint;
+import javax.sip.SipFactory;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that a client stalling its TLS handshake does not hold up the
+ * handshakes of the clients connecting after it, and that its connection is
+ * closed once the handshake timeout has passed, with the blocking and the NIO
+ * message processors.
+ */
+public class TlsHandshakeTest extends TestCase {
+
+    private SipStackImpl sipStack;
+
+    public void setUp() throws Exception {
+        System.setProperty("javax.net.ssl.keyStore", TlsTest.class.getResource("testkeys")
+                .getPath());
+        System.setProperty("javax.net.ssl.trustStore", TlsTest.class.getResource("testkeys")
+                .getPath());
+        System.setProperty("javax.net.ssl.keyStorePassword", "passphrase");
+        System.setProperty("javax.net.ssl.keyStoreType", "jks");
+    }
+
+    private void createStack(String messageProcessorFactory) throws Exception {
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.resetFactory();
+        sipFactory.setPathName("gov.nist");
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "handshakes");
+        properties.setProperty("gov.nist.javax.sip.TLS_HANDSHAKE_THREADS", "2");
+        properties.setProperty("gov.nist.javax.sip.TLS_HANDSHAKE_TIMEOUT", "1000");
+        if (messageProcessorFactory != null)
+            properties.setProperty("gov.nist.javax.sip.MESSAGE_PROCESSOR_FACTORY",
+                    messageProcessorFactory);
+        sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        ListeningPoint listeningPoint = sipStack.createListeningPoint("127.0.0.1", 5091, "tls");
+        sipStack.createSipProvider(listeningPoint);
+    }
+
+    public void tearDown() {
+        if (sipStack != null)
+            sipStack.stop();
+        System.clearProperty("javax.net.ssl.keyStore");
+        System.clearProperty("javax.net.ssl.trustStore");
+        System.clearProperty("javax.net.ssl.keyStorePassword");
+        System.clearProperty("javax.net.ssl.keyStoreType");
+    }
+
+    public void testStalledHandshake() throws Exception {
+        createStack(null);
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+        // connects, but never sends its client hello
+        Socket stalled = new Socket(address, 5091);
+        Thread.sleep(100);
+
+        long start = System.currentTimeMillis();
+        SSLSocket client = (SSLSocket) SSLSocketFactory.getDefault().createSocket(address, 5091);
+        client.startHandshake();
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        for (int i = 0; i < 40 && sipStack.getTlsHandshakeCount() == 0; i++)
+            Thread.sleep(50);
+        assertEquals(1, sipStack.getTlsHandshakeCount());
+        assertEquals(0, sipStack.getTlsHandshakeFailureCount());
+        assertTrue(sipStack.getMaxTlsHandshakeTime() < 1000);
+
+        stalled.setSoTimeout(3000);
+        InputStream in = stalled.getInputStream();
+        // closed by the timeout, after at most an alert
+        while (in.read() != -1)
+            ;
+        assertEquals(1, sipStack.getTlsHandshakeTimeoutCount());
+        assertEquals(1, sipStack.getTlsHandshakeFailureCount());
+        client.close();
+        stalled.close();
+    }
+
+    public void testStalledHandshakeNio() throws Exception {
+        createStack("gov.nist.javax.sip.stack.NioMessageProcessorFactory");
+        Socket stalled = new Socket(InetAddress.getByName("127.0.0.1"), 5091);
+        long start = System.currentTimeMillis();
+        stalled.setSoTimeout(5000);
+        InputStream in = stalled.getInputStream();
+        while (in.read() != -1)
+            ;
+        assertTrue(System.currentTimeMillis() - start < 4000);
+        stalled.close();
+    }
+}